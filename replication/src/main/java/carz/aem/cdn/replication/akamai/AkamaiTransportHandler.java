@@ -1,45 +1,62 @@
 package carz.aem.cdn.replication.akamai;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import carz.aem.cdn.replication.constants.TransportConstants;
+import carz.aem.cdn.replication.dispatch.PurgeDispatcher;
+import carz.aem.cdn.replication.bulk.PurgeTransport;
+import carz.aem.cdn.replication.delivery.JournalledDelivery;
+import carz.aem.cdn.replication.delivery.PartitionedDelivery;
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.fingerprint.FingerprintStore;
+import carz.aem.cdn.replication.hotspot.HotspotType;
+import carz.aem.cdn.replication.hotspot.PurgeHotspots;
+import carz.aem.cdn.replication.journal.JournalledPurge;
+import carz.aem.cdn.replication.manifest.UrlManifestStore;
+import carz.aem.cdn.replication.journal.PurgeJournal;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.retry.PurgeRetryEngine;
+import carz.aem.cdn.replication.retry.PurgeRetryResult;
+import carz.aem.cdn.replication.tracking.PurgeTracker;
+import carz.aem.cdn.replication.transport.DetachedTransaction;
+import carz.aem.cdn.replication.transport.GzipRequestEncoder;
+import carz.aem.cdn.replication.transport.PurgeRecorder;
+import carz.aem.cdn.replication.transport.RequestSigner;
+import carz.aem.cdn.replication.transport.TransportEngine;
+import carz.aem.cdn.replication.transport.TransportRequest;
+import carz.aem.cdn.replication.transport.TransportResponse;
+import carz.aem.cdn.replication.url.UrlSet;
 import com.day.cq.replication.*;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpStatus;
+import org.apache.http.HttpHeaders;
 import org.apache.http.entity.ContentType;
-import org.apache.jackrabbit.util.Base64;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 
 import com.akamai.edgegrid.signer.ClientCredential;
-import com.akamai.edgegrid.signer.exceptions.RequestSigningException;
-import com.akamai.edgegrid.signer.googlehttpclient.GoogleHttpClientEdgeGridRequestSigner;
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.apache.ApacheHttpTransport;
 
 /**
  * Transport handler to send test and purge requests to Akamai and handle
- * responses. The handler sets up basic authentication with the user/pass from
- * the replication agent's transport config and sends a GET request as a test
- * and POST as purge request. A valid test response is 200 while a valid purge
- * response is 201.
+ * responses. The handler signs the requests with the EdgeGrid credentials of
+ * the replication agent and sends them as POST requests through the shared
+ * {@link TransportEngine}. A valid purge response is 201.
  *
  * The transport handler is triggered by setting your replication agent's
  * transport URL's protocol to "akamai://".
@@ -48,10 +65,10 @@ import com.google.api.client.http.apache.ApacheHttpTransport;
  * Akamai's Fast Purge REST API {@link https://developer.akamai.com/api/core_features/fast_purge/v3.html}
  * using the replication agent properties.
  */
-@Component(service = TransportHandler.class,
+@Component(service = {TransportHandler.class, PurgeTransport.class},
   immediate = true,
   property = {"service.ranking:Integer=1001"})
-public class AkamaiTransportHandler implements TransportHandler {
+public class AkamaiTransportHandler implements TransportHandler, PurgeTransport {
 
   private final static String SERIALIZATION_TYPE = "akamai";
   private static final String AKAMAI_PROTOCOL = "akamai://";
@@ -68,6 +85,12 @@ public class AkamaiTransportHandler implements TransportHandler {
   /** Replication agent default type value */
   private static final String PROPERTY_AKAMAI_TYPE_DEFAULT = "url";
 
+  /**
+   * Purge types of wildcard targets falling back to a cache tag or CP code
+   */
+  private static final String AKAMAI_TYPE_TAG = "tag";
+  private static final String AKAMAI_TYPE_CPCODE = "cpcode";
+
   /** Replication agent default environment value */
   private static final String PROPERTY_AKAMAI_ENV_DEFAULT = "production";
 
@@ -78,6 +101,58 @@ public class AkamaiTransportHandler implements TransportHandler {
   private static final String PROPERTY_CLIENT_SECRET = "clientSecret";
   private static final String PROPERTY_ACCESS_TOKEN = "accessToken";
 
+  /** Replication agent property with the minimum request body size in bytes to gzip. 0 disables compression. */
+  private static final String PROPERTY_GZIP_THRESHOLD = "gzipThreshold";
+
+  /** Replication agent property with the minutes after a 415 until requests to the endpoint are compressed again. */
+  private static final String PROPERTY_GZIP_RETRY_INTERVAL = "gzipRetryInterval";
+  private static final int GZIP_RETRY_INTERVAL_DEFAULT = 60;
+
+  /** Replication agent property with the maximum request body size in bytes. 0 sends all URLs in one request. */
+  private static final String PROPERTY_MAX_BODY_SIZE = "maxBodySize";
+
+  /** Fast Purge accepts request bodies of up to 50,000 bytes */
+  public static final int MAX_BODY_SIZE_DEFAULT = 50000;
+
+  /** Bytes of the request body around the URLs */
+  public static final int BODY_ENVELOPE_SIZE = 16;
+
+  @Reference
+  private TransportEngine transportEngine;
+
+  @Reference
+  private PurgeRetryEngine purgeRetryEngine;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeJournal purgeJournal;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeDispatcher purgeDispatcher;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeTracker purgeTracker;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile FingerprintStore fingerprintStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile UrlManifestStore urlManifestStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeHotspots purgeHotspots;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PartitionedDelivery partitionedDelivery;
+
+  private final GzipRequestEncoder.Registry gzipEncoders = new GzipRequestEncoder.Registry();
+
   /**
    * {@inheritDoc}
    *  * The transport handler is triggered by setting your replication agent's
@@ -99,44 +174,43 @@ public class AkamaiTransportHandler implements TransportHandler {
 
     final ReplicationActionType replicationType = tx.getAction().getType();
 
-    try {
-      if (replicationType == ReplicationActionType.TEST) {
-        return doAction(ctx, tx);
-      } else if (replicationType == ReplicationActionType.ACTIVATE ||
-        replicationType == ReplicationActionType.DEACTIVATE ||
-        replicationType == ReplicationActionType.DELETE) {
-        return doAction(ctx, tx);
-      }
-    } catch (IOException e) {
-      throw new ReplicationException("IO Exception in deliver: {}", e);
+    if (replicationType == ReplicationActionType.TEST) {
+      return doAction(ctx, tx);
+    } else if (replicationType == ReplicationActionType.ACTIVATE ||
+      replicationType == ReplicationActionType.DEACTIVATE ||
+      replicationType == ReplicationActionType.DELETE) {
+      return doAction(ctx, tx);
     }
     throw new ReplicationException("Replication action type " + replicationType + " not supported.");
   }
 
   private String getTransportURI(TransportContext ctx) {
+    final ValueMap properties = ctx.getConfig().getProperties();
+    return getTransportURI(ctx,
+      PropertiesUtil.toString(properties.get(PROPERTY_AKAMAI_TYPE), PROPERTY_AKAMAI_TYPE_DEFAULT));
+  }
+
+  private String getTransportURI(TransportContext ctx, String type) {
     final ValueMap properties = ctx.getConfig().getProperties();
     final String AKAMAI_HOST = ctx.getConfig().getTransportURI().replace(AKAMAI_PROTOCOL, TransportConstants.HTTPS);
     final String environment = PropertiesUtil.toString(properties.get(PROPERTY_AKAMAI_ENV), PROPERTY_AKAMAI_ENV_DEFAULT);
     final String action = PropertiesUtil.toString(properties.get(PROPERTY_AKAMAI_ACTION), PROPERTY_AKAMAI_ACTION_DEFAULT);
-    final String type = PropertiesUtil.toString(properties.get(PROPERTY_AKAMAI_TYPE), PROPERTY_AKAMAI_TYPE_DEFAULT);
     return AKAMAI_HOST + "/ccu/v3/"
       + action + TransportConstants.BACK_SLASH + type + TransportConstants.BACK_SLASH + environment;
   }
 
   /**
-   * Send purge request to Akamai via a POST request
-   *
-   * Akamai will respond with a 201 HTTP status code if the purge request was
-   * successfully submitted.
+   * Read the purge payload and send it, or record its URLs in the purge
+   * journal and queue it in its delivery lane if the agent delivers
+   * partitioned.
    *
    * @param ctx Transport Context
    * @param tx Replication Transaction
-   * @return ReplicationResult OK if 201 response from Akamai
-   * @throws ReplicationException if a request could not be sent
-   * @throws IOException if a request could not be sent
+   * @return ReplicationResult OK if Akamai accepted the purge or it was queued
+   * @throws ReplicationException if a request could not be sent or queued
    */
   private ReplicationResult doAction(TransportContext ctx, ReplicationTransaction tx)
-    throws ReplicationException, IOException {
+    throws ReplicationException {
 
     final ReplicationLog log = tx.getLog();
 
@@ -145,6 +219,55 @@ public class AkamaiTransportHandler implements TransportHandler {
       return ReplicationResult.OK;
     }
 
+    final PurgePayload payload = readPayload(tx);
+    if (payload.isEmpty()) {
+      throw new ReplicationException("No CP codes or pages to purge");
+    }
+
+    final PartitionedDelivery delivery = partitionedDelivery;
+    if (delivery != null && tx.getAction().getType() != ReplicationActionType.TEST
+      && PropertiesUtil.toBoolean(ctx.getConfig().getProperties().get(PartitionedDelivery.PROPERTY_PARTITIONED_DELIVERY),
+      false)) {
+      final JournalledPurge journalledPurge = beginPurge(ctx, tx, payload, log);
+      final DetachedTransaction detached = new DetachedTransaction(ctx.getConfig(), tx.getAction(),
+        "partitioned delivery of " + tx.getAction().getPath());
+      delivery.submit(ctx.getConfig().getAgentId(), tx.getAction().getPath(), payload.getLane(),
+        new JournalledDelivery(journalledPurge, detached.getLog(),
+          () -> purge(detached, detached, payload, journalledPurge)));
+      log.info("Queued purge of %s for partitioned delivery", tx.getAction().getPath());
+      return ReplicationResult.OK;
+    }
+    return purge(ctx, tx, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ReplicationResult purge(TransportContext ctx, ReplicationTransaction tx, PurgePayload payload)
+    throws ReplicationException {
+    if (payload.isEmpty()) {
+      throw new ReplicationException("No CP codes or pages to purge");
+    }
+    final JournalledPurge journalledPurge = beginPurge(ctx, tx, payload, tx.getLog());
+    final ReplicationResult result = purge(ctx, tx, payload, journalledPurge);
+    journalledPurge.complete(result, tx.getLog());
+    return result;
+  }
+
+  /**
+   * Record the URLs of the payload in the purge journal, leaving out those
+   * Akamai accepted in an earlier attempt of the transaction.
+   */
+  private JournalledPurge beginPurge(final TransportContext ctx, final ReplicationTransaction tx,
+                                     final PurgePayload payload, final ReplicationLog log)
+    throws ReplicationException {
+    final UrlSet urls = payload.getUrls().isEmpty() ? UrlSet.empty() : getPurgeObjects(ctx, payload);
+    return JournalledPurge.begin(urls.isEmpty() ? null : purgeJournal, ctx.getConfig().getAgentId(),
+      JournalledPurge.key(tx.getAction()), urls, log);
+  }
+
+  private RequestSigner createSigner(final TransportContext ctx) {
     final ValueMap properties = ctx.getConfig().getProperties();
     final String AKAMAI_ACCESS_TOKEN = PropertiesUtil.toString(properties.get(PROPERTY_ACCESS_TOKEN), "");
     final String AKAMAI_CLIENT_TOKEN = PropertiesUtil.toString(properties.get(PROPERTY_CLIENT_TOKEN), "");
@@ -153,132 +276,304 @@ public class AkamaiTransportHandler implements TransportHandler {
 
     ClientCredential clientCredential = ClientCredential.builder().accessToken(AKAMAI_ACCESS_TOKEN).
       clientToken(AKAMAI_CLIENT_TOKEN).clientSecret(AKAMAI_CLIENT_SECRET).host(AKAMAI_HOST.replace(TransportConstants.HTTPS, "")).build();
+    return new EdgeGridRequestSigner(clientCredential);
+  }
 
-    JSONObject jsonObject = createPostBody(ctx, tx);
+  /**
+   * Send purge request to Akamai via a POST request, followed by a request
+   * for the cache tags and one for the CP codes that wildcard targets fell
+   * back to, if any.
+   *
+   * Akamai will respond with a 201 HTTP status code if the purge request was
+   * successfully submitted.
+   *
+   * @param ctx Transport Context
+   * @param tx Replication Transaction
+   * @param payload The purge payload from the content builder
+   * @param journalledPurge The URLs of the payload as recorded in the purge journal
+   * @return ReplicationResult OK if Akamai accepted all requests
+   * @throws ReplicationException if a request body could not be built
+   */
+  private ReplicationResult purge(final TransportContext ctx, final ReplicationTransaction tx,
+                                  final PurgePayload payload, final JournalledPurge journalledPurge)
+    throws ReplicationException {
 
-    HttpTransport httpTransport = new ApacheHttpTransport();
-    HttpRequestFactory httpRequestFactory = httpTransport.createRequestFactory();
+    final ReplicationLog log = tx.getLog();
+    final RequestSigner signer = createSigner(ctx);
+    final ValueMap properties = ctx.getConfig().getProperties();
+    final GzipRequestEncoder gzipEncoder = gzipEncoders.get(ctx.getConfig().getAgentId(),
+      PropertiesUtil.toInteger(properties.get(PROPERTY_GZIP_THRESHOLD), 0),
+      TimeUnit.MINUTES.toMillis(PropertiesUtil.toInteger(properties.get(PROPERTY_GZIP_RETRY_INTERVAL),
+        GZIP_RETRY_INTERVAL_DEFAULT)));
+    ReplicationResult result = ReplicationResult.OK;
+    if (!journalledPurge.getUrls().isEmpty()) {
+      result = purgeUrls(ctx, tx, payload.getLane(), journalledPurge, signer, gzipEncoder);
+    }
+    if (result.isSuccess() && !payload.getTags().isEmpty()) {
+      result = purgeObjects(ctx, tx, AKAMAI_TYPE_TAG, new JSONArray(payload.getTags()), signer, gzipEncoder,
+        payload.getLane());
+    }
+    if (result.isSuccess() && !payload.getCpCodes().isEmpty()) {
+      final JSONArray cpCodes = new JSONArray();
+      for (String cpCode : payload.getCpCodes()) {
+        try {
+          cpCodes.put(Long.parseLong(cpCode.trim()));
+        } catch (NumberFormatException e) {
+          log.warn("Ignoring invalid CP code %s", cpCode);
+        }
+      }
+      if (cpCodes.length() > 0) {
+        result = purgeObjects(ctx, tx, AKAMAI_TYPE_CPCODE, cpCodes, signer, gzipEncoder, payload.getLane());
+      }
+    }
 
-    URI uri = URI.create(getTransportURI(ctx));
+    if (result.isSuccess()) {
+      PurgeRecorder.recordFingerprint(fingerprintStore, ctx, tx, payload);
+      PurgeRecorder.recordManifests(urlManifestStore, ctx, tx, payload);
+      PurgeRecorder.recordPathHotspots(purgeHotspots, tx);
+      log.info("Replication (%s) of %s successful.", tx.getAction().getType(), tx.getAction().getPath());
+    } else {
+      log.info("Replication (%s) of %s not successful.", tx.getAction().getType(), tx.getAction().getPath());
+    }
+    return result;
+  }
 
-    HttpRequest request = httpRequestFactory.buildPostRequest(new GenericUrl(uri), ByteArrayContent.fromString("application/json", jsonObject.toString()));
+  /**
+   * Send the URL purge requests of the payload, with the purges recovered
+   * from the purge journal. The URLs are split into requests of at most
+   * the maximum body size, and failed requests are retried by the purge
+   * retry engine.
+   *
+   * @param ctx Transport Context
+   * @param tx Replication Transaction
+   * @param lane The lane of the purge
+   * @param journalledPurge The URLs as recorded in the purge journal
+   * @param signer The EdgeGrid signer of the agent's credentials
+   * @param gzipEncoder The gzip encoder of the agent
+   * @return ReplicationResult OK if Akamai accepted all requests
+   */
+  private ReplicationResult purgeUrls(final TransportContext ctx, final ReplicationTransaction tx,
+                                      final PurgeLane lane, final JournalledPurge journalledPurge,
+                                      final RequestSigner signer, final GzipRequestEncoder gzipEncoder) {
 
-    log.info("Create new HttpClient for %s", ctx.getName());
-    log.info("Sending %s request to %s", request.getRequestMethod(), request.getUrl());
-    log.info("Message body: %s", jsonObject.toString());
+    final ReplicationLog log = tx.getLog();
+    final URI uri = URI.create(getTransportURI(ctx));
+    final int maxBodySize = PropertiesUtil.toInteger(ctx.getConfig().getProperties().get(PROPERTY_MAX_BODY_SIZE),
+      MAX_BODY_SIZE_DEFAULT);
+    final List<UrlSet> batches = journalledPurge.getUrls()
+      .partition(maxBodySize > 0 ? Math.max(1, maxBodySize - BODY_ENVELOPE_SIZE) : 0);
+
+    final PurgeRetryResult<UrlSet> result = purgeRetryEngine.send(batches,
+      new PurgeRetryEngine.BatchSender<UrlSet>() {
+        @Override
+        public TransportResponse send(UrlSet batch) throws IOException {
+          final byte[] body = createPostBody(batch);
+          final TransportRequest request = TransportRequest.builder("POST", uri)
+            .header(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType())
+            .body(body)
+            .build();
+
+          log.info("Sending %s request to %s", request.getMethod(), request.getUri());
+          log.info("Message body: %s URLs, %s bytes", batch.size(), body.length);
+          return sendRequest(request, tx, signer, gzipEncoder, lane);
+        }
 
-    final HttpResponse response = sendRequest(request, ctx, tx, clientCredential);
+        @Override
+        public List<UrlSet> split(UrlSet batch) {
+          return batch.split();
+        }
 
-    if (response != null) {
-      final int statusCode = response.getStatusCode();
-      if (statusCode == HttpStatus.SC_CREATED) {
-        log.info("Replication (%s) of %s successful.", tx.getAction().getType(), tx.getAction().getPath());
-        return ReplicationResult.OK;
-      }
-    }
-    log.info("Replication (%s) of %s not successful.", tx.getAction().getType(), tx.getAction().getPath());
-    return new ReplicationResult(false, 0, response != null ? response.getStatusMessage() : "No response.");
+        @Override
+        public void accepted(UrlSet batch, TransportResponse response) {
+          if (tx.getAction().getType() != ReplicationActionType.TEST) {
+            trackPurge(tx.getAction().getType(), response, batch, log);
+          }
+          PurgeRecorder.recordHotspot(purgeHotspots, tx, HotspotType.URL, batch);
+          journalledPurge.accepted(batch, log);
+        }
+      }, log);
+
+    return result.toReplicationResult(log);
   }
 
   /**
-   * Build preemptive basic authentication headers and send request.
+   * Send a purge request for cache tags or CP codes.
    *
-   * @param request The request to send to Akamai
-   * @param ctx The TransportContext containing the username and password
-   * @return JSONObject The HTTP response from Akamai
-   * @throws ReplicationException if a request could not be sent
+   * @param ctx Transport Context
+   * @param tx Replication Transaction
+   * @param type The Fast Purge type, tag or cpcode
+   * @param objects The cache tags or CP codes to purge
+   * @param signer The EdgeGrid signer of the agent's credentials
+   * @param gzipEncoder The gzip encoder of the agent
+   * @param lane The priority lane to dispatch the request in
+   * @return ReplicationResult OK if Akamai accepted the request
+   * @throws ReplicationException if the request body could not be built
    */
-  private HttpResponse sendRequest(final HttpRequest request, final TransportContext ctx,
-                                   final ReplicationTransaction tx, ClientCredential clientCredential)
+  private ReplicationResult purgeObjects(final TransportContext ctx, final ReplicationTransaction tx,
+                                         final String type, final JSONArray objects, final RequestSigner signer,
+                                         final GzipRequestEncoder gzipEncoder, final PurgeLane lane)
     throws ReplicationException {
 
     final ReplicationLog log = tx.getLog();
+    final String body;
+    try {
+      body = new JSONObject().put("objects", objects).toString();
+    } catch (JSONException e) {
+      throw new ReplicationException("Could not build purge request content. {}", e);
+    }
 
-    final String auth = ctx.getConfig().getTransportUser() + ":" + ctx.getConfig().getTransportPassword();
-    final String encodedAuth = Base64.encode(auth);
+    final TransportRequest request = TransportRequest.builder("POST", URI.create(getTransportURI(ctx, type)))
+      .header(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType())
+      .body(body.getBytes(StandardCharsets.UTF_8))
+      .build();
 
-    HttpHeaders httpHeaders = new HttpHeaders();
-    httpHeaders.setAuthorization("Basic " + encodedAuth);
-    httpHeaders.setContentType(ContentType.APPLICATION_JSON.getMimeType());
+    log.info("Sending %s request to %s", request.getMethod(), request.getUri());
+    log.info("Message body: %s", body);
 
-    request.setHeaders(httpHeaders);
+    return purgeRetryEngine.send(Collections.singletonList(request),
+      new PurgeRetryEngine.BatchSender<TransportRequest>() {
+        @Override
+        public TransportResponse send(TransportRequest batch) throws IOException {
+          return sendRequest(batch, tx, signer, gzipEncoder, lane);
+        }
 
-    HttpResponse response;
+        @Override
+        public List<TransportRequest> split(TransportRequest batch) {
+          return Collections.emptyList();
+        }
+      }, log).toReplicationResult(log);
+  }
 
-    try {
-      GoogleHttpClientEdgeGridRequestSigner requestSigner = new GoogleHttpClientEdgeGridRequestSigner(clientCredential);
-      requestSigner.sign(request);
-
-      response = request.execute();
-
-      if (response != null) {
-
-        final int statusCode = response.getStatusCode();
-        log.info("sent. Response: %s %s", statusCode, response.getStatusMessage());
-        log.info("------------------------------------------------");
-        log.info(" >> %s %s", request.getRequestMethod(), request.getUrl());
-        log.info(" >> Content-Type : %s; charset=%s", request.getHeaders().getContentType(), response.getContentCharset());
-        log.info(" -- ");
-        log.info(" << %s %s", statusCode, response.getStatusMessage());
-        log.info(" << Date : %s", response.getHeaders().getDate());
-        log.info(" << Content-Length : %s", response.getHeaders().getContentLength());
-        log.info(" << Content-Type : %s; charset=%s", response.getHeaders().getContentType(), response.getContentCharset());
-        log.info(" << ");
-        String text = new BufferedReader(
-          new InputStreamReader(response.getContent(), StandardCharsets.UTF_8))
-          .lines()
-          .collect(Collectors.joining("\n"));
-        log.info(" << %s", text);
-        log.info(" << ");
-        log.info(" << ");
-        log.info("Message sent.");
-        log.info("------------------------------------------------");
-      }
-    } catch (IOException e) {
-      throw new ReplicationException("Could not send replication request. {}", e);
-    } catch (RequestSigningException e) {
-      throw new ReplicationException("Signing ceremony unsuccessful. {}", e);
+  /**
+   * Sign the request and send it through the transport engine once the
+   * purge dispatcher admits it.
+   *
+   * @param request The request to send to Akamai
+   * @param tx The ReplicationTransaction to log to
+   * @param signer The EdgeGrid signer of the agent's credentials
+   * @param gzipEncoder The gzip encoder of the agent
+   * @param lane The priority lane to dispatch the request in
+   * @return TransportResponse The HTTP response from Akamai
+   * @throws IOException if the request could not be sent
+   */
+  private TransportResponse sendRequest(final TransportRequest request, final ReplicationTransaction tx,
+                                        final RequestSigner signer, final GzipRequestEncoder gzipEncoder,
+                                        final PurgeLane lane)
+    throws IOException {
+
+    final ReplicationLog log = tx.getLog();
+    final PurgeDispatcher dispatcher = purgeDispatcher;
+
+    final PurgeDispatcher.Send<TransportResponse> send = () -> gzipEncoder.send(transportEngine, signer,
+      request, (originalBytes, compressedBytes) -> log.info(
+        "Compressed request body from %s to %s bytes", originalBytes, compressedBytes));
+
+    final TransportResponse response = dispatcher != null ? dispatcher.dispatch(lane, send) : send.call();
+
+    final int statusCode = response.getStatusCode();
+    log.info("sent. Response: %s %s", statusCode, response.getReasonPhrase());
+    log.info("------------------------------------------------");
+    log.info(" >> %s %s", request.getMethod(), request.getUri());
+    log.info(" >> Content-Type : %s", request.getHeader(HttpHeaders.CONTENT_TYPE));
+    log.info(" -- ");
+    log.info(" << %s %s", statusCode, response.getReasonPhrase());
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+      log.info(" << %s : %s", header.getKey(), header.getValue());
     }
+    log.info(" << ");
+    log.info(" << %s", response.getBody());
+    log.info(" << ");
+    log.info(" << ");
+    log.info("Message sent.");
+    log.info("------------------------------------------------");
     return response;
   }
 
   /**
-   * Build the Akamai purge request body based on the replication agent
-   * settings and append it to the POST request.
+   * Hand an accepted purge to the purge tracker. The Fast Purge response
+   * contains the purge id, the support id and the estimated seconds until
+   * the purge has taken effect. Fast Purge v3 has no status API, so the
+   * purge counts as complete once the estimate has passed.
+   *
+   * @param actionType The type of the purged replication action
+   * @param response The 201 response from Akamai
+   * @param urls The purged URLs
+   * @param log The ReplicationLog to log to
+   */
+  private void trackPurge(final ReplicationActionType actionType, final TransportResponse response,
+                          final UrlSet urls, final ReplicationLog log) {
+    final String purgeId;
+    final String supportId;
+    final long estimatedSeconds;
+    try {
+      final JSONObject json = new JSONObject(response.getBody());
+      purgeId = json.optString("purgeId", null);
+      supportId = json.optString("supportId", null);
+      estimatedSeconds = json.optLong("estimatedSeconds", -1);
+    } catch (JSONException e) {
+      log.warn("Could not read purge response: %s", e.getMessage());
+      return;
+    }
+    log.info("Purge %s accepted, estimated to take %s seconds (support id %s)", purgeId, estimatedSeconds,
+      supportId);
+
+    final PurgeTracker tracker = purgeTracker;
+    if (tracker != null) {
+      tracker.track(SERIALIZATION_TYPE, actionType, purgeId, supportId, urls,
+        estimatedSeconds >= 0 ? TimeUnit.SECONDS.toMillis(estimatedSeconds) : -1, null);
+    }
+  }
+
+  /**
+   * Read the purge payload created by the content builder.
    *
-   * @param ctx TransportContext
    * @param tx ReplicationTransaction
-   * @throws ReplicationException if errors building the request body
+   * @return the payload, empty if the content is blank
+   * @throws ReplicationException if the content could not be read
    */
-  private JSONObject createPostBody(final TransportContext ctx,
-                                    final ReplicationTransaction tx) throws ReplicationException {
+  private PurgePayload readPayload(final ReplicationTransaction tx) throws ReplicationException {
+    try (Reader reader = new InputStreamReader(tx.getContent().getInputStream(), StandardCharsets.UTF_8)) {
+      final PurgePayload payload = PurgePayload.parse(reader);
+      return payload != null ? payload : new PurgePayload(Collections.<String>emptyList(), PurgeLane.NORMAL);
+    } catch (JSONException | IOException e) {
+      throw new ReplicationException("Could not retrieve content from content builder. {}", e);
+    }
+  }
+
+  /**
+   * Get the objects to purge based on the replication agent settings.
+   *
+   * @param ctx TransportContext
+   * @param payload The purge payload from the content builder
+   * @return the URLs to purge
+   * @throws ReplicationException if there is nothing to purge
+   */
+  private UrlSet getPurgeObjects(final TransportContext ctx,
+                                 final PurgePayload payload) throws ReplicationException {
 
     final ValueMap properties = ctx.getConfig().getProperties();
     final String type = PropertiesUtil.toString(properties.get(PROPERTY_AKAMAI_TYPE), PROPERTY_AKAMAI_TYPE_DEFAULT);
-    JSONObject json = new JSONObject();
-    JSONArray purgeObjects = null;
-
-    if (type.equals(PROPERTY_AKAMAI_TYPE_DEFAULT)) {
-      try {
-        String content = IOUtils.toString(tx.getContent().getInputStream(), Charset.defaultCharset());
 
-
-        if (StringUtils.isNotBlank(content)) {
-          purgeObjects = new JSONArray(content);
-        }
-      } catch (JSONException | IOException e) {
-        throw new ReplicationException("Could not retrieve content from content builder. {}", e);
-      }
+    if (type.equals(PROPERTY_AKAMAI_TYPE_DEFAULT) && !payload.getUrls().isEmpty()) {
+      return payload.getUrls();
     }
-    if (null != purgeObjects && purgeObjects.length() > 0) {
-      try {
-        json.put("objects", purgeObjects);
-      } catch (JSONException e) {
-        throw new ReplicationException("Could not build purge request content. {}", e);
-      }
-    } else {
-      throw new ReplicationException("No CP codes or pages to purge");
+    throw new ReplicationException("No CP codes or pages to purge");
+  }
+
+  /**
+   * Build the Akamai purge request body, streaming the URLs into it.
+   *
+   * @param purgeObjects The URLs to purge
+   * @return the UTF-8 encoded request body
+   * @throws IOException if errors building the request body
+   */
+  private byte[] createPostBody(final UrlSet purgeObjects) throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(purgeObjects.encodedSize() + 64);
+    try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+      writer.write("{\"objects\":");
+      purgeObjects.writeJson(writer);
+      writer.write('}');
     }
-    return json;
+    return body.toByteArray();
   }
 }
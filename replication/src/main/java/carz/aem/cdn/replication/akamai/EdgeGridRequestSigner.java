@@ -0,0 +1,42 @@
+package carz.aem.cdn.replication.akamai;
+
+import carz.aem.cdn.replication.transport.RequestSigner;
+import carz.aem.cdn.replication.transport.TransportRequest;
+import com.akamai.edgegrid.signer.ClientCredential;
+import com.akamai.edgegrid.signer.EdgeGridV1Signer;
+import com.akamai.edgegrid.signer.Request;
+import com.akamai.edgegrid.signer.exceptions.RequestSigningException;
+import org.apache.http.HttpHeaders;
+
+import java.io.IOException;
+
+/**
+ * Adapter signing transport engine requests with Akamai EdgeGrid, as the
+ * EdgeGrid Google HTTP client signer did for the former transport.
+ */
+public class EdgeGridRequestSigner implements RequestSigner {
+
+  private final EdgeGridV1Signer signer = new EdgeGridV1Signer();
+  private final ClientCredential clientCredential;
+
+  public EdgeGridRequestSigner(ClientCredential clientCredential) {
+    this.clientCredential = clientCredential;
+  }
+
+  @Override
+  public TransportRequest sign(TransportRequest request) throws IOException {
+    final Request.RequestBuilder edgeGridRequest = Request.builder()
+      .method(request.getMethod())
+      .uri(request.getUri())
+      .headers(request.getHeaders());
+    if (request.getBody() != null) {
+      edgeGridRequest.body(request.getBody());
+    }
+    try {
+      final String signature = signer.getSignature(edgeGridRequest.build(), clientCredential);
+      return request.toBuilder().header(HttpHeaders.AUTHORIZATION, signature).build();
+    } catch (RequestSigningException e) {
+      throw new IOException("Signing ceremony unsuccessful.", e);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package carz.aem.cdn.replication.bulk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A running bulk purge. The result completes with the final report once
+ * every batch has been sent or cancelled; {@link #getProgress()} reports
+ * the status of every URL while it runs.
+ */
+public final class BulkPurge {
+
+  private final String id;
+  private final String agentId;
+  private final CompletableFuture<BulkPurgeReport> result = new CompletableFuture<>();
+  private final Map<String, BulkPurgeStatus> statuses = new LinkedHashMap<>();
+  private final List<String> skippedPaths = new ArrayList<>();
+  private final List<String> failedPaths = new ArrayList<>();
+  private int pendingBatches;
+  private boolean sealed;
+  private volatile boolean cancelled;
+
+  BulkPurge(String id, String agentId) {
+    this.id = id;
+    this.agentId = agentId;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getAgentId() {
+    return agentId;
+  }
+
+  /**
+   * @return the final report, once every batch has been sent or cancelled
+   */
+  public CompletableFuture<BulkPurgeReport> getResult() {
+    return result;
+  }
+
+  /**
+   * @return the current status of every URL
+   */
+  public synchronized BulkPurgeReport getProgress() {
+    return report();
+  }
+
+  /**
+   * Stop sending batches. Batches being sent are finished, the URLs of the
+   * others are reported as cancelled.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @return false if the URL is already part of the purge
+   */
+  synchronized boolean add(String url) {
+    return statuses.putIfAbsent(url, BulkPurgeStatus.PENDING) == null;
+  }
+
+  synchronized void skipped(String path) {
+    skippedPaths.add(path);
+  }
+
+  synchronized void failed(String path) {
+    failedPaths.add(path);
+  }
+
+  synchronized void submitted() {
+    pendingBatches++;
+  }
+
+  synchronized void completed(Collection<String> urls, BulkPurgeStatus status) {
+    for (String url : urls) {
+      statuses.put(url, status);
+    }
+    pendingBatches--;
+    completeIfDone();
+  }
+
+  /**
+   * No more batches are added.
+   */
+  synchronized void seal() {
+    sealed = true;
+    completeIfDone();
+  }
+
+  private void completeIfDone() {
+    if (sealed && pendingBatches == 0) {
+      result.complete(report());
+    }
+  }
+
+  private BulkPurgeReport report() {
+    return new BulkPurgeReport(id, agentId, sealed && pendingBatches == 0, statuses, skippedPaths, failedPaths);
+  }
+}
@@ -0,0 +1,105 @@
+package carz.aem.cdn.replication.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Status of every URL of a bulk purge, and the paths that did not lead to
+ * a purge. Immutable snapshot.
+ */
+public final class BulkPurgeReport {
+
+  private final String id;
+  private final String agentId;
+  private final boolean done;
+  private final Map<String, BulkPurgeStatus> statuses;
+  private final Map<BulkPurgeStatus, Integer> counts = new EnumMap<>(BulkPurgeStatus.class);
+  private final List<String> skippedPaths;
+  private final List<String> failedPaths;
+
+  BulkPurgeReport(String id, String agentId, boolean done, Map<String, BulkPurgeStatus> statuses,
+                  List<String> skippedPaths, List<String> failedPaths) {
+    this.id = id;
+    this.agentId = agentId;
+    this.done = done;
+    this.statuses = Collections.unmodifiableMap(new LinkedHashMap<>(statuses));
+    this.skippedPaths = Collections.unmodifiableList(new ArrayList<>(skippedPaths));
+    this.failedPaths = Collections.unmodifiableList(new ArrayList<>(failedPaths));
+    for (BulkPurgeStatus status : this.statuses.values()) {
+      counts.merge(status, 1, Integer::sum);
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getAgentId() {
+    return agentId;
+  }
+
+  /**
+   * @return true if no URL is pending anymore
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * @return the status of every URL, in the order the URLs were added
+   */
+  public Map<String, BulkPurgeStatus> getStatuses() {
+    return statuses;
+  }
+
+  /**
+   * @return the status of the URL, or null if it is not part of the purge
+   */
+  public BulkPurgeStatus getStatus(String url) {
+    return statuses.get(url);
+  }
+
+  /**
+   * @return number of URLs with the status
+   */
+  public int getCount(BulkPurgeStatus status) {
+    return counts.getOrDefault(status, 0);
+  }
+
+  /**
+   * @return the URLs with the status
+   */
+  public List<String> getUrls(BulkPurgeStatus status) {
+    final List<String> urls = new ArrayList<>();
+    for (Map.Entry<String, BulkPurgeStatus> entry : statuses.entrySet()) {
+      if (entry.getValue() == status) {
+        urls.add(entry.getKey());
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * @return paths without URLs to purge, e.g. without a matching flush rule
+   */
+  public List<String> getSkippedPaths() {
+    return skippedPaths;
+  }
+
+  /**
+   * @return paths whose URLs could not be built
+   */
+  public List<String> getFailedPaths() {
+    return failedPaths;
+  }
+
+  @Override
+  public String toString() {
+    return "BulkPurgeReport{id=" + id + ", agentId=" + agentId + ", done=" + done + ", urls=" + counts
+      + ", skippedPaths=" + skippedPaths.size() + ", failedPaths=" + failedPaths.size() + '}';
+  }
+}
@@ -0,0 +1,16 @@
+package carz.aem.cdn.replication.bulk;
+
+/**
+ * State of a URL of a bulk purge.
+ */
+public enum BulkPurgeStatus {
+
+  /** Waiting in a batch to be sent */
+  PENDING,
+  /** Accepted by the CDN */
+  PURGED,
+  /** Rejected by the CDN or not sent after all retries */
+  FAILED,
+  /** Not sent because the bulk purge was cancelled */
+  CANCELLED
+}
@@ -0,0 +1,53 @@
+package carz.aem.cdn.replication.bulk;
+
+import com.day.cq.replication.ReplicationException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.stream.Stream;
+
+/**
+ * Purges large numbers of paths or URLs through a CDN replication agent
+ * without queuing a replication per path. Paths go through the flush rules
+ * and URL building of the agent's content builder, the URLs are batched
+ * and the batches are sent in parallel by the agent's transport handler in
+ * the bulk purge lane.
+ *
+ * Collections are passed as {@code collection.stream()}.
+ */
+@ProviderType
+public interface CdnPurgeService {
+
+  /**
+   * Purge the URLs of paths, as if each path was activated, including
+   * paths whose content did not change since their last purge. The method
+   * returns right away: the paths are read from the stream and resolved in
+   * the background with a clone of the resolver, so the resolver can be
+   * closed once the method returns. The stream is closed once it is read.
+   *
+   * @param resolver resolver to look up the paths with
+   * @param agentId  id of the CDN replication agent
+   * @param paths    paths to purge
+   * @return the bulk purge
+   * @throws ReplicationException if the agent does not exist, is disabled
+   *                              or is not a CDN agent, the resolver cannot
+   *                              be cloned or too many bulk purges are
+   *                              waiting
+   */
+  public BulkPurge purgePaths(ResourceResolver resolver, String agentId, Stream<String> paths)
+    throws ReplicationException;
+
+  /**
+   * Purge URLs as they are, without flush rules or URL building. The method
+   * returns right away; the stream is read in the background and closed
+   * once it is read.
+   *
+   * @param agentId id of the CDN replication agent
+   * @param urls    URLs to purge, in the format of the agent's CDN
+   * @return the bulk purge
+   * @throws ReplicationException if the agent does not exist, is disabled
+   *                              or is not a CDN agent, or too many bulk
+   *                              purges are waiting
+   */
+  public BulkPurge purgeUrls(String agentId, Stream<String> urls) throws ReplicationException;
+}
@@ -0,0 +1,437 @@
+package carz.aem.cdn.replication.bulk;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.pipeline.CdnContentBuilder;
+import carz.aem.cdn.replication.pipeline.PurgeContentPipeline;
+import carz.aem.cdn.replication.transport.DetachedTransaction;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Bulk purges built with the {@link PurgeContentPipeline} and the profile
+ * of the agent's {@link CdnContentBuilder}, and sent by the agent's
+ * {@link PurgeTransport} in the bulk purge lane. Batches are sent by a
+ * fixed number of threads shared by all bulk purges, so the transport's
+ * retries and the purge dispatcher still limit what reaches the CDN.
+ *
+ * The paths or URLs of a bulk purge are read on a reader thread, so the
+ * purge is returned right away. Batches wait in a bounded queue; when it is
+ * full the reader waits until a batch has been sent, so a large stream is
+ * never held in memory as batches.
+ *
+ * A batch succeeds or fails as a whole, so all of its URLs get the same
+ * status. Bulk purges and batches still waiting when the component is
+ * deactivated are reported as cancelled.
+ */
+@Component(service = CdnPurgeService.class,
+  immediate = true)
+@Designate(ocd = CdnPurgeServiceImpl.Config.class)
+public class CdnPurgeServiceImpl implements CdnPurgeService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CdnPurgeServiceImpl.class);
+
+  private static final String ACTION_PATH_PREFIX = "/bulk-purge/";
+  /** User of the replication actions of URL purges, which have no session */
+  private static final String URL_PURGE_USER = "cdn-bulk-purge";
+
+  @ObjectClassDefinition(name = "CDN bulk purge service config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Threads", description = "Batches sent at the same time, over all bulk purges.")
+    int threads() default 4;
+
+    @AttributeDefinition(name = "Batch size",
+      description = "URLs, cache tags and CP codes per batch. The transport splits a batch further if it exceeds "
+        + "the maximum request body size of the agent.")
+    int batch_size() default 500;
+
+    @AttributeDefinition(name = "Queue size",
+      description = "Batches waiting for a thread before reading more paths or URLs waits, and bulk purges "
+        + "waiting for a reader.")
+    int queue_size() default 64;
+
+    @AttributeDefinition(name = "Readers", description = "Bulk purges whose paths or URLs are read at the same time.")
+    int readers() default 2;
+
+  }
+
+  /**
+   * Reads the paths or URLs of a bulk purge.
+   */
+  @FunctionalInterface
+  private interface Reader {
+    void read(BulkPurge purge) throws InterruptedException;
+  }
+
+  private final class ReadTask implements Runnable {
+    private final BulkPurge purge;
+    private final Reader reader;
+    private final Runnable cleanup;
+
+    private ReadTask(BulkPurge purge, Reader reader, Runnable cleanup) {
+      this.purge = purge;
+      this.reader = reader;
+      this.cleanup = cleanup;
+    }
+
+    @Override
+    public void run() {
+      try {
+        reader.read(purge);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        purge.cancel();
+      } catch (RuntimeException e) {
+        LOG.warn("Could not read bulk purge {}, purging what was read so far", purge.getId(), e);
+      } finally {
+        cleanup.run();
+        seal(purge);
+      }
+    }
+
+    private void cancel() {
+      purge.cancel();
+      cleanup.run();
+      seal(purge);
+    }
+  }
+
+  /**
+   * URLs, cache tags and CP codes sent together.
+   */
+  private static final class Batch {
+    private final List<String> urls = new ArrayList<>();
+    private final Set<String> tags = new LinkedHashSet<>();
+    private final Set<String> cpCodes = new LinkedHashSet<>();
+
+    private int size() {
+      return urls.size() + tags.size() + cpCodes.size();
+    }
+  }
+
+  private final class BatchTask implements Runnable {
+    private final BulkPurge purge;
+    private final AgentConfig config;
+    private final PurgeTransport transport;
+    private final String userId;
+    private final Batch batch;
+
+    private BatchTask(BulkPurge purge, AgentConfig config, PurgeTransport transport, String userId, Batch batch) {
+      this.purge = purge;
+      this.config = config;
+      this.transport = transport;
+      this.userId = userId;
+      this.batch = batch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        send();
+      } finally {
+        batchPermits.release();
+      }
+    }
+
+    private void send() {
+      if (purge.isCancelled()) {
+        cancel();
+        return;
+      }
+      BulkPurgeStatus status;
+      try {
+        final ReplicationAction action = new ReplicationAction(ReplicationActionType.ACTIVATE,
+          ACTION_PATH_PREFIX + purge.getId(), System.currentTimeMillis(), userId, null);
+        final DetachedTransaction tx = DetachedTransaction.synthetic(config, action, "bulk purge " + purge.getId());
+        final ReplicationResult result = transport.purge(tx, tx,
+          new PurgePayload(batch.urls, batch.tags, batch.cpCodes, PurgeLane.BULK));
+        status = result.isSuccess() ? BulkPurgeStatus.PURGED : BulkPurgeStatus.FAILED;
+      } catch (ReplicationException | RuntimeException e) {
+        LOG.warn("Batch of {} URLs of bulk purge {} failed", batch.urls.size(), purge.getId(), e);
+        status = BulkPurgeStatus.FAILED;
+      }
+      purge.completed(batch.urls, status);
+    }
+
+    private void cancel() {
+      purge.completed(batch.urls, BulkPurgeStatus.CANCELLED);
+    }
+  }
+
+  @Reference
+  private AgentManager agentManager;
+
+  @Reference
+  private PurgeContentPipeline purgeContentPipeline;
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<CdnContentBuilder> contentBuilders = new CopyOnWriteArrayList<>();
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<PurgeTransport> purgeTransports = new CopyOnWriteArrayList<>();
+
+  private ThreadPoolExecutor executor;
+  private ThreadPoolExecutor readers;
+  private Semaphore batchPermits;
+  private int batchSize;
+
+  @Activate
+  protected void activate(final CdnPurgeServiceImpl.Config config) {
+    final int threads = Math.max(1, config.threads());
+    final int queueSize = Math.max(1, config.queue_size());
+    final int readerCount = Math.max(1, config.readers());
+    // the permits bound the batches; the queue also has room for those whose
+    // thread released its permit but has not taken the next batch yet
+    batchPermits = new Semaphore(threads + queueSize);
+    executor = createExecutor(threads, threads + queueSize, "cdn-bulk-purge-");
+    readers = createExecutor(readerCount, queueSize, "cdn-bulk-purge-reader-");
+    batchSize = Math.max(1, config.batch_size());
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    final List<Runnable> waitingPurges = readers.shutdownNow();
+    for (Runnable task : waitingPurges) {
+      ((ReadTask) task).cancel();
+    }
+    final List<Runnable> waiting = executor.shutdownNow();
+    for (Runnable task : waiting) {
+      ((BatchTask) task).cancel();
+    }
+    if (!waitingPurges.isEmpty() || !waiting.isEmpty()) {
+      LOG.warn("Cancelled {} bulk purges and {} batches of bulk purges", waitingPurges.size(), waiting.size());
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor(final int threads, final int queueSize, final String name) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(queueSize), runnable -> {
+        final Thread thread = new Thread(runnable, name + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  @Override
+  public BulkPurge purgePaths(final ResourceResolver resolver, final String agentId, final Stream<String> paths)
+    throws ReplicationException {
+    final AgentConfig config = getAgentConfig(agentId);
+    final CdnContentBuilder contentBuilder = getContentBuilder(config);
+    final PurgeTransport transport = getTransport(config);
+    final ResourceResolver readResolver;
+    try {
+      readResolver = resolver.clone(null);
+    } catch (LoginException e) {
+      throw new ReplicationException("Could not open a resource resolver for the bulk purge", e);
+    }
+    final Session session = readResolver.adaptTo(Session.class);
+    if (session == null) {
+      readResolver.close();
+      throw new ReplicationException("Resource resolver has no JCR session");
+    }
+    final Map<String, Object> parameters = Collections.singletonMap(PurgeContentPipeline.PARAMETER_FORCE_PURGE,
+      Boolean.TRUE);
+
+    final BulkPurge purge = new BulkPurge(UUID.randomUUID().toString(), agentId);
+    LOG.info("Started bulk purge {} of paths through {}", purge.getId(), agentId);
+    start(new ReadTask(purge, current -> {
+      Batch batch = new Batch();
+      final Iterator<String> iterator = paths.iterator();
+      while (iterator.hasNext() && isReading(current)) {
+        final String path = iterator.next();
+        if (StringUtils.isBlank(path)) {
+          continue;
+        }
+        final ReplicationAction action = new ReplicationAction(ReplicationActionType.ACTIVATE, path,
+          System.currentTimeMillis(), session.getUserID(), null);
+        action.setConfig(config);
+        final PurgePayload payload;
+        try {
+          payload = purgeContentPipeline.build(session, action, contentBuilder.createProfile(action), parameters);
+        } catch (ReplicationException | RuntimeException e) {
+          LOG.warn("Could not build the purge of {} for bulk purge {}", path, current.getId(), e);
+          current.failed(path);
+          continue;
+        }
+        if (payload == null || payload.isEmpty()) {
+          current.skipped(path);
+          continue;
+        }
+        for (String url : payload.getUrls()) {
+          if (current.add(url)) {
+            batch.urls.add(url);
+          }
+        }
+        batch.tags.addAll(payload.getTags());
+        batch.cpCodes.addAll(payload.getCpCodes());
+        if (batch.size() >= batchSize) {
+          submit(new BatchTask(current, config, transport, session.getUserID(), batch));
+          batch = new Batch();
+        }
+      }
+      if (batch.size() > 0) {
+        submit(new BatchTask(current, config, transport, session.getUserID(), batch));
+      }
+    }, () -> {
+      paths.close();
+      readResolver.close();
+    }));
+    return purge;
+  }
+
+  @Override
+  public BulkPurge purgeUrls(final String agentId, final Stream<String> urls) throws ReplicationException {
+    final AgentConfig config = getAgentConfig(agentId);
+    final PurgeTransport transport = getTransport(config);
+
+    final BulkPurge purge = new BulkPurge(UUID.randomUUID().toString(), agentId);
+    LOG.info("Started bulk purge {} of URLs through {}", purge.getId(), agentId);
+    start(new ReadTask(purge, current -> {
+      Batch batch = new Batch();
+      final Iterator<String> iterator = urls.iterator();
+      while (iterator.hasNext() && isReading(current)) {
+        final String url = iterator.next();
+        if (StringUtils.isBlank(url) || !current.add(url)) {
+          continue;
+        }
+        batch.urls.add(url);
+        if (batch.size() >= batchSize) {
+          submit(new BatchTask(current, config, transport, URL_PURGE_USER, batch));
+          batch = new Batch();
+        }
+      }
+      if (batch.size() > 0) {
+        submit(new BatchTask(current, config, transport, URL_PURGE_USER, batch));
+      }
+    }, urls::close));
+    return purge;
+  }
+
+  /**
+   * Queue the reading of a bulk purge.
+   *
+   * @throws ReplicationException if too many bulk purges are waiting
+   */
+  private void start(final ReadTask task) throws ReplicationException {
+    try {
+      readers.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.cleanup.run();
+      throw new ReplicationException("Too many bulk purges waiting, bulk purge " + task.purge.getId()
+        + " not started");
+    }
+  }
+
+  private boolean isReading(final BulkPurge purge) {
+    return !purge.isCancelled() && !readers.isShutdown();
+  }
+
+  /**
+   * Complete the purge once all batches are done.
+   */
+  private static void seal(final BulkPurge purge) {
+    purge.seal();
+    purge.getResult().thenAccept(report -> LOG.info("Finished bulk purge {}: {}", purge.getId(), report));
+  }
+
+  /**
+   * Queue a batch, waiting while the queue is full.
+   *
+   * @throws InterruptedException if interrupted while waiting, the batch is
+   *                              cancelled
+   */
+  private void submit(final BatchTask task) throws InterruptedException {
+    task.purge.submitted();
+    if (task.purge.isCancelled()) {
+      task.cancel();
+      return;
+    }
+    try {
+      batchPermits.acquire();
+    } catch (InterruptedException e) {
+      task.cancel();
+      throw e;
+    }
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      batchPermits.release();
+      task.cancel();
+    }
+  }
+
+  private AgentConfig getAgentConfig(final String agentId) throws ReplicationException {
+    final Agent agent = agentManager.getAgents().get(agentId);
+    if (agent == null) {
+      throw new ReplicationException("No replication agent " + agentId);
+    }
+    if (!agent.isEnabled()) {
+      throw new ReplicationException("Replication agent " + agentId + " is disabled");
+    }
+    return agent.getConfiguration();
+  }
+
+  private CdnContentBuilder getContentBuilder(final AgentConfig config) throws ReplicationException {
+    for (CdnContentBuilder contentBuilder : contentBuilders) {
+      if (contentBuilder.getName().equalsIgnoreCase(config.getSerializationType())) {
+        return contentBuilder;
+      }
+    }
+    throw new ReplicationException("Replication agent " + config.getAgentId() + " is not a CDN agent");
+  }
+
+  private PurgeTransport getTransport(final AgentConfig config) throws ReplicationException {
+    for (PurgeTransport transport : purgeTransports) {
+      if (transport.canHandle(config)) {
+        return transport;
+      }
+    }
+    throw new ReplicationException("No CDN transport handler for replication agent " + config.getAgentId());
+  }
+}
@@ -0,0 +1,36 @@
+package carz.aem.cdn.replication.bulk;
+
+import carz.aem.cdn.replication.payload.PurgePayload;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import com.day.cq.replication.ReplicationTransaction;
+import com.day.cq.replication.TransportContext;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * A CDN transport handler that sends purge payloads handed to it directly,
+ * without replication content from an agent queue.
+ */
+@ProviderType
+public interface PurgeTransport {
+
+  /**
+   * @param config config of the replication agent
+   * @return true if the transport purges for the agent
+   */
+  public boolean canHandle(AgentConfig config);
+
+  /**
+   * Send the payload to the CDN, recording it in the purge journal and
+   * retrying failed requests like a purge from the agent queue.
+   *
+   * @param ctx     transport context with the config of the agent
+   * @param tx      transaction with the action and the log of the purge
+   * @param payload the purge
+   * @return OK if the CDN accepted all requests of the purge
+   * @throws ReplicationException if the purge could not be sent
+   */
+  public ReplicationResult purge(TransportContext ctx, ReplicationTransaction tx, PurgePayload payload)
+    throws ReplicationException;
+}
@@ -0,0 +1,68 @@
+package carz.aem.cdn.replication.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring mapping purge keys to one member of a set of
+ * instances. Each member is placed on the ring several times (virtual nodes)
+ * so that keys spread evenly, and removing a member only moves the keys it
+ * owned to the remaining members.
+ *
+ * The ring only depends on the member names, so every instance building it
+ * from the same membership agrees on the owner of a key.
+ */
+public final class ConsistentHashRing {
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final SortedSet<String> members;
+
+  public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+    this.members = Collections.unmodifiableSortedSet(new TreeSet<>(members));
+    for (String member : this.members) {
+      for (int i = 0; i < Math.max(1, virtualNodes); i++) {
+        ring.put(hash(member + "#" + i), member);
+      }
+    }
+  }
+
+  /**
+   * @return the member owning the key, or null if the ring is empty
+   */
+  public String ownerOf(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    final Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  public SortedSet<String> getMembers() {
+    return members;
+  }
+
+  public boolean isEmpty() {
+    return ring.isEmpty();
+  }
+
+  private static long hash(String value) {
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xff);
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,18 @@
+package carz.aem.cdn.replication.cluster;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Decides which publish instance of a farm sends the purge for a given key,
+ * so that content replicated to all publishers is purged only once.
+ */
+@ProviderType
+public interface PurgeCoordinator {
+
+  /**
+   * @param purgeKey key of the purge, usually the activated path
+   * @return true if this instance has to send the purge, false if another
+   * live instance owns the key
+   */
+  public boolean isOwner(String purgeKey);
+}
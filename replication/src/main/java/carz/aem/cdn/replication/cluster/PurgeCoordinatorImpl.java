@@ -0,0 +1,153 @@
+package carz.aem.cdn.replication.cluster;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.discovery.InstanceDescription;
+import org.apache.sling.discovery.TopologyEvent;
+import org.apache.sling.discovery.TopologyEventListener;
+import org.apache.sling.discovery.TopologyView;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Purge coordinator assigning every purge key to one live publish instance
+ * through a {@link ConsistentHashRing}.
+ *
+ * The ring is built from the Sling IDs configured as members (the OSGi
+ * config is deployed to all publishers with the content package), limited to
+ * the instances currently present in the Sling discovery topology. Without
+ * configured members all instances of the topology take part. When an
+ * instance leaves the topology the ring is rebuilt and its keys move to the
+ * remaining members.
+ *
+ * Publish instances usually do not share a repository, so each one only
+ * sees itself in its discovery topology and would own every key. They have
+ * to be joined into one topology with Sling discovery topology connectors
+ * (org.apache.sling.discovery.base.connectors) for purges to be shared; a
+ * warning is logged while configured members are missing from the topology.
+ *
+ * While the topology is changing, or before it is known, every instance
+ * considers itself owner: a purge is rather sent twice than not at all.
+ */
+@Component(service = {PurgeCoordinator.class, TopologyEventListener.class},
+  configurationPolicy = ConfigurationPolicy.REQUIRE,
+  immediate = true)
+@Designate(ocd = PurgeCoordinatorImpl.Config.class)
+public class PurgeCoordinatorImpl implements PurgeCoordinator, TopologyEventListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeCoordinatorImpl.class);
+
+  @Reference
+  private SlingSettingsService slingSettingsService;
+
+  @ObjectClassDefinition(name = "CDN purge coordinator config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Members",
+      description = "Sling IDs of the publish instances sharing the CDN purges. "
+        + "Leave empty to use all instances of the discovery topology.")
+    String[] members() default {};
+
+    @AttributeDefinition(name = "Virtual nodes",
+      description = "Number of positions of each member on the hash ring.")
+    int virtual_nodes() default 128;
+
+  }
+
+  private String localId;
+  private Set<String> members = new LinkedHashSet<>();
+  private int virtualNodes;
+  private Set<String> liveInstances;
+  private volatile ConsistentHashRing ring;
+
+  @Activate
+  @Modified
+  protected void activate(final PurgeCoordinatorImpl.Config config) {
+    configure(slingSettingsService.getSlingId(), config.members(), config.virtual_nodes());
+  }
+
+  /**
+   * @param localId      Sling ID of this instance
+   * @param members      Sling IDs of the configured members, empty for all
+   *                     instances of the topology
+   * @param virtualNodes positions of each member on the hash ring
+   */
+  synchronized void configure(String localId, String[] members, int virtualNodes) {
+    this.localId = localId;
+    this.members = new LinkedHashSet<>();
+    if (members != null) {
+      for (String member : Arrays.asList(members)) {
+        if (StringUtils.isNotBlank(member)) {
+          this.members.add(member.trim());
+        }
+      }
+    }
+    this.virtualNodes = virtualNodes;
+    rebuild();
+  }
+
+  @Override
+  public void handleTopologyEvent(TopologyEvent event) {
+    if (event.getType() == TopologyEvent.Type.TOPOLOGY_CHANGING) {
+      updateLiveInstances(null);
+      return;
+    }
+    final TopologyView view = event.getNewView();
+    if (view != null) {
+      final Set<String> live = new LinkedHashSet<>();
+      for (InstanceDescription instance : view.getInstances()) {
+        live.add(instance.getSlingId());
+      }
+      updateLiveInstances(live);
+    }
+  }
+
+  /**
+   * @param live Sling IDs of the instances currently alive, or null while the
+   *             topology is unknown
+   */
+  synchronized void updateLiveInstances(Collection<String> live) {
+    liveInstances = live != null ? new LinkedHashSet<>(live) : null;
+    rebuild();
+  }
+
+  @Override
+  public boolean isOwner(String purgeKey) {
+    final ConsistentHashRing current = ring;
+    if (current == null || current.isEmpty()) {
+      return true;
+    }
+    return StringUtils.equals(localId, current.ownerOf(purgeKey));
+  }
+
+  private void rebuild() {
+    if (liveInstances == null) {
+      ring = null;
+      LOG.debug("Topology unknown, all purges are sent by this instance");
+      return;
+    }
+    final Set<String> ringMembers = new LinkedHashSet<>(members.isEmpty() ? liveInstances : members);
+    ringMembers.retainAll(liveInstances);
+    ring = new ConsistentHashRing(ringMembers, virtualNodes);
+    LOG.info("Purge coordination ring rebuilt with members {}", ring.getMembers());
+    if (ringMembers.size() < members.size()) {
+      final Set<String> missing = new LinkedHashSet<>(members);
+      missing.removeAll(ringMembers);
+      LOG.warn("Members {} are not in the discovery topology, their purges are sent by the remaining members. "
+        + "Publish instances outside this cluster need topology connectors to share purges", missing);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package carz.aem.cdn.replication.delivery;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+
+/**
+ * Snapshot of one lane of {@link PartitionedDelivery}.
+ */
+public final class DeliveryLaneStatus {
+
+  private final String agentId;
+  private final int lane;
+  private final PurgeLane priority;
+  private final int depth;
+  private final long lagMillis;
+  private final long delivered;
+  private final long failedAttempts;
+  private final long abandoned;
+
+  public DeliveryLaneStatus(String agentId, int lane, PurgeLane priority, int depth, long lagMillis,
+                            long delivered, long failedAttempts, long abandoned) {
+    this.agentId = agentId;
+    this.lane = lane;
+    this.priority = priority;
+    this.depth = depth;
+    this.lagMillis = lagMillis;
+    this.delivered = delivered;
+    this.failedAttempts = failedAttempts;
+    this.abandoned = abandoned;
+  }
+
+  public String getAgentId() {
+    return agentId;
+  }
+
+  public int getLane() {
+    return lane;
+  }
+
+  /**
+   * @return {@link PurgeLane#CRITICAL} for the lanes of critical purges,
+   * {@link PurgeLane#NORMAL} for the lanes of all others
+   */
+  public PurgeLane getPriority() {
+    return priority;
+  }
+
+  /**
+   * @return purges queued in the lane, including the one being delivered
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return milliseconds the oldest purge of the lane has been waiting, 0
+   * if the lane is empty
+   */
+  public long getLagMillis() {
+    return lagMillis;
+  }
+
+  /**
+   * @return purges delivered since the lane was started
+   */
+  public long getDelivered() {
+    return delivered;
+  }
+
+  /**
+   * @return failed delivery attempts since the lane was started
+   */
+  public long getFailedAttempts() {
+    return failedAttempts;
+  }
+
+  /**
+   * @return purges given up since the lane was started
+   */
+  public long getAbandoned() {
+    return abandoned;
+  }
+}
@@ -0,0 +1,60 @@
+package carz.aem.cdn.replication.delivery;
+
+import carz.aem.cdn.replication.journal.JournalledPurge;
+import carz.aem.cdn.replication.retry.PurgeRetryResult;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+
+/**
+ * Delivery of a purge recorded in the purge journal. The journal entry is
+ * acknowledged once the CDN accepted the purge or rejected it for good. A
+ * purge abandoned after running out of attempts is recorded as failed, so
+ * that the journal sends it again.
+ */
+public final class JournalledDelivery implements PartitionedDelivery.Delivery {
+
+  /**
+   * Sends the purge once.
+   */
+  public interface Purge {
+
+    /**
+     * @return the result of the purge
+     * @throws ReplicationException if the purge could not be sent
+     */
+    ReplicationResult purge() throws ReplicationException;
+  }
+
+  private final JournalledPurge journalledPurge;
+  private final ReplicationLog log;
+  private final Purge purge;
+
+  /**
+   * @param journalledPurge the purge as recorded in the journal
+   * @param log             log of the delivery, not of the replication
+   *                        transaction
+   * @param purge           sends the purge
+   */
+  public JournalledDelivery(JournalledPurge journalledPurge, ReplicationLog log, Purge purge) {
+    this.journalledPurge = journalledPurge;
+    this.log = log;
+    this.purge = purge;
+  }
+
+  @Override
+  public PartitionedDelivery.Outcome deliver() throws ReplicationException {
+    final ReplicationResult result = purge.purge();
+    if (result.getCode() == PurgeRetryResult.CODE_RETRYABLE && !result.isSuccess()) {
+      return PartitionedDelivery.Outcome.RETRY;
+    }
+    journalledPurge.complete(result, log);
+    return result.isSuccess() ? PartitionedDelivery.Outcome.DELIVERED : PartitionedDelivery.Outcome.FAILED;
+  }
+
+  @Override
+  public void abandon(String reason) {
+    log.warn("Purge abandoned, %s", reason);
+    journalledPurge.fail(log);
+  }
+}
@@ -0,0 +1,82 @@
+package carz.aem.cdn.replication.delivery;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import com.day.cq.replication.ReplicationException;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.List;
+
+/**
+ * Delivers the purges of a CDN agent in several lanes that drain
+ * concurrently instead of one at a time from the agent queue. Purges are
+ * assigned to a lane by their path, so purges of the same path are
+ * delivered in the order they were submitted. A purge of several paths is
+ * assigned by its first path, so it is only ordered with the other purges
+ * of that path. Critical purges have lanes of their own, so they are not
+ * queued behind normal and bulk purges of the agent.
+ *
+ * A purge whose delivery fails for good, or still fails after the
+ * configured number of attempts, is abandoned so that it does not hold up
+ * its lane.
+ */
+@ProviderType
+public interface PartitionedDelivery {
+
+  /**
+   * Replication agent property enabling partitioned delivery for the agent.
+   */
+  public static final String PROPERTY_PARTITIONED_DELIVERY = "partitionedDelivery";
+
+  /**
+   * Outcome of one attempt to deliver a purge.
+   */
+  enum Outcome {
+    /** The CDN accepted the purge */
+    DELIVERED,
+    /** The purge failed but may succeed if it is sent again later */
+    RETRY,
+    /** The purge failed for good */
+    FAILED
+  }
+
+  /**
+   * A purge to deliver. It runs after its replication transaction has
+   * ended, so it must not use the transaction, and has to record its result
+   * itself.
+   */
+  interface Delivery {
+
+    /**
+     * @return the outcome of the attempt; {@link Outcome#RETRY} is attempted
+     * again after the retry delay
+     * @throws ReplicationException if the purge could not be sent, which
+     *                              abandons it
+     */
+    Outcome deliver() throws ReplicationException;
+
+    /**
+     * Called once if the purge is given up.
+     *
+     * @param reason why the purge is given up
+     */
+    void abandon(String reason);
+  }
+
+  /**
+   * Queue a purge in the lane of its path, waiting while the lane is full.
+   *
+   * @param agentId  id of the replication agent
+   * @param path     replicated path
+   * @param priority priority lane of the purge; critical purges are queued
+   *                 in the critical lanes of the agent
+   * @param delivery the purge
+   * @throws ReplicationException if the lane stayed full or the wait was
+   *                              interrupted
+   */
+  public void submit(String agentId, String path, PurgeLane priority, Delivery delivery) throws ReplicationException;
+
+  /**
+   * @return depth, lag and counters of every lane of every agent
+   */
+  public List<DeliveryLaneStatus> getLanes();
+}
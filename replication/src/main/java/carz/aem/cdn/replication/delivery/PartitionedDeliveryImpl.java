@@ -0,0 +1,238 @@
+package carz.aem.cdn.replication.delivery;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import com.day.cq.replication.ReplicationException;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Partitioned delivery with a fixed number of lanes per agent, each a
+ * bounded queue drained by its own thread. A lane retries its oldest purge
+ * before it moves on, like the agent queue it replaces, but only while the
+ * purge may still succeed and for a limited number of attempts; then the
+ * purge is abandoned, so a failing purge cannot block its lane for good.
+ * Critical purges are queued in separate lanes, numbered after the others,
+ * so a bulk republish filling the agent's lanes does not delay them.
+ *
+ * Lanes are started on the first purge of an agent. Purges still queued
+ * when the component is deactivated are dropped; their purge journal
+ * entries stay unacknowledged and are sent again after a restart.
+ */
+@Component(service = PartitionedDelivery.class,
+  immediate = true)
+@Designate(ocd = PartitionedDeliveryImpl.Config.class)
+public class PartitionedDeliveryImpl implements PartitionedDelivery {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionedDeliveryImpl.class);
+
+  @ObjectClassDefinition(name = "CDN partitioned delivery config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Lanes", description = "Lanes per replication agent for normal and bulk purges.")
+    int lanes() default 4;
+
+    @AttributeDefinition(name = "Critical lanes",
+      description = "Lanes per replication agent for critical purges, 0 to queue them with all others.")
+    int critical_lanes() default 1;
+
+    @AttributeDefinition(name = "Lane capacity", description = "Purges queued per lane before submitting waits.")
+    int lane_capacity() default 1000;
+
+    @AttributeDefinition(name = "Submit timeout",
+      description = "Milliseconds to wait for room in a full lane before the purge fails back to the agent queue.")
+    long submit_timeout() default 60000;
+
+    @AttributeDefinition(name = "Retry delay", description = "Milliseconds between two attempts of a failed purge.")
+    long retry_delay() default 10000;
+
+    @AttributeDefinition(name = "Maximum attempts",
+      description = "Attempts of a purge that ran out of retry budget before it is abandoned. Purges failing "
+        + "with a terminal error are abandoned at once.")
+    int max_attempts() default 5;
+
+  }
+
+  private static final class Entry {
+    private final String path;
+    private final Delivery delivery;
+    private final long enqueued = System.currentTimeMillis();
+
+    private Entry(String path, Delivery delivery) {
+      this.path = path;
+      this.delivery = delivery;
+    }
+  }
+
+  private final class Lane implements Runnable {
+    private final String agentId;
+    private final int index;
+    private final PurgeLane priority;
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final Thread thread;
+    private volatile Entry current;
+
+    private Lane(String agentId, int index, PurgeLane priority, int capacity) {
+      this.agentId = agentId;
+      this.index = index;
+      this.priority = priority;
+      this.queue = new LinkedBlockingQueue<>(capacity);
+      this.thread = new Thread(this, "cdn-delivery-" + agentId + "-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          current = queue.take();
+          deliver(current);
+          current = null;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void deliver(Entry entry) throws InterruptedException {
+      int attempts = 1;
+      Outcome outcome = attempt(entry);
+      while (outcome == Outcome.RETRY && attempts < maxAttempts) {
+        failedAttempts.incrementAndGet();
+        TimeUnit.MILLISECONDS.sleep(retryDelay);
+        attempts++;
+        outcome = attempt(entry);
+      }
+      if (outcome == Outcome.DELIVERED) {
+        delivered.incrementAndGet();
+        return;
+      }
+      failedAttempts.incrementAndGet();
+      abandoned.incrementAndGet();
+      final String reason = outcome == Outcome.RETRY ? "still failing after " + attempts + " attempts"
+        : "failed for good";
+      LOG.warn("Abandoning purge of {} in lane {} of agent {}, {}", entry.path, index, agentId, reason);
+      try {
+        entry.delivery.abandon(reason);
+      } catch (RuntimeException e) {
+        LOG.warn("Could not abandon purge of {}", entry.path, e);
+      }
+    }
+
+    private Outcome attempt(Entry entry) {
+      try {
+        return entry.delivery.deliver();
+      } catch (ReplicationException | RuntimeException e) {
+        LOG.warn("Delivery of {} in lane {} of agent {} failed", entry.path, index, agentId, e);
+        return Outcome.FAILED;
+      }
+    }
+
+    private DeliveryLaneStatus status(long now) {
+      final Entry oldest = current != null ? current : queue.peek();
+      return new DeliveryLaneStatus(agentId, index, priority, queue.size() + (current != null ? 1 : 0),
+        oldest != null ? Math.max(0, now - oldest.enqueued) : 0, delivered.get(), failedAttempts.get(),
+        abandoned.get());
+    }
+  }
+
+  private final Map<String, Lane[]> agents = new ConcurrentHashMap<>();
+  private int lanes;
+  private int criticalLanes;
+  private int laneCapacity;
+  private long submitTimeout;
+  private volatile long retryDelay;
+  private volatile int maxAttempts;
+  private volatile boolean running;
+
+  @Activate
+  protected void activate(final PartitionedDeliveryImpl.Config config) {
+    lanes = Math.max(1, config.lanes());
+    criticalLanes = Math.max(0, config.critical_lanes());
+    laneCapacity = Math.max(1, config.lane_capacity());
+    submitTimeout = Math.max(0, config.submit_timeout());
+    retryDelay = Math.max(1, config.retry_delay());
+    maxAttempts = Math.max(1, config.max_attempts());
+    running = true;
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    running = false;
+    int dropped = 0;
+    for (Lane[] agentLanes : agents.values()) {
+      for (Lane lane : agentLanes) {
+        lane.thread.interrupt();
+        dropped += lane.queue.size() + (lane.current != null ? 1 : 0);
+      }
+    }
+    agents.clear();
+    if (dropped > 0) {
+      LOG.warn("Dropped {} queued purges, they are sent again from the purge journal after a restart", dropped);
+    }
+  }
+
+  @Override
+  public void submit(String agentId, String path, PurgeLane priority, Delivery delivery)
+    throws ReplicationException {
+    if (!running) {
+      throw new ReplicationException("Partitioned delivery is not running");
+    }
+    final Lane[] agentLanes = agents.computeIfAbsent(agentId, this::startLanes);
+    final Lane lane = priority == PurgeLane.CRITICAL && criticalLanes > 0
+      ? agentLanes[lanes + laneOf(path, criticalLanes)]
+      : agentLanes[laneOf(path, lanes)];
+    try {
+      if (!lane.queue.offer(new Entry(path, delivery), submitTimeout, TimeUnit.MILLISECONDS)) {
+        throw new ReplicationException("Delivery lane " + lane.index + " of agent " + agentId + " is full");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ReplicationException("Interrupted while waiting for delivery lane " + lane.index, e);
+    }
+  }
+
+  @Override
+  public List<DeliveryLaneStatus> getLanes() {
+    final long now = System.currentTimeMillis();
+    final List<DeliveryLaneStatus> statuses = new ArrayList<>();
+    for (Lane[] agentLanes : agents.values()) {
+      for (Lane lane : agentLanes) {
+        statuses.add(lane.status(now));
+      }
+    }
+    return statuses;
+  }
+
+  private Lane[] startLanes(String agentId) {
+    final Lane[] agentLanes = new Lane[lanes + criticalLanes];
+    for (int i = 0; i < agentLanes.length; i++) {
+      agentLanes[i] = new Lane(agentId, i, i < lanes ? PurgeLane.NORMAL : PurgeLane.CRITICAL, laneCapacity);
+      agentLanes[i].thread.start();
+    }
+    LOG.info("Started {} delivery lanes and {} critical lanes for agent {}", lanes, criticalLanes, agentId);
+    return agentLanes;
+  }
+
+  private static int laneOf(String path, int lanes) {
+    final int hash = path != null ? path.hashCode() : 0;
+    return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes;
+  }
+}
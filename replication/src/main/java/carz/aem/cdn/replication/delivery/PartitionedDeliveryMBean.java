@@ -0,0 +1,22 @@
+package carz.aem.cdn.replication.delivery;
+
+import com.adobe.granite.jmx.annotation.Description;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * JMX view of the {@link PartitionedDelivery} lanes.
+ */
+@Description("Lanes of the partitioned delivery of CDN purges")
+public interface PartitionedDeliveryMBean {
+
+  @Description("Depth, lag and counters of every lane of every agent")
+  TabularData getLanes() throws OpenDataException;
+
+  @Description("Purges queued in all lanes")
+  int getTotalDepth();
+
+  @Description("Milliseconds the oldest queued purge of any lane has been waiting")
+  long getMaxLagMillis();
+}
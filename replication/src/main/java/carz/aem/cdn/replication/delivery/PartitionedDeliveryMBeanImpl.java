@@ -0,0 +1,70 @@
+package carz.aem.cdn.replication.delivery;
+
+import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+/**
+ * Registers the {@link PartitionedDelivery} lane metrics in the JMX console.
+ */
+@Component(service = DynamicMBean.class,
+  property = "jmx.objectname=carz.aem.cdn.replication:type=PartitionedDelivery")
+public class PartitionedDeliveryMBeanImpl extends AnnotatedStandardMBean implements PartitionedDeliveryMBean {
+
+  private static final String[] ITEMS = {"agent", "lane", "priority", "depth", "lagMillis", "delivered",
+    "failedAttempts", "abandoned"};
+
+  @Reference
+  private PartitionedDelivery partitionedDelivery;
+
+  public PartitionedDeliveryMBeanImpl() throws NotCompliantMBeanException {
+    super(PartitionedDeliveryMBean.class);
+  }
+
+  @Override
+  public TabularData getLanes() throws OpenDataException {
+    final CompositeType rowType = new CompositeType("deliveryLane", "Lane of an agent", ITEMS,
+      new String[]{"Replication agent", "Lane number", "Priority of the purges of the lane",
+        "Queued purges", "Age of the oldest queued purge in ms",
+        "Delivered purges", "Failed delivery attempts", "Abandoned purges"},
+      new OpenType<?>[]{SimpleType.STRING, SimpleType.INTEGER, SimpleType.STRING, SimpleType.INTEGER, SimpleType.LONG,
+        SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+    final TabularDataSupport data = new TabularDataSupport(new TabularType("deliveryLanes",
+      "Lanes of all agents", rowType, new String[]{"agent", "lane"}));
+    for (DeliveryLaneStatus lane : partitionedDelivery.getLanes()) {
+      data.put(new CompositeDataSupport(rowType, ITEMS, new Object[]{lane.getAgentId(), lane.getLane(),
+        lane.getPriority().name(), lane.getDepth(), lane.getLagMillis(), lane.getDelivered(), lane.getFailedAttempts(),
+        lane.getAbandoned()}));
+    }
+    return data;
+  }
+
+  @Override
+  public int getTotalDepth() {
+    int depth = 0;
+    for (DeliveryLaneStatus lane : partitionedDelivery.getLanes()) {
+      depth += lane.getDepth();
+    }
+    return depth;
+  }
+
+  @Override
+  public long getMaxLagMillis() {
+    long lag = 0;
+    for (DeliveryLaneStatus lane : partitionedDelivery.getLanes()) {
+      lag = Math.max(lag, lane.getLagMillis());
+    }
+    return lag;
+  }
+}
@@ -0,0 +1,31 @@
+package carz.aem.cdn.replication.dispatch;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.io.IOException;
+
+/**
+ * Admits CDN requests per {@link PurgeLane}, so that purges of high
+ * priority content are not held up by bulk purges sent at the same time.
+ */
+@ProviderType
+public interface PurgeDispatcher {
+
+  /**
+   * A request to the CDN.
+   */
+  interface Send<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * Wait until the lane may send another request, then send it on the
+   * calling thread.
+   *
+   * @param lane lane of the purge
+   * @param send the request to send
+   * @return the result of the request
+   * @throws IOException if the request failed or the wait was interrupted
+   */
+  public <T> T dispatch(PurgeLane lane, Send<T> send) throws IOException;
+}
@@ -0,0 +1,247 @@
+package carz.aem.cdn.replication.dispatch;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Purge dispatcher with one queue per lane.
+ *
+ * Each lane has a concurrency limit, an optional rate limit (token bucket)
+ * and a weight. Among the lanes allowed to send, the next request is picked
+ * by smooth weighted round robin, so lanes share the CDN in proportion to
+ * their weights. A request waiting longer than the starvation timeout is
+ * admitted before any other, whatever its lane's weight.
+ *
+ * There is no dispatcher thread: callers wait on a shared condition and
+ * whichever thread holds the lock admits the next requests.
+ */
+@Component(service = PurgeDispatcher.class,
+  immediate = true)
+@Designate(ocd = PurgeDispatcherImpl.Config.class)
+public class PurgeDispatcherImpl implements PurgeDispatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeDispatcherImpl.class);
+
+  private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @ObjectClassDefinition(name = "CDN purge dispatcher config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Critical lane weight")
+    int critical_weight() default 8;
+
+    @AttributeDefinition(name = "Critical lane concurrency")
+    int critical_concurrency() default 4;
+
+    @AttributeDefinition(name = "Critical lane rate", description = "Requests per second, 0 for unlimited.")
+    double critical_rate() default 0;
+
+    @AttributeDefinition(name = "Normal lane weight")
+    int normal_weight() default 4;
+
+    @AttributeDefinition(name = "Normal lane concurrency")
+    int normal_concurrency() default 4;
+
+    @AttributeDefinition(name = "Normal lane rate", description = "Requests per second, 0 for unlimited.")
+    double normal_rate() default 0;
+
+    @AttributeDefinition(name = "Bulk lane weight")
+    int bulk_weight() default 1;
+
+    @AttributeDefinition(name = "Bulk lane concurrency")
+    int bulk_concurrency() default 2;
+
+    @AttributeDefinition(name = "Bulk lane rate", description = "Requests per second, 0 for unlimited.")
+    double bulk_rate() default 5;
+
+    @AttributeDefinition(name = "Starvation timeout",
+      description = "Milliseconds after which a waiting request is admitted before all others.")
+    long starvation_timeout() default 5000;
+
+  }
+
+  private static final class Ticket {
+    private final long enqueued;
+    private boolean admitted;
+
+    private Ticket(long enqueued) {
+      this.enqueued = enqueued;
+    }
+  }
+
+  private static final class Lane {
+    private final Deque<Ticket> waiting = new ArrayDeque<>();
+    private int weight;
+    private int concurrency;
+    private double rate;
+    private double tokens;
+    private long refilled;
+    private int inFlight;
+    private long current;
+
+    private void configure(int weight, int concurrency, double rate, long now) {
+      this.weight = Math.max(1, weight);
+      this.concurrency = Math.max(1, concurrency);
+      this.rate = Math.max(0, rate);
+      this.tokens = Math.max(1, this.rate);
+      this.refilled = now;
+    }
+
+    private void refill(long now) {
+      if (rate > 0) {
+        tokens = Math.min(Math.max(1, rate), tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+      }
+      refilled = now;
+    }
+
+    private boolean canSend() {
+      return !waiting.isEmpty() && inFlight < concurrency && (rate <= 0 || tokens >= 1);
+    }
+
+    private long nanosUntilToken() {
+      return rate > 0 && tokens < 1 ? (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate) : MAX_WAIT_NANOS;
+    }
+  }
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final Map<PurgeLane, Lane> lanes = new EnumMap<>(PurgeLane.class);
+  private long starvationNanos;
+
+  public PurgeDispatcherImpl() {
+    for (PurgeLane lane : PurgeLane.values()) {
+      lanes.put(lane, new Lane());
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(final PurgeDispatcherImpl.Config config) {
+    lock.lock();
+    try {
+      final long now = System.nanoTime();
+      lanes.get(PurgeLane.CRITICAL).configure(config.critical_weight(), config.critical_concurrency(),
+        config.critical_rate(), now);
+      lanes.get(PurgeLane.NORMAL).configure(config.normal_weight(), config.normal_concurrency(),
+        config.normal_rate(), now);
+      lanes.get(PurgeLane.BULK).configure(config.bulk_weight(), config.bulk_concurrency(),
+        config.bulk_rate(), now);
+      starvationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.starvation_timeout()));
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public <T> T dispatch(PurgeLane lane, Send<T> send) throws IOException {
+    final Lane state = lanes.get(lane != null ? lane : PurgeLane.NORMAL);
+    final Ticket ticket = new Ticket(System.nanoTime());
+
+    lock.lock();
+    try {
+      state.waiting.addLast(ticket);
+      while (true) {
+        final long wait = admit();
+        if (ticket.admitted) {
+          break;
+        }
+        changed.awaitNanos(wait);
+      }
+    } catch (InterruptedException e) {
+      state.waiting.remove(ticket);
+      if (ticket.admitted) {
+        state.inFlight--;
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting in purge lane " + lane);
+    } finally {
+      lock.unlock();
+    }
+
+    LOG.debug("Admitted purge in lane {} after {} ms", lane,
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueued));
+    try {
+      return send.call();
+    } finally {
+      lock.lock();
+      try {
+        state.inFlight--;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Admit as many waiting requests as the lanes allow. Must be called with
+   * the lock held.
+   *
+   * @return nanoseconds until a rate limited lane may send again
+   */
+  private long admit() {
+    final long now = System.nanoTime();
+    boolean admitted = false;
+    while (true) {
+      Lane next = null;
+      Lane starving = null;
+      int totalWeight = 0;
+      for (Lane lane : lanes.values()) {
+        lane.refill(now);
+        if (!lane.canSend()) {
+          continue;
+        }
+        totalWeight += lane.weight;
+        lane.current += lane.weight;
+        if (next == null || lane.current > next.current) {
+          next = lane;
+        }
+        if (now - lane.waiting.peekFirst().enqueued >= starvationNanos
+          && (starving == null || lane.waiting.peekFirst().enqueued < starving.waiting.peekFirst().enqueued)) {
+          starving = lane;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      if (starving != null) {
+        next = starving;
+      }
+      next.current -= totalWeight;
+      next.inFlight++;
+      if (next.rate > 0) {
+        next.tokens -= 1;
+      }
+      next.waiting.pollFirst().admitted = true;
+      admitted = true;
+    }
+    if (admitted) {
+      changed.signalAll();
+    }
+
+    long wait = MAX_WAIT_NANOS;
+    for (Lane lane : lanes.values()) {
+      if (!lane.waiting.isEmpty() && lane.inFlight < lane.concurrency) {
+        wait = Math.min(wait, lane.nanosUntilToken());
+      }
+    }
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(1), wait);
+  }
+}
@@ -0,0 +1,28 @@
+package carz.aem.cdn.replication.dispatch;
+
+/**
+ * Priority lane of a purge. Lanes are declared from highest to lowest
+ * priority.
+ */
+public enum PurgeLane {
+
+  CRITICAL,
+  NORMAL,
+  BULK;
+
+  /**
+   * @param value lane name, case insensitive
+   * @param defaultLane lane returned for unknown or blank names
+   * @return the lane with the given name
+   */
+  public static PurgeLane fromString(String value, PurgeLane defaultLane) {
+    if (value != null) {
+      for (PurgeLane lane : values()) {
+        if (lane.name().equalsIgnoreCase(value.trim())) {
+          return lane;
+        }
+      }
+    }
+    return defaultLane;
+  }
+}
@@ -0,0 +1,27 @@
+package carz.aem.cdn.replication.expansion;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.function.Predicate;
+
+/**
+ * Cached index of the pages below content roots, used to expand wildcard
+ * flush rule targets without traversing the repository on every
+ * activation.
+ */
+@ProviderType
+public interface ChildPageIndex {
+
+  /**
+   * Visit the pages below a root in path order.
+   *
+   * @param resolver resolver to index the root with on first use and to
+   *                 check pages added since
+   * @param root     path of the root
+   * @param prefix   only visit pages whose path starts with the prefix
+   * @param visitor  receives the page paths, returns false to stop
+   */
+  public void visitPages(ResourceResolver resolver, String root, String prefix, Predicate<String> visitor);
+
+}
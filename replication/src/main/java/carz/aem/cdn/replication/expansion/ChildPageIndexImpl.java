@@ -0,0 +1,193 @@
+package carz.aem.cdn.replication.expansion;
+
+import com.day.cq.wcm.api.NameConstants;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * Indexes the pages below a root on its first lookup and keeps the index
+ * up to date from resource change events instead of traversing again:
+ * removed pages are dropped from the index right away, added paths are
+ * checked with the resolver of the next lookup, since only then it is
+ * known whether they are pages.
+ *
+ * The least recently used roots are dropped above the configured maximum.
+ */
+@Component(service = {ChildPageIndex.class, ResourceChangeListener.class},
+  property = {
+    ResourceChangeListener.PATHS + "=/content",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=REMOVED"
+  })
+@Designate(ocd = ChildPageIndexImpl.Config.class)
+public class ChildPageIndexImpl implements ChildPageIndex, ResourceChangeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChildPageIndexImpl.class);
+
+  private static final String CONTENT_SEGMENT = "/" + JcrConstants.JCR_CONTENT;
+
+  @ObjectClassDefinition(name = "CDN child page index config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Maximum roots", description = "Maximum number of indexed roots.")
+    int max_roots() default 32;
+
+  }
+
+  private static final class RootIndex {
+    private final String root;
+    private final ConcurrentSkipListSet<String> pages = new ConcurrentSkipListSet<>();
+    private final Set<String> added = ConcurrentHashMap.newKeySet();
+    private volatile boolean built;
+
+    private RootIndex(String root) {
+      this.root = root;
+    }
+
+    private boolean contains(String path) {
+      return path.startsWith(root.endsWith("/") ? root : root + "/");
+    }
+  }
+
+  private final Map<String, RootIndex> roots = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxRoots;
+
+  @Activate
+  @Modified
+  protected void activate(final ChildPageIndexImpl.Config config) {
+    synchronized (roots) {
+      maxRoots = Math.max(1, config.max_roots());
+      trim();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    synchronized (roots) {
+      roots.clear();
+    }
+  }
+
+  @Override
+  public void visitPages(ResourceResolver resolver, String root, String prefix, Predicate<String> visitor) {
+    final RootIndex index;
+    synchronized (roots) {
+      index = roots.computeIfAbsent(root, RootIndex::new);
+      trim();
+    }
+
+    synchronized (index) {
+      if (!index.built) {
+        final long start = System.currentTimeMillis();
+        index.added.clear();
+        index.pages.clear();
+        collectPages(resolver.getResource(root), index.pages);
+        index.built = true;
+        LOG.info("Indexed {} pages below {} in {} ms", index.pages.size(), root,
+          System.currentTimeMillis() - start);
+      } else if (!index.added.isEmpty()) {
+        final Iterator<String> added = index.added.iterator();
+        while (added.hasNext()) {
+          final String path = added.next();
+          added.remove();
+          final Resource resource = resolver.getResource(path);
+          if (isPage(resource)) {
+            index.pages.add(path);
+            collectPages(resource, index.pages);
+          }
+        }
+      }
+    }
+
+    for (String page : index.pages.tailSet(prefix)) {
+      if (!page.startsWith(prefix) || !visitor.test(page)) {
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void onChange(List<ResourceChange> changes) {
+    final List<RootIndex> indexes;
+    synchronized (roots) {
+      indexes = new ArrayList<>(roots.values());
+    }
+    for (ResourceChange change : changes) {
+      final String path = change.getPath();
+      if (path.contains(CONTENT_SEGMENT + "/") || path.endsWith(CONTENT_SEGMENT)) {
+        continue;
+      }
+      for (RootIndex index : indexes) {
+        if (path.equals(index.root) || index.root.startsWith(path + "/")) {
+          index.built = false;
+        } else if (index.contains(path)) {
+          if (change.getType() == ResourceChange.ChangeType.REMOVED) {
+            index.added.remove(path);
+            index.pages.remove(path);
+            index.pages.subSet(path + "/", path + "0").clear();
+          } else {
+            index.added.add(path);
+          }
+        }
+      }
+    }
+  }
+
+  private void trim() {
+    final Iterator<RootIndex> eldest = roots.values().iterator();
+    while (roots.size() > maxRoots && eldest.hasNext()) {
+      LOG.debug("Dropping page index of {}", eldest.next().root);
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Add the pages below a resource, without descending into the content of
+   * the pages.
+   */
+  private static void collectPages(Resource resource, Set<String> pages) {
+    if (resource == null) {
+      return;
+    }
+    final Deque<Resource> pending = new ArrayDeque<>();
+    pending.push(resource);
+    while (!pending.isEmpty()) {
+      final Iterator<Resource> children = pending.pop().listChildren();
+      while (children.hasNext()) {
+        final Resource child = children.next();
+        if (isPage(child)) {
+          pages.add(child.getPath());
+          pending.push(child);
+        }
+      }
+    }
+  }
+
+  private static boolean isPage(Resource resource) {
+    return resource != null && NameConstants.NT_PAGE.equals(resource.getResourceType());
+  }
+}
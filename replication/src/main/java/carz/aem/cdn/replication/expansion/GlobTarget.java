@@ -0,0 +1,86 @@
+package carz.aem.cdn.replication.expansion;
+
+import java.util.regex.Pattern;
+
+/**
+ * A flush rule target with * wildcards, e.g. /content/we-retail/us/en/men*.
+ * A * matches any characters, including /. The root is the deepest literal
+ * parent path of the target: all paths the target matches are below it.
+ */
+public final class GlobTarget {
+
+  private static final char WILDCARD = '*';
+
+  private final String target;
+  private final String root;
+  private final String prefix;
+  private final Pattern pattern;
+
+  private GlobTarget(String target, String root, String prefix, Pattern pattern) {
+    this.target = target;
+    this.root = root;
+    this.prefix = prefix;
+    this.pattern = pattern;
+  }
+
+  /**
+   * @param target flush rule target path
+   * @return true if the target contains a wildcard
+   */
+  public static boolean isGlob(String target) {
+    return target != null && target.indexOf(WILDCARD) >= 0;
+  }
+
+  /**
+   * @param target flush rule target path containing a wildcard
+   * @return the parsed target
+   */
+  public static GlobTarget parse(String target) {
+    final int wildcard = target.indexOf(WILDCARD);
+    if (wildcard < 0) {
+      throw new IllegalArgumentException("Not a wildcard target: " + target);
+    }
+    final int slash = target.lastIndexOf('/', wildcard);
+    final String root = slash > 0 ? target.substring(0, slash) : "/";
+
+    final StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for (int i = wildcard; i >= 0; i = target.indexOf(WILDCARD, start)) {
+      if (i > start) {
+        regex.append(Pattern.quote(target.substring(start, i)));
+      }
+      regex.append(".*");
+      start = i + 1;
+    }
+    if (start < target.length()) {
+      regex.append(Pattern.quote(target.substring(start)));
+    }
+    return new GlobTarget(target, root, target.substring(0, wildcard), Pattern.compile(regex.toString()));
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  /**
+   * @return the deepest parent path without wildcards
+   */
+  public String getRoot() {
+    return root;
+  }
+
+  /**
+   * @return the target up to its first wildcard, e.g. /content/we-retail/us/en/men
+   */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @param path repository path
+   * @return true if the target matches the path
+   */
+  public boolean matches(String path) {
+    return pattern.matcher(path).matches();
+  }
+}
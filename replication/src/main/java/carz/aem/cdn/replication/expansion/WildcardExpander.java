@@ -0,0 +1,20 @@
+package carz.aem.cdn.replication.expansion;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Expands wildcard flush rule targets into the pages they match, for CDNs
+ * whose URL purge does not support wildcards.
+ */
+@ProviderType
+public interface WildcardExpander {
+
+  /**
+   * @param resolver resolver to look up the pages with
+   * @param target   flush rule target containing a wildcard
+   * @return the expansion of the target
+   */
+  public WildcardExpansion expand(ResourceResolver resolver, GlobTarget target);
+
+}
@@ -0,0 +1,102 @@
+package carz.aem.cdn.replication.expansion;
+
+import carz.aem.cdn.replication.routing.PathPrefixTrie;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Expands wildcard targets through the {@link ChildPageIndex}. Targets
+ * matching more pages than the maximum fall back to the cache tag or CP
+ * code configured for the longest path prefix of their root.
+ */
+@Component(service = WildcardExpander.class)
+@Designate(ocd = WildcardExpanderImpl.Config.class)
+public class WildcardExpanderImpl implements WildcardExpander {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WildcardExpanderImpl.class);
+
+  @ObjectClassDefinition(name = "CDN wildcard expansion config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Maximum pages",
+      description = "Maximum number of pages a wildcard target is expanded into.")
+    int max_pages() default 200;
+
+    @AttributeDefinition(name = "Fallback cache tags",
+      description = "Cache tags purged for targets above the maximum, as <path prefix>=<tag>.")
+    String[] fallback_tags() default {};
+
+    @AttributeDefinition(name = "Fallback CP codes",
+      description = "CP codes purged for targets above the maximum without a cache tag, as <path prefix>=<CP code>.")
+    String[] fallback_cp_codes() default {};
+
+  }
+
+  @Reference
+  private ChildPageIndex childPageIndex;
+
+  private volatile int maxPages;
+  private volatile PathPrefixTrie<String> fallbackTags;
+  private volatile PathPrefixTrie<String> fallbackCpCodes;
+
+  @Activate
+  @Modified
+  protected void activate(final WildcardExpanderImpl.Config config) {
+    maxPages = Math.max(0, config.max_pages());
+    fallbackTags = parseFallbacks(config.fallback_tags());
+    fallbackCpCodes = parseFallbacks(config.fallback_cp_codes());
+  }
+
+  @Override
+  public WildcardExpansion expand(ResourceResolver resolver, GlobTarget target) {
+    final int max = maxPages;
+    final List<String> pages = new ArrayList<>();
+    final int[] matches = new int[1];
+    childPageIndex.visitPages(resolver, target.getRoot(), target.getPrefix(), page -> {
+      if (target.matches(page)) {
+        if (++matches[0] > max) {
+          return false;
+        }
+        pages.add(page);
+      }
+      return true;
+    });
+
+    if (matches[0] <= max) {
+      LOG.debug("Expanded {} into {} pages", target.getTarget(), pages.size());
+      return WildcardExpansion.expanded(pages);
+    }
+    final String tag = fallbackTags.longestMatch(target.getRoot());
+    final String cpCode = tag == null ? fallbackCpCodes.longestMatch(target.getRoot()) : null;
+    LOG.debug("{} matches more than {} pages, purging tag {} or CP code {} instead", target.getTarget(), max,
+      tag, cpCode);
+    return WildcardExpansion.fallback(matches[0], tag, cpCode);
+  }
+
+  private static PathPrefixTrie<String> parseFallbacks(String[] fallbacks) {
+    final PathPrefixTrie<String> trie = new PathPrefixTrie<>();
+    if (fallbacks != null) {
+      for (String fallback : fallbacks) {
+        final String[] entry = StringUtils.split(fallback, "=", 2);
+        if (entry.length != 2 || StringUtils.isAnyBlank(entry[0], entry[1])) {
+          LOG.warn("Ignoring invalid wildcard fallback {}", fallback);
+          continue;
+        }
+        trie.put(entry[0].trim(), entry[1].trim());
+      }
+    }
+    return trie;
+  }
+}
@@ -0,0 +1,69 @@
+package carz.aem.cdn.replication.expansion;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of expanding a wildcard flush rule target: either the pages
+ * it matches, or, if they are more than the configured maximum, the cache
+ * tag or CP code to purge instead. A target above the maximum without a
+ * fallback has neither.
+ */
+public final class WildcardExpansion {
+
+  private final List<String> pages;
+  private final int matches;
+  private final String tag;
+  private final String cpCode;
+
+  private WildcardExpansion(List<String> pages, int matches, String tag, String cpCode) {
+    this.pages = pages;
+    this.matches = matches;
+    this.tag = tag;
+    this.cpCode = cpCode;
+  }
+
+  static WildcardExpansion expanded(List<String> pages) {
+    return new WildcardExpansion(Collections.unmodifiableList(pages), pages.size(), null, null);
+  }
+
+  static WildcardExpansion fallback(int matches, String tag, String cpCode) {
+    return new WildcardExpansion(Collections.<String>emptyList(), matches, tag, cpCode);
+  }
+
+  /**
+   * @return true if the target was expanded into its pages
+   */
+  public boolean isExpanded() {
+    return tag == null && cpCode == null && pages.size() == matches;
+  }
+
+  /**
+   * @return the pages the target matches, empty if it was not expanded
+   */
+  public List<String> getPages() {
+    return pages;
+  }
+
+  /**
+   * @return the number of pages counted, at most one more than the maximum
+   * if the target was not expanded
+   */
+  public int getMatches() {
+    return matches;
+  }
+
+  /**
+   * @return the cache tag to purge instead of the pages, may be null
+   */
+  public String getTag() {
+    return tag;
+  }
+
+  /**
+   * @return the CP code to purge instead of the pages, may be null
+   */
+  public String getCpCode() {
+    return cpCode;
+  }
+}
@@ -0,0 +1,110 @@
+package carz.aem.cdn.replication.filter;
+
+import carz.aem.cdn.replication.pipeline.CdnContentBuilder;
+import carz.aem.cdn.replication.service.CDNFlushRules;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.Preprocessor;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationOptions;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps replication actions away from CDN agents whose content builder
+ * would build no content for them: if no flush rule matches any path of the
+ * action, the agents of the content builders that do not purge without
+ * flush rules are filtered out before anything is queued.
+ *
+ * The filter is added to the replication options, in front of the filter
+ * the caller set, when the replicator preprocesses the action.
+ */
+@Component(service = Preprocessor.class,
+  immediate = true)
+@Designate(ocd = FlushRuleAgentFilter.Config.class)
+public class FlushRuleAgentFilter implements Preprocessor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FlushRuleAgentFilter.class);
+
+  @ObjectClassDefinition(name = "CDN flush rule agent filter config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Enabled",
+      description = "Skip CDN agents for actions no flush rule matches before they are queued.")
+    boolean enabled() default true;
+
+  }
+
+  @Reference
+  private CDNFlushRules cdnFlushRules;
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<CdnContentBuilder> contentBuilders = new CopyOnWriteArrayList<>();
+
+  private volatile boolean enabled;
+
+  @Activate
+  @Modified
+  protected void activate(final FlushRuleAgentFilter.Config config) {
+    enabled = config.enabled();
+  }
+
+  @Override
+  public void preprocess(ReplicationAction action, ReplicationOptions options) {
+    if (!enabled || action == null || options == null || action.getType() == ReplicationActionType.TEST) {
+      return;
+    }
+    final Set<String> filtered = new HashSet<>();
+    for (CdnContentBuilder builder : contentBuilders) {
+      if (!builder.isFlushWithoutFlushRules()) {
+        filtered.add(builder.getName().toLowerCase());
+      }
+    }
+    if (filtered.isEmpty() || hasFlushRules(action)) {
+      return;
+    }
+
+    LOG.debug("No flush rule matches {}, skipping the {} agents", action.getPath(), filtered);
+    final AgentFilter filter = options.getFilter() != null ? options.getFilter() : AgentFilter.DEFAULT;
+    options.setFilter(new AgentFilter() {
+      @Override
+      public boolean isIncluded(Agent agent) {
+        final AgentConfig config = agent.getConfiguration();
+        return (config == null || config.getSerializationType() == null
+          || !filtered.contains(config.getSerializationType().toLowerCase())) && filter.isIncluded(agent);
+      }
+    });
+  }
+
+  private boolean hasFlushRules(ReplicationAction action) {
+    final String[] paths = action.getPaths();
+    if (paths == null || paths.length == 0) {
+      return action.getPath() == null || cdnFlushRules.hasFlushRules(action.getPath());
+    }
+    for (String path : paths) {
+      if (path == null || cdnFlushRules.hasFlushRules(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
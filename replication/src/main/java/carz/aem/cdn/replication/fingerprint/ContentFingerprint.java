@@ -0,0 +1,126 @@
+package carz.aem.cdn.replication.fingerprint;
+
+import com.day.cq.wcm.api.NameConstants;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cheap 64 bit fingerprint of replicated content: the last modification
+ * dates and the top level properties of the jcr:content resource, or of the
+ * resource itself if it has none. Binary values only contribute their name,
+ * their changes are covered by jcr:lastModified.
+ */
+public final class ContentFingerprint {
+
+  /**
+   * Fingerprint of content that cannot be fingerprinted.
+   */
+  public static final long NONE = 0L;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private ContentFingerprint() {
+  }
+
+  /**
+   * @param resource          the replicated resource, may be null
+   * @param ignoredProperties names of properties that change without
+   *                          changing the rendered content
+   * @return the fingerprint, or {@link #NONE} if the resource does not exist
+   */
+  public static long of(Resource resource, Collection<String> ignoredProperties) {
+    if (resource == null) {
+      return NONE;
+    }
+    final Resource content = resource.getChild(JcrConstants.JCR_CONTENT);
+    final ValueMap properties = (content != null ? content : resource).getValueMap();
+
+    long hash = FNV_OFFSET;
+    hash = hash(hash, millis(properties.get(JcrConstants.JCR_LASTMODIFIED)));
+    hash = hash(hash, millis(properties.get(NameConstants.PN_PAGE_LAST_MOD)));
+    for (Map.Entry<String, Object> property : new TreeMap<>(properties).entrySet()) {
+      if (ignoredProperties.contains(property.getKey())) {
+        continue;
+      }
+      hash = hash(hash, property.getKey());
+      hash = hash(hash, valueOf(property.getValue()));
+    }
+    final long fingerprint = mix(hash);
+    return fingerprint != NONE ? fingerprint : 1L;
+  }
+
+  /**
+   * @param agentId id of the replication agent
+   * @param path    replicated path
+   * @return 64 bit key of the path of an agent, never 0
+   */
+  public static long key(String agentId, String path) {
+    final long key = mix(hash(hash(FNV_OFFSET, agentId), path));
+    return key != 0 ? key : 1L;
+  }
+
+  private static String valueOf(Object value) {
+    if (value instanceof InputStream) {
+      try {
+        ((InputStream) value).close();
+      } catch (IOException e) {
+        // only the name of binary properties is fingerprinted
+      }
+      return "";
+    } else if (value instanceof Calendar || value instanceof Date) {
+      return Long.toString(millis(value));
+    } else if (value instanceof Object[]) {
+      return Arrays.deepToString((Object[]) value);
+    }
+    return String.valueOf(value);
+  }
+
+  private static long millis(Object value) {
+    if (value instanceof Calendar) {
+      return ((Calendar) value).getTimeInMillis();
+    } else if (value instanceof Date) {
+      return ((Date) value).getTime();
+    }
+    return 0L;
+  }
+
+  private static long hash(long hash, long value) {
+    for (int i = 0; i < 8; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  private static long hash(long hash, String value) {
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    // separator, so that "ab" + "c" and "a" + "bc" differ
+    hash ^= 0xff;
+    hash *= FNV_PRIME;
+    return hash;
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,37 @@
+package carz.aem.cdn.replication.fingerprint;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Local store of the content fingerprint of every path at its last
+ * successful purge, per replication agent. Content builders skip the purge
+ * of an activation whose fingerprint did not change since.
+ */
+@ProviderType
+public interface FingerprintStore {
+
+  /**
+   * @param agentId     id of the replication agent
+   * @param path        replicated path
+   * @param fingerprint fingerprint of the content, see {@link ContentFingerprint}
+   * @return true if the path was purged successfully with the same fingerprint
+   */
+  public boolean isUnchanged(String agentId, String path, long fingerprint);
+
+  /**
+   * Record the fingerprint of a path after the CDN accepted its purge.
+   *
+   * @param agentId     id of the replication agent
+   * @param path        replicated path
+   * @param fingerprint fingerprint of the purged content
+   */
+  public void record(String agentId, String path, long fingerprint);
+
+  /**
+   * Forget the fingerprint of a path, so that its next activation is purged.
+   *
+   * @param agentId id of the replication agent
+   * @param path    replicated path
+   */
+  public void remove(String agentId, String path);
+}
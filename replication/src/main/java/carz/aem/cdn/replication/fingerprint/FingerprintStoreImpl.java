@@ -0,0 +1,253 @@
+package carz.aem.cdn.replication.fingerprint;
+
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fingerprint store holding a 64 bit key and fingerprint per path in two
+ * generations of open addressing tables. When the current generation is
+ * full it becomes the previous one and the former previous generation is
+ * dropped, so the store keeps between half and all of the configured
+ * number of entries, the least recently purged paths being forgotten first.
+ * A forgotten path is just purged again.
+ *
+ * The tables are written to a file in the bundle data area every flush
+ * interval if they changed, and read again on activation.
+ */
+@Component(service = FingerprintStore.class,
+  immediate = true)
+@Designate(ocd = FingerprintStoreImpl.Config.class)
+public class FingerprintStoreImpl implements FingerprintStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FingerprintStoreImpl.class);
+
+  private static final String DATA_DIRECTORY = "content-fingerprints";
+  private static final String STORE_FILE = "fingerprints.bin";
+  private static final int MAGIC = 0x43465031;
+
+  @ObjectClassDefinition(name = "CDN content fingerprint store config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Store directory",
+      description = "Directory of the fingerprint file. Defaults to the data area of the bundle.")
+    String store_directory() default "";
+
+    @AttributeDefinition(name = "Maximum entries",
+      description = "Number of paths whose fingerprint is kept. Each entry takes less than 64 bytes of heap.")
+    int max_entries() default 100000;
+
+    @AttributeDefinition(name = "Flush interval",
+      description = "Seconds between two writes of the changed fingerprints to disk.")
+    long flush_interval() default 60;
+
+  }
+
+  /**
+   * Open addressing table of keys and fingerprints; key 0 marks a free slot.
+   */
+  private static final class Table {
+    private final long[] keys;
+    private final long[] fingerprints;
+    private final int limit;
+    private int size;
+
+    private Table(int limit) {
+      final int capacity = Integer.highestOneBit(limit * 4 - 1);
+      this.keys = new long[capacity];
+      this.fingerprints = new long[capacity];
+      this.limit = limit;
+    }
+
+    private int slot(long key) {
+      final int mask = keys.length - 1;
+      int slot = (int) (key ^ (key >>> 32)) & mask;
+      while (keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private boolean isFull() {
+      return size >= limit;
+    }
+
+    private void put(long key, long fingerprint) {
+      final int slot = slot(key);
+      if (keys[slot] == 0) {
+        keys[slot] = key;
+        size++;
+      }
+      fingerprints[slot] = fingerprint;
+    }
+  }
+
+  private Table current;
+  private Table previous;
+  private int generationSize;
+  private boolean dirty;
+  private Path file;
+  private ScheduledExecutorService flusher;
+
+  @Activate
+  protected void activate(final BundleContext bundleContext, final FingerprintStoreImpl.Config config)
+    throws IOException {
+    generationSize = Math.max(16, config.max_entries() / 2);
+    current = new Table(generationSize);
+    previous = new Table(generationSize);
+    final Path directory = StringUtils.isNotBlank(config.store_directory())
+      ? Paths.get(config.store_directory())
+      : bundleContext.getDataFile(DATA_DIRECTORY).toPath();
+    Files.createDirectories(directory);
+    file = directory.resolve(STORE_FILE);
+    load();
+
+    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "cdn-fingerprint-store");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long interval = Math.max(1, config.flush_interval());
+    flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    flusher.shutdownNow();
+    flush();
+  }
+
+  @Override
+  public synchronized boolean isUnchanged(String agentId, String path, long fingerprint) {
+    if (fingerprint == ContentFingerprint.NONE) {
+      return false;
+    }
+    final long key = ContentFingerprint.key(agentId, path);
+    int slot = current.slot(key);
+    if (current.keys[slot] != 0) {
+      return current.fingerprints[slot] == fingerprint;
+    }
+    slot = previous.slot(key);
+    return previous.keys[slot] != 0 && previous.fingerprints[slot] == fingerprint;
+  }
+
+  @Override
+  public synchronized void record(String agentId, String path, long fingerprint) {
+    put(ContentFingerprint.key(agentId, path), fingerprint);
+  }
+
+  @Override
+  public synchronized void remove(String agentId, String path) {
+    final long key = ContentFingerprint.key(agentId, path);
+    if (current.keys[current.slot(key)] != 0 || previous.keys[previous.slot(key)] != 0) {
+      put(key, ContentFingerprint.NONE);
+    }
+  }
+
+  /**
+   * Removed paths keep their key with no fingerprint, so that the previous
+   * generation does not answer for them.
+   */
+  private void put(long key, long fingerprint) {
+    if (current.keys[current.slot(key)] == 0 && current.isFull()) {
+      previous = current;
+      current = new Table(generationSize);
+      LOG.debug("Fingerprint store full, started a new generation");
+    }
+    current.put(key, fingerprint);
+    dirty = true;
+  }
+
+  private void load() {
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        LOG.warn("Ignoring fingerprint store {} of an unknown format", file);
+        return;
+      }
+      final int entries = in.readInt();
+      for (int i = 0; i < entries; i++) {
+        final long key = in.readLong();
+        final long fingerprint = in.readLong();
+        if (key != 0) {
+          put(key, fingerprint);
+        }
+      }
+      dirty = false;
+      LOG.info("Loaded {} content fingerprints from {}", entries, file);
+    } catch (IOException e) {
+      LOG.warn("Could not read fingerprint store {}, starting empty", file, e);
+      current = new Table(generationSize);
+      previous = new Table(generationSize);
+    }
+  }
+
+  /**
+   * Write both generations, the previous one first so that loading the file
+   * restores the same order of generations.
+   */
+  private void flush() {
+    final long[][] snapshot;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      snapshot = new long[][]{previous.keys.clone(), previous.fingerprints.clone(),
+        current.keys.clone(), current.fingerprints.clone()};
+      dirty = false;
+    }
+    int entries = 0;
+    for (int table = 0; table < snapshot.length; table += 2) {
+      for (long key : snapshot[table]) {
+        if (key != 0) {
+          entries++;
+        }
+      }
+    }
+
+    final Path temp = file.resolveSibling(STORE_FILE + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(entries);
+        for (int table = 0; table < snapshot.length; table += 2) {
+          for (int slot = 0; slot < snapshot[table].length; slot++) {
+            if (snapshot[table][slot] != 0) {
+              out.writeLong(snapshot[table][slot]);
+              out.writeLong(snapshot[table + 1][slot]);
+            }
+          }
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      LOG.debug("Wrote {} content fingerprints to {}", entries, file);
+    } catch (IOException e) {
+      synchronized (this) {
+        dirty = true;
+      }
+      LOG.warn("Could not write fingerprint store {}", file, e);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package carz.aem.cdn.replication.hotspot;
+
+/**
+ * A key among the most frequent of a {@link HotspotType} with its
+ * estimated, decayed count. The estimate never undercounts and overcounts by
+ * at most a small fraction of the total count.
+ */
+public final class HeavyHitter {
+
+  private final String key;
+  private final long count;
+
+  public HeavyHitter(String key, long count) {
+    this.key = key;
+    this.count = count;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return key + "=" + count;
+  }
+}
@@ -0,0 +1,210 @@
+package carz.aem.cdn.replication.hotspot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Count-Min sketch with conservative update plus a min-heap of the keys
+ * with the highest estimates. Memory is fixed by the width, depth and
+ * number of top keys, however many distinct keys are added.
+ *
+ * {@link #decay()} halves all counts, so that old activity fades out over
+ * the configured half-life. Not thread safe.
+ */
+final class HeavyHitterSketch {
+
+  private static final long SEED = 0x9e3779b97f4a7c15L;
+
+  private final long[][] counters;
+  private final int mask;
+  private final int capacity;
+  private final String[] heapKeys;
+  private final long[] heapCounts;
+  private final Map<String, Integer> heapIndex;
+  private int heapSize;
+  private long total;
+
+  /**
+   * @param width    counters per row, rounded up to a power of two
+   * @param depth    number of rows
+   * @param capacity number of top keys kept
+   */
+  HeavyHitterSketch(int width, int depth, int capacity) {
+    this.counters = new long[Math.max(1, depth)][Integer.highestOneBit(Math.max(2, width) * 2 - 1)];
+    this.mask = counters[0].length - 1;
+    this.capacity = Math.max(1, capacity);
+    this.heapKeys = new String[this.capacity];
+    this.heapCounts = new long[this.capacity];
+    this.heapIndex = new HashMap<>(this.capacity * 2);
+  }
+
+  /**
+   * Count one occurrence of a key.
+   */
+  void add(String key) {
+    final long hash = hash(key);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < counters.length; row++) {
+      estimate = Math.min(estimate, counters[row][index(hash, row)]);
+    }
+    estimate++;
+    for (int row = 0; row < counters.length; row++) {
+      final int index = index(hash, row);
+      if (counters[row][index] < estimate) {
+        counters[row][index] = estimate;
+      }
+    }
+    total++;
+    offer(key, estimate);
+  }
+
+  /**
+   * @return the estimated count of a key
+   */
+  long estimate(String key) {
+    final long hash = hash(key);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < counters.length; row++) {
+      estimate = Math.min(estimate, counters[row][index(hash, row)]);
+    }
+    return estimate;
+  }
+
+  long getTotal() {
+    return total;
+  }
+
+  /**
+   * Halve all counts. Keys of the top heap whose count drops to 0 are
+   * removed.
+   */
+  void decay() {
+    for (long[] row : counters) {
+      for (int i = 0; i < row.length; i++) {
+        row[i] >>>= 1;
+      }
+    }
+    total >>>= 1;
+    int kept = 0;
+    heapIndex.clear();
+    for (int i = 0; i < heapSize; i++) {
+      final long count = heapCounts[i] >>> 1;
+      if (count > 0) {
+        heapKeys[kept] = heapKeys[i];
+        heapCounts[kept] = count;
+        heapIndex.put(heapKeys[kept], kept);
+        kept++;
+      }
+    }
+    Arrays.fill(heapKeys, kept, heapSize, null);
+    heapSize = kept;
+    // halving keeps the order of the counts, but compaction may not
+    for (int i = heapSize / 2 - 1; i >= 0; i--) {
+      siftDown(i);
+    }
+  }
+
+  void clear() {
+    for (long[] row : counters) {
+      Arrays.fill(row, 0);
+    }
+    Arrays.fill(heapKeys, null);
+    heapIndex.clear();
+    heapSize = 0;
+    total = 0;
+  }
+
+  /**
+   * @return the top keys, highest count first
+   */
+  List<HeavyHitter> top() {
+    final List<HeavyHitter> top = new ArrayList<>(heapSize);
+    for (int i = 0; i < heapSize; i++) {
+      top.add(new HeavyHitter(heapKeys[i], heapCounts[i]));
+    }
+    top.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+    return top;
+  }
+
+  private void offer(String key, long estimate) {
+    final Integer position = heapIndex.get(key);
+    if (position != null) {
+      heapCounts[position] = estimate;
+      siftDown(position);
+    } else if (heapSize < capacity) {
+      heapKeys[heapSize] = key;
+      heapCounts[heapSize] = estimate;
+      heapIndex.put(key, heapSize);
+      siftUp(heapSize++);
+    } else if (estimate > heapCounts[0]) {
+      heapIndex.remove(heapKeys[0]);
+      heapKeys[0] = key;
+      heapCounts[0] = estimate;
+      heapIndex.put(key, 0);
+      siftDown(0);
+    }
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      final int parent = (position - 1) / 2;
+      if (heapCounts[parent] <= heapCounts[position]) {
+        return;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    while (true) {
+      final int left = position * 2 + 1;
+      if (left >= heapSize) {
+        return;
+      }
+      int smallest = left;
+      if (left + 1 < heapSize && heapCounts[left + 1] < heapCounts[left]) {
+        smallest = left + 1;
+      }
+      if (heapCounts[position] <= heapCounts[smallest]) {
+        return;
+      }
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  private void swap(int a, int b) {
+    final String key = heapKeys[a];
+    final long count = heapCounts[a];
+    heapKeys[a] = heapKeys[b];
+    heapCounts[a] = heapCounts[b];
+    heapKeys[b] = key;
+    heapCounts[b] = count;
+    heapIndex.put(heapKeys[a], a);
+    heapIndex.put(heapKeys[b], b);
+  }
+
+  /**
+   * Rows use the two halves of one 64 bit hash combined as in double
+   * hashing.
+   */
+  private int index(long hash, int row) {
+    return (int) ((hash >>> 32) + row * (int) hash) & mask;
+  }
+
+  private static long hash(String key) {
+    long hash = SEED;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,22 @@
+package carz.aem.cdn.replication.hotspot;
+
+/**
+ * The streams of keys tracked by {@link PurgeHotspots}.
+ */
+public enum HotspotType {
+
+  /**
+   * URLs accepted by the CDN.
+   */
+  URL,
+
+  /**
+   * Replicated paths whose purge the CDN accepted.
+   */
+  PATH,
+
+  /**
+   * Patterns of the flush rules matching a replicated path.
+   */
+  RULE
+}
@@ -0,0 +1,50 @@
+package carz.aem.cdn.replication.hotspot;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.List;
+
+/**
+ * Tracks the most frequently purged URLs and paths and the most frequently
+ * matching flush rules in constant memory, so that the sources of purge
+ * storms can be found.
+ */
+@ProviderType
+public interface PurgeHotspots {
+
+  /**
+   * @param type stream of the key
+   * @param key  URL, path or flush rule pattern
+   */
+  public void record(HotspotType type, String key);
+
+  /**
+   * @param type stream of the keys
+   * @param keys URLs, paths or flush rule patterns
+   */
+  public void recordAll(HotspotType type, Iterable<String> keys);
+
+  /**
+   * @param type stream of the keys
+   * @return the most frequent keys, most frequent first
+   */
+  public List<HeavyHitter> getTop(HotspotType type);
+
+  /**
+   * @param type stream of the key
+   * @param key  URL, path or flush rule pattern
+   * @return the estimated, decayed count of the key
+   */
+  public long estimate(HotspotType type, String key);
+
+  /**
+   * @param type stream of the keys
+   * @return the decayed count of all keys
+   */
+  public long getTotal(HotspotType type);
+
+  /**
+   * Forget all counts.
+   */
+  public void reset();
+}
@@ -0,0 +1,142 @@
+package carz.aem.cdn.replication.hotspot;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one {@link HeavyHitterSketch} per {@link HotspotType}. Counts are
+ * halved once per half-life, checked whenever a sketch is used, so that the
+ * top keys reflect recent purges rather than all purges since startup.
+ */
+@Component(service = PurgeHotspots.class,
+  immediate = true)
+@Designate(ocd = PurgeHotspotsImpl.Config.class)
+public class PurgeHotspotsImpl implements PurgeHotspots {
+
+  @ObjectClassDefinition(name = "CDN purge hotspots config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Width",
+      description = "Counters per sketch row. Wider sketches overcount less.")
+    int width() default 4096;
+
+    @AttributeDefinition(name = "Depth",
+      description = "Rows per sketch. Deeper sketches overcount less often.")
+    int depth() default 4;
+
+    @AttributeDefinition(name = "Top keys", description = "Number of most frequent keys kept per type.")
+    int top_keys() default 50;
+
+    @AttributeDefinition(name = "Half-life", description = "Minutes after which counts are halved.")
+    long half_life() default 60;
+
+  }
+
+  private static final class Stream {
+    private final HeavyHitterSketch sketch;
+    private long decayedAt;
+
+    private Stream(HeavyHitterSketch sketch, long now) {
+      this.sketch = sketch;
+      this.decayedAt = now;
+    }
+  }
+
+  private volatile Map<HotspotType, Stream> streams;
+  private volatile long halfLife;
+
+  @Activate
+  @Modified
+  protected void activate(final PurgeHotspotsImpl.Config config) {
+    final long now = System.currentTimeMillis();
+    final Map<HotspotType, Stream> created = new EnumMap<>(HotspotType.class);
+    for (HotspotType type : HotspotType.values()) {
+      created.put(type, new Stream(new HeavyHitterSketch(config.width(), config.depth(), config.top_keys()), now));
+    }
+    halfLife = TimeUnit.MINUTES.toMillis(Math.max(1, config.half_life()));
+    streams = created;
+  }
+
+  @Override
+  public void record(HotspotType type, String key) {
+    final Stream stream = streams.get(type);
+    synchronized (stream) {
+      decay(stream);
+      stream.sketch.add(key);
+    }
+  }
+
+  @Override
+  public void recordAll(HotspotType type, Iterable<String> keys) {
+    final Stream stream = streams.get(type);
+    synchronized (stream) {
+      decay(stream);
+      for (String key : keys) {
+        stream.sketch.add(key);
+      }
+    }
+  }
+
+  @Override
+  public List<HeavyHitter> getTop(HotspotType type) {
+    final Stream stream = streams.get(type);
+    synchronized (stream) {
+      decay(stream);
+      return stream.sketch.top();
+    }
+  }
+
+  @Override
+  public long estimate(HotspotType type, String key) {
+    final Stream stream = streams.get(type);
+    synchronized (stream) {
+      decay(stream);
+      return stream.sketch.estimate(key);
+    }
+  }
+
+  @Override
+  public long getTotal(HotspotType type) {
+    final Stream stream = streams.get(type);
+    synchronized (stream) {
+      decay(stream);
+      return stream.sketch.getTotal();
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (Stream stream : streams.values()) {
+      synchronized (stream) {
+        stream.sketch.clear();
+        stream.decayedAt = System.currentTimeMillis();
+      }
+    }
+  }
+
+  private void decay(Stream stream) {
+    final long now = System.currentTimeMillis();
+    int halvings = 0;
+    while (now - stream.decayedAt >= halfLife && halvings < Long.SIZE) {
+      stream.decayedAt += halfLife;
+      halvings++;
+    }
+    if (halvings == Long.SIZE) {
+      stream.sketch.clear();
+      stream.decayedAt = now;
+      return;
+    }
+    for (int i = 0; i < halvings; i++) {
+      stream.sketch.decay();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package carz.aem.cdn.replication.hotspot;
+
+import com.adobe.granite.jmx.annotation.Description;
+import com.adobe.granite.jmx.annotation.Name;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * JMX view of the {@link PurgeHotspots}.
+ */
+@Description("Most frequently purged URLs and paths and most frequently matching flush rules")
+public interface PurgeHotspotsMBean {
+
+  @Description("URLs accepted by the CDN most often, with their decayed counts")
+  TabularData getTopUrls() throws OpenDataException;
+
+  @Description("Replicated paths purged most often, with their decayed counts")
+  TabularData getTopPaths() throws OpenDataException;
+
+  @Description("Flush rules matching replicated paths most often, with their decayed counts")
+  TabularData getTopRules() throws OpenDataException;
+
+  @Description("Estimated decayed count of a URL, path or flush rule pattern")
+  long estimate(@Name("type") @Description("URL, PATH or RULE") String type,
+                @Name("key") @Description("URL, path or flush rule pattern") String key);
+
+  @Description("Forget all counts")
+  void reset();
+}
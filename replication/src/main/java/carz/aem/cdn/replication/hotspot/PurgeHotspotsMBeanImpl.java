@@ -0,0 +1,74 @@
+package carz.aem.cdn.replication.hotspot;
+
+import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.List;
+
+/**
+ * Registers the {@link PurgeHotspots} in the JMX console.
+ */
+@Component(service = DynamicMBean.class,
+  property = "jmx.objectname=carz.aem.cdn.replication:type=PurgeHotspots")
+public class PurgeHotspotsMBeanImpl extends AnnotatedStandardMBean implements PurgeHotspotsMBean {
+
+  private static final String[] ITEMS = {"key", "count", "share"};
+
+  @Reference
+  private PurgeHotspots purgeHotspots;
+
+  public PurgeHotspotsMBeanImpl() throws NotCompliantMBeanException {
+    super(PurgeHotspotsMBean.class);
+  }
+
+  @Override
+  public TabularData getTopUrls() throws OpenDataException {
+    return toTabularData(HotspotType.URL);
+  }
+
+  @Override
+  public TabularData getTopPaths() throws OpenDataException {
+    return toTabularData(HotspotType.PATH);
+  }
+
+  @Override
+  public TabularData getTopRules() throws OpenDataException {
+    return toTabularData(HotspotType.RULE);
+  }
+
+  @Override
+  public long estimate(String type, String key) {
+    return purgeHotspots.estimate(HotspotType.valueOf(type.trim().toUpperCase()), key);
+  }
+
+  @Override
+  public void reset() {
+    purgeHotspots.reset();
+  }
+
+  private TabularData toTabularData(HotspotType type) throws OpenDataException {
+    final CompositeType rowType = new CompositeType("heavyHitter", "Key with its decayed count", ITEMS,
+      new String[]{"URL, path or flush rule pattern", "Estimated decayed count", "Percent of the decayed total"},
+      new OpenType<?>[]{SimpleType.STRING, SimpleType.LONG, SimpleType.DOUBLE});
+    final TabularDataSupport data = new TabularDataSupport(new TabularType("heavyHitters",
+      "Most frequent keys", rowType, new String[]{"key"}));
+    final List<HeavyHitter> top = purgeHotspots.getTop(type);
+    final long total = Math.max(1, purgeHotspots.getTotal(type));
+    for (HeavyHitter hitter : top) {
+      data.put(new CompositeDataSupport(rowType, ITEMS,
+        new Object[]{hitter.getKey(), hitter.getCount(), 100.0 * Math.min(hitter.getCount(), total) / total}));
+    }
+    return data;
+  }
+}
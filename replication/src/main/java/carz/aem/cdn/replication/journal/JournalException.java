@@ -0,0 +1,17 @@
+package carz.aem.cdn.replication.journal;
+
+/**
+ * Thrown when the purge journal cannot be written or read.
+ */
+public class JournalException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  public JournalException(String message) {
+    super(message);
+  }
+
+  public JournalException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,84 @@
+package carz.aem.cdn.replication.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary encoding of the records written to a {@link JournalSegment}.
+ *
+ * A purge record holds the entry id, timestamp, agent id and URLs. An
+ * acknowledgement record holds the entry id and whether the purge is done.
+ */
+final class JournalRecord {
+
+  static final byte TYPE_PURGE = 1;
+  static final byte TYPE_ACK = 2;
+
+  final byte type;
+  final long id;
+  final long timestamp;
+  final String agentId;
+  final List<String> urls;
+  final boolean done;
+
+  private JournalRecord(byte type, long id, long timestamp, String agentId, List<String> urls, boolean done) {
+    this.type = type;
+    this.id = id;
+    this.timestamp = timestamp;
+    this.agentId = agentId;
+    this.urls = urls;
+    this.done = done;
+  }
+
+  static byte[] purge(long id, long timestamp, String agentId, Collection<String> urls) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + urls.size() * 64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(TYPE_PURGE);
+      out.writeLong(id);
+      out.writeLong(timestamp);
+      out.writeUTF(agentId);
+      out.writeInt(urls.size());
+      for (String url : urls) {
+        out.writeUTF(url);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  static byte[] ack(long id, long timestamp, boolean done) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(18);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(TYPE_ACK);
+      out.writeLong(id);
+      out.writeLong(timestamp);
+      out.writeBoolean(done);
+    }
+    return bytes.toByteArray();
+  }
+
+  static JournalRecord decode(byte[] body) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+      final byte type = in.readByte();
+      final long id = in.readLong();
+      final long timestamp = in.readLong();
+      if (type == TYPE_PURGE) {
+        final String agentId = in.readUTF();
+        final int count = in.readInt();
+        final List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          urls.add(in.readUTF());
+        }
+        return new JournalRecord(type, id, timestamp, agentId, urls, false);
+      } else if (type == TYPE_ACK) {
+        return new JournalRecord(type, id, timestamp, null, null, in.readBoolean());
+      }
+      throw new IOException("Unknown journal record type " + type);
+    }
+  }
+}
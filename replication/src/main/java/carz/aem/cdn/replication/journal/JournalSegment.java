@@ -0,0 +1,139 @@
+package carz.aem.cdn.replication.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size, memory-mapped journal file. Records are framed as
+ * {@code [length][body][crc32]}; a zero length marks the end of the written
+ * part, and a record with a bad checksum (a torn write) ends the scan.
+ */
+final class JournalSegment {
+
+  private static final int MAGIC = 0x434a524e;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int FRAME_OVERHEAD = 8;
+
+  private static final String PREFIX = "journal-";
+  private static final String SUFFIX = ".log";
+
+  /**
+   * Visitor for the records found when scanning a segment.
+   */
+  interface RecordVisitor {
+    void visit(byte[] body) throws IOException;
+  }
+
+  private final long sequence;
+  private final Path file;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+
+  private JournalSegment(long sequence, Path file, FileChannel channel, MappedByteBuffer buffer) {
+    this.sequence = sequence;
+    this.file = file;
+    this.channel = channel;
+    this.buffer = buffer;
+  }
+
+  static JournalSegment create(Path directory, long sequence, int size) throws IOException {
+    final Path file = directory.resolve(fileName(sequence));
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+      StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.force();
+    return new JournalSegment(sequence, file, channel, buffer);
+  }
+
+  static JournalSegment open(Path file) throws IOException {
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      channel.close();
+      throw new IOException("Not a purge journal segment: " + file);
+    }
+    return new JournalSegment(sequenceOf(file), file, channel, buffer);
+  }
+
+  static boolean isSegment(Path file) {
+    final String name = file.getFileName().toString();
+    return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && name.length() > PREFIX.length() + SUFFIX.length()
+      && name.substring(PREFIX.length(), name.length() - SUFFIX.length()).chars().allMatch(Character::isDigit);
+  }
+
+  static long sequenceOf(Path file) {
+    final String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+
+  private static String fileName(long sequence) {
+    return String.format("%s%020d%s", PREFIX, sequence, SUFFIX);
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Append one record without forcing it to disk.
+   *
+   * @return false if the segment has no room left for the record
+   */
+  boolean append(byte[] body) {
+    if (buffer.remaining() < body.length + FRAME_OVERHEAD + 4) {
+      return false;
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    buffer.putInt(body.length);
+    buffer.put(body);
+    buffer.putInt((int) crc.getValue());
+    return true;
+  }
+
+  /**
+   * Whether a record of the given size can ever fit into a segment of the
+   * given size.
+   */
+  static boolean fits(int bodyLength, int segmentSize) {
+    return bodyLength + FRAME_OVERHEAD + 4 <= segmentSize - HEADER_SIZE;
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  void scan(RecordVisitor visitor) throws IOException {
+    while (buffer.remaining() >= FRAME_OVERHEAD) {
+      final int length = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining() - 4) {
+        return;
+      }
+      final byte[] body = new byte[length];
+      buffer.get(body);
+      final CRC32 crc = new CRC32();
+      crc.update(body, 0, length);
+      if (buffer.getInt() != (int) crc.getValue()) {
+        return;
+      }
+      visitor.visit(body);
+    }
+  }
+
+  void close() throws IOException {
+    channel.close();
+  }
+
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(file);
+  }
+}
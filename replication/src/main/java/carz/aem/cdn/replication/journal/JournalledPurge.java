@@ -0,0 +1,146 @@
+package carz.aem.cdn.replication.journal;
+
+import carz.aem.cdn.replication.retry.PurgeRetryResult;
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+
+/**
+ * A purge recorded in the {@link PurgeJournal} for the duration of one
+ * delivery. Purges recovered from the journal are not merged into it; the
+ * {@link PurgeJournalReplayer} sends them once on their own, so a recovered
+ * purge the CDN rejects cannot fail the live purges of its agent.
+ *
+ * Batches the CDN accepted are recorded as they are accepted, so that a
+ * retry of the purge only sends the URLs left. A retry by the partitioned
+ * delivery reuses the purge; a retry from the agent queue begins it again
+ * with the same key and continues the journal entry.
+ *
+ * Journal failures are logged and never fail the delivery itself.
+ */
+public final class JournalledPurge {
+
+  private final PurgeJournal journal;
+  private final long entryId;
+  private volatile UrlSet urls;
+  private volatile boolean completed;
+
+  private JournalledPurge(PurgeJournal journal, long entryId, UrlSet urls) {
+    this.journal = journal;
+    this.entryId = entryId;
+    this.urls = urls;
+  }
+
+  /**
+   * Record {@code urls} in the journal, leaving out the URLs the CDN
+   * accepted in an earlier attempt of the same replication.
+   *
+   * @param journal journal to record into, may be null
+   * @param agentId id of the replication agent
+   * @param key     identifies the replication across its attempts, see
+   *                {@link #key(ReplicationAction)}
+   * @param urls    URLs about to be sent
+   * @param log     replication log of the transaction
+   * @return the recorded purge
+   */
+  public static JournalledPurge begin(PurgeJournal journal, String agentId, String key, UrlSet urls,
+                                      ReplicationLog log) {
+    if (journal == null) {
+      return new JournalledPurge(null, 0, urls);
+    }
+    try {
+      final PurgeJournalEntry entry = journal.begin(agentId, key, urls);
+      if (entry.getUrls().size() == urls.size()) {
+        return new JournalledPurge(journal, entry.getId(), urls);
+      }
+      log.info("Leaving out %s URLs accepted by an earlier attempt", urls.size() - entry.getUrls().size());
+      return new JournalledPurge(journal, entry.getId(), UrlSet.of(entry.getUrls()));
+    } catch (JournalException e) {
+      log.warn("Could not record purge in the purge journal: %s", e.getMessage());
+      return new JournalledPurge(null, 0, urls);
+    }
+  }
+
+  /**
+   * @param action replicated action
+   * @return the key of the action's purges, the same for every attempt to
+   * replicate it
+   */
+  public static String key(ReplicationAction action) {
+    return action.getType() + " " + action.getTime() + " " + String.join(",", action.getPaths());
+  }
+
+  /**
+   * @return the URLs left to send
+   */
+  public UrlSet getUrls() {
+    return urls;
+  }
+
+  /**
+   * Record a batch of URLs the CDN accepted, so that they are not sent again
+   * if the purge is retried.
+   *
+   * @param batch accepted URLs
+   * @param log   log of the delivery
+   */
+  public void accepted(UrlSet batch, ReplicationLog log) {
+    urls = urls.difference(batch);
+    if (journal == null || completed) {
+      return;
+    }
+    try {
+      journal.accept(entryId, batch);
+    } catch (JournalException e) {
+      log.warn("Could not record accepted URLs in the purge journal: %s", e.getMessage());
+    }
+  }
+
+  /**
+   * Record the result of the purge. A purge the CDN accepted, or rejected
+   * with an error that sending it again would not fix, is done; a purge that
+   * only ran out of retries is kept so that the journal sends it again.
+   * Only the first result of a purge is recorded.
+   *
+   * @param result result of the purge
+   * @param log    log of the delivery
+   */
+  public void complete(ReplicationResult result, ReplicationLog log) {
+    final boolean done = isDone(result);
+    if (!result.isSuccess() && done) {
+      log.warn("Purge failed for good, not sending it again: %s", result.getMessage());
+    }
+    acknowledge(done, log);
+  }
+
+  /**
+   * Record that the purge is given up for now, so that the journal sends it
+   * again.
+   *
+   * @param log log of the delivery
+   */
+  public void fail(ReplicationLog log) {
+    acknowledge(false, log);
+  }
+
+  /**
+   * @return true if the purge needs no sending again: it succeeded or failed
+   * for good
+   */
+  public static boolean isDone(ReplicationResult result) {
+    return result.isSuccess() || result.getCode() != PurgeRetryResult.CODE_RETRYABLE;
+  }
+
+  private void acknowledge(boolean done, ReplicationLog log) {
+    if (journal == null || completed) {
+      return;
+    }
+    completed = true;
+    try {
+      journal.acknowledge(entryId, done);
+    } catch (JournalException e) {
+      log.warn("Could not record purge result in the purge journal: %s", e.getMessage());
+    }
+  }
+}
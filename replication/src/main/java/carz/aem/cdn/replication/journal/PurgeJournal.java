@@ -0,0 +1,69 @@
+package carz.aem.cdn.replication.journal;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Local, append-only journal of purge requests. Transport handlers record the
+ * URL set of a purge before it is sent and the result once the CDN answered,
+ * so that after a restart only purges without a recorded result have to be
+ * sent again.
+ */
+@ProviderType
+public interface PurgeJournal {
+
+  /**
+   * Record the URLs of a purge that is about to be sent. The call returns once
+   * the entry is durable on disk, or fails if it could not be written in
+   * time.
+   *
+   * If an entry of the same key is still open, because an earlier attempt of
+   * the same replication ran out of retries, the URLs the CDN accepted in
+   * that attempt are left out. The open entry is continued if it holds all
+   * URLs left to send.
+   *
+   * @param agentId id of the replication agent sending the purge
+   * @param key     identifies the replication across its attempts, or null
+   * @param urls    URLs of the purge
+   * @return the journal entry, holding the URLs left to send
+   * @throws JournalException if the entry could not be written
+   */
+  public PurgeJournalEntry begin(String agentId, String key, Collection<String> urls) throws JournalException;
+
+  /**
+   * Record URLs of a purge the CDN accepted, so that neither a later
+   * attempt of the same replication nor the replay after a restart sends
+   * them again.
+   *
+   * @param entryId id of the entry returned by {@link #begin}
+   * @param urls    accepted URLs of the entry
+   * @throws JournalException if the URLs could not be recorded
+   */
+  public void accept(long entryId, Collection<String> urls) throws JournalException;
+
+  /**
+   * Record the result of a purge previously recorded with {@link #begin}.
+   * A purge that is not done stays in the journal and is sent again after a
+   * restart.
+   *
+   * @param entryId id of the entry returned by {@link #begin}
+   * @param done    true if the purge must not be sent again, because the CDN
+   *                accepted it or rejected it with an error that sending it
+   *                again would not fix
+   * @throws JournalException if the result could not be written
+   */
+  public void acknowledge(long entryId, boolean done) throws JournalException;
+
+  /**
+   * Get the entries of an agent that were found without a result marking
+   * them done when the journal was opened. An entry is returned until it is
+   * acknowledged as done; the caller is expected to send it again and
+   * acknowledge it once the CDN accepted or rejected it for good.
+   *
+   * @param agentId id of the replication agent
+   * @return unacknowledged entries, oldest first
+   */
+  public List<PurgeJournalEntry> recover(String agentId);
+}
@@ -0,0 +1,38 @@
+package carz.aem.cdn.replication.journal;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A purge recorded in the {@link PurgeJournal}.
+ */
+public final class PurgeJournalEntry {
+
+  private final long id;
+  private final String agentId;
+  private final long timestamp;
+  private final List<String> urls;
+
+  public PurgeJournalEntry(long id, String agentId, long timestamp, List<String> urls) {
+    this.id = id;
+    this.agentId = agentId;
+    this.timestamp = timestamp;
+    this.urls = Collections.unmodifiableList(urls);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getAgentId() {
+    return agentId;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public List<String> getUrls() {
+    return urls;
+  }
+}
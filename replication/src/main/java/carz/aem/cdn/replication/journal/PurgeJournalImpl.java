@@ -0,0 +1,556 @@
+package carz.aem.cdn.replication.journal;
+
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purge journal backed by memory-mapped segment files.
+ *
+ * All writes go through a single writer thread which appends every record
+ * queued in the meantime and forces the segment once per batch (group
+ * commit). When the active segment is full a new one is started. Sealed
+ * segments are deleted as soon as all their purges are acknowledged; when
+ * too many sealed segments are kept alive by a few old purges, those purges
+ * are copied into the active segment and the old segment is dropped.
+ *
+ * On activation the existing segments are replayed. Purges not acknowledged
+ * as done are rewritten into a fresh segment and handed to the
+ * {@link PurgeJournalReplayer} through {@link #recover(String)}, unless they
+ * are older than the maximum age. A purge acknowledged as failed but not
+ * done stays in the journal until then, so it is sent again after a restart.
+ * Accepted URLs are left out by rewriting the purge without them into the
+ * active segment, the same way compaction copies it.
+ *
+ * Entries begun with a key stay open in memory until they are done, so that
+ * the next attempt of the same replication continues them instead of
+ * sending the URLs the CDN already accepted. Open entries are not kept
+ * across restarts and expire after the maximum age.
+ * Segments that cannot be read, e.g. a file left without its header by a
+ * crash while it was created, are moved aside.
+ *
+ * Callers wait for their record to be written for at most the write
+ * timeout, so a stuck or stopped writer fails the write instead of blocking
+ * the replicating thread.
+ */
+@Component(service = PurgeJournal.class,
+  immediate = true)
+@Designate(ocd = PurgeJournalImpl.Config.class)
+public class PurgeJournalImpl implements PurgeJournal {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeJournalImpl.class);
+
+  private static final String DATA_DIRECTORY = "purge-journal";
+  private static final int MAX_BATCH = 256;
+  private static final String UNREADABLE_SUFFIX = ".unreadable";
+
+  @ObjectClassDefinition(name = "CDN purge journal config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Journal directory",
+      description = "Directory of the journal segments. Defaults to the data area of the bundle.")
+    String journal_directory() default "";
+
+    @AttributeDefinition(name = "Segment size",
+      description = "Size of one journal segment in kilobytes.")
+    int segment_size() default 8192;
+
+    @AttributeDefinition(name = "Group commit delay",
+      description = "Milliseconds the writer waits for further records before forcing a batch to disk.")
+    long group_commit_delay() default 2;
+
+    @AttributeDefinition(name = "Maximum sealed segments",
+      description = "Number of full segments kept before their unacknowledged purges are compacted "
+        + "into the active segment.")
+    int max_sealed_segments() default 4;
+
+    @AttributeDefinition(name = "Write timeout",
+      description = "Milliseconds a purge waits for its journal record to be written before the write fails.")
+    long write_timeout() default 10000;
+
+    @AttributeDefinition(name = "Maximum age",
+      description = "Hours after which an unacknowledged or failed purge is dropped instead of being sent again.")
+    long max_age() default 24;
+
+  }
+
+  private static final class Write {
+    private final byte[] body;
+    private final PurgeJournalEntry entry;
+    private final long ackId;
+    private final boolean purgeDone;
+    private final Set<String> accepted;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private Write(byte[] body, PurgeJournalEntry entry, long ackId, boolean purgeDone, Set<String> accepted) {
+      this.body = body;
+      this.entry = entry;
+      this.ackId = ackId;
+      this.purgeDone = purgeDone;
+      this.accepted = accepted;
+    }
+  }
+
+  /**
+   * An entry begun with a key and not done yet.
+   */
+  private static final class OpenEntry {
+    private final String key;
+    private final long id;
+    private final long timestamp;
+    private final Set<String> urls;
+    private final Set<String> accepted = ConcurrentHashMap.newKeySet();
+
+    private OpenEntry(String key, long id, long timestamp, Set<String> urls) {
+      this.key = key;
+      this.id = id;
+      this.timestamp = timestamp;
+      this.urls = urls;
+    }
+  }
+
+  private final AtomicLong idSequence = new AtomicLong();
+  private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+  private final Map<String, List<PurgeJournalEntry>> recovered = new ConcurrentHashMap<>();
+  private final Map<String, OpenEntry> openByKey = new ConcurrentHashMap<>();
+  private final Map<Long, OpenEntry> openById = new ConcurrentHashMap<>();
+
+  /* State below is owned by the writer thread once the journal is activated. */
+  private final Map<Long, PurgeJournalEntry> pending = new HashMap<>();
+  private final Map<Long, Long> segmentOf = new HashMap<>();
+  private final Map<Long, Set<Long>> liveBySegment = new HashMap<>();
+  private final Deque<JournalSegment> sealed = new ArrayDeque<>();
+  private JournalSegment active;
+
+  private Path directory;
+  private int segmentSize;
+  private long groupCommitDelay;
+  private int maxSealedSegments;
+  private long writeTimeout;
+  private long maxAgeMillis;
+  private volatile boolean running;
+  private Thread writer;
+
+  @Activate
+  protected void activate(final BundleContext bundleContext, final PurgeJournalImpl.Config config)
+    throws IOException {
+    segmentSize = Math.max(64, config.segment_size()) * 1024;
+    groupCommitDelay = Math.max(0, config.group_commit_delay());
+    maxSealedSegments = Math.max(1, config.max_sealed_segments());
+    writeTimeout = Math.max(1, config.write_timeout());
+    maxAgeMillis = TimeUnit.HOURS.toMillis(Math.max(1, config.max_age()));
+    directory = StringUtils.isNotBlank(config.journal_directory())
+      ? Paths.get(config.journal_directory())
+      : bundleContext.getDataFile(DATA_DIRECTORY).toPath();
+    Files.createDirectories(directory);
+
+    replay();
+
+    running = true;
+    writer = new Thread(this::writeLoop, "cdn-purge-journal-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    running = false;
+    if (writer != null) {
+      writer.interrupt();
+      try {
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      for (JournalSegment segment : sealed) {
+        segment.close();
+      }
+      if (active != null) {
+        active.force();
+        active.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not close purge journal", e);
+    }
+  }
+
+  @Override
+  public PurgeJournalEntry begin(String agentId, String key, Collection<String> urls) throws JournalException {
+    expireOpenEntries();
+    final String openKey = key != null ? agentId + '\n' + key : null;
+    final OpenEntry previous = openKey != null ? openByKey.get(openKey) : null;
+    List<String> remaining = new ArrayList<>(urls);
+    if (previous != null) {
+      remaining.removeIf(previous.accepted::contains);
+      if (previous.urls.containsAll(remaining)) {
+        return new PurgeJournalEntry(previous.id, agentId, previous.timestamp, remaining);
+      }
+    }
+
+    final long id = idSequence.incrementAndGet();
+    final PurgeJournalEntry entry = new PurgeJournalEntry(id, agentId, System.currentTimeMillis(), remaining);
+    final byte[] body;
+    try {
+      body = JournalRecord.purge(id, entry.getTimestamp(), agentId, remaining);
+    } catch (IOException e) {
+      throw new JournalException("Could not encode purge journal entry", e);
+    }
+    if (!JournalSegment.fits(body.length, segmentSize)) {
+      throw new JournalException("Purge of " + remaining.size() + " URLs does not fit into a journal segment");
+    }
+    submit(new Write(body, entry, 0, false, null));
+    if (openKey != null) {
+      final OpenEntry open = new OpenEntry(openKey, id, entry.getTimestamp(), new HashSet<>(remaining));
+      if (previous != null) {
+        open.accepted.addAll(previous.accepted);
+      }
+      openByKey.put(openKey, open);
+      openById.put(id, open);
+    }
+    return entry;
+  }
+
+  @Override
+  public void accept(long entryId, Collection<String> urls) throws JournalException {
+    if (urls.isEmpty()) {
+      return;
+    }
+    submit(new Write(null, null, entryId, false, new HashSet<>(urls)));
+    final OpenEntry open = openById.get(entryId);
+    if (open != null) {
+      open.accepted.addAll(urls);
+    }
+  }
+
+  @Override
+  public void acknowledge(long entryId, boolean done) throws JournalException {
+    try {
+      submit(new Write(JournalRecord.ack(entryId, System.currentTimeMillis(), done), null, entryId, done, null));
+    } catch (IOException e) {
+      throw new JournalException("Could not encode purge journal acknowledgement", e);
+    }
+    if (done) {
+      for (List<PurgeJournalEntry> entries : recovered.values()) {
+        entries.removeIf(entry -> entry.getId() == entryId);
+      }
+      final OpenEntry open = openById.remove(entryId);
+      if (open != null) {
+        openByKey.remove(open.key, open);
+      }
+    }
+  }
+
+  @Override
+  public List<PurgeJournalEntry> recover(String agentId) {
+    final List<PurgeJournalEntry> entries = recovered.get(agentId);
+    return entries != null ? new ArrayList<>(entries) : Collections.<PurgeJournalEntry>emptyList();
+  }
+
+  private void expireOpenEntries() {
+    final long expired = System.currentTimeMillis() - maxAgeMillis;
+    openById.values().removeIf(open -> open.timestamp < expired);
+    openByKey.values().removeIf(open -> open.timestamp < expired);
+  }
+
+  private void submit(Write write) throws JournalException {
+    if (!running) {
+      throw new JournalException("Purge journal is not running");
+    }
+    queue.add(write);
+    if (!running && queue.remove(write)) {
+      throw new JournalException("Purge journal is not running");
+    }
+    try {
+      write.done.get(writeTimeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      if (write.done.cancel(false) || write.done.isCompletedExceptionally()) {
+        throw new JournalException("Purge journal did not write the record within " + writeTimeout + " ms");
+      }
+    } catch (InterruptedException e) {
+      write.done.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new JournalException("Interrupted while waiting for the purge journal", e);
+    } catch (ExecutionException e) {
+      throw new JournalException("Could not write to the purge journal", e.getCause());
+    }
+  }
+
+  /**
+   * Read all existing segments, keep the purges not acknowledged as done
+   * and rewrite them into a new segment so that the old ones can be deleted.
+   * The new segment follows the highest sequence of all segment files,
+   * including unreadable ones.
+   */
+  private void replay() throws IOException {
+    final List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        if (JournalSegment.isSegment(file)) {
+          files.add(file);
+        }
+      }
+    }
+    files.sort((a, b) -> Long.compare(JournalSegment.sequenceOf(a), JournalSegment.sequenceOf(b)));
+
+    final Map<Long, PurgeJournalEntry> unacknowledged = new LinkedHashMap<>();
+    long maxId = 0;
+    long maxSequence = 0;
+    final List<JournalSegment> old = new ArrayList<>();
+    for (Path file : files) {
+      maxSequence = Math.max(maxSequence, JournalSegment.sequenceOf(file));
+      final JournalSegment segment;
+      try {
+        segment = JournalSegment.open(file);
+      } catch (IOException e) {
+        LOG.warn("Moving unreadable purge journal segment {} aside", file, e);
+        moveAside(file);
+        continue;
+      }
+      old.add(segment);
+      segment.scan(body -> {
+        final JournalRecord record = JournalRecord.decode(body);
+        if (record.type == JournalRecord.TYPE_PURGE) {
+          unacknowledged.put(record.id,
+            new PurgeJournalEntry(record.id, record.agentId, record.timestamp, record.urls));
+        } else if (record.done) {
+          unacknowledged.remove(record.id);
+        }
+      });
+    }
+    final long oldest = System.currentTimeMillis() - maxAgeMillis;
+    final int found = unacknowledged.size();
+    unacknowledged.values().removeIf(entry -> entry.getTimestamp() < oldest);
+    if (unacknowledged.size() < found) {
+      LOG.warn("Dropped {} purges older than {} hours from the purge journal", found - unacknowledged.size(),
+        TimeUnit.MILLISECONDS.toHours(maxAgeMillis));
+    }
+
+    active = JournalSegment.create(directory, maxSequence + 1, segmentSize);
+    for (PurgeJournalEntry entry : unacknowledged.values()) {
+      maxId = Math.max(maxId, entry.getId());
+      append(JournalRecord.purge(entry.getId(), entry.getTimestamp(), entry.getAgentId(), entry.getUrls()));
+      track(entry);
+      recovered.computeIfAbsent(entry.getAgentId(), k -> new CopyOnWriteArrayList<>()).add(entry);
+    }
+    active.force();
+    idSequence.set(maxId);
+
+    for (JournalSegment segment : old) {
+      segment.delete();
+    }
+    if (!unacknowledged.isEmpty()) {
+      LOG.info("Recovered {} unacknowledged purges from the purge journal", unacknowledged.size());
+    }
+  }
+
+  private static void moveAside(Path file) {
+    try {
+      Files.move(file, file.resolveSibling(file.getFileName() + UNREADABLE_SUFFIX),
+        StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn("Could not move unreadable purge journal segment {} aside, deleting it", file, e);
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException deleteError) {
+        LOG.error("Could not delete unreadable purge journal segment {}", file, deleteError);
+      }
+    }
+  }
+
+  private void writeLoop() {
+    final List<Write> batch = new ArrayList<>(MAX_BATCH);
+    while (running) {
+      try {
+        final Write first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH - 1);
+        if (batch.size() < MAX_BATCH && groupCommitDelay > 0) {
+          final Write next = queue.poll(groupCommitDelay, TimeUnit.MILLISECONDS);
+          if (next != null) {
+            batch.add(next);
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+          }
+        }
+        commit(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } finally {
+        batch.clear();
+      }
+    }
+    final List<Write> rest = new ArrayList<>();
+    queue.drainTo(rest);
+    for (Write write : rest) {
+      write.done.completeExceptionally(new IllegalStateException("Purge journal stopped"));
+    }
+  }
+
+  private void commit(List<Write> batch) {
+    try {
+      for (Write write : batch) {
+        if (write.done.isCancelled()) {
+          // given up on by its caller after the write timeout
+          continue;
+        }
+        if (write.accepted != null) {
+          rewrite(write.ackId, write.accepted);
+          continue;
+        }
+        append(write.body);
+        if (write.entry != null) {
+          track(write.entry);
+        } else if (write.purgeDone) {
+          untrack(write.ackId);
+        }
+      }
+      active.force();
+      for (Write write : batch) {
+        write.done.complete(null);
+      }
+      releaseSegments();
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Could not write to the purge journal", e);
+      for (Write write : batch) {
+        write.done.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void append(byte[] body) throws IOException {
+    if (!active.append(body)) {
+      active.force();
+      sealed.addLast(active);
+      active = JournalSegment.create(directory, active.getSequence() + 1, segmentSize);
+      if (!active.append(body)) {
+        throw new IOException("Record does not fit into an empty journal segment");
+      }
+    }
+  }
+
+  /**
+   * Rewrite a pending purge without its accepted URLs into the active
+   * segment, or record it as done if no URLs are left.
+   */
+  private void rewrite(long id, Set<String> accepted) throws IOException {
+    final PurgeJournalEntry entry = pending.get(id);
+    if (entry == null) {
+      return;
+    }
+    final List<String> remaining = new ArrayList<>(entry.getUrls());
+    if (!remaining.removeIf(accepted::contains)) {
+      return;
+    }
+    untrack(id);
+    if (remaining.isEmpty()) {
+      append(JournalRecord.ack(id, System.currentTimeMillis(), true));
+      return;
+    }
+    final PurgeJournalEntry rest = new PurgeJournalEntry(id, entry.getAgentId(), entry.getTimestamp(), remaining);
+    append(JournalRecord.purge(id, rest.getTimestamp(), rest.getAgentId(), remaining));
+    track(rest);
+  }
+
+  private void track(PurgeJournalEntry entry) {
+    pending.put(entry.getId(), entry);
+    segmentOf.put(entry.getId(), active.getSequence());
+    liveBySegment.computeIfAbsent(active.getSequence(), k -> new HashSet<>()).add(entry.getId());
+  }
+
+  private void untrack(long id) {
+    pending.remove(id);
+    final Long sequence = segmentOf.remove(id);
+    if (sequence != null) {
+      final Set<Long> live = liveBySegment.get(sequence);
+      if (live != null) {
+        live.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Delete sealed segments without live purges and compact the oldest ones
+   * when too many are kept alive.
+   */
+  private void releaseSegments() throws IOException {
+    boolean compacted = false;
+    while (sealed.size() > maxSealedSegments) {
+      final JournalSegment oldest = sealed.peekFirst();
+      final Set<Long> live = liveBySegment.get(oldest.getSequence());
+      if (live != null) {
+        final long expired = System.currentTimeMillis() - maxAgeMillis;
+        for (Long id : new ArrayList<>(live)) {
+          final PurgeJournalEntry entry = pending.get(id);
+          untrack(id);
+          if (entry.getTimestamp() < expired) {
+            LOG.warn("Dropped purge {} of {} older than {} hours from the purge journal", id, entry.getAgentId(),
+              TimeUnit.MILLISECONDS.toHours(maxAgeMillis));
+            continue;
+          }
+          append(JournalRecord.purge(entry.getId(), entry.getTimestamp(), entry.getAgentId(), entry.getUrls()));
+          track(entry);
+        }
+      }
+      liveBySegment.remove(oldest.getSequence());
+      compacted = true;
+      sealed.remove(oldest);
+      active.force();
+      oldest.delete();
+    }
+    if (compacted) {
+      LOG.debug("Compacted purge journal, {} sealed segments left", sealed.size());
+    }
+    sealed.removeIf(segment -> {
+      final Set<Long> live = liveBySegment.get(segment.getSequence());
+      if (live == null || live.isEmpty()) {
+        liveBySegment.remove(segment.getSequence());
+        try {
+          segment.delete();
+        } catch (IOException e) {
+          LOG.warn("Could not delete purge journal segment {}", segment.getSequence(), e);
+        }
+        return true;
+      }
+      return false;
+    });
+  }
+}
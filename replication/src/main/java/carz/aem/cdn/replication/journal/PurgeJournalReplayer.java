@@ -0,0 +1,142 @@
+package carz.aem.cdn.replication.journal;
+
+import carz.aem.cdn.replication.bulk.PurgeTransport;
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.transport.DetachedTransaction;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationResult;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends the purges recovered by the {@link PurgeJournal} as soon as the
+ * transport of their agent is available. Each agent's recovered purges are
+ * sent once per activation, as one purge of their own, and acknowledged as
+ * done once the CDN accepted or rejected it for good. If the purge only ran
+ * out of retries they stay in the journal for the next restart; they are
+ * never merged into the live purges of the agent.
+ */
+@Component(immediate = true)
+public class PurgeJournalReplayer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeJournalReplayer.class);
+
+  private static final String ACTION_PATH = "/purge-journal/replay";
+  /** User of the replication actions of replayed purges, which have no session */
+  private static final String REPLAY_USER = "cdn-purge-journal";
+
+  @Reference
+  private AgentManager agentManager;
+
+  @Reference
+  private PurgeJournal purgeJournal;
+
+  private final Set<PurgeTransport> purgeTransports = ConcurrentHashMap.newKeySet();
+  private final Set<String> replayedAgents = ConcurrentHashMap.newKeySet();
+  private volatile ExecutorService executor;
+
+  @Activate
+  protected void activate() {
+    executor = Executors.newSingleThreadExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "cdn-purge-journal-replay");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (PurgeTransport transport : purgeTransports) {
+      schedule(transport);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    executor.shutdownNow();
+  }
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    unbind = "unbindPurgeTransport")
+  protected void bindPurgeTransport(final PurgeTransport transport) {
+    purgeTransports.add(transport);
+    if (executor != null) {
+      schedule(transport);
+    }
+  }
+
+  protected void unbindPurgeTransport(final PurgeTransport transport) {
+    purgeTransports.remove(transport);
+  }
+
+  private void schedule(final PurgeTransport transport) {
+    try {
+      executor.execute(() -> replay(transport));
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Purge journal replay stopped");
+    }
+  }
+
+  private void replay(final PurgeTransport transport) {
+    for (Agent agent : agentManager.getAgents().values()) {
+      final String agentId = agent.getId();
+      if (!agent.isEnabled() || !transport.canHandle(agent.getConfiguration())
+        || !purgeTransports.contains(transport)) {
+        continue;
+      }
+      final List<PurgeJournalEntry> recovered = purgeJournal.recover(agentId);
+      if (recovered.isEmpty() || !replayedAgents.add(agentId)) {
+        continue;
+      }
+      final Set<String> urls = new LinkedHashSet<>();
+      for (PurgeJournalEntry entry : recovered) {
+        urls.addAll(entry.getUrls());
+      }
+      final ReplicationAction action = new ReplicationAction(ReplicationActionType.ACTIVATE, ACTION_PATH,
+        System.currentTimeMillis(), REPLAY_USER, null);
+      final DetachedTransaction tx = DetachedTransaction.synthetic(agent.getConfiguration(), action,
+        "purge journal replay");
+      try {
+        final ReplicationResult result = transport.purge(tx, tx, new PurgePayload(urls, PurgeLane.NORMAL));
+        if (result.isSuccess()) {
+          LOG.info("Sent {} purges recovered from the purge journal through {}", recovered.size(), agentId);
+        } else {
+          LOG.warn("Could not send {} purges recovered from the purge journal through {}: {}", recovered.size(),
+            agentId, result.getMessage());
+        }
+        if (JournalledPurge.isDone(result)) {
+          acknowledge(recovered);
+        }
+      } catch (ReplicationException | RuntimeException e) {
+        LOG.warn("Could not send {} purges recovered from the purge journal through {}", recovered.size(),
+          agentId, e);
+      }
+    }
+  }
+
+  private void acknowledge(final List<PurgeJournalEntry> recovered) {
+    for (PurgeJournalEntry entry : recovered) {
+      try {
+        purgeJournal.acknowledge(entry.getId(), true);
+      } catch (JournalException e) {
+        LOG.warn("Could not acknowledge recovered purge {} in the purge journal", entry.getId(), e);
+      }
+    }
+  }
+}
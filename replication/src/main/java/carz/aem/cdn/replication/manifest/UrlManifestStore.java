@@ -0,0 +1,40 @@
+package carz.aem.cdn.replication.manifest;
+
+import carz.aem.cdn.replication.url.UrlSet;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Local store of the URLs purged at the last successful activation of every
+ * path, per replication agent. Content builders purge exactly these URLs
+ * when the path is deactivated or deleted, since its page can no longer be
+ * resolved or mapped by then.
+ */
+@ProviderType
+public interface UrlManifestStore {
+
+  /**
+   * @param agentId id of the replication agent
+   * @param path    replicated path
+   * @return the URLs purged at the last activation of the path, or null if
+   * none are known
+   */
+  public UrlSet get(String agentId, String path);
+
+  /**
+   * Record the URLs of a path after the CDN accepted the purge of its
+   * activation.
+   *
+   * @param agentId id of the replication agent
+   * @param path    replicated path
+   * @param urls    purged URLs of the path
+   */
+  public void record(String agentId, String path, UrlSet urls);
+
+  /**
+   * Forget the URLs of a path after the purge of its deletion.
+   *
+   * @param agentId id of the replication agent
+   * @param path    replicated path
+   */
+  public void remove(String agentId, String path);
+}
@@ -0,0 +1,348 @@
+package carz.aem.cdn.replication.manifest;
+
+import carz.aem.cdn.replication.fingerprint.ContentFingerprint;
+import carz.aem.cdn.replication.url.UrlSet;
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * URL manifest store appending every manifest to a log file in the bundle
+ * data area, as the 64 bit key of agent and path, the length and checksum
+ * of the manifest and its front coded URLs. Only the key and file offset of
+ * each manifest are held in memory, so a lookup is one read from the file.
+ *
+ * The store keeps the configured number of manifests; recording another
+ * one forgets the path activated least recently, whose deletion is then
+ * purged by resolving its path as before. Replaced, removed and forgotten
+ * manifests stay in the log until it is compacted, every compaction
+ * interval once they take up more than half of it. A record torn by a crash
+ * ends the log when it is read again on activation.
+ */
+@Component(service = UrlManifestStore.class,
+  immediate = true)
+@Designate(ocd = UrlManifestStoreImpl.Config.class)
+public class UrlManifestStoreImpl implements UrlManifestStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UrlManifestStoreImpl.class);
+
+  private static final String DATA_DIRECTORY = "url-manifests";
+  private static final String STORE_FILE = "manifests.log";
+  private static final int MAGIC = 0x43554d31;
+  /** Key, length and checksum of a record */
+  private static final int RECORD_HEADER_SIZE = 8 + 4 + 4;
+  private static final int REMOVED = -1;
+  private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+  @ObjectClassDefinition(name = "CDN URL manifest store config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Store directory",
+      description = "Directory of the manifest log. Defaults to the data area of the bundle.")
+    String store_directory() default "";
+
+    @AttributeDefinition(name = "Maximum entries",
+      description = "Number of paths whose URLs are kept. Each entry takes about 100 bytes of heap, the URLs "
+        + "are kept on disk.")
+    int max_entries() default 100000;
+
+    @AttributeDefinition(name = "Compaction interval",
+      description = "Seconds between two checks whether the manifest log needs to be compacted.")
+    long compaction_interval() default 300;
+
+  }
+
+  private static final class Entry {
+    private final long offset;
+    private final int length;
+
+    private Entry(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private long size() {
+      return RECORD_HEADER_SIZE + length;
+    }
+  }
+
+  /** Manifests by key, least recently recorded first */
+  private final Map<Long, Entry> entries = new LinkedHashMap<>();
+  private int maxEntries;
+  private long liveBytes;
+  private Path file;
+  private FileChannel channel;
+  private long end;
+  private ScheduledExecutorService compactor;
+
+  @Activate
+  protected void activate(final BundleContext bundleContext, final UrlManifestStoreImpl.Config config)
+    throws IOException {
+    maxEntries = Math.max(1, config.max_entries());
+    final Path directory = StringUtils.isNotBlank(config.store_directory())
+      ? Paths.get(config.store_directory())
+      : bundleContext.getDataFile(DATA_DIRECTORY).toPath();
+    Files.createDirectories(directory);
+    file = directory.resolve(STORE_FILE);
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    load();
+
+    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "cdn-url-manifest-store");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long interval = Math.max(1, config.compaction_interval());
+    compactor.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.SECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    compactor.shutdownNow();
+    synchronized (this) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("Could not close URL manifest store {}", file, e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized UrlSet get(String agentId, String path) {
+    final Entry entry = entries.get(ContentFingerprint.key(agentId, path));
+    if (entry == null) {
+      return null;
+    }
+    try {
+      final ByteBuffer record = read(entry.offset, entry.size());
+      record.position(8 + 4);
+      final int checksum = record.getInt();
+      final byte[] manifest = new byte[entry.length];
+      record.get(manifest);
+      if (checksum(manifest) != checksum) {
+        throw new IOException("Checksum mismatch at offset " + entry.offset);
+      }
+      return UrlSet.fromBytes(manifest);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn("Could not read the URL manifest of {} from {}", path, file, e);
+      return null;
+    }
+  }
+
+  @Override
+  public synchronized void record(String agentId, String path, UrlSet urls) {
+    final long key = ContentFingerprint.key(agentId, path);
+    final byte[] manifest = urls.toBytes();
+    try {
+      final long offset = append(key, manifest);
+      forget(entries.remove(key));
+      entries.put(key, new Entry(offset, manifest.length));
+      liveBytes += RECORD_HEADER_SIZE + manifest.length;
+      evict();
+    } catch (IOException e) {
+      LOG.warn("Could not record the URL manifest of {} in {}", path, file, e);
+    }
+  }
+
+  @Override
+  public synchronized void remove(String agentId, String path) {
+    final long key = ContentFingerprint.key(agentId, path);
+    final Entry entry = entries.remove(key);
+    if (entry == null) {
+      return;
+    }
+    forget(entry);
+    try {
+      append(key, null);
+    } catch (IOException e) {
+      LOG.warn("Could not remove the URL manifest of {} from {}", path, file, e);
+    }
+  }
+
+  /**
+   * Forget the least recently recorded manifests beyond the maximum. Only
+   * called after a manifest was recorded, so that reading the log evicts
+   * the same manifests as recording them did.
+   */
+  private void evict() {
+    while (entries.size() > maxEntries) {
+      final Iterator<Entry> eldest = entries.values().iterator();
+      forget(eldest.next());
+      eldest.remove();
+    }
+  }
+
+  private void forget(final Entry entry) {
+    if (entry != null) {
+      liveBytes -= entry.size();
+    }
+  }
+
+  /**
+   * @param manifest front coded URLs, null to record the removal of the key
+   * @return offset of the record
+   */
+  private long append(final long key, final byte[] manifest) throws IOException {
+    final int length = manifest != null ? manifest.length : 0;
+    final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+    record.putLong(key);
+    record.putInt(manifest != null ? length : REMOVED);
+    record.putInt(manifest != null ? checksum(manifest) : 0);
+    if (manifest != null) {
+      record.put(manifest);
+    }
+    record.flip();
+    final long offset = end;
+    write(channel, record, offset);
+    end += RECORD_HEADER_SIZE + length;
+    return offset;
+  }
+
+  /**
+   * Read the log from the start, stopping at the first incomplete or
+   * corrupt record.
+   */
+  private void load() throws IOException {
+    if (channel.size() < 4 || read(0, 4).getInt() != MAGIC) {
+      if (channel.size() > 0) {
+        LOG.warn("Ignoring URL manifest store {} of an unknown format", file);
+      }
+      channel.truncate(0);
+      final ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+      magic.flip();
+      write(channel, magic, 0);
+      end = 4;
+      return;
+    }
+
+    final long size = channel.size();
+    long offset = 4;
+    while (offset + RECORD_HEADER_SIZE <= size) {
+      final ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+      final long key = header.getLong();
+      final int length = header.getInt();
+      final int checksum = header.getInt();
+      if (length == REMOVED) {
+        forget(entries.remove(key));
+        offset += RECORD_HEADER_SIZE;
+        continue;
+      }
+      if (length < 0 || offset + RECORD_HEADER_SIZE + length > size) {
+        break;
+      }
+      final ByteBuffer manifest = read(offset + RECORD_HEADER_SIZE, length);
+      if (checksum(manifest.array()) != checksum) {
+        break;
+      }
+      forget(entries.remove(key));
+      entries.put(key, new Entry(offset, length));
+      liveBytes += RECORD_HEADER_SIZE + length;
+      evict();
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    if (offset < size) {
+      LOG.warn("Dropping {} bytes of incomplete records at the end of URL manifest store {}", size - offset, file);
+      channel.truncate(offset);
+    }
+    end = offset;
+    LOG.info("Loaded {} URL manifests from {}", entries.size(), file);
+  }
+
+  /**
+   * Rewrite the log with the current manifests only, least recently
+   * recorded first, if the others take up more than half of it.
+   */
+  private synchronized void compact() {
+    if (end < MIN_COMPACTION_SIZE || end - liveBytes < liveBytes) {
+      return;
+    }
+    final long before = end;
+    final Path temp = file.resolveSibling(STORE_FILE + ".tmp");
+    final Map<Long, Entry> compacted = new LinkedHashMap<>();
+    try {
+      try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+        final ByteBuffer magic = ByteBuffer.allocate(4).putInt(MAGIC);
+        magic.flip();
+        write(out, magic, 0);
+        long offset = 4;
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+          write(out, read(entry.getValue().offset, entry.getValue().size()), offset);
+          compacted.put(entry.getKey(), new Entry(offset, entry.getValue().length));
+          offset += entry.getValue().size();
+        }
+        out.force(false);
+        end = offset;
+      }
+      channel.close();
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      entries.clear();
+      entries.putAll(compacted);
+      LOG.info("Compacted URL manifest store {} from {} to {} bytes", file, before, end);
+    } catch (IOException e) {
+      end = before;
+      LOG.warn("Could not compact URL manifest store {}", file, e);
+    } finally {
+      if (!channel.isOpen()) {
+        reopen();
+      }
+    }
+  }
+
+  private void reopen() {
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      end = channel.size();
+    } catch (IOException e) {
+      LOG.error("Could not open URL manifest store {} again", file, e);
+    }
+  }
+
+  private ByteBuffer read(final long offset, final long length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of URL manifest store at offset " + (offset + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void write(final FileChannel channel, final ByteBuffer buffer, final long offset)
+    throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, offset + buffer.position());
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,428 @@
+package carz.aem.cdn.replication.payload;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.fingerprint.ContentFingerprint;
+import carz.aem.cdn.replication.url.UrlSet;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replication content exchanged between the CDN content builders and
+ * transport handlers: the URLs to purge and the lane the purge is
+ * dispatched in, plus the cache tags and CP codes to purge as a whole, and
+ * the content fingerprint of the replicated path if it has one. Payloads
+ * of actions replicating several paths carry the fingerprint of each path
+ * instead. Payloads of activations also carry the URL manifest of each
+ * path, serialized as the indexes of its URLs in the sorted URLs of the
+ * payload.
+ *
+ * The payload is serialized as a JSON object. Plain JSON arrays of URLs,
+ * written by earlier versions and possibly still queued, are read as
+ * payloads in the {@link PurgeLane#NORMAL} lane. The URLs are held as a
+ * {@link UrlSet} and streamed in and out, so large purges never exist as
+ * one JSON string.
+ */
+public final class PurgePayload {
+
+  private static final String KEY_OBJECTS = "objects";
+  private static final String KEY_LANE = "lane";
+  private static final String KEY_TAGS = "tags";
+  private static final String KEY_CP_CODES = "cpcodes";
+  private static final String KEY_FINGERPRINT = "fingerprint";
+  private static final String KEY_FINGERPRINTS = "fingerprints";
+  private static final String KEY_MANIFESTS = "manifests";
+
+  private final UrlSet urls;
+  private final List<String> tags;
+  private final List<String> cpCodes;
+  private final PurgeLane lane;
+  private final long fingerprint;
+  private final Map<String, Long> fingerprints;
+  private final Map<String, UrlSet> manifests;
+
+  public PurgePayload(Collection<String> urls, PurgeLane lane) {
+    this(urls, Collections.<String>emptyList(), Collections.<String>emptyList(), lane);
+  }
+
+  public PurgePayload(Collection<String> urls, Collection<String> tags, Collection<String> cpCodes,
+                      PurgeLane lane) {
+    this(urls, tags, cpCodes, lane, ContentFingerprint.NONE);
+  }
+
+  public PurgePayload(Collection<String> urls, Collection<String> tags, Collection<String> cpCodes,
+                      PurgeLane lane, long fingerprint) {
+    this(urls, tags, cpCodes, lane, fingerprint, Collections.<String, Long>emptyMap());
+  }
+
+  /**
+   * @param fingerprints content fingerprints by replicated path, for
+   *                     actions replicating several paths
+   */
+  public PurgePayload(Collection<String> urls, Collection<String> tags, Collection<String> cpCodes,
+                      PurgeLane lane, Map<String, Long> fingerprints) {
+    this(urls, tags, cpCodes, lane, ContentFingerprint.NONE, fingerprints);
+  }
+
+  private PurgePayload(Collection<String> urls, Collection<String> tags, Collection<String> cpCodes,
+                       PurgeLane lane, long fingerprint, Map<String, Long> fingerprints) {
+    this(UrlSet.of(urls), tags, cpCodes, lane, fingerprint, fingerprints, Collections.<String, UrlSet>emptyMap());
+  }
+
+  private PurgePayload(UrlSet urls, Collection<String> tags, Collection<String> cpCodes, PurgeLane lane,
+                       long fingerprint, Map<String, Long> fingerprints, Map<String, UrlSet> manifests) {
+    this.urls = urls;
+    this.tags = Collections.unmodifiableList(new ArrayList<>(tags));
+    this.cpCodes = Collections.unmodifiableList(new ArrayList<>(cpCodes));
+    this.lane = lane != null ? lane : PurgeLane.NORMAL;
+    this.fingerprint = fingerprint;
+    this.fingerprints = Collections.unmodifiableMap(new LinkedHashMap<>(fingerprints));
+    this.manifests = Collections.unmodifiableMap(new LinkedHashMap<>(manifests));
+  }
+
+  /**
+   * @param manifests URLs of each replicated path, all of them URLs of this
+   *                  payload
+   * @return a copy of this payload with the URL manifests
+   */
+  public PurgePayload withManifests(Map<String, UrlSet> manifests) {
+    return new PurgePayload(urls, tags, cpCodes, lane, fingerprint, fingerprints, manifests);
+  }
+
+  /**
+   * @return the URLs, deduplicated and in sorted order
+   */
+  public UrlSet getUrls() {
+    return urls;
+  }
+
+  /**
+   * @return cache tags to purge
+   */
+  public List<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * @return CP codes to purge
+   */
+  public List<String> getCpCodes() {
+    return cpCodes;
+  }
+
+  /**
+   * @return true if there are neither URLs, cache tags nor CP codes to purge
+   */
+  public boolean isEmpty() {
+    return urls.isEmpty() && tags.isEmpty() && cpCodes.isEmpty();
+  }
+
+  public PurgeLane getLane() {
+    return lane;
+  }
+
+  /**
+   * @return the content fingerprint of the replicated path, or
+   * {@link ContentFingerprint#NONE}
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return the content fingerprints by replicated path of an action
+   * replicating several paths, empty otherwise
+   */
+  public Map<String, Long> getFingerprints() {
+    return fingerprints;
+  }
+
+  /**
+   * @return the URLs of each replicated path of an activation, to purge
+   * when the path is deactivated or deleted; empty if not recorded
+   */
+  public Map<String, UrlSet> getManifests() {
+    return manifests;
+  }
+
+  /**
+   * @param writer writer to stream the serialized payload to
+   * @throws IOException if the writer fails
+   */
+  public void writeJson(Writer writer) throws IOException {
+    writer.write('{');
+    writer.write(JSONObject.quote(KEY_LANE));
+    writer.write(':');
+    writer.write(JSONObject.quote(lane.name().toLowerCase()));
+    writer.write(',');
+    writer.write(JSONObject.quote(KEY_OBJECTS));
+    writer.write(':');
+    urls.writeJson(writer);
+    writeStrings(writer, KEY_TAGS, tags);
+    writeStrings(writer, KEY_CP_CODES, cpCodes);
+    if (fingerprint != ContentFingerprint.NONE) {
+      writer.write(',');
+      writer.write(JSONObject.quote(KEY_FINGERPRINT));
+      writer.write(':');
+      writer.write(JSONObject.quote(Long.toHexString(fingerprint)));
+    }
+    if (!fingerprints.isEmpty()) {
+      writer.write(',');
+      writer.write(JSONObject.quote(KEY_FINGERPRINTS));
+      writer.write(":{");
+      boolean first = true;
+      for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+        if (!first) {
+          writer.write(',');
+        }
+        first = false;
+        writer.write(JSONObject.quote(entry.getKey()));
+        writer.write(':');
+        writer.write(JSONObject.quote(Long.toHexString(entry.getValue())));
+      }
+      writer.write('}');
+    }
+    writeManifests(writer);
+    writer.write('}');
+  }
+
+  private void writeManifests(Writer writer) throws IOException {
+    if (manifests.isEmpty()) {
+      return;
+    }
+    final Map<String, Integer> indexes = new HashMap<>(urls.size() * 2);
+    for (String url : urls) {
+      indexes.put(url, indexes.size());
+    }
+    writer.write(',');
+    writer.write(JSONObject.quote(KEY_MANIFESTS));
+    writer.write(":{");
+    boolean first = true;
+    for (Map.Entry<String, UrlSet> entry : manifests.entrySet()) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writer.write(JSONObject.quote(entry.getKey()));
+      writer.write(":[");
+      boolean firstUrl = true;
+      for (String url : entry.getValue()) {
+        final Integer index = indexes.get(url);
+        if (index != null) {
+          if (!firstUrl) {
+            writer.write(',');
+          }
+          firstUrl = false;
+          writer.write(Integer.toString(index));
+        }
+      }
+      writer.write(']');
+    }
+    writer.write('}');
+  }
+
+  public String toJson() {
+    final StringWriter writer = new StringWriter();
+    try {
+      writeJson(writer);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * @param content serialized payload
+   * @return the payload, or null if the content is blank
+   * @throws JSONException if the content is not a valid payload
+   */
+  public static PurgePayload parse(String content) throws JSONException {
+    return parse(new StringReader(content != null ? content : ""));
+  }
+
+  /**
+   * Read a payload without buffering its content.
+   *
+   * @param reader serialized payload
+   * @return the payload, or null if the content is blank
+   * @throws JSONException if the content is not a valid payload
+   */
+  public static PurgePayload parse(Reader reader) throws JSONException {
+    final JSONTokener tokener = new JSONTokener(reader);
+    switch (tokener.nextClean()) {
+      case 0:
+        return null;
+      case '[':
+        return new PurgePayload(readUrls(tokener), PurgeLane.NORMAL);
+      case '{':
+        break;
+      default:
+        throw tokener.syntaxError("A purge payload must begin with '{' or '['");
+    }
+
+    UrlSet urls = UrlSet.empty();
+    List<String> tags = Collections.emptyList();
+    List<String> cpCodes = Collections.emptyList();
+    PurgeLane lane = PurgeLane.NORMAL;
+    long fingerprint = ContentFingerprint.NONE;
+    Map<String, Long> fingerprints = Collections.emptyMap();
+    Object manifests = null;
+    if (tokener.nextClean() == '}') {
+      return new PurgePayload(urls, lane);
+    }
+    tokener.back();
+    while (true) {
+      final String key = tokener.nextValue().toString();
+      if (tokener.nextClean() != ':') {
+        throw tokener.syntaxError("Expected a ':' after a key");
+      }
+      if (KEY_OBJECTS.equals(key)) {
+        if (tokener.nextClean() == '[') {
+          urls = readUrls(tokener);
+        } else {
+          tokener.back();
+          tokener.nextValue();
+        }
+      } else if (KEY_TAGS.equals(key)) {
+        tags = readStrings(tokener.nextValue());
+      } else if (KEY_CP_CODES.equals(key)) {
+        cpCodes = readStrings(tokener.nextValue());
+      } else if (KEY_FINGERPRINT.equals(key)) {
+        fingerprint = parseFingerprint(String.valueOf(tokener.nextValue()));
+      } else if (KEY_FINGERPRINTS.equals(key)) {
+        fingerprints = readFingerprints(tokener.nextValue());
+      } else if (KEY_MANIFESTS.equals(key)) {
+        manifests = tokener.nextValue();
+      } else if (KEY_LANE.equals(key)) {
+        lane = PurgeLane.fromString(String.valueOf(tokener.nextValue()), PurgeLane.NORMAL);
+      } else {
+        tokener.nextValue();
+      }
+      switch (tokener.nextClean()) {
+        case ',':
+          break;
+        case '}':
+          return new PurgePayload(urls, tags, cpCodes, lane, fingerprint, fingerprints,
+            readManifests(manifests, urls));
+        default:
+          throw tokener.syntaxError("Expected a ',' or '}'");
+      }
+    }
+  }
+
+  private static long parseFingerprint(String value) {
+    try {
+      return Long.parseUnsignedLong(value, 16);
+    } catch (NumberFormatException e) {
+      return ContentFingerprint.NONE;
+    }
+  }
+
+  private static Map<String, Long> readFingerprints(Object value) throws JSONException {
+    final Map<String, Long> fingerprints = new LinkedHashMap<>();
+    if (value instanceof JSONObject) {
+      final JSONObject object = (JSONObject) value;
+      final Iterator<?> keys = object.keys();
+      while (keys.hasNext()) {
+        final String path = String.valueOf(keys.next());
+        final long fingerprint = parseFingerprint(object.getString(path));
+        if (fingerprint != ContentFingerprint.NONE) {
+          fingerprints.put(path, fingerprint);
+        }
+      }
+    }
+    return fingerprints;
+  }
+
+  /**
+   * Resolve the URL indexes of the manifests once all URLs are read, as
+   * the keys of the payload may come in any order.
+   */
+  private static Map<String, UrlSet> readManifests(Object value, UrlSet urls) throws JSONException {
+    if (!(value instanceof JSONObject)) {
+      return Collections.emptyMap();
+    }
+    final List<String> urlList = new ArrayList<>(urls);
+    final Map<String, UrlSet> manifests = new LinkedHashMap<>();
+    final JSONObject object = (JSONObject) value;
+    final Iterator<?> keys = object.keys();
+    while (keys.hasNext()) {
+      final String path = String.valueOf(keys.next());
+      final JSONArray indexes = object.optJSONArray(path);
+      if (indexes == null) {
+        continue;
+      }
+      final UrlSet.Builder manifest = UrlSet.builder();
+      for (int i = 0; i < indexes.length(); i++) {
+        final int index = indexes.getInt(i);
+        if (index >= 0 && index < urlList.size()) {
+          manifest.add(urlList.get(index));
+        }
+      }
+      manifests.put(path, manifest.build());
+    }
+    return manifests;
+  }
+
+  private static void writeStrings(Writer writer, String key, List<String> values) throws IOException {
+    if (values.isEmpty()) {
+      return;
+    }
+    writer.write(',');
+    writer.write(JSONObject.quote(key));
+    writer.write(':');
+    writer.write(new JSONArray(values).toString());
+  }
+
+  private static List<String> readStrings(Object value) throws JSONException {
+    final List<String> strings = new ArrayList<>();
+    if (value instanceof JSONArray) {
+      final JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        strings.add(array.getString(i));
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * Read the strings of a JSON array whose '[' has been consumed.
+   */
+  private static UrlSet readUrls(JSONTokener tokener) throws JSONException {
+    final UrlSet.Builder builder = UrlSet.builder();
+    if (tokener.nextClean() == ']') {
+      return builder.build();
+    }
+    tokener.back();
+    while (true) {
+      final char quote = tokener.nextClean();
+      if (quote != '"' && quote != '\'') {
+        throw tokener.syntaxError("Expected a URL string");
+      }
+      builder.add(tokener.nextString(quote));
+      switch (tokener.nextClean()) {
+        case ',':
+          break;
+        case ']':
+          return builder.build();
+        default:
+          throw tokener.syntaxError("Expected a ',' or ']'");
+      }
+    }
+  }
+}
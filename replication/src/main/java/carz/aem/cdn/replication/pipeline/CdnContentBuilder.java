@@ -0,0 +1,25 @@
+package carz.aem.cdn.replication.pipeline;
+
+import com.day.cq.replication.ContentBuilder;
+import com.day.cq.replication.ReplicationAction;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * A content builder of a CDN purge agent, registered under this interface
+ * as well, so that the agents' actions can be filtered before they are
+ * queued and purges can be built without an agent queue.
+ */
+@ProviderType
+public interface CdnContentBuilder extends ContentBuilder {
+
+  /**
+   * @return true if paths no flush rule matches are purged as well
+   */
+  public boolean isFlushWithoutFlushRules();
+
+  /**
+   * @param action the replication action, with the config of the agent
+   * @return the settings the content builder purges the action's path with
+   */
+  public PurgeProfile createProfile(ReplicationAction action);
+}
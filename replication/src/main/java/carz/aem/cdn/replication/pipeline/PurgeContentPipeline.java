@@ -0,0 +1,83 @@
+package carz.aem.cdn.replication.pipeline;
+
+import carz.aem.cdn.replication.payload.PurgePayload;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationContent;
+import com.day.cq.replication.ReplicationContentFactory;
+import com.day.cq.replication.ReplicationException;
+import org.osgi.annotation.versioning.ProviderType;
+
+import javax.jcr.Session;
+import java.util.Map;
+
+/**
+ * Builds the replication content of the CDN content builders: the URLs to
+ * purge for a replicated path, in the format of the CDN given by the
+ * profile.
+ */
+@ProviderType
+public interface PurgeContentPipeline {
+
+  /**
+   * Content builder parameter to purge the path even if its content did not
+   * change since its last purge.
+   */
+  public static final String PARAMETER_FORCE_PURGE = "cdn.forcePurge";
+
+  /**
+   * @param session session of the replication
+   * @param action  the replication action
+   * @param factory factory to create the replication content
+   * @param profile settings of the CDN content builder
+   * @return the replication content, or VOID if nothing is to be purged
+   * @throws ReplicationException if the content cannot be built
+   */
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   PurgeProfile profile) throws ReplicationException;
+
+  /**
+   * @param session    session of the replication
+   * @param action     the replication action
+   * @param factory    factory to create the replication content
+   * @param profile    settings of the CDN content builder
+   * @param parameters parameters passed to the content builder, may be null
+   * @return the replication content, or VOID if nothing is to be purged
+   * @throws ReplicationException if the content cannot be built
+   */
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   PurgeProfile profile, Map<String, Object> parameters)
+    throws ReplicationException;
+
+  /**
+   * Build one replication content for all paths of the action. Every path
+   * runs through the pipeline with the profile the content builder creates
+   * for it, and the URLs of all paths are purged together.
+   *
+   * @param session        session of the replication
+   * @param action         the replication action, with one or more paths
+   * @param factory        factory to create the replication content
+   * @param contentBuilder the CDN content builder creating the profile of
+   *                       each path
+   * @param parameters     parameters passed to the content builder, may be
+   *                       null
+   * @return the replication content, or VOID if nothing is to be purged
+   * @throws ReplicationException if the content cannot be built
+   */
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   CdnContentBuilder contentBuilder, Map<String, Object> parameters)
+    throws ReplicationException;
+
+  /**
+   * Run the pipeline without writing the replication content, for purges
+   * sent without an agent queue.
+   *
+   * @param session    session of the replication
+   * @param action     the replication action
+   * @param profile    settings of the CDN content builder
+   * @param parameters parameters passed to the content builder, may be null
+   * @return the purge payload, or null if nothing is to be purged
+   * @throws ReplicationException if the payload cannot be built
+   */
+  public PurgePayload build(Session session, ReplicationAction action, PurgeProfile profile,
+                            Map<String, Object> parameters) throws ReplicationException;
+}
@@ -0,0 +1,542 @@
+package carz.aem.cdn.replication.pipeline;
+
+import carz.aem.cdn.replication.cluster.PurgeCoordinator;
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.expansion.GlobTarget;
+import carz.aem.cdn.replication.expansion.WildcardExpander;
+import carz.aem.cdn.replication.expansion.WildcardExpansion;
+import carz.aem.cdn.replication.fingerprint.ContentFingerprint;
+import carz.aem.cdn.replication.fingerprint.FingerprintStore;
+import carz.aem.cdn.replication.manifest.UrlManifestStore;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.resolution.ResolutionContext;
+import carz.aem.cdn.replication.resolution.ResolutionContextCache;
+import carz.aem.cdn.replication.service.CDNFlushRules;
+import carz.aem.cdn.replication.service.PurgePriorityRules;
+import carz.aem.cdn.replication.url.PurgeUrlBuilder;
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationContent;
+import com.day.cq.replication.ReplicationContentFactory;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.wcm.api.NameConstants;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Session;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The purge pipeline shared by the CDN content builders:
+ * <ol>
+ * <li>filter: drop blank paths and paths purged by another publish instance</li>
+ * <li>fingerprint: drop activations whose content did not change since the
+ * last successful purge of the agent, unless the purge is forced</li>
+ * <li>expand, resolve and classify, in parallel: flush rule targets, page
+ * lookup and purge lane of the path</li>
+ * <li>decorate: the URLs of the path and its targets, with wildcard targets
+ * expanded into pages if the profile asks for it</li>
+ * <li>extensions: the {@link PurgeStage} services</li>
+ * <li>dedupe: collect the URLs into a compact, sorted {@link UrlSet}</li>
+ * <li>serialize: write the purge payload</li>
+ * </ol>
+ * Deactivated and deleted paths with a URL manifest of their last
+ * activation skip the lookups, decorate, extensions and dedupe stages and
+ * purge the URLs of the manifest instead, since their page can no longer
+ * be resolved. Activations carry the URLs of their path in the payload, to
+ * be recorded as its manifest once the purge succeeded.
+ *
+ * Parallel stages run on a bounded executor; when it is saturated they run
+ * on the replicating thread.
+ */
+@Component(service = PurgeContentPipeline.class,
+  immediate = true)
+@Designate(ocd = PurgeContentPipelineImpl.Config.class)
+public class PurgeContentPipelineImpl implements PurgeContentPipeline {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeContentPipelineImpl.class);
+
+  private static final String AUTHOR_RUN_MODE = "author";
+
+  @ObjectClassDefinition(name = "CDN purge pipeline config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Threads", description = "Threads running parallel pipeline stages.")
+    int threads() default 4;
+
+    @AttributeDefinition(name = "Queue size",
+      description = "Stages waiting for a thread before they run on the replicating thread.")
+    int queue_size() default 64;
+
+    @AttributeDefinition(name = "Skip unchanged content",
+      description = "Skip the purge of an activation whose content fingerprint did not change since its last "
+        + "successful purge.")
+    boolean skip_unchanged() default true;
+
+    @AttributeDefinition(name = "URL manifests",
+      description = "Record the purged URLs of every activation and purge exactly these URLs when the path is "
+        + "deactivated or deleted, without resolving it.")
+    boolean url_manifests() default true;
+
+    @AttributeDefinition(name = "Ignored properties",
+      description = "Properties of jcr:content that are not part of the content fingerprint.")
+    String[] fingerprint_ignored_properties() default {
+      NameConstants.PN_PAGE_LAST_REPLICATED,
+      NameConstants.PN_PAGE_LAST_REPLICATED_BY,
+      NameConstants.PN_PAGE_LAST_REPLICATION_ACTION
+    };
+
+  }
+
+  @Reference
+  private CDNFlushRules cdnFlushRules;
+
+  @Reference
+  private ResolutionContextCache resolutionContextCache;
+
+  @Reference
+  private SlingSettingsService slingSettingService;
+
+  @Reference
+  private PurgePriorityRules purgePriorityRules;
+
+  @Reference
+  private WildcardExpander wildcardExpander;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeCoordinator purgeCoordinator;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile FingerprintStore fingerprintStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile UrlManifestStore urlManifestStore;
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<PurgeStage> extensionStages = new CopyOnWriteArrayList<>();
+
+  private PurgePipeline pipeline;
+  private PurgePipeline payloadPipeline;
+  private PurgePipeline manifestPipeline;
+  private PurgePipeline manifestPayloadPipeline;
+  private ThreadPoolExecutor executor;
+  private boolean skipUnchanged;
+  private boolean urlManifests;
+  private Set<String> ignoredProperties;
+
+  @Activate
+  protected void activate(final PurgeContentPipelineImpl.Config config) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    final int threads = Math.max(1, config.threads());
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(Math.max(1, config.queue_size())),
+      runnable -> {
+        final Thread thread = new Thread(runnable, "cdn-purge-pipeline-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      },
+      new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    skipUnchanged = config.skip_unchanged();
+    urlManifests = config.url_manifests();
+    ignoredProperties = new HashSet<>(Arrays.asList(config.fingerprint_ignored_properties()));
+
+    final Map<String, PurgeStage> lookups = new LinkedHashMap<>();
+    lookups.put("expand", this::expand);
+    lookups.put("resolve", this::resolve);
+    lookups.put("classify", this::classify);
+    pipeline = PurgePipeline.builder()
+      .stage("filter", this::filter)
+      .stage("fingerprint", this::fingerprint)
+      .parallel(lookups)
+      .stage("decorate", this::decorate)
+      .stage("extensions", this::extend)
+      .stage("dedupe", this::dedupe)
+      .stage("serialize", this::serialize)
+      .build();
+    payloadPipeline = PurgePipeline.builder()
+      .stage("filter", this::filter)
+      .stage("fingerprint", this::fingerprint)
+      .parallel(lookups)
+      .stage("decorate", this::decorate)
+      .stage("extensions", this::extend)
+      .stage("dedupe", this::dedupe)
+      .build();
+    manifestPipeline = PurgePipeline.builder()
+      .stage("filter", this::filter)
+      .stage("fingerprint", this::fingerprint)
+      .stage("classify", this::classify)
+      .stage("manifest", this::manifest)
+      .stage("serialize", this::serialize)
+      .build();
+    manifestPayloadPipeline = PurgePipeline.builder()
+      .stage("filter", this::filter)
+      .stage("fingerprint", this::fingerprint)
+      .stage("classify", this::classify)
+      .stage("manifest", this::manifest)
+      .build();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    executor.shutdown();
+  }
+
+  @Override
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   PurgeProfile profile) throws ReplicationException {
+    return create(session, action, factory, profile, null);
+  }
+
+  @Override
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   PurgeProfile profile, Map<String, Object> parameters)
+    throws ReplicationException {
+    final PurgeContext context = new PurgeContext(session, action, factory, profile, isForced(parameters));
+    final PurgePipeline selected = findManifest(context) ? manifestPipeline : pipeline;
+    return run(selected, context) ? context.getContent() : ReplicationContent.VOID;
+  }
+
+  /**
+   * Actions with several paths run the pipeline without the serialize stage
+   * for each path, one after the other, and write the merged payload in the
+   * highest priority lane of its paths.
+   */
+  @Override
+  public ReplicationContent create(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                                   CdnContentBuilder contentBuilder, Map<String, Object> parameters)
+    throws ReplicationException {
+    final String[] paths = action.getPaths();
+    if (paths == null || paths.length <= 1) {
+      return create(session, action, factory, contentBuilder.createProfile(action), parameters);
+    }
+
+    final boolean forced = isForced(parameters);
+    final List<String> urls = new ArrayList<>();
+    final Set<String> tags = new LinkedHashSet<>();
+    final Set<String> cpCodes = new LinkedHashSet<>();
+    final Map<String, Long> fingerprints = new LinkedHashMap<>();
+    final Map<String, UrlSet> manifests = new LinkedHashMap<>();
+    PurgeLane lane = null;
+    String cdn = null;
+    for (String path : new LinkedHashSet<>(Arrays.asList(paths))) {
+      final ReplicationAction pathAction = new ReplicationAction(action.getType(), path, action.getTime(),
+        action.getUserId(), action.getRevision());
+      pathAction.setConfig(action.getConfig());
+      pathAction.setLog(action.getLog());
+      final PurgeProfile profile = contentBuilder.createProfile(pathAction);
+      final PurgeContext context = new PurgeContext(session, pathAction, factory, profile, forced);
+      final PurgePipeline selected = findManifest(context) ? manifestPayloadPipeline : payloadPipeline;
+      if (!run(selected, context)) {
+        continue;
+      }
+      urls.addAll(context.getUrlSet());
+      tags.addAll(context.getTags());
+      cpCodes.addAll(context.getCpCodes());
+      if (context.getFingerprint() != ContentFingerprint.NONE) {
+        fingerprints.put(path, context.getFingerprint());
+      }
+      if (isManifestRecorded(context)) {
+        manifests.put(path, context.getUrlSet());
+      }
+      if (lane == null || context.getLane().compareTo(lane) < 0) {
+        lane = context.getLane();
+      }
+      cdn = profile.getCdn();
+    }
+    if (cdn == null) {
+      return ReplicationContent.VOID;
+    }
+    final PurgePayload payload = new PurgePayload(urls, tags, cpCodes, lane, fingerprints)
+      .withManifests(manifests);
+    LOG.debug("Built one purge of {} URLs for {} paths", payload.getUrls().size(), paths.length);
+    return write(factory, cdn, payload);
+  }
+
+  @Override
+  public PurgePayload build(Session session, ReplicationAction action, PurgeProfile profile,
+                            Map<String, Object> parameters) throws ReplicationException {
+    final PurgeContext context = new PurgeContext(session, action, null, profile, isForced(parameters));
+    final PurgePipeline selected = findManifest(context) ? manifestPayloadPipeline : payloadPipeline;
+    return run(selected, context) ? payload(context) : null;
+  }
+
+  /**
+   * Run the pipeline for one purge and release the resolution context the
+   * resolve stage took for it.
+   */
+  private boolean run(final PurgePipeline selected, final PurgeContext context) throws ReplicationException {
+    try {
+      return selected.run(context, executor);
+    } finally {
+      final ResolutionContext resolutionContext = context.getResolutionContext();
+      if (resolutionContext != null) {
+        resolutionContext.close();
+      }
+    }
+  }
+
+  private static boolean isForced(Map<String, Object> parameters) {
+    final Object force = parameters != null ? parameters.get(PARAMETER_FORCE_PURGE) : null;
+    return force != null && Boolean.parseBoolean(force.toString());
+  }
+
+  private PurgePayload payload(final PurgeContext context) {
+    final PurgePayload payload = new PurgePayload(context.getUrlSet(), context.getTags(), context.getCpCodes(),
+      context.getLane(), context.getFingerprint());
+    return isManifestRecorded(context)
+      ? payload.withManifests(Collections.singletonMap(context.getPath(), context.getUrlSet()))
+      : payload;
+  }
+
+  /**
+   * Look up the URL manifest of a deactivated or deleted path.
+   *
+   * @return true if the path is purged by its manifest
+   */
+  private boolean findManifest(final PurgeContext context) {
+    final UrlManifestStore store = urlManifestStore;
+    final AgentConfig agentConfig = context.getAction().getConfig();
+    final ReplicationActionType type = context.getAction().getType();
+    if (store == null || !urlManifests || agentConfig == null || StringUtils.isBlank(context.getPath())
+      || (type != ReplicationActionType.DEACTIVATE && type != ReplicationActionType.DELETE)) {
+      return false;
+    }
+    final UrlSet manifest = store.get(agentConfig.getAgentId(), context.getPath());
+    if (manifest == null || manifest.isEmpty()) {
+      return false;
+    }
+    context.setManifest(manifest);
+    return true;
+  }
+
+  /**
+   * @return true if the URLs of the path are recorded as its manifest once
+   * the purge succeeded
+   */
+  private boolean isManifestRecorded(final PurgeContext context) {
+    return urlManifestStore != null && urlManifests && !context.getUrlSet().isEmpty()
+      && context.getAction().getType() == ReplicationActionType.ACTIVATE;
+  }
+
+  /**
+   * Leave the purge to the publish instance owning the path when purges
+   * are coordinated across the farm.
+   */
+  private boolean filter(final PurgeContext context) {
+    if (StringUtils.isBlank(context.getPath())) {
+      return false;
+    }
+    final PurgeCoordinator coordinator = purgeCoordinator;
+    if (coordinator != null && context.getAction().getType() != ReplicationActionType.TEST
+      && !coordinator.isOwner(context.getPath())) {
+      LOG.debug("Purge of {} is sent by another publish instance", context.getPath());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Skip activations whose content is unchanged since the last successful
+   * purge of the agent. Deactivated and deleted paths are forgotten, so that
+   * they are purged again when they come back.
+   */
+  private boolean fingerprint(final PurgeContext context) {
+    final FingerprintStore store = fingerprintStore;
+    final AgentConfig agentConfig = context.getAction().getConfig();
+    if (store == null || !skipUnchanged || agentConfig == null) {
+      return true;
+    }
+    final ReplicationActionType type = context.getAction().getType();
+    if (type == ReplicationActionType.DEACTIVATE || type == ReplicationActionType.DELETE) {
+      store.remove(agentConfig.getAgentId(), context.getPath());
+      return true;
+    } else if (type != ReplicationActionType.ACTIVATE) {
+      return true;
+    }
+
+    final long fingerprint;
+    try (ResolutionContext resolutionContext = resolutionContextCache.get(context.getSession(),
+      context.getAction())) {
+      if (resolutionContext == null) {
+        return true;
+      }
+      fingerprint = resolutionContext.lookup(resolver ->
+        ContentFingerprint.of(resolver.getResource(context.getPath()), ignoredProperties));
+    }
+    if (!context.isForced() && store.isUnchanged(agentConfig.getAgentId(), context.getPath(), fingerprint)) {
+      LOG.info("Content of {} unchanged since its last purge by {}, not purged", context.getPath(),
+        agentConfig.getAgentId());
+      return false;
+    }
+    context.setFingerprint(fingerprint);
+    return true;
+  }
+
+  private boolean expand(final PurgeContext context) {
+    final List<String> targetPaths = cdnFlushRules.getFlushRulesTargetPath(context.getPath());
+    context.setTargetPaths(targetPaths);
+    return !targetPaths.isEmpty() || context.getProfile().isFlushWithoutFlushRules();
+  }
+
+  private boolean resolve(final PurgeContext context) {
+    final ResolutionContext resolutionContext = resolutionContextCache.get(context.getSession(),
+      context.getAction());
+    if (resolutionContext == null) {
+      return false;
+    }
+    resolutionContext.isPage();
+    resolutionContext.getVanityUrl();
+    context.setResolutionContext(resolutionContext);
+    return true;
+  }
+
+  private boolean classify(final PurgeContext context) {
+    context.setLane(purgePriorityRules.getLane(context.getPath()));
+    return true;
+  }
+
+  /**
+   * Get the external URL if the resource is a page. Otherwise, use the
+   * provided resource path.
+   */
+  private boolean decorate(final PurgeContext context) {
+    final PurgeProfile profile = context.getProfile();
+    final ResolutionContext resolutionContext = context.getResolutionContext();
+    final PurgeUrlBuilder urlBuilder = new PurgeUrlBuilder(profile.getDomain(), profile.getPageExtension(),
+      slingSettingService.getRunModes().contains(AUTHOR_RUN_MODE), resolutionContext::map);
+    if (!profile.isExpandWildcards()) {
+      context.setUrls(urlBuilder.build(context.getPath(), resolutionContext.isPage(),
+        resolutionContext.getVanityUrl(), context.getTargetPaths()));
+      return true;
+    }
+
+    final List<String> urls = new ArrayList<>();
+    urlBuilder.addPathUrls(urls, context.getPath(), resolutionContext.isPage(), resolutionContext.getVanityUrl());
+    for (String targetPath : context.getTargetPaths()) {
+      if (GlobTarget.isGlob(targetPath)) {
+        expand(context, urlBuilder, urls, GlobTarget.parse(targetPath));
+      } else {
+        urlBuilder.addTargetUrls(urls, targetPath);
+      }
+    }
+    context.setUrls(urls);
+    return true;
+  }
+
+  /**
+   * Add the pages of a wildcard target, or its fallback cache tag or CP code
+   * if it matches too many pages.
+   */
+  private void expand(final PurgeContext context, final PurgeUrlBuilder urlBuilder, final List<String> urls,
+                      final GlobTarget target) {
+    final WildcardExpansion expansion = context.getResolutionContext()
+      .lookup(resolver -> wildcardExpander.expand(resolver, target));
+    if (expansion.isExpanded()) {
+      for (String page : expansion.getPages()) {
+        urlBuilder.addPageUrls(urls, page);
+      }
+    } else if (expansion.getTag() != null) {
+      context.getTags().add(expansion.getTag());
+    } else if (expansion.getCpCode() != null) {
+      context.getCpCodes().add(expansion.getCpCode());
+    } else {
+      LOG.warn("Wildcard target {} matches more than {} pages and has no fallback tag or CP code, not purged",
+        target.getTarget(), expansion.getMatches() - 1);
+    }
+  }
+
+  /**
+   * Get containing pages that includes the resource, or anything else the
+   * project specific stages add.
+   */
+  private boolean extend(final PurgeContext context) throws ReplicationException {
+    for (PurgeStage stage : extensionStages) {
+      if (!stage.process(context)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Purge the URLs of the last activation of the path, without flush rules,
+   * page lookup or mapping.
+   */
+  private boolean manifest(final PurgeContext context) {
+    context.setUrls(new ArrayList<>(context.getManifest()));
+    context.setUrlSet(context.getManifest());
+    LOG.debug("Purging the {} URLs of the last activation of {}", context.getManifest().size(),
+      context.getPath());
+    return true;
+  }
+
+  private boolean dedupe(final PurgeContext context) {
+    context.setUrlSet(UrlSet.of(context.getUrls()));
+    return true;
+  }
+
+  /**
+   * Create the replication content containing the purge payload
+   */
+  private boolean serialize(final PurgeContext context) throws ReplicationException {
+    context.setContent(write(context.getFactory(), context.getProfile().getCdn(), payload(context)));
+    return true;
+  }
+
+  private static ReplicationContent write(final ReplicationContentFactory factory, final String cdn,
+                                          final PurgePayload payload) throws ReplicationException {
+    Path tempFile;
+
+    try {
+      tempFile = Files.createTempFile(cdn + "_purge_agent", ".tmp");
+    } catch (IOException e) {
+      throw new ReplicationException("Could not create temporary file", e);
+    }
+
+    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+      payload.writeJson(writer);
+      writer.flush();
+      return factory.create("text/plain", tempFile.toFile(), true);
+    } catch (IOException e) {
+      throw new ReplicationException("Could not write to temporary file", e);
+    }
+  }
+}
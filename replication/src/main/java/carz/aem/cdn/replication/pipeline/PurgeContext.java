@@ -0,0 +1,198 @@
+package carz.aem.cdn.replication.pipeline;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.fingerprint.ContentFingerprint;
+import carz.aem.cdn.replication.resolution.ResolutionContext;
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationContent;
+import com.day.cq.replication.ReplicationContentFactory;
+
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of one purge passing through the {@link PurgePipeline}. Stages of
+ * the same parallel group must not write the same fields.
+ */
+public final class PurgeContext {
+
+  private final Session session;
+  private final ReplicationAction action;
+  private final ReplicationContentFactory factory;
+  private final PurgeProfile profile;
+  private final boolean forced;
+  private final Map<String, Long> stageNanos = Collections.synchronizedMap(new LinkedHashMap<>());
+  private volatile List<String> targetPaths = Collections.emptyList();
+  private volatile ResolutionContext resolutionContext;
+  private volatile List<String> urls = new ArrayList<>();
+  private volatile UrlSet urlSet = UrlSet.empty();
+  private volatile UrlSet manifest;
+  private final Set<String> tags = Collections.synchronizedSet(new LinkedHashSet<>());
+  private final Set<String> cpCodes = Collections.synchronizedSet(new LinkedHashSet<>());
+  private volatile PurgeLane lane = PurgeLane.NORMAL;
+  private volatile long fingerprint = ContentFingerprint.NONE;
+  private volatile ReplicationContent content = ReplicationContent.VOID;
+
+  public PurgeContext(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                      PurgeProfile profile) {
+    this(session, action, factory, profile, false);
+  }
+
+  public PurgeContext(Session session, ReplicationAction action, ReplicationContentFactory factory,
+                      PurgeProfile profile, boolean forced) {
+    this.session = session;
+    this.action = action;
+    this.factory = factory;
+    this.profile = profile;
+    this.forced = forced;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public ReplicationAction getAction() {
+    return action;
+  }
+
+  public String getPath() {
+    return action.getPath();
+  }
+
+  public ReplicationContentFactory getFactory() {
+    return factory;
+  }
+
+  public PurgeProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * @return true if the path is purged even if its content did not change
+   */
+  public boolean isForced() {
+    return forced;
+  }
+
+  /**
+   * @return the flush rule targets of the path
+   */
+  public List<String> getTargetPaths() {
+    return targetPaths;
+  }
+
+  public void setTargetPaths(List<String> targetPaths) {
+    this.targetPaths = targetPaths;
+  }
+
+  /**
+   * @return the repository lookups of the action, null before the resolve
+   * stage and closed once the pipeline run ends
+   */
+  public ResolutionContext getResolutionContext() {
+    return resolutionContext;
+  }
+
+  public void setResolutionContext(ResolutionContext resolutionContext) {
+    this.resolutionContext = resolutionContext;
+  }
+
+  /**
+   * @return the URLs to purge, modifiable by the stages
+   */
+  public List<String> getUrls() {
+    return urls;
+  }
+
+  public void setUrls(List<String> urls) {
+    this.urls = urls;
+  }
+
+  /**
+   * @return the deduplicated URLs, empty until the dedupe stage
+   */
+  public UrlSet getUrlSet() {
+    return urlSet;
+  }
+
+  public void setUrlSet(UrlSet urlSet) {
+    this.urlSet = urlSet;
+  }
+
+  /**
+   * @return the URLs of the last activation of a deactivated or deleted
+   * path, null if the path is purged by resolving it
+   */
+  public UrlSet getManifest() {
+    return manifest;
+  }
+
+  public void setManifest(UrlSet manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * @return cache tags to purge, modifiable by the stages
+   */
+  public Set<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * @return CP codes to purge, modifiable by the stages
+   */
+  public Set<String> getCpCodes() {
+    return cpCodes;
+  }
+
+  public PurgeLane getLane() {
+    return lane;
+  }
+
+  public void setLane(PurgeLane lane) {
+    this.lane = lane;
+  }
+
+  /**
+   * @return the content fingerprint of the path, {@link ContentFingerprint#NONE}
+   * before the fingerprint stage or if the path has none
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  public void setFingerprint(long fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * @return the replication content, VOID until the serialize stage
+   */
+  public ReplicationContent getContent() {
+    return content;
+  }
+
+  public void setContent(ReplicationContent content) {
+    this.content = content;
+  }
+
+  /**
+   * @return nanoseconds spent in each stage that has run, by stage name
+   */
+  public Map<String, Long> getStageNanos() {
+    synchronized (stageNanos) {
+      return new LinkedHashMap<>(stageNanos);
+    }
+  }
+
+  void recordStage(String stage, long nanos) {
+    stageNanos.put(stage, nanos);
+  }
+}
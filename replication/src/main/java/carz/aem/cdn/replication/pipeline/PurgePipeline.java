@@ -0,0 +1,148 @@
+package carz.aem.cdn.replication.pipeline;
+
+import com.day.cq.replication.ReplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequence of purge stages. Stages added together with
+ * {@link Builder#parallel(Map)} are independent of each other: the first
+ * runs on the calling thread, the others on the executor, and the pipeline
+ * continues once all of them have finished. The time spent in every stage
+ * is recorded in the {@link PurgeContext}.
+ */
+public final class PurgePipeline {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgePipeline.class);
+
+  private final List<Map<String, PurgeStage>> groups;
+
+  private PurgePipeline(List<Map<String, PurgeStage>> groups) {
+    this.groups = groups;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Run all stages until one drops the purge.
+   *
+   * @param context  the purge to build
+   * @param executor runs the additional stages of parallel groups
+   * @return true if all stages ran, false if a stage dropped the purge
+   * @throws ReplicationException if a stage failed
+   */
+  public boolean run(final PurgeContext context, final Executor executor) throws ReplicationException {
+    final long start = System.nanoTime();
+    try {
+      for (Map<String, PurgeStage> group : groups) {
+        if (!runGroup(group, context, executor)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Purge pipeline of {} took {} us, stages in us: {}", context.getPath(),
+          TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), toMicros(context.getStageNanos()));
+      }
+    }
+  }
+
+  private static boolean runGroup(Map<String, PurgeStage> group, PurgeContext context, Executor executor)
+    throws ReplicationException {
+    final List<Map.Entry<String, PurgeStage>> stages = new ArrayList<>(group.entrySet());
+    final List<CompletableFuture<Boolean>> others = new ArrayList<>(stages.size() - 1);
+    for (Map.Entry<String, PurgeStage> stage : stages.subList(1, stages.size())) {
+      final CompletableFuture<Boolean> future = new CompletableFuture<>();
+      executor.execute(() -> {
+        try {
+          future.complete(runStage(stage.getKey(), stage.getValue(), context));
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        }
+      });
+      others.add(future);
+    }
+
+    boolean proceed = runStage(stages.get(0).getKey(), stages.get(0).getValue(), context);
+    for (CompletableFuture<Boolean> future : others) {
+      try {
+        proceed &= future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ReplicationException("Interrupted while building purge", e);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof ReplicationException) {
+          throw (ReplicationException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new ReplicationException("Purge stage failed", (Exception) cause);
+      }
+    }
+    return proceed;
+  }
+
+  private static boolean runStage(String name, PurgeStage stage, PurgeContext context) throws ReplicationException {
+    final long start = System.nanoTime();
+    try {
+      return stage.process(context);
+    } finally {
+      context.recordStage(name, System.nanoTime() - start);
+    }
+  }
+
+  private static Map<String, Long> toMicros(Map<String, Long> nanos) {
+    final Map<String, Long> micros = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+      micros.put(entry.getKey(), TimeUnit.NANOSECONDS.toMicros(entry.getValue()));
+    }
+    return micros;
+  }
+
+  public static final class Builder {
+
+    private final List<Map<String, PurgeStage>> groups = new ArrayList<>();
+
+    private Builder() {
+    }
+
+    /**
+     * Add a stage running after all stages added before.
+     */
+    public Builder stage(String name, PurgeStage stage) {
+      groups.add(Collections.singletonMap(name, stage));
+      return this;
+    }
+
+    /**
+     * Add independent stages running at the same time, after all stages
+     * added before.
+     *
+     * @param stages stages by name
+     */
+    public Builder parallel(Map<String, PurgeStage> stages) {
+      if (!stages.isEmpty()) {
+        groups.add(Collections.unmodifiableMap(new LinkedHashMap<>(stages)));
+      }
+      return this;
+    }
+
+    public PurgePipeline build() {
+      return new PurgePipeline(new ArrayList<>(groups));
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package carz.aem.cdn.replication.pipeline;
+
+/**
+ * The settings of one CDN content builder for a purge.
+ */
+public final class PurgeProfile {
+
+  private final String cdn;
+  private final String domain;
+  private final String pageExtension;
+  private final boolean flushWithoutFlushRules;
+  private final boolean expandWildcards;
+
+  /**
+   * @param cdn                    name of the CDN, e.g. "akamai"
+   * @param domain                 domain prepended to the URLs
+   * @param pageExtension          extension appended to page URLs
+   * @param flushWithoutFlushRules whether to purge paths no flush rule matches
+   */
+  public PurgeProfile(String cdn, String domain, String pageExtension, boolean flushWithoutFlushRules) {
+    this(cdn, domain, pageExtension, flushWithoutFlushRules, false);
+  }
+
+  /**
+   * @param cdn                    name of the CDN, e.g. "akamai"
+   * @param domain                 domain prepended to the URLs
+   * @param pageExtension          extension appended to page URLs
+   * @param flushWithoutFlushRules whether to purge paths no flush rule matches
+   * @param expandWildcards        whether to expand wildcard flush rule
+   *                               targets into pages, for CDNs purging URLs
+   *                               literally
+   */
+  public PurgeProfile(String cdn, String domain, String pageExtension, boolean flushWithoutFlushRules,
+                      boolean expandWildcards) {
+    this.cdn = cdn;
+    this.domain = domain;
+    this.pageExtension = pageExtension;
+    this.flushWithoutFlushRules = flushWithoutFlushRules;
+    this.expandWildcards = expandWildcards;
+  }
+
+  public String getCdn() {
+    return cdn;
+  }
+
+  public String getDomain() {
+    return domain;
+  }
+
+  public String getPageExtension() {
+    return pageExtension;
+  }
+
+  public boolean isFlushWithoutFlushRules() {
+    return flushWithoutFlushRules;
+  }
+
+  public boolean isExpandWildcards() {
+    return expandWildcards;
+  }
+}
@@ -0,0 +1,23 @@
+package carz.aem.cdn.replication.pipeline;
+
+import com.day.cq.replication.ReplicationException;
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * One stage of the purge pipeline of the CDN content builders.
+ *
+ * Stages registered as OSGi services run for every purge after the built-in
+ * decoration stage, e.g. to add project specific URLs of pages including
+ * the replicated resource.
+ */
+@ConsumerType
+@FunctionalInterface
+public interface PurgeStage {
+
+  /**
+   * @param context the purge being built
+   * @return true to continue with the next stage, false to drop the purge
+   * @throws ReplicationException if the purge cannot be built
+   */
+  public boolean process(PurgeContext context) throws ReplicationException;
+}
@@ -0,0 +1,82 @@
+package carz.aem.cdn.replication.replay;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * One line of a recorded activation log:
+ * <pre>
+ * &lt;timestamp&gt; &lt;action type&gt; &lt;path&gt;
+ * </pre>
+ * Fields are separated by a tab or a comma, or by spaces if the line has
+ * neither. The timestamp is epoch milliseconds, an ISO-8601 instant or an
+ * ISO-8601 local date time in UTC. Blank lines and lines starting with #
+ * are ignored.
+ */
+public final class ActivationEvent {
+
+  private final long timestamp;
+  private final String type;
+  private final String path;
+
+  public ActivationEvent(long timestamp, String type, String path) {
+    this.timestamp = timestamp;
+    this.type = type;
+    this.path = path;
+  }
+
+  /**
+   * @return epoch milliseconds of the activation
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return replication action type, e.g. ACTIVATE, in upper case
+   */
+  public String getType() {
+    return type;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @param line line of the activation log
+   * @return the event, or null if the line is blank or a comment
+   * @throws IllegalArgumentException if the line is not a valid event
+   */
+  public static ActivationEvent parse(String line) {
+    final String trimmed = StringUtils.trimToNull(line);
+    if (trimmed == null || trimmed.startsWith("#")) {
+      return null;
+    }
+    final String separator = trimmed.indexOf('\t') >= 0 ? "\t" : trimmed.indexOf(',') >= 0 ? "," : " ";
+    final String[] fields = StringUtils.split(trimmed, separator, 3);
+    if (fields.length != 3 || StringUtils.isBlank(fields[2])) {
+      throw new IllegalArgumentException("Expected <timestamp> <action type> <path>: " + line);
+    }
+    return new ActivationEvent(parseTimestamp(fields[0].trim()), fields[1].trim().toUpperCase(), fields[2].trim());
+  }
+
+  private static long parseTimestamp(String value) {
+    if (StringUtils.isNumeric(value)) {
+      return Long.parseLong(value);
+    }
+    try {
+      return Instant.parse(value).toEpochMilli();
+    } catch (DateTimeParseException e) {
+      try {
+        return LocalDateTime.parse(value.replace(' ', 'T')).toInstant(ZoneOffset.UTC).toEpochMilli();
+      } catch (DateTimeParseException e1) {
+        throw new IllegalArgumentException("Invalid timestamp: " + value, e1);
+      }
+    }
+  }
+}
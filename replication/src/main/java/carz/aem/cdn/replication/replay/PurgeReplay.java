@@ -0,0 +1,350 @@
+package carz.aem.cdn.replication.replay;
+
+import carz.aem.cdn.replication.akamai.AkamaiContentBuilder;
+import carz.aem.cdn.replication.akamai.AkamaiTransportHandler;
+import carz.aem.cdn.replication.expansion.GlobTarget;
+import carz.aem.cdn.replication.service.CDNFlushRulesConfig;
+import carz.aem.cdn.replication.service.CDNFlushRulesConfigImpl;
+import carz.aem.cdn.replication.service.CDNFlushRulesImpl;
+import carz.aem.cdn.replication.url.PurgeUrlBuilder;
+import carz.aem.cdn.replication.url.UrlSet;
+import carz.aem.cdn.replication.verizon.VerizonContentBuilder;
+import carz.aem.cdn.replication.verizon.VerizonTransportHandler;
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Offline replay of a recorded activation log through the flush rules and
+ * the URL building of the CDN content builders, without an AEM instance.
+ * Prints a report of the purge calls, URLs and payload bytes the log would
+ * generate (see {@link PurgeWorkload}). The URLs of a purge are split into
+ * calls of at most the maximum body size, like the transport handlers do.
+ *
+ * The log is streamed, so its size is not limited by memory. The resource
+ * resolver is stubbed: paths are mapped with the given prefix mappings, a
+ * path is a page if it matches the page pattern, and pages have no vanity
+ * URL. Without a repository, wildcard flush rule targets cannot be expanded
+ * into their pages the way the Akamai content builder does; for Akamai they
+ * are counted separately instead of being purged as URLs.
+ *
+ * <pre>
+ * java -cp &lt;classpath&gt; carz.aem.cdn.replication.replay.PurgeReplay [options] &lt;log file|-&gt;
+ * </pre>
+ */
+public final class PurgeReplay {
+
+  private static final String USAGE = "Usage: PurgeReplay [options] <activation log|->\n"
+    + "  --cdn <akamai|verizon>       URL format and request body of the CDN (default akamai)\n"
+    + "  --domain <domain>            domain prepended to the URLs\n"
+    + "  --rules <file|directory>     flush rules: OSGi .config.xml files of CDNFlushRulesConfigImpl\n"
+    + "                               or text files with one rule per line, repeatable\n"
+    + "  --map <prefix>=<replacement> resource resolver mapping of a path prefix, repeatable\n"
+    + "  --page-pattern <regex>       paths treated as pages (default " + PurgeReplay.DEFAULT_PAGE_PATTERN + ")\n"
+    + "  --author                     add author links, as on an author instance\n"
+    + "  --flush-without-rules        purge paths without flush rules\n"
+    + "  --max-body-size <bytes>      maximum request body size, 0 for one request per purge\n"
+    + "                               (default " + AkamaiTransportHandler.MAX_BODY_SIZE_DEFAULT
+    + " for akamai, 0 for verizon)\n"
+    + "  --bucket <minutes>           width of the volume report buckets (default 60)\n"
+    + "  --top <n>                    number of flush rules to report (default 20)";
+
+  private static final String DEFAULT_PAGE_PATTERN = "/content/(?!dam/)[^.]*";
+  private static final String FLUSH_RULES_PROPERTY = "flush.rules";
+
+  private final String cdn;
+  private final PurgeUrlBuilder urlBuilder;
+  private final CDNFlushRulesImpl flushRules;
+  private final Pattern pagePattern;
+  private final boolean flushWithoutRules;
+  private final int maxBodySize;
+  private final PurgeWorkload workload;
+
+  PurgeReplay(String cdn, PurgeUrlBuilder urlBuilder, CDNFlushRulesImpl flushRules, Pattern pagePattern,
+              boolean flushWithoutRules, int maxBodySize, PurgeWorkload workload) {
+    this.cdn = cdn;
+    this.urlBuilder = urlBuilder;
+    this.flushRules = flushRules;
+    this.pagePattern = pagePattern;
+    this.flushWithoutRules = flushWithoutRules;
+    this.maxBodySize = maxBodySize;
+    this.workload = workload;
+  }
+
+  public static void main(String[] args) {
+    String cdn = "akamai";
+    String domain = "";
+    String pagePattern = DEFAULT_PAGE_PATTERN;
+    boolean author = false;
+    boolean flushWithoutRules = false;
+    long bucketMinutes = 60;
+    int top = 20;
+    Integer maxBodySize = null;
+    String log = null;
+    final List<CDNFlushRulesConfig> configs = new ArrayList<>();
+    final Map<String, String> mappings = new LinkedHashMap<>();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--cdn":
+            cdn = value(args, ++i).toLowerCase();
+            if (!"akamai".equals(cdn) && !"verizon".equals(cdn)) {
+              throw new IllegalArgumentException("Unknown CDN: " + cdn);
+            }
+            break;
+          case "--domain":
+            domain = value(args, ++i);
+            break;
+          case "--rules":
+            readFlushRules(new File(value(args, ++i)), configs);
+            break;
+          case "--map":
+            final String[] mapping = StringUtils.split(value(args, ++i), "=", 2);
+            mappings.put(mapping[0], mapping.length > 1 ? mapping[1] : "");
+            break;
+          case "--page-pattern":
+            pagePattern = value(args, ++i);
+            break;
+          case "--author":
+            author = true;
+            break;
+          case "--flush-without-rules":
+            flushWithoutRules = true;
+            break;
+          case "--max-body-size":
+            maxBodySize = Integer.parseInt(value(args, ++i));
+            break;
+          case "--bucket":
+            bucketMinutes = Long.parseLong(value(args, ++i));
+            break;
+          case "--top":
+            top = Integer.parseInt(value(args, ++i));
+            break;
+          default:
+            if (args[i].startsWith("--") || log != null) {
+              throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            log = args[i];
+        }
+      }
+      if (log == null) {
+        throw new IllegalArgumentException("No activation log");
+      }
+    } catch (IllegalArgumentException | IOException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+
+    final String pageExtension = "akamai".equals(cdn)
+      ? AkamaiContentBuilder.PAGE_EXTENSION : VerizonContentBuilder.PAGE_EXTENSION;
+    final PurgeWorkload workload = new PurgeWorkload(TimeUnit.MINUTES.toMillis(bucketMinutes));
+    final PurgeReplay replay = new PurgeReplay(cdn,
+      new PurgeUrlBuilder(domain, pageExtension, author, path -> map(mappings, path)),
+      new CDNFlushRulesImpl(configs), Pattern.compile(pagePattern), flushWithoutRules,
+      maxBodySize != null ? maxBodySize : "akamai".equals(cdn) ? AkamaiTransportHandler.MAX_BODY_SIZE_DEFAULT : 0,
+      workload);
+
+    try (BufferedReader reader = new BufferedReader("-".equals(log)
+      ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+      : Files.newBufferedReader(new File(log).toPath(), StandardCharsets.UTF_8))) {
+      replay.replay(reader);
+    } catch (IOException e) {
+      System.err.println("Could not read activation log: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    workload.writeReport(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)), top);
+  }
+
+  /**
+   * Replay all events of the log.
+   */
+  void replay(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final ActivationEvent event;
+      try {
+        event = ActivationEvent.parse(line);
+      } catch (IllegalArgumentException e) {
+        workload.recordMalformed();
+        continue;
+      }
+      if (event != null) {
+        replay(event);
+      }
+    }
+  }
+
+  /**
+   * Build the purge of one event the way the content builders do, and
+   * split it into calls the way the transport handlers do.
+   */
+  void replay(ActivationEvent event) {
+    workload.recordEvent(event);
+    if ("TEST".equals(event.getType())) {
+      workload.recordSkippedTest();
+      return;
+    }
+
+    final String path = event.getPath();
+    final Map<String, List<String>> targetsByRule = new LinkedHashMap<>();
+    flushRules.collectFlushRulesTargetPath(path,
+      (pattern, targetPath) -> targetsByRule.computeIfAbsent(pattern.pattern(), key -> new ArrayList<>())
+        .add(targetPath));
+    if (targetsByRule.isEmpty() && !flushWithoutRules) {
+      workload.recordSkippedWithoutRules();
+      return;
+    }
+
+    final List<String> urls = new ArrayList<>();
+    urlBuilder.addPathUrls(urls, path, pagePattern.matcher(path).matches(), null);
+    final boolean akamai = "akamai".equals(cdn);
+    for (Map.Entry<String, List<String>> rule : targetsByRule.entrySet()) {
+      int ruleUrls = 0;
+      int wildcards = 0;
+      for (String targetPath : rule.getValue()) {
+        if (akamai && GlobTarget.isGlob(targetPath)) {
+          wildcards++;
+        } else {
+          ruleUrls += urlBuilder.addTargetUrls(urls, targetPath);
+        }
+      }
+      workload.recordRule(rule.getKey(), rule.getValue().size(), wildcards, ruleUrls);
+    }
+    final int envelope = akamai
+      ? AkamaiTransportHandler.BODY_ENVELOPE_SIZE : VerizonTransportHandler.BODY_ENVELOPE_SIZE;
+    for (UrlSet part : UrlSet.of(urls).partition(maxBodySize > 0 ? Math.max(1, maxBodySize - envelope) : 0)) {
+      workload.recordPurge(event.getTimestamp(), part.size(), bodySize(part));
+    }
+  }
+
+  /**
+   * @return size in bytes of the request body the transport handler sends
+   */
+  private int bodySize(UrlSet urls) {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+      writer.write("akamai".equals(cdn) ? "{\"objects\":" : "{\"MediaPath\":");
+      urls.writeJson(writer);
+      writer.write("akamai".equals(cdn) ? "}" : ",\"MediaType\":\"14\"}");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return body.size();
+  }
+
+  private static String map(Map<String, String> mappings, String path) {
+    String prefix = null;
+    for (String candidate : mappings.keySet()) {
+      if ((path.equals(candidate) || path.startsWith(candidate + "/"))
+        && (prefix == null || candidate.length() > prefix.length())) {
+        prefix = candidate;
+      }
+    }
+    if (prefix == null) {
+      return path;
+    }
+    final String replacement = mappings.get(prefix);
+    final String rest = path.substring(prefix.length());
+    if (rest.isEmpty()) {
+      return replacement.isEmpty() ? "/" : replacement;
+    }
+    return StringUtils.removeEnd(replacement, "/") + rest;
+  }
+
+  private static String value(String[] args, int i) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+    }
+    return args[i];
+  }
+
+  /**
+   * Read every flush rules file as one factory config of
+   * {@link CDNFlushRulesConfigImpl}, in file name order for directories.
+   */
+  private static void readFlushRules(File file, List<CDNFlushRulesConfig> configs) throws IOException {
+    if (file.isDirectory()) {
+      final File[] files = file.listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File child : files) {
+          if (child.isFile()) {
+            readFlushRules(child, configs);
+          }
+        }
+      }
+      return;
+    }
+
+    final String[] rules;
+    if (file.getName().endsWith(".xml")) {
+      rules = readOsgiConfig(file);
+    } else {
+      final List<String> lines = new ArrayList<>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        if (StringUtils.isNotBlank(line) && !line.trim().startsWith("#")) {
+          lines.add(line.trim());
+        }
+      }
+      rules = lines.toArray(new String[0]);
+    }
+
+    final Map<Pattern, String[]> parsed;
+    try {
+      parsed = CDNFlushRulesConfigImpl.parseFlushRules(rules);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Invalid flush rules in " + file + ": " + e.getMessage(), e);
+    }
+    configs.add(() -> parsed);
+  }
+
+  /**
+   * @return the flush.rules values of a sling:OsgiConfig .config.xml file
+   */
+  private static String[] readOsgiConfig(File file) throws IOException {
+    final String value;
+    try {
+      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      final Document document = factory.newDocumentBuilder().parse(file);
+      value = document.getDocumentElement().getAttribute(FLUSH_RULES_PROPERTY);
+    } catch (Exception e) {
+      throw new IOException("Could not read OSGi config " + file, e);
+    }
+
+    /*
+     * Multi value properties are written as [value1,value2], with commas
+     * inside values escaped as \,
+     */
+    final String values = StringUtils.removeEnd(StringUtils.removeStart(value.trim(), "["), "]");
+    final List<String> rules = new ArrayList<>();
+    for (String rule : values.split("(?<!\\\\),")) {
+      if (StringUtils.isNotBlank(rule)) {
+        rules.add(rule.replace("\\,", ","));
+      }
+    }
+    return rules.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,214 @@
+package carz.aem.cdn.replication.replay;
+
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates the purge calls of a replayed activation log into a report of
+ * the purge volume over time, the peak rates and the cost of each flush
+ * rule, including the wildcard targets the replay could not expand.
+ *
+ * Memory depends on the number of time buckets and flush rules, not on the
+ * number of events. Peak rates are counted in fixed one second and one
+ * minute windows and assume the log is in time order.
+ */
+public final class PurgeWorkload {
+
+  private static final class Totals {
+    private long calls;
+    private long urls;
+    private long bytes;
+
+    private void add(long urls, long bytes) {
+      this.calls++;
+      this.urls += urls;
+      this.bytes += bytes;
+    }
+  }
+
+  private static final class RuleCost {
+    private final String rule;
+    private long matches;
+    private long targets;
+    private long wildcards;
+    private long urls;
+
+    private RuleCost(String rule) {
+      this.rule = rule;
+    }
+  }
+
+  private static final class PeakRate {
+    private final long window;
+    private long start = Long.MIN_VALUE;
+    private long current;
+    private long peak;
+    private long peakStart;
+
+    private PeakRate(long window) {
+      this.window = window;
+    }
+
+    private void add(long timestamp, long count) {
+      final long windowStart = Math.floorDiv(timestamp, window) * window;
+      if (windowStart > start) {
+        start = windowStart;
+        current = 0;
+      }
+      current += count;
+      if (current > peak) {
+        peak = current;
+        peakStart = start;
+      }
+    }
+  }
+
+  private final long bucketMillis;
+  private final Totals totals = new Totals();
+  private final TreeMap<Long, Totals> buckets = new TreeMap<>();
+  private final Map<String, RuleCost> ruleCosts = new HashMap<>();
+  private final PeakRate callsPerSecond = new PeakRate(TimeUnit.SECONDS.toMillis(1));
+  private final PeakRate callsPerMinute = new PeakRate(TimeUnit.MINUTES.toMillis(1));
+  private final PeakRate urlsPerSecond = new PeakRate(TimeUnit.SECONDS.toMillis(1));
+  private final PeakRate urlsPerMinute = new PeakRate(TimeUnit.MINUTES.toMillis(1));
+
+  private long events;
+  private long skippedTest;
+  private long skippedWithoutRules;
+  private long malformed;
+  private long wildcards;
+  private long maxUrls;
+  private long maxBytes;
+  private long first = Long.MAX_VALUE;
+  private long last = Long.MIN_VALUE;
+
+  /**
+   * @param bucketMillis width of the time buckets of the volume report
+   */
+  public PurgeWorkload(long bucketMillis) {
+    this.bucketMillis = Math.max(1, bucketMillis);
+  }
+
+  public void recordEvent(ActivationEvent event) {
+    events++;
+    first = Math.min(first, event.getTimestamp());
+    last = Math.max(last, event.getTimestamp());
+  }
+
+  public void recordMalformed() {
+    malformed++;
+  }
+
+  public void recordSkippedTest() {
+    skippedTest++;
+  }
+
+  public void recordSkippedWithoutRules() {
+    skippedWithoutRules++;
+  }
+
+  /**
+   * Record a flush rule match of a replayed path.
+   *
+   * @param rule      pattern of the rule
+   * @param targets   number of target paths of the match
+   * @param wildcards number of the targets with a wildcard that were not
+   *                  expanded into URLs
+   * @param urls      number of URLs the targets added to the purge
+   */
+  public void recordRule(String rule, int targets, int wildcards, int urls) {
+    final RuleCost cost = ruleCosts.computeIfAbsent(rule, RuleCost::new);
+    cost.matches++;
+    cost.targets += targets;
+    cost.wildcards += wildcards;
+    cost.urls += urls;
+    this.wildcards += wildcards;
+  }
+
+  /**
+   * Record a purge call, one of several if the purge was split by the
+   * maximum body size.
+   *
+   * @param timestamp epoch milliseconds of the activation
+   * @param urls      number of URLs in the purge
+   * @param bytes     size of the request body in bytes
+   */
+  public void recordPurge(long timestamp, int urls, int bytes) {
+    totals.add(urls, bytes);
+    buckets.computeIfAbsent(Math.floorDiv(timestamp, bucketMillis) * bucketMillis, key -> new Totals())
+      .add(urls, bytes);
+    callsPerSecond.add(timestamp, 1);
+    callsPerMinute.add(timestamp, 1);
+    urlsPerSecond.add(timestamp, urls);
+    urlsPerMinute.add(timestamp, urls);
+    maxUrls = Math.max(maxUrls, urls);
+    maxBytes = Math.max(maxBytes, bytes);
+  }
+
+  /**
+   * @param out      writer to print the report to
+   * @param topRules number of flush rules to list
+   */
+  public void writeReport(PrintWriter out, int topRules) {
+    out.println("Purge replay report");
+    out.println();
+    if (events > 0) {
+      out.printf("Period:                 %s - %s%n", Instant.ofEpochMilli(first), Instant.ofEpochMilli(last));
+    }
+    out.printf("Events:                 %d%n", events);
+    out.printf("  skipped (test):       %d%n", skippedTest);
+    out.printf("  skipped (no rules):   %d%n", skippedWithoutRules);
+    out.printf("  malformed lines:      %d%n", malformed);
+    out.printf("Purge calls:            %d%n", totals.calls);
+    out.printf("URLs:                   %d (avg %.1f, max %d per call)%n", totals.urls,
+      average(totals.urls, totals.calls), maxUrls);
+    out.printf("Payload bytes:          %d (avg %.0f, max %d per call)%n", totals.bytes,
+      average(totals.bytes, totals.calls), maxBytes);
+    out.printf("Wildcard targets:       %d (not expanded, their pages, tags or CP codes are not counted)%n",
+      wildcards);
+    out.println();
+
+    out.println("Peak rates");
+    printPeak(out, "calls/second", callsPerSecond);
+    printPeak(out, "calls/minute", callsPerMinute);
+    printPeak(out, "URLs/second", urlsPerSecond);
+    printPeak(out, "URLs/minute", urlsPerMinute);
+    out.println();
+
+    out.printf("Volume per %d minutes%n", TimeUnit.MILLISECONDS.toMinutes(bucketMillis));
+    out.printf("%-24s %10s %10s %12s%n", "start", "calls", "URLs", "bytes");
+    for (Map.Entry<Long, Totals> bucket : buckets.entrySet()) {
+      out.printf("%-24s %10d %10d %12d%n", Instant.ofEpochMilli(bucket.getKey()), bucket.getValue().calls,
+        bucket.getValue().urls, bucket.getValue().bytes);
+    }
+    out.println();
+
+    final List<RuleCost> costs = new ArrayList<>(ruleCosts.values());
+    costs.sort((a, b) -> a.urls != b.urls ? Long.compare(b.urls, a.urls) : Long.compare(b.matches, a.matches));
+    out.printf("Most expensive flush rules (top %d of %d, by URLs)%n", Math.min(topRules, costs.size()),
+      costs.size());
+    out.printf("%10s %10s %10s %10s  %s%n", "matches", "targets", "wildcards", "URLs", "rule");
+    for (RuleCost cost : costs.subList(0, Math.min(topRules, costs.size()))) {
+      out.printf("%10d %10d %10d %10d  %s%n", cost.matches, cost.targets, cost.wildcards, cost.urls, cost.rule);
+    }
+    out.flush();
+  }
+
+  private static void printPeak(PrintWriter out, String name, PeakRate rate) {
+    if (rate.peak > 0) {
+      out.printf("  %-20s %10d at %s%n", name, rate.peak, Instant.ofEpochMilli(rate.peakStart));
+    } else {
+      out.printf("  %-20s %10d%n", name, 0);
+    }
+  }
+
+  private static double average(long total, long count) {
+    return count > 0 ? (double) total / count : 0;
+  }
+}
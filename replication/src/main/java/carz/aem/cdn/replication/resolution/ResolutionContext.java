@@ -0,0 +1,119 @@
+package carz.aem.cdn.replication.resolution;
+
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Repository lookups for one replication action, shared by the CDN content
+ * builders handling the action with the same session. Every lookup reads the
+ * repository once and is memoized. The context owns its resource resolver
+ * and counts its references: one held by the {@link ResolutionContextCache}
+ * until it evicts the context, and one for each {@link
+ * ResolutionContextCache#get} not yet closed. The resolver is closed when the
+ * last reference is released.
+ */
+public final class ResolutionContext implements AutoCloseable {
+
+  private final String path;
+  private final ResourceResolver resolver;
+  private final Map<String, String> mappedPaths = new HashMap<>();
+  private boolean pageResolved;
+  private Page page;
+  private int references = 1;
+  private boolean closed;
+
+  ResolutionContext(String path, ResourceResolver resolver) {
+    this.path = path;
+    this.resolver = resolver;
+  }
+
+  /**
+   * @return the path of the replication action
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return true if the path of the action is a page
+   */
+  public synchronized boolean isPage() {
+    return getPage() != null;
+  }
+
+  /**
+   * @return the vanity URL of the page, or null if the path is not a page or
+   * the page has none
+   */
+  public synchronized String getVanityUrl() {
+    final Page purgedPage = getPage();
+    return purgedPage != null ? purgedPage.getVanityUrl() : null;
+  }
+
+  /**
+   * @param internalPath repository path
+   * @return the path mapped by the resource resolver
+   */
+  public synchronized String map(String internalPath) {
+    String mapped = mappedPaths.get(internalPath);
+    if (mapped == null) {
+      checkOpen();
+      mapped = resolver.map(internalPath);
+      mappedPaths.put(internalPath, mapped);
+    }
+    return mapped;
+  }
+
+  /**
+   * @param lookup repository lookup not covered by the memoized ones
+   * @return the result of the lookup, run with the resolver of the context
+   */
+  public synchronized <T> T lookup(Function<ResourceResolver, T> lookup) {
+    checkOpen();
+    return lookup.apply(resolver);
+  }
+
+  /**
+   * Release the reference obtained from the {@link ResolutionContextCache}.
+   * The context must not be used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed && --references == 0) {
+      closed = true;
+      resolver.close();
+    }
+  }
+
+  /**
+   * @return false if the context is already closed
+   */
+  synchronized boolean retain() {
+    if (closed) {
+      return false;
+    }
+    references++;
+    return true;
+  }
+
+  private Page getPage() {
+    if (!pageResolved) {
+      checkOpen();
+      final PageManager pageManager = resolver.adaptTo(PageManager.class);
+      page = pageManager != null ? pageManager.getPage(path) : null;
+      pageResolved = true;
+    }
+    return page;
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Resolution context of " + path + " is closed");
+    }
+  }
+}
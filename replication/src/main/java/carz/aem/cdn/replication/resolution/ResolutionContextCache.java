@@ -0,0 +1,28 @@
+package carz.aem.cdn.replication.resolution;
+
+import com.day.cq.replication.ReplicationAction;
+import org.osgi.annotation.versioning.ProviderType;
+
+import javax.jcr.Session;
+
+/**
+ * Shares one {@link ResolutionContext} between the CDN content builders
+ * handling the same replication action with the same session. A resolver is
+ * never shared across sessions.
+ */
+@ProviderType
+public interface ResolutionContextCache {
+
+  /**
+   * Get the resolution context of the action, keyed by the session and the
+   * path, time and user of the action, creating it with the session if
+   * needed. The caller must close the returned context once its build is
+   * done.
+   *
+   * @param session session of the replication
+   * @param action  the replication action
+   * @return the resolution context, or null if the session is no longer live
+   * or no resource resolver could be opened for it
+   */
+  public ResolutionContext get(Session session, ReplicationAction action);
+}
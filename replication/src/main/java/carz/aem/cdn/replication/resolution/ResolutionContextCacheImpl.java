@@ -0,0 +1,184 @@
+package carz.aem.cdn.replication.resolution;
+
+import com.day.cq.replication.ReplicationAction;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.jcr.resource.api.JcrResourceConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of resolution contexts in creation order, keyed by session identity
+ * and action. Contexts expire after the configured time to live, which only
+ * has to cover the content builders of one replication. Expired contexts and
+ * contexts whose session was logged out are evicted on the next access. An
+ * evicted context is closed once the builders still using it release it.
+ */
+@Component(service = ResolutionContextCache.class,
+  immediate = true)
+@Designate(ocd = ResolutionContextCacheImpl.Config.class)
+public class ResolutionContextCacheImpl implements ResolutionContextCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResolutionContextCacheImpl.class);
+
+  @ObjectClassDefinition(name = "CDN resolution context cache config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Time to live",
+      description = "Milliseconds a resolution context is shared between content builders.")
+    long ttl() default 10000;
+
+    @AttributeDefinition(name = "Maximum entries", description = "Maximum number of open resolution contexts.")
+    int max_entries() default 64;
+
+  }
+
+  private static final class Key {
+    private final Session session;
+    private final String path;
+    private final long time;
+    private final String userId;
+
+    private Key(Session session, ReplicationAction action) {
+      this.session = session;
+      this.path = action.getPath();
+      this.time = action.getTime();
+      this.userId = action.getUserId();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) o;
+      return session == other.session && time == other.time && Objects.equals(path, other.path)
+        && Objects.equals(userId, other.userId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(session), path, time, userId);
+    }
+  }
+
+  private static final class Entry {
+    private final Session session;
+    private final ResolutionContext context;
+    private final long created;
+
+    private Entry(Session session, ResolutionContext context, long created) {
+      this.session = session;
+      this.context = context;
+      this.created = created;
+    }
+  }
+
+  @Reference
+  private ResourceResolverFactory resolverFactory;
+
+  private final LinkedHashMap<Key, Entry> contexts = new LinkedHashMap<>();
+  private long ttlNanos;
+  private int maxEntries;
+
+  @Activate
+  @Modified
+  protected void activate(final ResolutionContextCacheImpl.Config config) {
+    synchronized (contexts) {
+      ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.ttl()));
+      maxEntries = Math.max(1, config.max_entries());
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    final List<ResolutionContext> evicted;
+    synchronized (contexts) {
+      evicted = new ArrayList<>();
+      for (Entry entry : contexts.values()) {
+        evicted.add(entry.context);
+      }
+      contexts.clear();
+    }
+    closeAll(evicted);
+  }
+
+  @Override
+  public ResolutionContext get(final Session session, final ReplicationAction action) {
+    if (session == null || !session.isLive()) {
+      return null;
+    }
+    final Key key = new Key(session, action);
+    final List<ResolutionContext> evicted = new ArrayList<>();
+    try {
+      synchronized (contexts) {
+        final long now = System.nanoTime();
+        evictStale(now, evicted);
+        final Entry entry = contexts.get(key);
+        if (entry != null && entry.context.retain()) {
+          return entry.context;
+        }
+
+        final ResourceResolver resolver;
+        try {
+          final Map<String, Object> authenticationInfo = new HashMap<>();
+          authenticationInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_SESSION, session);
+          resolver = resolverFactory.getResourceResolver(authenticationInfo);
+        } catch (LoginException e) {
+          LOG.error("Could not open resource resolver for {}", action.getPath(), e);
+          return null;
+        }
+        final ResolutionContext context = new ResolutionContext(action.getPath(), resolver);
+        context.retain();
+        contexts.put(key, new Entry(session, context, now));
+        while (contexts.size() > maxEntries) {
+          final Iterator<Entry> eldest = contexts.values().iterator();
+          evicted.add(eldest.next().context);
+          eldest.remove();
+        }
+        return context;
+      }
+    } finally {
+      closeAll(evicted);
+    }
+  }
+
+  private void evictStale(long now, List<ResolutionContext> evicted) {
+    final Iterator<Entry> entries = contexts.values().iterator();
+    while (entries.hasNext()) {
+      final Entry entry = entries.next();
+      if (now - entry.created >= ttlNanos || !entry.session.isLive()) {
+        evicted.add(entry.context);
+        entries.remove();
+      }
+    }
+  }
+
+  private static void closeAll(List<ResolutionContext> evicted) {
+    for (ResolutionContext context : evicted) {
+      context.close();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package carz.aem.cdn.replication.retry;
+
+import carz.aem.cdn.replication.transport.TransportResponse;
+import com.day.cq.replication.ReplicationLog;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends the requests of one purge transaction, retrying only the requests
+ * that failed with a retryable error, with exponential backoff and jitter,
+ * until the retry budget of the transaction is used up.
+ *
+ * Responses are classified as
+ * <ul>
+ * <li>accepted: any 2xx status</li>
+ * <li>too large: 413, the batch is split and its halves are sent</li>
+ * <li>retryable: I/O errors, 408, 425, 429 and 5xx other than 501 and 505,
+ * honouring a Retry-After header</li>
+ * <li>terminal: any other status, not retried</li>
+ * </ul>
+ */
+@ProviderType
+public interface PurgeRetryEngine {
+
+  /**
+   * Sends one batch of a purge.
+   */
+  interface BatchSender<B> {
+
+    /**
+     * @param batch batch to send
+     * @return the response of the CDN
+     * @throws IOException if the request could not be sent
+     */
+    TransportResponse send(B batch) throws IOException;
+
+    /**
+     * @param batch batch the CDN rejected as too large
+     * @return the parts of the batch, or an empty list if it cannot be split
+     */
+    List<B> split(B batch);
+
+    /**
+     * Called for every batch the CDN accepted.
+     *
+     * @param batch    the accepted batch
+     * @param response the response of the CDN
+     */
+    default void accepted(B batch, TransportResponse response) {
+    }
+  }
+
+  /**
+   * Send all batches of a purge transaction on the calling thread.
+   *
+   * @param batches batches of the purge
+   * @param sender  sends a batch
+   * @param log     replication log of the transaction
+   * @return the batches that could not be sent
+   */
+  public <B> PurgeRetryResult<B> send(List<B> batches, BatchSender<B> sender, ReplicationLog log);
+
+}
@@ -0,0 +1,214 @@
+package carz.aem.cdn.replication.retry;
+
+import carz.aem.cdn.replication.transport.TransportResponse;
+import com.day.cq.replication.ReplicationLog;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries failed batches on the replicating thread. The budget of a
+ * transaction limits both the number of retries and the time spent on
+ * them, so that a CDN outage ends up in the agent queue instead of
+ * blocking it.
+ */
+@Component(service = PurgeRetryEngine.class)
+@Designate(ocd = PurgeRetryEngineImpl.Config.class)
+public class PurgeRetryEngineImpl implements PurgeRetryEngine {
+
+  private static final int SC_TOO_EARLY = 425;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  @ObjectClassDefinition(name = "CDN purge retry config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Maximum retries",
+      description = "Retries per replication transaction before it goes back to the agent queue.")
+    int max_retries() default 5;
+
+    @AttributeDefinition(name = "Maximum retry time",
+      description = "Milliseconds per replication transaction spent on retries, including the backoff.")
+    long max_retry_time() default 30000;
+
+    @AttributeDefinition(name = "Initial delay", description = "Milliseconds before the first retry of a batch.")
+    long initial_delay() default 500;
+
+    @AttributeDefinition(name = "Maximum delay", description = "Maximum milliseconds between two retries.")
+    long max_delay() default 8000;
+
+    @AttributeDefinition(name = "Multiplier", description = "Factor the delay grows by with every retry.")
+    double multiplier() default 2.0;
+
+    @AttributeDefinition(name = "Jitter",
+      description = "Fraction of the delay that is randomized, from 0 to 1.")
+    double jitter() default 0.5;
+
+  }
+
+  private enum Outcome {
+    ACCEPTED, TOO_LARGE, RETRYABLE, TERMINAL
+  }
+
+  private static final class Pending<B> {
+    private final B batch;
+    private int attempt;
+
+    private Pending(B batch) {
+      this.batch = batch;
+    }
+  }
+
+  private volatile Config config;
+
+  @Activate
+  @Modified
+  protected void activate(final PurgeRetryEngineImpl.Config config) {
+    this.config = config;
+  }
+
+  @Override
+  public <B> PurgeRetryResult<B> send(List<B> batches, BatchSender<B> sender, ReplicationLog log) {
+    final Config retryConfig = config;
+    final long deadline = System.currentTimeMillis() + Math.max(0, retryConfig.max_retry_time());
+    final Deque<Pending<B>> pending = new ArrayDeque<>();
+    for (B batch : batches) {
+      pending.add(new Pending<>(batch));
+    }
+
+    final List<B> failed = new ArrayList<>();
+    int retries = 0;
+    boolean budgetExhausted = false;
+    boolean terminal = false;
+    String error = null;
+    while (!pending.isEmpty()) {
+      final Pending<B> next = pending.poll();
+      TransportResponse response = null;
+      Outcome outcome;
+      try {
+        response = sender.send(next.batch);
+        outcome = classify(response.getStatusCode());
+      } catch (IOException e) {
+        outcome = Outcome.RETRYABLE;
+        error = e.getMessage();
+      }
+      if (response != null && outcome != Outcome.ACCEPTED) {
+        error = response.getStatusCode() + " " + response.getReasonPhrase();
+      }
+
+      switch (outcome) {
+        case ACCEPTED:
+          sender.accepted(next.batch, response);
+          continue;
+        case TOO_LARGE:
+          final List<B> parts = sender.split(next.batch);
+          if (parts.size() > 1) {
+            log.info("Request too large, splitting it into %s requests", parts.size());
+            for (int i = parts.size() - 1; i >= 0; i--) {
+              pending.addFirst(new Pending<>(parts.get(i)));
+            }
+          } else {
+            log.error("Request too large and cannot be split: %s", error);
+            terminal = true;
+            failed.add(next.batch);
+          }
+          continue;
+        case TERMINAL:
+          log.error("Request failed, not retrying: %s", error);
+          terminal = true;
+          failed.add(next.batch);
+          continue;
+        default:
+          break;
+      }
+
+      final long delay = delay(retryConfig, next.attempt, response);
+      if (retries >= retryConfig.max_retries() || System.currentTimeMillis() + delay > deadline) {
+        log.warn("Request failed, retry budget used up: %s", error);
+        budgetExhausted = true;
+        failed.add(next.batch);
+        continue;
+      }
+      retries++;
+      next.attempt++;
+      log.info("Request failed (%s), retry %s in %s ms", error, next.attempt, delay);
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed.add(next.batch);
+        for (Pending<B> remaining : pending) {
+          failed.add(remaining.batch);
+        }
+        // the budget ends with the interrupt, the batches may still succeed later
+        return new PurgeRetryResult<>(failed, retries, true, terminal,
+          "Interrupted while waiting to retry");
+      }
+      pending.addFirst(next);
+    }
+    return new PurgeRetryResult<>(failed, retries, budgetExhausted, terminal, error);
+  }
+
+  private static Outcome classify(int statusCode) {
+    if (statusCode >= 200 && statusCode < 300) {
+      return Outcome.ACCEPTED;
+    }
+    if (statusCode == HttpStatus.SC_REQUEST_TOO_LONG) {
+      return Outcome.TOO_LARGE;
+    }
+    if (statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == SC_TOO_EARLY
+      || statusCode == SC_TOO_MANY_REQUESTS
+      || (statusCode >= 500 && statusCode != HttpStatus.SC_NOT_IMPLEMENTED
+      && statusCode != HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED)) {
+      return Outcome.RETRYABLE;
+    }
+    return Outcome.TERMINAL;
+  }
+
+  /**
+   * @return the exponential backoff of the attempt with jitter, or the
+   * Retry-After of the response if it is longer
+   */
+  private static long delay(Config config, int attempt, TransportResponse response) {
+    final double exponential = Math.max(0, config.initial_delay())
+      * Math.pow(Math.max(1, config.multiplier()), attempt);
+    final long backoff = (long) Math.min(exponential, Math.max(0, config.max_delay()));
+    final double jitter = Math.min(1, Math.max(0, config.jitter()));
+    final long randomized = backoff - (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+    return Math.max(randomized, retryAfter(response));
+  }
+
+  private static long retryAfter(TransportResponse response) {
+    if (response == null) {
+      return 0;
+    }
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+      if (!HttpHeaders.RETRY_AFTER.equalsIgnoreCase(header.getKey()) || StringUtils.isBlank(header.getValue())) {
+        continue;
+      }
+      final String value = header.getValue().trim();
+      if (StringUtils.isNumeric(value)) {
+        return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+      }
+      final Date date = DateUtils.parseDate(value);
+      return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : 0;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,94 @@
+package carz.aem.cdn.replication.retry;
+
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sending the batches of a purge transaction through the
+ * {@link PurgeRetryEngine}.
+ */
+public final class PurgeRetryResult<B> {
+
+  /**
+   * Code of the replication result of a purge that failed only because its
+   * retry budget was used up, so that sending it again later may succeed.
+   */
+  public static final int CODE_RETRYABLE = 503;
+
+  private final List<B> failed;
+  private final int retries;
+  private final boolean budgetExhausted;
+  private final boolean terminal;
+  private final String error;
+
+  PurgeRetryResult(List<B> failed, int retries, boolean budgetExhausted, boolean terminal, String error) {
+    this.failed = Collections.unmodifiableList(failed);
+    this.retries = retries;
+    this.budgetExhausted = budgetExhausted;
+    this.terminal = terminal;
+    this.error = error;
+  }
+
+  /**
+   * @return true if the CDN accepted all batches
+   */
+  public boolean isSuccess() {
+    return failed.isEmpty();
+  }
+
+  /**
+   * @return the batches that failed with a terminal error or ran out of
+   * retry budget
+   */
+  public List<B> getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the number of retries used
+   */
+  public int getRetries() {
+    return retries;
+  }
+
+  /**
+   * @return true if a batch failed because the retry budget was used up or
+   * the wait for a retry was interrupted
+   */
+  public boolean isBudgetExhausted() {
+    return budgetExhausted;
+  }
+
+  /**
+   * @return true if a batch failed with a terminal error or was too large
+   * and could not be split, so that sending the purge again fails as well
+   */
+  public boolean isTerminal() {
+    return terminal;
+  }
+
+  /**
+   * @return the last error, e.g. the reason phrase of the CDN, or null
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * @param log replication log of the transaction
+   * @return the result of the replication transaction, failed if any batch
+   * failed, which puts the transaction back into the agent queue; its code
+   * is {@link #CODE_RETRYABLE} if no batch failed for good
+   */
+  public ReplicationResult toReplicationResult(ReplicationLog log) {
+    if (isSuccess()) {
+      return ReplicationResult.OK;
+    }
+    log.warn("%s requests failed after %s retries%s", failed.size(), retries,
+      budgetExhausted ? ", retry budget used up" : "");
+    return new ReplicationResult(false, budgetExhausted && !terminal ? CODE_RETRYABLE : 0, error);
+  }
+}
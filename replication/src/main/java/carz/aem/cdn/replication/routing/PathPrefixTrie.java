@@ -0,0 +1,65 @@
+package carz.aem.cdn.replication.routing;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trie of repository path prefixes, one level per path segment. A lookup
+ * walks the segments of the path once and returns the value of the longest
+ * prefix, so its cost depends on the depth of the path and not on the
+ * number of prefixes. Not thread safe while being built.
+ */
+public final class PathPrefixTrie<V> {
+
+  private static final class Node<V> {
+    private final Map<String, Node<V>> children = new HashMap<>();
+    private V value;
+  }
+
+  private final Node<V> root = new Node<>();
+  private int size;
+
+  /**
+   * @param prefix path prefix, e.g. /content/site-a
+   * @param value  value of the prefix
+   * @return the previous value of the prefix, or null
+   */
+  public V put(String prefix, V value) {
+    Node<V> node = root;
+    for (String segment : StringUtils.split(prefix, '/')) {
+      node = node.children.computeIfAbsent(segment, key -> new Node<>());
+    }
+    final V previous = node.value;
+    node.value = value;
+    if (previous == null) {
+      size++;
+    }
+    return previous;
+  }
+
+  /**
+   * @param path repository path
+   * @return the value of the longest prefix of the path, or null if no
+   * prefix matches
+   */
+  public V longestMatch(String path) {
+    Node<V> node = root;
+    V match = root.value;
+    for (String segment : StringUtils.split(path, '/')) {
+      node = node.children.get(segment);
+      if (node == null) {
+        break;
+      }
+      if (node.value != null) {
+        match = node.value;
+      }
+    }
+    return match;
+  }
+
+  public int size() {
+    return size;
+  }
+}
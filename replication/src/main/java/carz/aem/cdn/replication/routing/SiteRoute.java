@@ -0,0 +1,49 @@
+package carz.aem.cdn.replication.routing;
+
+/**
+ * Domains and CDN accounts of the site under a content root. Akamai routes
+ * only set the domain; requests are signed with the credentials of the agent.
+ */
+public final class SiteRoute {
+
+  private final String contentRoot;
+  private final String akamaiDomain;
+  private final String verizonDomain;
+  private final String verizonAccountDirectory;
+  private final String verizonCacheRoot;
+
+  public SiteRoute(String contentRoot, String akamaiDomain, String verizonDomain, String verizonAccountDirectory,
+                   String verizonCacheRoot) {
+    this.contentRoot = contentRoot;
+    this.akamaiDomain = akamaiDomain;
+    this.verizonDomain = verizonDomain;
+    this.verizonAccountDirectory = verizonAccountDirectory;
+    this.verizonCacheRoot = verizonCacheRoot;
+  }
+
+  public String getContentRoot() {
+    return contentRoot;
+  }
+
+  /**
+   * @return the domain of the site's Akamai URLs, empty if not on Akamai
+   */
+  public String getAkamaiDomain() {
+    return akamaiDomain;
+  }
+
+  /**
+   * @return the domain of the site's Verizon URLs, empty if not on Verizon
+   */
+  public String getVerizonDomain() {
+    return verizonDomain;
+  }
+
+  public String getVerizonAccountDirectory() {
+    return verizonAccountDirectory;
+  }
+
+  public String getVerizonCacheRoot() {
+    return verizonCacheRoot;
+  }
+}
@@ -0,0 +1,5 @@
+package carz.aem.cdn.replication.routing;
+
+public interface SiteRouteConfig {
+  public SiteRoute getSiteRoute();
+}
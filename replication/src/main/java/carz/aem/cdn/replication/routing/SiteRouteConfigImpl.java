@@ -0,0 +1,54 @@
+package carz.aem.cdn.replication.routing;
+
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@Component(service = SiteRouteConfig.class,
+  configurationPolicy = ConfigurationPolicy.REQUIRE,
+  immediate = true)
+@Designate(ocd = SiteRouteConfigImpl.Config.class, factory = true)
+public class SiteRouteConfigImpl implements SiteRouteConfig {
+
+  private SiteRoute siteRoute;
+
+  @ObjectClassDefinition(name = "CDN site route config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Content root", description = "Root path of the site, e.g. /content/we-retail")
+    String content_root() default "";
+
+    @AttributeDefinition(name = "Akamai domain", description = "Domain of the site's URLs purged on Akamai.")
+    String akamai_domain() default "";
+
+    @AttributeDefinition(name = "Verizon domain", description = "Domain of the site's URLs purged on Verizon.")
+    String verizon_domain() default "";
+
+    @AttributeDefinition(name = "Verizon account directory")
+    String verizon_account_directory() default "";
+
+    @AttributeDefinition(name = "Verizon cache root")
+    String verizon_cache_root() default "";
+
+  }
+
+  /**
+   * Not modifiable in place: a changed config reactivates the component, so
+   * the site router unbinds the old route and binds the new one.
+   */
+  @Activate
+  protected void activate(final SiteRouteConfigImpl.Config config) {
+    siteRoute = new SiteRoute(StringUtils.trimToEmpty(config.content_root()),
+      StringUtils.trimToEmpty(config.akamai_domain()), StringUtils.trimToEmpty(config.verizon_domain()),
+      StringUtils.trimToEmpty(config.verizon_account_directory()), StringUtils.trimToEmpty(config.verizon_cache_root()));
+  }
+
+  @Override
+  public SiteRoute getSiteRoute() {
+    return siteRoute;
+  }
+}
@@ -0,0 +1,18 @@
+package carz.aem.cdn.replication.routing;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * Routes replicated paths to the site they belong to, so that one agent per
+ * CDN can purge many sites.
+ */
+@ProviderType
+public interface SiteRouter {
+
+  /**
+   * @param path replicated path
+   * @return the route of the deepest content root containing the path, or
+   * null if the path belongs to no configured site
+   */
+  public SiteRoute route(String path);
+}
@@ -0,0 +1,60 @@
+package carz.aem.cdn.replication.routing;
+
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregates all site route configs into a path prefix trie. The trie is
+ * rebuilt from the bound configs whenever a config is bound or unbound and
+ * replaced as a whole, so lookups need no locking.
+ */
+@Component(service = SiteRouter.class)
+public class SiteRouterImpl implements SiteRouter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SiteRouterImpl.class);
+
+  private final List<SiteRouteConfig> siteRouteConfigs = new ArrayList<>();
+
+  private volatile PathPrefixTrie<SiteRoute> routes = new PathPrefixTrie<>();
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    unbind = "unbindSiteRouteConfig")
+  protected synchronized void bindSiteRouteConfig(final SiteRouteConfig config) {
+    siteRouteConfigs.add(config);
+    rebuild();
+  }
+
+  protected synchronized void unbindSiteRouteConfig(final SiteRouteConfig config) {
+    siteRouteConfigs.remove(config);
+    rebuild();
+  }
+
+  @Override
+  public SiteRoute route(String path) {
+    return StringUtils.isNotBlank(path) ? routes.longestMatch(path) : null;
+  }
+
+  private void rebuild() {
+    final PathPrefixTrie<SiteRoute> trie = new PathPrefixTrie<>();
+    for (SiteRouteConfig config : siteRouteConfigs) {
+      final SiteRoute route = config.getSiteRoute();
+      if (route == null || StringUtils.isBlank(route.getContentRoot())) {
+        continue;
+      }
+      final SiteRoute previous = trie.put(route.getContentRoot(), route);
+      if (previous != null) {
+        LOG.warn("Content root {} is routed more than once", route.getContentRoot());
+      }
+    }
+    routes = trie;
+  }
+}
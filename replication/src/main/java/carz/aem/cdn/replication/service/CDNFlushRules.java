@@ -7,4 +7,10 @@ import java.util.List;
 @ProviderType
 public interface CDNFlushRules {
   public List<String> getFlushRulesTargetPath(String path);
+
+  /**
+   * @param path replicated path
+   * @return true if at least one flush rule matches the path
+   */
+  public boolean hasFlushRules(String path);
 }
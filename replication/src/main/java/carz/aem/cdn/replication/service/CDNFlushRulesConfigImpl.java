@@ -41,7 +41,7 @@ public class CDNFlushRulesConfigImpl implements CDNFlushRulesConfig {
   protected void activate(final CDNFlushRulesConfigImpl.Config config) {
     flushRules = config.flush_rules();
     try {
-      hierarchicalFlushRules = configureFlushRules(toMap(flushRules, "="));
+      hierarchicalFlushRules = parseFlushRules(flushRules);
     } catch (Exception e) {
       LOG.info("Exception on hierarchicalFlushRules: {}", e);
     }
@@ -52,7 +52,18 @@ public class CDNFlushRulesConfigImpl implements CDNFlushRulesConfig {
     return hierarchicalFlushRules;
   }
 
-  protected final Map<Pattern, String[]> configureFlushRules(final Map<String, String> configuredRules)
+  /**
+   * Parse flush rules in the format of the OSGi config.
+   *
+   * @param flushRules rules as &lt;pattern-of-trigger-content&gt;=&lt;path-to-flush&gt;[&amp;&lt;path-to-flush&gt;]
+   * @return the target paths by pattern, in the order of the rules
+   * @throws Exception if a pattern is invalid
+   */
+  public static Map<Pattern, String[]> parseFlushRules(final String[] flushRules) throws Exception {
+    return configureFlushRules(toMap(flushRules, "="));
+  }
+
+  protected static Map<Pattern, String[]> configureFlushRules(final Map<String, String> configuredRules)
     throws Exception {
     final Map<Pattern, String[]> rules = new LinkedHashMap<Pattern, String[]>();
 
@@ -1,6 +1,9 @@
 package carz.aem.cdn.replication.service;
 
+import carz.aem.cdn.replication.hotspot.HotspotType;
+import carz.aem.cdn.replication.hotspot.PurgeHotspots;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
@@ -8,10 +11,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 
 @Component(service = CDNFlushRules.class)
@@ -25,13 +30,39 @@ public class CDNFlushRulesImpl implements CDNFlushRules {
     unbind = "unbindCDNFlushRulesConfig")
   private final List<CDNFlushRulesConfig> cdnFlushRulesConfigList = new ArrayList<>();
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeHotspots purgeHotspots;
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<FlushRuleSet> flushRuleSets = new CopyOnWriteArrayList<>();
+
   private Map<Pattern, String[]> hierarchicalFlushRules = new LinkedHashMap<Pattern, String[]>();
 
+  private volatile FlushRuleIndex flushRuleIndex = FlushRuleIndex.empty();
+
+  public CDNFlushRulesImpl() {
+  }
+
+  /**
+   * Flush rules of the given configs, for use outside of OSGi.
+   *
+   * @param configs flush rules configs
+   */
+  public CDNFlushRulesImpl(final Collection<? extends CDNFlushRulesConfig> configs) {
+    for (CDNFlushRulesConfig config : configs) {
+      bindCDNFlushRulesConfig(config);
+    }
+  }
+
   protected synchronized void bindCDNFlushRulesConfig(final CDNFlushRulesConfig config) {
     if (hierarchicalFlushRules == null) {
       hierarchicalFlushRules = new LinkedHashMap<Pattern, String[]>();
     }
     hierarchicalFlushRules.putAll(config.getHierarchicalFlushRules());
+    flushRuleIndex = FlushRuleIndex.compile(hierarchicalFlushRules);
   }
 
   protected synchronized void unbindCDNFlushRulesConfig(final CDNFlushRulesConfig config) {
@@ -39,27 +70,54 @@ public class CDNFlushRulesImpl implements CDNFlushRules {
       for (Map.Entry<Pattern, String[]> entry : config.getHierarchicalFlushRules().entrySet()) {
         hierarchicalFlushRules.remove(entry.getKey());
       }
+      flushRuleIndex = FlushRuleIndex.compile(hierarchicalFlushRules);
     }
   }
 
   @Override
   public List<String> getFlushRulesTargetPath(String path) {
     List<String> flushRulesTargetPathList = new ArrayList<>();
-    if (hierarchicalFlushRules != null && hierarchicalFlushRules.size() > 0) {
-      for (final Map.Entry<Pattern, String[]> entry : this.hierarchicalFlushRules.entrySet()) {
-        final Pattern pattern = entry.getKey();
-        final Matcher m = pattern.matcher(path);
-        if (m.matches()) {
-          for (final String value : entry.getValue()) {
-            final String flushPath = m.replaceAll(value);
-
-            LOG.debug("Requesting hierarchical flush of associated path: {} ~> {}", path,
-              flushPath);
-            flushRulesTargetPathList.add(flushPath);
-          }
-        }
+    collectFlushRulesTargetPath(path, (pattern, flushPath) -> flushRulesTargetPathList.add(flushPath));
+    return flushRulesTargetPathList;
+  }
+
+  @Override
+  public boolean hasFlushRules(String path) {
+    if (flushRuleIndex.matches(path)) {
+      return true;
+    }
+    for (FlushRuleSet flushRuleSet : flushRuleSets) {
+      if (flushRuleSet.getIndex().matches(path)) {
+        return true;
       }
     }
-    return flushRulesTargetPathList;
+    return false;
+  }
+
+  /**
+   * Pass every target path of the flush rules matching the path to the
+   * consumer, together with the pattern of the rule. The rules of the
+   * configs are matched before those of the flush rule sets. Every matching
+   * rule is counted in the purge hotspots.
+   *
+   * @param path     replicated path
+   * @param consumer receives the pattern and target path of each match
+   */
+  public void collectFlushRulesTargetPath(String path, BiConsumer<Pattern, String> consumer) {
+    final PurgeHotspots hotspots = purgeHotspots;
+    final Pattern[] lastPattern = new Pattern[1];
+    final BiConsumer<Pattern, String> recording = (pattern, flushPath) -> {
+      if (hotspots != null && pattern != lastPattern[0]) {
+        hotspots.record(HotspotType.RULE, pattern.pattern());
+      }
+      lastPattern[0] = pattern;
+      LOG.debug("Requesting hierarchical flush of associated path: {} ~> {}", path,
+        flushPath);
+      consumer.accept(pattern, flushPath);
+    };
+    flushRuleIndex.collect(path, recording);
+    for (FlushRuleSet flushRuleSet : flushRuleSets) {
+      flushRuleSet.getIndex().collect(path, recording);
+    }
   }
 }
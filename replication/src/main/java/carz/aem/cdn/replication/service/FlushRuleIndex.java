@@ -0,0 +1,264 @@
+package carz.aem.cdn.replication.service;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Flush rules compiled into a trie of the literal path prefixes of their
+ * patterns, so that a path is only matched against the rules whose prefix
+ * it starts with. Rules without a literal prefix, with alternations or with
+ * flags are matched against every path. Matches are reported in the order
+ * of the rules. Immutable.
+ *
+ * An index can be written to a byte stream and read back without parsing
+ * or validating its rules again. The patterns of a read index are compiled
+ * when a path first reaches them, so large rule sets load in the time it
+ * takes to read them.
+ */
+public final class FlushRuleIndex {
+
+  private static final FlushRuleIndex EMPTY = new FlushRuleIndex(new ArrayList<>(), new Node());
+
+  private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+  private static final String QUANTIFIERS = "?*+{";
+
+  private static final class Node {
+    private final Map<String, Node> children = new HashMap<>();
+    private int[] rules = new int[0];
+  }
+
+  private static final class Rule {
+    private final String regex;
+    private final int flags;
+    private final String prefix;
+    private final String[] targets;
+    private volatile Pattern pattern;
+
+    private Rule(String regex, int flags, String prefix, String[] targets, Pattern pattern) {
+      this.regex = regex;
+      this.flags = flags;
+      this.prefix = prefix;
+      this.targets = targets;
+      this.pattern = pattern;
+    }
+
+    private Pattern pattern() {
+      Pattern compiled = pattern;
+      if (compiled == null) {
+        compiled = Pattern.compile(regex, flags);
+        pattern = compiled;
+      }
+      return compiled;
+    }
+  }
+
+  private final List<Rule> rules;
+  private final Node root;
+
+  private FlushRuleIndex(List<Rule> rules, Node root) {
+    this.rules = rules;
+    this.root = root;
+  }
+
+  public static FlushRuleIndex empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @param flushRules patterns and their target paths, in the order they
+   *                   are matched
+   * @return the compiled rules
+   */
+  public static FlushRuleIndex compile(Map<Pattern, String[]> flushRules) {
+    if (flushRules.isEmpty()) {
+      return EMPTY;
+    }
+    final List<Rule> rules = new ArrayList<>(flushRules.size());
+    for (Map.Entry<Pattern, String[]> rule : flushRules.entrySet()) {
+      final Pattern pattern = rule.getKey();
+      rules.add(new Rule(pattern.pattern(), pattern.flags(), literalPrefix(pattern), rule.getValue(), pattern));
+    }
+    return index(rules);
+  }
+
+  private static FlushRuleIndex index(List<Rule> rules) {
+    final Node root = new Node();
+    for (int number = 0; number < rules.size(); number++) {
+      Node node = root;
+      for (String segment : StringUtils.split(rules.get(number).prefix, '/')) {
+        node = node.children.computeIfAbsent(segment, key -> new Node());
+      }
+      node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+      node.rules[node.rules.length - 1] = number;
+    }
+    return new FlushRuleIndex(rules, root);
+  }
+
+  public int size() {
+    return rules.size();
+  }
+
+  /**
+   * Write the rules with their literal prefixes.
+   *
+   * @param out stream to write to
+   * @throws IOException if the stream fails
+   */
+  public void write(DataOutputStream out) throws IOException {
+    out.writeInt(rules.size());
+    for (Rule rule : rules) {
+      writeString(out, rule.regex);
+      out.writeInt(rule.flags);
+      writeString(out, rule.prefix);
+      out.writeInt(rule.targets.length);
+      for (String target : rule.targets) {
+        writeString(out, target);
+      }
+    }
+  }
+
+  /**
+   * Read an index written by {@link #write(DataOutputStream)}, e.g. from a
+   * memory-mapped file.
+   *
+   * @param buffer buffer positioned at the index
+   * @return the index, with its patterns not compiled yet
+   * @throws IOException if the buffer does not hold a valid index
+   */
+  public static FlushRuleIndex read(ByteBuffer buffer) throws IOException {
+    try {
+      final int size = buffer.getInt();
+      if (size < 0) {
+        throw new IOException("Invalid number of flush rules: " + size);
+      }
+      if (size == 0) {
+        return EMPTY;
+      }
+      final List<Rule> rules = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        final String regex = readString(buffer);
+        final int flags = buffer.getInt();
+        final String prefix = readString(buffer);
+        final String[] targets = new String[buffer.getInt()];
+        for (int j = 0; j < targets.length; j++) {
+          targets[j] = readString(buffer);
+        }
+        rules.add(new Rule(regex, flags, prefix, targets, null));
+      }
+      return index(rules);
+    } catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException e) {
+      throw new IOException("Truncated or invalid flush rule index", e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param path replicated path
+   * @return true if at least one rule matches the path
+   */
+  public boolean matches(String path) {
+    final BitSet candidates = candidates(path);
+    for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+      if (rules.get(rule).pattern().matcher(path).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Pass every target path of the rules matching the path to the consumer,
+   * together with the pattern of the rule.
+   *
+   * @param path     replicated path
+   * @param consumer receives the pattern and target path of each match
+   */
+  public void collect(String path, BiConsumer<Pattern, String> consumer) {
+    final BitSet candidates = candidates(path);
+    for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+      final Pattern pattern = rules.get(rule).pattern();
+      final Matcher m = pattern.matcher(path);
+      if (m.matches()) {
+        for (final String value : rules.get(rule).targets) {
+          consumer.accept(pattern, m.replaceAll(value));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the numbers of the rules whose literal prefix the path starts
+   * with
+   */
+  private BitSet candidates(String path) {
+    final BitSet candidates = new BitSet(size());
+    Node node = root;
+    add(candidates, node);
+    for (String segment : StringUtils.split(path, '/')) {
+      node = node.children.get(segment);
+      if (node == null) {
+        break;
+      }
+      add(candidates, node);
+    }
+    return candidates;
+  }
+
+  private static void add(BitSet candidates, Node node) {
+    for (int rule : node.rules) {
+      candidates.set(rule);
+    }
+  }
+
+  /**
+   * @return the complete path segments every match of the pattern starts
+   * with, e.g. /content/site/ for /content/site/(.*)/page
+   */
+  static String literalPrefix(Pattern pattern) {
+    final String regex = pattern.pattern();
+    if (pattern.flags() != 0 || regex.indexOf('|') >= 0) {
+      return "";
+    }
+    int end = regex.startsWith("^") ? 1 : 0;
+    final int start = end;
+    while (end < regex.length() && META_CHARACTERS.indexOf(regex.charAt(end)) < 0) {
+      end++;
+    }
+    if (end < regex.length() && QUANTIFIERS.indexOf(regex.charAt(end)) >= 0) {
+      // the quantifier makes the last literal character optional
+      end--;
+    }
+    final String literal = regex.substring(start, Math.max(start, end));
+    if (!literal.startsWith("/")) {
+      return "";
+    }
+    // a match only contains the last segment of the literal if the path
+    // continues with a /
+    return end < regex.length() ? literal.substring(0, literal.lastIndexOf('/') + 1) : literal;
+  }
+}
@@ -0,0 +1,21 @@
+package carz.aem.cdn.replication.service;
+
+/**
+ * A large set of flush rules loaded as one precompiled {@link FlushRuleIndex}
+ * instead of OSGi configs. The flush rules service matches paths against
+ * every rule set after the rules of the {@link CDNFlushRulesConfig}s.
+ */
+public interface FlushRuleSet {
+
+  /**
+   * @return the current rules; replaced as a whole when the source of the
+   * rule set changes
+   */
+  public FlushRuleIndex getIndex();
+
+  /**
+   * @return version of the current rules, incremented with every change of
+   * the source
+   */
+  public long getVersion();
+}
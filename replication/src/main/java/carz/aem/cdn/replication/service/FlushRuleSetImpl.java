@@ -0,0 +1,326 @@
+package carz.aem.cdn.replication.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Flush rule set read from a rules file or a repository node and compiled
+ * into a {@link FlushRuleIndex} once per change of its source.
+ *
+ * The compiled index is written to a file in the bundle data area with the
+ * version of the rules, the checksum and modification stamp of the source
+ * and a checksum of the index itself. On activation the index file is
+ * memory-mapped and read without compiling any pattern; the source is only
+ * read again if its modification stamp changed, and only compiled again if
+ * its checksum changed. The source is checked for changes every check
+ * interval.
+ */
+@Component(service = FlushRuleSet.class,
+  configurationPolicy = ConfigurationPolicy.REQUIRE,
+  immediate = true)
+@Designate(ocd = FlushRuleSetImpl.Config.class, factory = true)
+public class FlushRuleSetImpl implements FlushRuleSet {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FlushRuleSetImpl.class);
+
+  private static final String DATA_DIRECTORY = "flush-rule-index";
+  private static final String INDEX_EXTENSION = ".idx";
+  private static final int MAGIC = 0x43465249;
+  private static final int FORMAT_VERSION = 1;
+  /** Magic, format version, rules version, source checksum, source stamp and index checksum */
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8;
+  private static final long NO_STAMP = 0;
+  private static final String SUBSERVICE = "flush-rules";
+  private static final String PROPERTY_RULES = "rules";
+  private static final String COMMENT = "#";
+
+  @ObjectClassDefinition(name = "CDN flush rule set config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Rules file",
+      description = "File with one <pattern-of-trigger-content>=<path-to-flush>[&<path-to-flush>] rule per line. "
+        + "Blank lines and lines starting with # are ignored.")
+    String rules_file() default "";
+
+    @AttributeDefinition(name = "Rules path",
+      description = "Repository path of a file with rules in the format of the rules file, or of a node with one "
+        + "rule per value of its rules property. Read with the flush-rules service user. Used if no rules file "
+        + "is set.")
+    String rules_path() default "";
+
+    @AttributeDefinition(name = "Index directory",
+      description = "Directory of the compiled index. Defaults to the data area of the bundle.")
+    String index_directory() default "";
+
+    @AttributeDefinition(name = "Check interval",
+      description = "Seconds between two checks of the rules for changes, 0 to only check on activation.")
+    long check_interval() default 60;
+
+  }
+
+  @Reference
+  private ResourceResolverFactory resolverFactory;
+
+  private volatile FlushRuleIndex index = FlushRuleIndex.empty();
+  private volatile long version;
+  private long sourceChecksum;
+  private long sourceStamp = NO_STAMP;
+  private Path rulesFile;
+  private String rulesPath;
+  private String location;
+  private Path file;
+  private ScheduledExecutorService checker;
+
+  @Activate
+  protected void activate(final BundleContext bundleContext, final FlushRuleSetImpl.Config config)
+    throws IOException {
+    rulesFile = StringUtils.isNotBlank(config.rules_file()) ? Paths.get(config.rules_file().trim()) : null;
+    rulesPath = StringUtils.trimToNull(config.rules_path());
+    if (rulesFile == null && rulesPath == null) {
+      LOG.warn("Flush rule set without rules file or rules path, no rules loaded");
+      return;
+    }
+    location = rulesFile != null ? rulesFile.toAbsolutePath().toString() : rulesPath;
+    final Path directory = StringUtils.isNotBlank(config.index_directory())
+      ? Paths.get(config.index_directory())
+      : bundleContext.getDataFile(DATA_DIRECTORY).toPath();
+    Files.createDirectories(directory);
+    file = directory.resolve(Long.toHexString(checksum(location.getBytes(StandardCharsets.UTF_8)))
+      + INDEX_EXTENSION);
+    load();
+    check();
+
+    if (config.check_interval() > 0) {
+      checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "cdn-flush-rule-set");
+        thread.setDaemon(true);
+        return thread;
+      });
+      checker.scheduleWithFixedDelay(this::check, config.check_interval(), config.check_interval(),
+        TimeUnit.SECONDS);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (checker != null) {
+      checker.shutdownNow();
+    }
+  }
+
+  @Override
+  public FlushRuleIndex getIndex() {
+    return index;
+  }
+
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Compile the rules again if their source changed.
+   */
+  private synchronized void check() {
+    try {
+      final long stamp = rulesFile != null ? fileStamp() : repositoryStamp();
+      if (stamp != NO_STAMP && stamp == sourceStamp) {
+        return;
+      }
+      final byte[] content = rulesFile != null ? readFile() : readRepository();
+      if (content == null) {
+        LOG.warn("Flush rules {} not found, keeping {} rules of version {}", location, index.size(), version);
+        return;
+      }
+      final long checksum = checksum(content);
+      if (checksum != sourceChecksum || version == 0) {
+        final long start = System.nanoTime();
+        index = compile(content);
+        version++;
+        LOG.info("Compiled {} flush rules of version {} from {} in {} ms", index.size(), version, location,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      sourceChecksum = checksum;
+      sourceStamp = stamp;
+      write();
+    } catch (IOException | LoginException | RuntimeException e) {
+      LOG.warn("Could not check flush rules {}", location, e);
+    }
+  }
+
+  /**
+   * Compile the rules line by line, so that an invalid rule does not drop
+   * the others.
+   */
+  private FlushRuleIndex compile(final byte[] content) {
+    final Map<Pattern, String[]> rules = new LinkedHashMap<>();
+    for (String line : StringUtils.split(new String(content, StandardCharsets.UTF_8), "\r\n")) {
+      final String rule = line.trim();
+      if (rule.isEmpty() || rule.startsWith(COMMENT)) {
+        continue;
+      }
+      try {
+        rules.putAll(CDNFlushRulesConfigImpl.parseFlushRules(new String[]{rule}));
+      } catch (Exception e) {
+        LOG.warn("Ignoring invalid flush rule {} in {}: {}", rule, location, e.getMessage());
+      }
+    }
+    return FlushRuleIndex.compile(rules);
+  }
+
+  private long fileStamp() throws IOException {
+    if (!Files.isRegularFile(rulesFile)) {
+      return NO_STAMP;
+    }
+    return Files.getLastModifiedTime(rulesFile).toMillis() * 31 + Files.size(rulesFile);
+  }
+
+  private byte[] readFile() throws IOException {
+    return Files.isRegularFile(rulesFile) ? Files.readAllBytes(rulesFile) : null;
+  }
+
+  /**
+   * @return the last modification of the rules node or of its content node
+   */
+  private long repositoryStamp() throws LoginException {
+    try (ResourceResolver resolver = getResolver()) {
+      final Resource resource = resolver.getResource(rulesPath);
+      if (resource == null) {
+        return NO_STAMP;
+      }
+      final Resource content = resource.getChild("jcr:content");
+      final ValueMap properties = (content != null ? content : resource).getValueMap();
+      final Calendar lastModified = properties.get("jcr:lastModified", Calendar.class);
+      return lastModified != null ? lastModified.getTimeInMillis() : NO_STAMP;
+    }
+  }
+
+  private byte[] readRepository() throws IOException, LoginException {
+    try (ResourceResolver resolver = getResolver()) {
+      final Resource resource = resolver.getResource(rulesPath);
+      if (resource == null) {
+        return null;
+      }
+      final String[] rules = resource.getValueMap().get(PROPERTY_RULES, String[].class);
+      if (rules != null) {
+        return StringUtils.join(rules, '\n').getBytes(StandardCharsets.UTF_8);
+      }
+      final InputStream in = resource.adaptTo(InputStream.class);
+      if (in == null) {
+        return null;
+      }
+      try (InputStream stream = in) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+          content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+      }
+    }
+  }
+
+  private ResourceResolver getResolver() throws LoginException {
+    return resolverFactory.getServiceResourceResolver(
+      Collections.<String, Object>singletonMap(ResourceResolverFactory.SUBSERVICE, SUBSERVICE));
+  }
+
+  private void load() {
+    if (!Files.isRegularFile(file)) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        LOG.info("Ignoring flush rule index {} of another format", file);
+        return;
+      }
+      final long indexVersion = buffer.getLong();
+      final long indexSourceChecksum = buffer.getLong();
+      final long indexSourceStamp = buffer.getLong();
+      final long indexChecksum = buffer.getLong();
+      final ByteBuffer body = buffer.slice();
+      if (checksum(body.duplicate()) != indexChecksum) {
+        LOG.warn("Ignoring corrupt flush rule index {}", file);
+        return;
+      }
+      index = FlushRuleIndex.read(body);
+      version = indexVersion;
+      sourceChecksum = indexSourceChecksum;
+      sourceStamp = indexSourceStamp;
+      LOG.info("Loaded {} flush rules of version {} from {}", index.size(), version, file);
+    } catch (IOException e) {
+      LOG.warn("Could not read flush rule index {}, compiling the rules", file, e);
+    }
+  }
+
+  private void write() throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(body)) {
+      index.write(out);
+    }
+    final byte[] bytes = body.toByteArray();
+
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(version);
+      out.writeLong(sourceChecksum);
+      out.writeLong(sourceStamp);
+      out.writeLong(checksum(bytes));
+      out.write(bytes);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static long checksum(byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  private static long checksum(ByteBuffer buffer) {
+    final CRC32 crc = new CRC32();
+    crc.update(buffer);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,10 @@
+package carz.aem.cdn.replication.service;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public interface PurgePriorityConfig {
+  public Map<Pattern, PurgeLane> getPriorityRules();
+}
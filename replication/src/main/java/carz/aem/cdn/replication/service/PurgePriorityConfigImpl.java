@@ -0,0 +1,67 @@
+package carz.aem.cdn.replication.service;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+@Component(service = PurgePriorityConfig.class,
+  configurationPolicy = ConfigurationPolicy.REQUIRE,
+  immediate = true)
+@Designate(ocd = PurgePriorityConfigImpl.Config.class, factory = true)
+public class PurgePriorityConfigImpl implements PurgePriorityConfig {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgePriorityConfigImpl.class);
+
+  private volatile Map<Pattern, PurgeLane> priorityRules = new LinkedHashMap<Pattern, PurgeLane>();
+
+  @ObjectClassDefinition(name = "CDN purge priority config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Priority Rules",
+      description = "Pattern to lane associations for purge priorities. "
+        + "Format: <pattern-of-trigger-content>=<critical|normal|bulk>")
+    String[] priority_rules() default {};
+
+  }
+
+  @Activate
+  @Modified
+  protected void activate(final PurgePriorityConfigImpl.Config config) {
+    final Map<Pattern, PurgeLane> rules = new LinkedHashMap<Pattern, PurgeLane>();
+    for (final String value : config.priority_rules()) {
+      final String[] tmp = StringUtils.split(value, "=");
+      if (tmp.length != 2 || StringUtils.stripToNull(tmp[0]) == null) {
+        continue;
+      }
+      final PurgeLane lane = PurgeLane.fromString(tmp[1], null);
+      if (lane == null) {
+        LOG.warn("Unknown purge lane in priority rule: {}", value);
+        continue;
+      }
+      try {
+        rules.put(Pattern.compile(tmp[0].trim()), lane);
+      } catch (PatternSyntaxException e) {
+        LOG.warn("Invalid pattern in priority rule: {}", value, e);
+      }
+    }
+    priorityRules = rules;
+  }
+
+  @Override
+  public Map<Pattern, PurgeLane> getPriorityRules() {
+    return priorityRules;
+  }
+}
@@ -0,0 +1,9 @@
+package carz.aem.cdn.replication.service;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import org.osgi.annotation.versioning.ProviderType;
+
+@ProviderType
+public interface PurgePriorityRules {
+  public PurgeLane getLane(String path);
+}
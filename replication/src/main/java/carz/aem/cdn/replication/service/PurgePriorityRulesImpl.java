@@ -0,0 +1,48 @@
+package carz.aem.cdn.replication.service;
+
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates all purge priority configs. A path gets the highest priority
+ * lane of all rules matching it, or {@link PurgeLane#NORMAL} if none does.
+ * The rules are read from the bound configs on every lookup, so a modified
+ * config takes effect without being bound again.
+ */
+@Component(service = PurgePriorityRules.class)
+public class PurgePriorityRulesImpl implements PurgePriorityRules {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgePriorityRulesImpl.class);
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<PurgePriorityConfig> purgePriorityConfigs = new CopyOnWriteArrayList<>();
+
+  @Override
+  public PurgeLane getLane(String path) {
+    PurgeLane lane = PurgeLane.NORMAL;
+    boolean matched = false;
+    for (PurgePriorityConfig config : purgePriorityConfigs) {
+      for (final Map.Entry<Pattern, PurgeLane> entry : config.getPriorityRules().entrySet()) {
+        if (entry.getKey().matcher(path).matches() && (!matched || entry.getValue().ordinal() < lane.ordinal())) {
+          lane = entry.getValue();
+          matched = true;
+        }
+      }
+    }
+    LOG.debug("Purge of {} goes to lane {}", path, lane);
+    return lane;
+  }
+}
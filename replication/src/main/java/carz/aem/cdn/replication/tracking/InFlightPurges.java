@@ -0,0 +1,132 @@
+package carz.aem.cdn.replication.tracking;
+
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationActionType;
+
+import java.util.Arrays;
+
+/**
+ * Table of the purges in flight, kept as parallel arrays indexed by slot.
+ * Free slots are chained in a free list and reused, so the table only grows
+ * to the peak number of purges in flight. Not thread safe.
+ */
+final class InFlightPurges {
+
+  private static final int NONE = -1;
+
+  private final int maxCapacity;
+  private String[] cdns;
+  private ReplicationActionType[] actionTypes;
+  private String[] purgeIds;
+  private String[] supportIds;
+  private UrlSet[] urls;
+  private PurgeStatusCheck[] statusChecks;
+  private long[] submitted;
+  private long[] due;
+  private long[] deadlines;
+  private int[] nextFree;
+  private int freeHead = NONE;
+  private int used;
+  private int size;
+
+  InFlightPurges(int initialCapacity, int maxCapacity) {
+    this.maxCapacity = Math.max(1, maxCapacity);
+    resize(Math.max(1, Math.min(initialCapacity, this.maxCapacity)));
+  }
+
+  /**
+   * @return the slot of the purge, or -1 if the table is full
+   */
+  int add(String cdn, ReplicationActionType actionType, String purgeId, String supportId, UrlSet purgeUrls, long submittedAt, long dueAt,
+          long deadline, PurgeStatusCheck statusCheck) {
+    final int slot;
+    if (freeHead != NONE) {
+      slot = freeHead;
+      freeHead = nextFree[slot];
+    } else {
+      if (used == cdns.length) {
+        if (used == maxCapacity) {
+          return NONE;
+        }
+        resize(Math.min(maxCapacity, used * 2));
+      }
+      slot = used++;
+    }
+    cdns[slot] = cdn;
+    actionTypes[slot] = actionType;
+    purgeIds[slot] = purgeId;
+    supportIds[slot] = supportId;
+    urls[slot] = purgeUrls;
+    statusChecks[slot] = statusCheck;
+    submitted[slot] = submittedAt;
+    due[slot] = dueAt;
+    deadlines[slot] = deadline;
+    nextFree[slot] = NONE;
+    size++;
+    return slot;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param now   current time in epoch milliseconds
+   * @param slots receives the slots of the purges due
+   * @return number of slots written, at most slots.length
+   */
+  int dueSlots(long now, int[] slots) {
+    int count = 0;
+    for (int slot = 0; slot < used && count < slots.length; slot++) {
+      if (cdns[slot] != null && due[slot] <= now) {
+        slots[count++] = slot;
+      }
+    }
+    return count;
+  }
+
+  PurgeStatusCheck statusCheck(int slot) {
+    return statusChecks[slot];
+  }
+
+  long deadline(int slot) {
+    return deadlines[slot];
+  }
+
+  void reschedule(int slot, long dueAt) {
+    due[slot] = dueAt;
+  }
+
+  /**
+   * Remove a purge from the table.
+   *
+   * @return the completion of the purge
+   */
+  PurgeCompletion remove(int slot, long completed, boolean timedOut) {
+    final PurgeCompletion completion = new PurgeCompletion(cdns[slot], actionTypes[slot], purgeIds[slot], supportIds[slot],
+      urls[slot], submitted[slot], completed, timedOut);
+    cdns[slot] = null;
+    actionTypes[slot] = null;
+    purgeIds[slot] = null;
+    supportIds[slot] = null;
+    urls[slot] = null;
+    statusChecks[slot] = null;
+    nextFree[slot] = freeHead;
+    freeHead = slot;
+    size--;
+    return completion;
+  }
+
+  private void resize(int capacity) {
+    cdns = cdns == null ? new String[capacity] : Arrays.copyOf(cdns, capacity);
+    actionTypes = actionTypes == null ? new ReplicationActionType[capacity] : Arrays.copyOf(actionTypes, capacity);
+    purgeIds = purgeIds == null ? new String[capacity] : Arrays.copyOf(purgeIds, capacity);
+    supportIds = supportIds == null ? new String[capacity] : Arrays.copyOf(supportIds, capacity);
+    urls = urls == null ? new UrlSet[capacity] : Arrays.copyOf(urls, capacity);
+    statusChecks = statusChecks == null ? new PurgeStatusCheck[capacity] : Arrays.copyOf(statusChecks, capacity);
+    submitted = submitted == null ? new long[capacity] : Arrays.copyOf(submitted, capacity);
+    due = due == null ? new long[capacity] : Arrays.copyOf(due, capacity);
+    deadlines = deadlines == null ? new long[capacity] : Arrays.copyOf(deadlines, capacity);
+    nextFree = nextFree == null ? new int[capacity] : Arrays.copyOf(nextFree, capacity);
+  }
+}
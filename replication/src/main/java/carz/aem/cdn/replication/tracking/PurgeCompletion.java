@@ -0,0 +1,90 @@
+package carz.aem.cdn.replication.tracking;
+
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationActionType;
+
+import java.util.Collection;
+
+/**
+ * A purge that has taken effect at the CDN edge, or was given up on after
+ * the maximum wait of the {@link PurgeTracker}.
+ */
+public final class PurgeCompletion {
+
+  private final String cdn;
+  private final ReplicationActionType actionType;
+  private final String purgeId;
+  private final String supportId;
+  private final UrlSet urls;
+  private final long submitted;
+  private final long completed;
+  private final boolean timedOut;
+
+  public PurgeCompletion(String cdn, ReplicationActionType actionType, String purgeId, String supportId,
+                         Collection<String> urls, long submitted, long completed, boolean timedOut) {
+    this.cdn = cdn;
+    this.actionType = actionType;
+    this.purgeId = purgeId;
+    this.supportId = supportId;
+    this.urls = UrlSet.of(urls);
+    this.submitted = submitted;
+    this.completed = completed;
+    this.timedOut = timedOut;
+  }
+
+  /**
+   * @return the CDN of the purge, e.g. "akamai"
+   */
+  public String getCdn() {
+    return cdn;
+  }
+
+  /**
+   * @return the type of the replication action purged, e.g. ACTIVATE
+   */
+  public ReplicationActionType getActionType() {
+    return actionType;
+  }
+
+  /**
+   * @return the id the CDN assigned to the purge, may be null
+   */
+  public String getPurgeId() {
+    return purgeId;
+  }
+
+  /**
+   * @return the support id the CDN returned for the purge, may be null
+   */
+  public String getSupportId() {
+    return supportId;
+  }
+
+  /**
+   * @return the purged URLs, in sorted order
+   */
+  public Collection<String> getUrls() {
+    return urls;
+  }
+
+  /**
+   * @return epoch milliseconds the CDN accepted the purge
+   */
+  public long getSubmitted() {
+    return submitted;
+  }
+
+  /**
+   * @return epoch milliseconds the purge was found complete
+   */
+  public long getCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return true if completion could not be confirmed within the maximum wait
+   */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+}
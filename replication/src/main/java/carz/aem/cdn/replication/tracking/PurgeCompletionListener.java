@@ -0,0 +1,19 @@
+package carz.aem.cdn.replication.tracking;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Services implementing this interface are notified by the
+ * {@link PurgeTracker} when the URLs of a purge are purged at the edge.
+ *
+ * Listeners are called on the tracker's poller thread and should hand long
+ * running work off to their own threads.
+ */
+@ConsumerType
+public interface PurgeCompletionListener {
+
+  /**
+   * @param completion the completed purge
+   */
+  public void purged(PurgeCompletion completion);
+}
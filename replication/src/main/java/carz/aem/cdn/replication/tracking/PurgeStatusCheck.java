@@ -0,0 +1,16 @@
+package carz.aem.cdn.replication.tracking;
+
+import java.io.IOException;
+
+/**
+ * Asks the CDN whether a purge has completed.
+ */
+@FunctionalInterface
+public interface PurgeStatusCheck {
+
+  /**
+   * @return true if the CDN reports the purge as complete
+   * @throws IOException if the CDN could not be asked
+   */
+  boolean isComplete() throws IOException;
+}
@@ -0,0 +1,37 @@
+package carz.aem.cdn.replication.tracking;
+
+import com.day.cq.replication.ReplicationActionType;
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.Collection;
+
+/**
+ * Tracks purges accepted by a CDN until they have taken effect at the edge
+ * and notifies the registered {@link PurgeCompletionListener} services.
+ */
+@ProviderType
+public interface PurgeTracker {
+
+  /**
+   * Track a purge accepted by the CDN.
+   *
+   * @param cdn             the CDN, e.g. "akamai"
+   * @param actionType      the type of the replication action purged
+   * @param purgeId         id the CDN assigned to the purge, may be null
+   * @param supportId       support id the CDN returned, may be null
+   * @param urls            the purged URLs
+   * @param estimatedMillis time the CDN estimated for the purge, or a
+   *                        negative value for the configured default
+   * @param statusCheck     asks the CDN for the status of the purge once the
+   *                        estimate has passed, or null if the CDN has no
+   *                        status API and the purge is complete after the
+   *                        estimate
+   */
+  public void track(String cdn, ReplicationActionType actionType, String purgeId, String supportId,
+                    Collection<String> urls, long estimatedMillis, PurgeStatusCheck statusCheck);
+
+  /**
+   * @return number of purges not yet complete
+   */
+  public int getInFlightCount();
+}
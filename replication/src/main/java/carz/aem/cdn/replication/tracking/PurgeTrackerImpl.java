@@ -0,0 +1,185 @@
+package carz.aem.cdn.replication.tracking;
+
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationActionType;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.FieldOption;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purge tracker keeping the purges in flight in an in-memory table. A poller
+ * thread completes a purge once the estimate of the CDN has passed and, if
+ * the CDN has a status API, the CDN reports it as complete. Purges still not
+ * complete after the maximum wait are reported as timed out.
+ */
+@Component(service = PurgeTracker.class,
+  immediate = true)
+@Designate(ocd = PurgeTrackerImpl.Config.class)
+public class PurgeTrackerImpl implements PurgeTracker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeTrackerImpl.class);
+
+  private static final int POLL_BATCH = 256;
+
+  @ObjectClassDefinition(name = "CDN purge tracker config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Poll interval", description = "Milliseconds between two polls of the purges in flight.")
+    long poll_interval() default 1000;
+
+    @AttributeDefinition(name = "Default estimate",
+      description = "Seconds a purge takes when the CDN did not return an estimate.")
+    long default_estimate() default 5;
+
+    @AttributeDefinition(name = "Status interval",
+      description = "Seconds between two status requests for a purge the CDN reports as not complete.")
+    long status_interval() default 10;
+
+    @AttributeDefinition(name = "Maximum wait",
+      description = "Seconds after which a purge not reported as complete is given up on.")
+    long max_wait() default 900;
+
+    @AttributeDefinition(name = "Maximum purges in flight",
+      description = "Purges accepted while this many are tracked are not tracked.")
+    int max_in_flight() default 10000;
+
+  }
+
+  @Reference(cardinality = ReferenceCardinality.MULTIPLE,
+    policy = ReferencePolicy.DYNAMIC,
+    fieldOption = FieldOption.UPDATE)
+  private final List<PurgeCompletionListener> listeners = new CopyOnWriteArrayList<>();
+
+  private InFlightPurges inFlight;
+  private ScheduledExecutorService poller;
+  private long defaultEstimate;
+  private long statusInterval;
+  private long maxWait;
+
+  @Activate
+  protected void activate(final PurgeTrackerImpl.Config config) {
+    inFlight = new InFlightPurges(64, config.max_in_flight());
+    defaultEstimate = TimeUnit.SECONDS.toMillis(Math.max(0, config.default_estimate()));
+    statusInterval = TimeUnit.SECONDS.toMillis(Math.max(1, config.status_interval()));
+    maxWait = TimeUnit.SECONDS.toMillis(Math.max(1, config.max_wait()));
+
+    poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "cdn-purge-tracker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long interval = Math.max(10, config.poll_interval());
+    poller.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    poller.shutdownNow();
+  }
+
+  @Override
+  public void track(String cdn, ReplicationActionType actionType, String purgeId, String supportId,
+                    Collection<String> urls, long estimatedMillis, PurgeStatusCheck statusCheck) {
+    final long now = System.currentTimeMillis();
+    final long due = now + (estimatedMillis >= 0 ? estimatedMillis : defaultEstimate);
+    final int slot;
+    synchronized (inFlight) {
+      slot = inFlight.add(cdn, actionType, purgeId, supportId, UrlSet.of(urls), now, due,
+        Math.max(due, now + maxWait), statusCheck);
+    }
+    if (slot < 0) {
+      LOG.warn("Too many purges in flight, not tracking {} purge {}", cdn, purgeId);
+    } else {
+      LOG.debug("Tracking {} purge {} of {} URLs, due in {} ms", cdn, purgeId, urls.size(), due - now);
+    }
+  }
+
+  @Override
+  public int getInFlightCount() {
+    synchronized (inFlight) {
+      return inFlight.size();
+    }
+  }
+
+  /**
+   * Complete the purges whose estimate has passed. Status checks run
+   * outside the table lock; only this thread removes purges, so the slots
+   * stay valid while it checks them.
+   */
+  void poll() {
+    final int[] slots = new int[POLL_BATCH];
+    final PurgeStatusCheck[] statusChecks = new PurgeStatusCheck[POLL_BATCH];
+    final long[] deadlines = new long[POLL_BATCH];
+    int count;
+    do {
+      final long now = System.currentTimeMillis();
+      synchronized (inFlight) {
+        count = inFlight.dueSlots(now, slots);
+        for (int i = 0; i < count; i++) {
+          statusChecks[i] = inFlight.statusCheck(slots[i]);
+          deadlines[i] = inFlight.deadline(slots[i]);
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        if (isComplete(statusChecks[i])) {
+          complete(slots[i], false);
+        } else if (System.currentTimeMillis() >= deadlines[i]) {
+          complete(slots[i], true);
+        } else {
+          synchronized (inFlight) {
+            inFlight.reschedule(slots[i], System.currentTimeMillis() + statusInterval);
+          }
+        }
+      }
+    } while (count == POLL_BATCH && !Thread.currentThread().isInterrupted());
+  }
+
+  private static boolean isComplete(PurgeStatusCheck statusCheck) {
+    if (statusCheck == null) {
+      return true;
+    }
+    try {
+      return statusCheck.isComplete();
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Could not get purge status", e);
+      return false;
+    }
+  }
+
+  private void complete(int slot, boolean timedOut) {
+    final PurgeCompletion completion;
+    synchronized (inFlight) {
+      completion = inFlight.remove(slot, System.currentTimeMillis(), timedOut);
+    }
+    if (timedOut) {
+      LOG.warn("{} purge {} not confirmed within {} ms", completion.getCdn(), completion.getPurgeId(), maxWait);
+    } else {
+      LOG.debug("{} purge {} completed after {} ms", completion.getCdn(), completion.getPurgeId(),
+        completion.getCompleted() - completion.getSubmitted());
+    }
+    for (PurgeCompletionListener listener : listeners) {
+      try {
+        listener.purged(completion);
+      } catch (RuntimeException e) {
+        LOG.warn("Purge completion listener {} failed", listener, e);
+      }
+    }
+  }
+}
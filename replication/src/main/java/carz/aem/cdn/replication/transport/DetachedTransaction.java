@@ -0,0 +1,176 @@
+package carz.aem.cdn.replication.transport;
+
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationContent;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationTransaction;
+import com.day.cq.replication.TransportContext;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transport context and transaction of a purge sent outside of a
+ * replication transaction, e.g. a batch of a bulk purge or a purge
+ * delivered in a lane after its transaction has ended. It holds the agent
+ * config, which lives as long as the agent, and a copy of the action. There
+ * is no replication content; the log goes to the log file.
+ */
+public final class DetachedTransaction implements TransportContext, ReplicationTransaction {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DetachedTransaction.class);
+
+  private final AgentConfig config;
+  private final ReplicationAction action;
+  private final ReplicationLog log;
+  private final boolean synthetic;
+  private final Map<String, Discardable> attributes = new ConcurrentHashMap<>();
+
+  /**
+   * @param config agent config
+   * @param action replicated action, copied without its log
+   * @param name   name of the purge in the log, e.g. "bulk purge 42"
+   */
+  public DetachedTransaction(AgentConfig config, ReplicationAction action, String name) {
+    this(config, action, name, false);
+  }
+
+  private DetachedTransaction(AgentConfig config, ReplicationAction action, String name, boolean synthetic) {
+    this.config = config;
+    this.synthetic = synthetic;
+    this.action = new ReplicationAction(action.getType(), action.getPaths(), action.getTime(),
+      StringUtils.defaultString(action.getUserId()), action.getRevision());
+    this.action.setConfig(config);
+    this.log = new Log(config.getAgentId() + " " + name + ": ");
+  }
+
+  /**
+   * Transaction of a purge that does not purge repository paths, e.g. a
+   * batch of a bulk purge or a purge journal replay. The path of its action
+   * only names the purge.
+   *
+   * @param config agent config
+   * @param action action naming the purge, copied without its log
+   * @param name   name of the purge in the log
+   * @return the transaction
+   */
+  public static DetachedTransaction synthetic(AgentConfig config, ReplicationAction action, String name) {
+    return new DetachedTransaction(config, action, name, true);
+  }
+
+  /**
+   * @return true if the path of the action names the purge instead of purged content
+   */
+  public boolean isSynthetic() {
+    return synthetic;
+  }
+
+  @Override
+  public String getName() {
+    return config.getAgentId();
+  }
+
+  @Override
+  public AgentConfig getConfig() {
+    return config;
+  }
+
+  @Override
+  public Discardable getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public Discardable setAttribute(String name, Discardable value) {
+    return value != null ? attributes.put(name, value) : attributes.remove(name);
+  }
+
+  @Override
+  public ReplicationAction getAction() {
+    return action;
+  }
+
+  @Override
+  public ReplicationContent getContent() {
+    return ReplicationContent.VOID;
+  }
+
+  @Override
+  public ReplicationLog getLog() {
+    return log;
+  }
+
+  private static final class Log implements ReplicationLog {
+    private final String prefix;
+    private volatile Level level = Level.INFO;
+
+    private Log(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Level getLevel() {
+      return level;
+    }
+
+    @Override
+    public void setLevel(Level level) {
+      this.level = level;
+    }
+
+    @Override
+    public Collection<String> getLines() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void debug(String message) {
+      LOG.debug("{}{}", prefix, message);
+    }
+
+    @Override
+    public void debug(String format, Object... args) {
+      if (LOG.isDebugEnabled()) {
+        debug(String.format(format, args));
+      }
+    }
+
+    @Override
+    public void info(String message) {
+      LOG.info("{}{}", prefix, message);
+    }
+
+    @Override
+    public void info(String format, Object... args) {
+      if (LOG.isInfoEnabled()) {
+        info(String.format(format, args));
+      }
+    }
+
+    @Override
+    public void warn(String message) {
+      LOG.warn("{}{}", prefix, message);
+    }
+
+    @Override
+    public void warn(String format, Object... args) {
+      warn(String.format(format, args));
+    }
+
+    @Override
+    public void error(String message) {
+      LOG.error("{}{}", prefix, message);
+    }
+
+    @Override
+    public void error(String format, Object... args) {
+      error(String.format(format, args));
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package carz.aem.cdn.replication.transport;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip encoding of request bodies above a size threshold.
+ *
+ * Deflaters and their output buffers are pooled, as purge bodies are
+ * compressed on every delivery. An endpoint answering a compressed request
+ * with 415 Unsupported Media Type is remembered by the encoder and gets plain
+ * bodies until the retry interval has passed, so a 415 of e.g. a proxy during
+ * a deployment does not turn compression off for good.
+ */
+public final class GzipRequestEncoder {
+
+  private static final String GZIP = "gzip";
+  private static final int POOL_SIZE = 8;
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private static final BlockingQueue<Compressor> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  private final int threshold;
+  private final long retryMillis;
+  /** Time of the last 415 per endpoint */
+  private final Map<String, Long> unsupported = new ConcurrentHashMap<>();
+
+  private static final class Compressor {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private byte[] gzip(byte[] input) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+      out.write(HEADER, 0, HEADER.length);
+      deflater.setInput(input);
+      deflater.finish();
+      while (!deflater.finished()) {
+        final int length = deflater.deflate(buffer);
+        out.write(buffer, 0, length);
+      }
+      crc.update(input, 0, input.length);
+      writeInt(out, (int) crc.getValue());
+      writeInt(out, input.length);
+      return out.toByteArray();
+    }
+
+    private void reset() {
+      deflater.reset();
+      crc.reset();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+      out.write(value & 0xff);
+      out.write((value >> 8) & 0xff);
+      out.write((value >> 16) & 0xff);
+      out.write((value >> 24) & 0xff);
+    }
+  }
+
+  /**
+   * @param threshold   minimum body size to compress, 0 or less disables compression
+   * @param retryMillis time after a 415 of an endpoint until its requests are compressed again
+   */
+  public GzipRequestEncoder(int threshold, long retryMillis) {
+    this.threshold = threshold;
+    this.retryMillis = retryMillis;
+  }
+
+  /**
+   * Compress the body of a request if it is at least {@code threshold} bytes
+   * long and the endpoint did not reject compressed bodies within the retry
+   * interval.
+   *
+   * @param request the request
+   * @return the compressed request, or the given one if it was not compressed
+   */
+  public TransportRequest encode(TransportRequest request) {
+    final byte[] body = request.getBody();
+    if (threshold <= 0 || body == null || body.length < threshold
+      || request.getHeader(HttpHeaders.CONTENT_ENCODING) != null
+      || isUnsupported(endpoint(request.getUri()))) {
+      return request;
+    }
+
+    Compressor compressor = POOL.poll();
+    if (compressor == null) {
+      compressor = new Compressor();
+    }
+    try {
+      return request.toBuilder()
+        .header(HttpHeaders.CONTENT_ENCODING, GZIP)
+        .body(compressor.gzip(body))
+        .build();
+    } finally {
+      compressor.reset();
+      if (!POOL.offer(compressor)) {
+        compressor.deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Send a request with its body compressed when configured, signing it after
+   * compression. If the endpoint rejects the compressed body with 415 the
+   * plain request is sent instead.
+   *
+   * @param engine    the transport engine
+   * @param signer    the signer of the CDN
+   * @param request   the uncompressed request
+   * @param listener  notified with the body size before and after compression, may be null
+   * @return the response
+   * @throws IOException if the request could not be sent or signed
+   */
+  public TransportResponse send(TransportEngine engine, RequestSigner signer, TransportRequest request,
+                                SizeListener listener) throws IOException {
+    final TransportRequest encoded = encode(request);
+    if (encoded == request) {
+      return engine.execute(signer.sign(request));
+    }
+    if (listener != null) {
+      listener.compressed(request.getBody().length, encoded.getBody().length);
+    }
+    final TransportResponse response = engine.execute(signer.sign(encoded));
+    if (response.getStatusCode() != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+      return response;
+    }
+    unsupported.put(endpoint(request.getUri()), System.currentTimeMillis());
+    return engine.execute(signer.sign(request));
+  }
+
+  private boolean isUnsupported(String endpoint) {
+    final Long since = unsupported.get(endpoint);
+    if (since == null) {
+      return false;
+    }
+    if (System.currentTimeMillis() - since < retryMillis) {
+      return true;
+    }
+    unsupported.remove(endpoint, since);
+    return false;
+  }
+
+  /**
+   * The encoders of the replication agents. An agent keeps its encoder, and
+   * with it the 415 state of its endpoints, until its compression settings
+   * change.
+   */
+  public static final class Registry {
+
+    private final Map<String, GzipRequestEncoder> encoders = new ConcurrentHashMap<>();
+
+    /**
+     * @param agentId     the replication agent
+     * @param threshold   minimum body size to compress, 0 or less disables compression
+     * @param retryMillis time after a 415 of an endpoint until its requests are compressed again
+     * @return the encoder of the agent with these settings
+     */
+    public GzipRequestEncoder get(String agentId, int threshold, long retryMillis) {
+      return encoders.compute(agentId, (id, encoder) ->
+        encoder != null && encoder.threshold == threshold && encoder.retryMillis == retryMillis
+          ? encoder : new GzipRequestEncoder(threshold, retryMillis));
+    }
+  }
+
+  /**
+   * Listener reporting the effect of compression on a request body.
+   */
+  public interface SizeListener {
+    void compressed(int originalBytes, int compressedBytes);
+  }
+
+  private static String endpoint(URI uri) {
+    return uri.getScheme() + "://" + uri.getAuthority();
+  }
+}
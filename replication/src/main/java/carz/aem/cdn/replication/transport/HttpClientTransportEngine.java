@@ -0,0 +1,152 @@
+package carz.aem.cdn.replication.transport;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport engine backed by one pooled Apache HttpClient shared by all CDN
+ * agents. Connections are kept alive and reused per CDN endpoint, and sends
+ * run on a bounded thread pool so that several purges can be in flight at
+ * the same time.
+ */
+@Component(service = TransportEngine.class,
+  immediate = true,
+  property = {"service.ranking:Integer=1001"})
+@Designate(ocd = HttpClientTransportEngine.Config.class)
+public class HttpClientTransportEngine implements TransportEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HttpClientTransportEngine.class);
+
+  @ObjectClassDefinition(name = "CDN transport engine config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Maximum connections per endpoint")
+    int max_connections_per_route() default 8;
+
+    @AttributeDefinition(name = "Maximum connections")
+    int max_connections() default 32;
+
+    @AttributeDefinition(name = "Connect timeout", description = "Connect timeout in milliseconds.")
+    int connect_timeout() default 10000;
+
+    @AttributeDefinition(name = "Socket timeout", description = "Socket timeout in milliseconds.")
+    int socket_timeout() default 30000;
+
+    @AttributeDefinition(name = "Sender threads", description = "Number of requests sent concurrently.")
+    int sender_threads() default 8;
+
+  }
+
+  private PoolingHttpClientConnectionManager connectionManager;
+  private CloseableHttpClient httpClient;
+  private ExecutorService executor;
+
+  @Activate
+  protected void activate(final HttpClientTransportEngine.Config config) {
+    connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(Math.max(1, config.max_connections()));
+    connectionManager.setDefaultMaxPerRoute(Math.max(1, config.max_connections_per_route()));
+
+    final RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(config.connect_timeout())
+      .setSocketTimeout(config.socket_timeout())
+      .setConnectionRequestTimeout(config.socket_timeout())
+      .build();
+
+    httpClient = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(requestConfig)
+      .build();
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final int threads = Math.max(1, config.sender_threads());
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+      runnable -> {
+        final Thread thread = new Thread(runnable, "cdn-transport-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+        executor.shutdownNow();
+      }
+      httpClient.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      LOG.warn("Could not close HTTP client", e);
+    }
+    connectionManager.shutdown();
+  }
+
+  @Override
+  public CompletableFuture<TransportResponse> send(final TransportRequest request) {
+    final CompletableFuture<TransportResponse> future = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        future.complete(doSend(request));
+      } catch (IOException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  private TransportResponse doSend(TransportRequest request) throws IOException {
+    final RequestBuilder builder = RequestBuilder.create(request.getMethod()).setUri(request.getUri());
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      builder.addHeader(header.getKey(), header.getValue());
+    }
+    if (request.getBody() != null) {
+      builder.setEntity(new ByteArrayEntity(request.getBody()));
+    }
+
+    try (CloseableHttpResponse response = httpClient.execute(builder.build())) {
+      return toTransportResponse(response);
+    }
+  }
+
+  private static TransportResponse toTransportResponse(HttpResponse response) throws IOException {
+    final Map<String, String> headers = new LinkedHashMap<>();
+    for (Header header : response.getAllHeaders()) {
+      headers.put(header.getName(), header.getValue());
+    }
+    final String body = response.getEntity() != null
+      ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8)
+      : "";
+    return new TransportResponse(response.getStatusLine().getStatusCode(),
+      response.getStatusLine().getReasonPhrase(), headers, body);
+  }
+}
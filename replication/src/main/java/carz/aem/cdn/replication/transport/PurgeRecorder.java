@@ -0,0 +1,89 @@
+package carz.aem.cdn.replication.transport;
+
+import carz.aem.cdn.replication.fingerprint.ContentFingerprint;
+import carz.aem.cdn.replication.fingerprint.FingerprintStore;
+import carz.aem.cdn.replication.hotspot.HotspotType;
+import carz.aem.cdn.replication.hotspot.PurgeHotspots;
+import carz.aem.cdn.replication.manifest.UrlManifestStore;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationTransaction;
+import com.day.cq.replication.TransportContext;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Records what the transport handlers purged successfully: the purge
+ * hotspots, the URL manifests and the content fingerprints. The stores are
+ * optional references of the handlers and are skipped when null.
+ */
+public final class PurgeRecorder {
+
+  private PurgeRecorder() {
+  }
+
+  /**
+   * Count purged URLs or paths in the purge hotspots, except for test
+   * connections.
+   */
+  public static void recordHotspot(final PurgeHotspots hotspots, final ReplicationTransaction tx,
+                                   final HotspotType type, final Iterable<String> keys) {
+    if (hotspots != null && tx.getAction().getType() != ReplicationActionType.TEST) {
+      hotspots.recordAll(type, keys);
+    }
+  }
+
+  /**
+   * Count the purged paths of the transaction in the purge hotspots, except
+   * for test connections and synthetic transactions like bulk purges, whose
+   * action path only names the purge.
+   */
+  public static void recordPathHotspots(final PurgeHotspots hotspots, final ReplicationTransaction tx) {
+    if (tx instanceof DetachedTransaction && ((DetachedTransaction) tx).isSynthetic()) {
+      return;
+    }
+    recordHotspot(hotspots, tx, HotspotType.PATH, Arrays.asList(tx.getAction().getPaths()));
+  }
+
+  /**
+   * Remember the URLs of a successfully purged activation, so that exactly
+   * these URLs are purged when the path is deactivated or deleted. They are
+   * kept after a deactivation for the deletion that usually follows it.
+   */
+  public static void recordManifests(final UrlManifestStore store, final TransportContext ctx,
+                                     final ReplicationTransaction tx, final PurgePayload payload) {
+    if (store == null) {
+      return;
+    }
+    final String agentId = ctx.getConfig().getAgentId();
+    if (tx.getAction().getType() == ReplicationActionType.ACTIVATE) {
+      for (Map.Entry<String, UrlSet> manifest : payload.getManifests().entrySet()) {
+        store.record(agentId, manifest.getKey(), manifest.getValue());
+      }
+    } else if (tx.getAction().getType() == ReplicationActionType.DELETE) {
+      for (String path : tx.getAction().getPaths()) {
+        store.remove(agentId, path);
+      }
+    }
+  }
+
+  /**
+   * Remember the content fingerprint of a successfully purged activation, so
+   * that the content builder can skip its next purge if nothing changed.
+   */
+  public static void recordFingerprint(final FingerprintStore store, final TransportContext ctx,
+                                       final ReplicationTransaction tx, final PurgePayload payload) {
+    if (store == null || tx.getAction().getType() != ReplicationActionType.ACTIVATE) {
+      return;
+    }
+    final String agentId = ctx.getConfig().getAgentId();
+    if (payload.getFingerprint() != ContentFingerprint.NONE) {
+      store.record(agentId, tx.getAction().getPath(), payload.getFingerprint());
+    }
+    for (Map.Entry<String, Long> fingerprint : payload.getFingerprints().entrySet()) {
+      store.record(agentId, fingerprint.getKey(), fingerprint.getValue());
+    }
+  }
+}
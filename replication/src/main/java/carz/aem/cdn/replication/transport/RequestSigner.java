@@ -0,0 +1,21 @@
+package carz.aem.cdn.replication.transport;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+import java.io.IOException;
+
+/**
+ * Adds authentication to a request before it is handed to a
+ * {@link TransportEngine}. Signers run after the body is final, as some
+ * schemes sign a hash of it.
+ */
+@ConsumerType
+public interface RequestSigner {
+
+  /**
+   * @param request the request to sign
+   * @return the signed request
+   * @throws IOException if the request could not be signed
+   */
+  public TransportRequest sign(TransportRequest request) throws IOException;
+}
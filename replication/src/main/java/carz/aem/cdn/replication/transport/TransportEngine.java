@@ -0,0 +1,46 @@
+package carz.aem.cdn.replication.transport;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * HTTP engine used by the CDN transport handlers to send requests. An
+ * engine is shared by all agents, so implementations are expected to reuse
+ * connections per CDN endpoint and to allow concurrent sends.
+ */
+@ConsumerType
+public interface TransportEngine {
+
+  /**
+   * Send a request asynchronously.
+   *
+   * @param request the request to send
+   * @return future completed with the response, or exceptionally with an
+   * {@link IOException} if the request could not be sent
+   */
+  public CompletableFuture<TransportResponse> send(TransportRequest request);
+
+  /**
+   * Send a request and wait for the response.
+   *
+   * @param request the request to send
+   * @return the response
+   * @throws IOException if the request could not be sent
+   */
+  public default TransportResponse execute(TransportRequest request) throws IOException {
+    try {
+      return send(request).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sending request to " + request.getUri(), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not send request to " + request.getUri(), e.getCause());
+    }
+  }
+}
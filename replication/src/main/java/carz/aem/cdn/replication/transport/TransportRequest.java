@@ -0,0 +1,93 @@
+package carz.aem.cdn.replication.transport;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP request sent through a {@link TransportEngine}.
+ */
+public final class TransportRequest {
+
+  private final String method;
+  private final URI uri;
+  private final Map<String, String> headers;
+  private final byte[] body;
+
+  private TransportRequest(Builder builder) {
+    this.method = builder.method;
+    this.uri = builder.uri;
+    this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(builder.headers));
+    this.body = builder.body;
+  }
+
+  public static Builder builder(String method, URI uri) {
+    return new Builder(method, uri);
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public URI getUri() {
+    return uri;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public String getHeader(String name) {
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if (header.getKey().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the request body, or null for requests without body
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * @return a builder initialized with this request
+   */
+  public Builder toBuilder() {
+    final Builder builder = new Builder(method, uri);
+    builder.headers.putAll(headers);
+    builder.body = body;
+    return builder;
+  }
+
+  public static final class Builder {
+
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] body;
+
+    private Builder(String method, URI uri) {
+      this.method = method;
+      this.uri = uri;
+    }
+
+    public Builder header(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    public Builder body(byte[] body) {
+      this.body = body;
+      return this;
+    }
+
+    public TransportRequest build() {
+      return new TransportRequest(this);
+    }
+  }
+}
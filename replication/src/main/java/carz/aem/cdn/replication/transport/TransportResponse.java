@@ -0,0 +1,40 @@
+package carz.aem.cdn.replication.transport;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP response received through a {@link TransportEngine}. The body is read
+ * completely, purge API responses being small JSON documents.
+ */
+public final class TransportResponse {
+
+  private final int statusCode;
+  private final String reasonPhrase;
+  private final Map<String, String> headers;
+  private final String body;
+
+  public TransportResponse(int statusCode, String reasonPhrase, Map<String, String> headers, String body) {
+    this.statusCode = statusCode;
+    this.reasonPhrase = reasonPhrase;
+    this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+    this.body = body;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getReasonPhrase() {
+    return reasonPhrase;
+  }
+
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public String getBody() {
+    return body;
+  }
+}
@@ -0,0 +1,118 @@
+package carz.aem.cdn.replication.url;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the public facing URLs to purge for a replicated path, shared by the
+ * CDN content builders and the offline purge replay.
+ *
+ * For a page this is the mapped link, the author link on author instances,
+ * the internal path and the vanity URL. For any other resource it is the
+ * path itself. Each flush rule target adds its mapped URL and, if mapping
+ * changed it, the internal path.
+ */
+public final class PurgeUrlBuilder {
+
+  /**
+   * Maps an internal path to its external path, e.g. ResourceResolver#map.
+   */
+  public interface PathMapper {
+    String map(String path);
+  }
+
+  private final String domain;
+  private final String pageExtension;
+  private final boolean authorLinks;
+  private final PathMapper mapper;
+
+  /**
+   * @param domain        domain prepended to every URL
+   * @param pageExtension extension appended to page URLs, e.g. ".html"
+   * @param authorLinks   whether to add the author link of pages
+   * @param mapper        maps internal paths to external paths
+   */
+  public PurgeUrlBuilder(String domain, String pageExtension, boolean authorLinks, PathMapper mapper) {
+    this.domain = domain;
+    this.pageExtension = pageExtension;
+    this.authorLinks = authorLinks;
+    this.mapper = mapper;
+  }
+
+  /**
+   * @param path        replicated path
+   * @param page        whether the path is a page
+   * @param vanityUrl   vanity URL of the page, may be null
+   * @param targetPaths flush rule targets of the path
+   * @return the URLs to purge
+   */
+  public List<String> build(String path, boolean page, String vanityUrl, List<String> targetPaths) {
+    final List<String> urls = new ArrayList<>();
+    addPathUrls(urls, path, page, vanityUrl);
+    for (String targetPath : targetPaths) {
+      addTargetUrls(urls, targetPath);
+    }
+    return urls;
+  }
+
+  /**
+   * Add the URLs of the replicated path itself.
+   *
+   * @return the number of URLs added
+   */
+  public int addPathUrls(List<String> urls, String path, boolean page, String vanityUrl) {
+    final int size = urls.size();
+    if (page) {
+      String link = domain + mapper.map(path);
+      urls.add(link + pageExtension);
+
+      if (authorLinks) {
+        String authorLink = domain + path.replaceFirst("/content", "");
+        if (!link.equalsIgnoreCase(authorLink))
+          urls.add(authorLink + pageExtension);
+      }
+
+      if (!link.equalsIgnoreCase(domain + path))
+        urls.add(domain + path + pageExtension);
+
+      if (StringUtils.isNotBlank(vanityUrl)) {
+        urls.add(domain + vanityUrl);
+      }
+    } else {
+      urls.add(domain + path);
+    }
+    return urls.size() - size;
+  }
+
+  /**
+   * Add the URLs of a page a wildcard flush rule target was expanded into.
+   *
+   * @return the number of URLs added
+   */
+  public int addPageUrls(List<String> urls, String pagePath) {
+    final int size = urls.size();
+    String link = domain + mapper.map(pagePath);
+    urls.add(link + pageExtension);
+    if (!link.equalsIgnoreCase(domain + pagePath)) {
+      urls.add(domain + pagePath + pageExtension);
+    }
+    return urls.size() - size;
+  }
+
+  /**
+   * Add the URLs of a flush rule target.
+   *
+   * @return the number of URLs added
+   */
+  public int addTargetUrls(List<String> urls, String targetPath) {
+    final int size = urls.size();
+    String targetUrl = mapper.map(targetPath);
+    urls.add(domain + targetUrl);
+    if (!targetPath.equalsIgnoreCase(targetUrl)) {
+      urls.add(domain + targetPath);
+    }
+    return urls.size() - size;
+  }
+}
@@ -0,0 +1,496 @@
+package carz.aem.cdn.replication.url;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable, sorted and deduplicated set of URLs stored front coded: the
+ * UTF-8 bytes of the URLs are kept in sorted order in blocks, and every URL
+ * but the first of a block only stores the length of the prefix it shares
+ * with the previous URL plus the remaining bytes. Purge sets of one domain
+ * with long shared /content prefixes shrink to a fraction of their size as
+ * strings.
+ *
+ * URLs are decoded one at a time while iterating, so a set can be written
+ * into a request body without materializing its strings. Lookups binary
+ * search the block heads.
+ */
+public final class UrlSet extends AbstractCollection<String> {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private static final UrlSet EMPTY = new UrlSet(new byte[0], new int[0], 0);
+
+  private static final Comparator<byte[]> UNSIGNED = (a, b) -> {
+    final int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return a.length - b.length;
+  };
+
+  private final byte[] data;
+  private final int[] blocks;
+  private final int size;
+
+  private UrlSet(byte[] data, int[] blocks, int size) {
+    this.data = data;
+    this.blocks = blocks;
+    this.size = size;
+  }
+
+  public static UrlSet empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @param urls URLs in any order, possibly repeated
+   * @return the set of the URLs
+   */
+  public static UrlSet of(Iterable<String> urls) {
+    if (urls instanceof UrlSet) {
+      return (UrlSet) urls;
+    }
+    final Builder builder = builder();
+    for (String url : urls) {
+      builder.add(url);
+    }
+    return builder.build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return bytes used by the encoded URLs
+   */
+  public int encodedSize() {
+    return data.length;
+  }
+
+  /**
+   * @return the number of URLs followed by the front coded URLs, for
+   * storing the set as it is
+   */
+  public byte[] toBytes() {
+    final Encoder encoder = new Encoder();
+    encoder.writeVarInt(size);
+    encoder.write(data, 0, data.length);
+    return Arrays.copyOf(encoder.data, encoder.length);
+  }
+
+  /**
+   * @param bytes a set written by {@link #toBytes()}
+   * @return the set
+   * @throws IllegalArgumentException if the bytes are not a valid set
+   */
+  public static UrlSet fromBytes(byte[] bytes) {
+    try {
+      final UrlSet header = new UrlSet(bytes, new int[0], 0);
+      final int size = header.readVarInt(0);
+      final int offset = varIntSize(size);
+      // every URL takes at least its length byte
+      if (size < 0 || size > bytes.length - offset) {
+        throw new IllegalArgumentException("Invalid URL set of " + size + " URLs in " + bytes.length + " bytes");
+      } else if (size == 0) {
+        if (bytes.length != offset) {
+          throw new IllegalArgumentException("Invalid empty URL set of " + bytes.length + " bytes");
+        }
+        return EMPTY;
+      }
+      final UrlSet set = new UrlSet(Arrays.copyOfRange(bytes, offset, bytes.length),
+        new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE], size);
+      int position = 0;
+      int previous = 0;
+      for (int index = 0; index < size; index++) {
+        int shared = 0;
+        if (index % BLOCK_SIZE == 0) {
+          set.blocks[index / BLOCK_SIZE] = position;
+        } else {
+          shared = set.readVarInt(position);
+          position += varIntSize(shared);
+        }
+        final int length = set.readVarInt(position);
+        if (shared < 0 || shared > previous || length < 0) {
+          throw new IllegalArgumentException("Invalid URL " + index + " in URL set of " + size + " URLs");
+        }
+        position += varIntSize(length) + length;
+        previous = shared + length;
+      }
+      if (position != set.data.length) {
+        throw new IllegalArgumentException("Invalid URL set of " + size + " URLs");
+      }
+      return set;
+    } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("Truncated URL set", e);
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof String) || size == 0) {
+      return false;
+    }
+    return contains(((String) o).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private boolean contains(byte[] key) {
+    int low = 0;
+    int high = blocks.length - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (UNSIGNED.compare(head(mid), key) <= 0) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    final Cursor cursor = new Cursor(low);
+    for (int i = 0; i < BLOCK_SIZE && cursor.hasNext(); i++) {
+      final int compared = UNSIGNED.compare(cursor.next(), key);
+      if (compared == 0) {
+        return true;
+      } else if (compared > 0) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    final Cursor cursor = new Cursor(0);
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        return cursor.hasNext();
+      }
+
+      @Override
+      public String next() {
+        return new String(cursor.next(), StandardCharsets.UTF_8);
+      }
+    };
+  }
+
+  /**
+   * @param other another set
+   * @return the union of both sets
+   */
+  public UrlSet union(UrlSet other) {
+    if (other.isEmpty()) {
+      return this;
+    } else if (isEmpty()) {
+      return other;
+    }
+    return merge(Arrays.asList(this, other));
+  }
+
+  /**
+   * @param other another set
+   * @return the URLs of this set that are not in the other one
+   */
+  public UrlSet difference(UrlSet other) {
+    if (other.isEmpty() || isEmpty()) {
+      return this;
+    }
+    final Encoder encoder = new Encoder();
+    final Cursor cursor = new Cursor(0);
+    while (cursor.hasNext()) {
+      final byte[] url = cursor.next();
+      if (!other.contains(url)) {
+        encoder.add(url);
+      }
+    }
+    return encoder.size == size ? this : encoder.build();
+  }
+
+  /**
+   * @param maxJsonBytes maximum size in bytes of the JSON array of a part,
+   *                     0 for no limit
+   * @return the URLs in order, in consecutive parts whose JSON arrays do not
+   * exceed the size, or with a single URL if that alone exceeds it
+   */
+  public List<UrlSet> partition(int maxJsonBytes) {
+    if (maxJsonBytes <= 0 || isEmpty()) {
+      return Collections.singletonList(this);
+    }
+    final List<UrlSet> parts = new ArrayList<>();
+    Encoder part = new Encoder();
+    // the brackets, less the comma the first URL does not need
+    int partBytes = 1;
+    final Cursor cursor = new Cursor(0);
+    while (cursor.hasNext()) {
+      final byte[] url = cursor.next();
+      final int urlBytes = JSONObject.quote(new String(url, StandardCharsets.UTF_8))
+        .getBytes(StandardCharsets.UTF_8).length + 1;
+      if (part.size > 0 && partBytes + urlBytes > maxJsonBytes) {
+        parts.add(part.build());
+        part = new Encoder();
+        partBytes = 1;
+      }
+      part.add(url);
+      partBytes += urlBytes;
+    }
+    parts.add(part.build());
+    return parts;
+  }
+
+  /**
+   * @return the two halves of the set, or the set itself if it has fewer
+   * than two URLs
+   */
+  public List<UrlSet> split() {
+    if (size < 2) {
+      return Collections.singletonList(this);
+    }
+    final Encoder first = new Encoder();
+    final Encoder second = new Encoder();
+    final Cursor cursor = new Cursor(0);
+    for (int i = 0; cursor.hasNext(); i++) {
+      (i < size / 2 ? first : second).add(cursor.next());
+    }
+    return Arrays.asList(first.build(), second.build());
+  }
+
+  /**
+   * Write the set as a JSON array of strings.
+   *
+   * @param writer writer to append to
+   * @throws IOException if the writer fails
+   */
+  public void writeJson(Writer writer) throws IOException {
+    writer.write('[');
+    boolean first = true;
+    for (String url : this) {
+      if (!first) {
+        writer.write(',');
+      }
+      writer.write(JSONObject.quote(url));
+      first = false;
+    }
+    writer.write(']');
+  }
+
+  private byte[] head(int block) {
+    int position = blocks[block];
+    final int length = readVarInt(position);
+    position += varIntSize(length);
+    return Arrays.copyOfRange(data, position, position + length);
+  }
+
+  private int readVarInt(int position) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[position++];
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  private static int varIntSize(int value) {
+    int bytes = 1;
+    while ((value >>>= 7) != 0) {
+      bytes++;
+    }
+    return bytes;
+  }
+
+  /**
+   * Decodes the URLs from a block onwards.
+   */
+  private final class Cursor {
+    private int position;
+    private int index;
+    private byte[] previous = new byte[0];
+
+    private Cursor(int block) {
+      this.position = block < blocks.length ? blocks[block] : data.length;
+      this.index = block * BLOCK_SIZE;
+    }
+
+    private boolean hasNext() {
+      return index < size;
+    }
+
+    private byte[] next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int shared = 0;
+      if (index % BLOCK_SIZE != 0) {
+        shared = readVarInt(position);
+        position += varIntSize(shared);
+      }
+      final int length = readVarInt(position);
+      position += varIntSize(length);
+      final byte[] current = new byte[shared + length];
+      System.arraycopy(previous, 0, current, 0, shared);
+      System.arraycopy(data, position, current, shared, length);
+      position += length;
+      index++;
+      previous = current;
+      return current;
+    }
+  }
+
+  /**
+   * Appends URLs in sorted order, skipping repeated ones.
+   */
+  private static final class Encoder {
+    private byte[] data = new byte[256];
+    private int length;
+    private int[] blocks = new int[16];
+    private int size;
+    private byte[] previous;
+
+    private void add(byte[] url) {
+      if (previous != null && Arrays.equals(previous, url)) {
+        return;
+      }
+      if (size % BLOCK_SIZE == 0) {
+        if (size / BLOCK_SIZE == blocks.length) {
+          blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        blocks[size / BLOCK_SIZE] = length;
+        writeVarInt(url.length);
+        write(url, 0, url.length);
+      } else {
+        int shared = 0;
+        final int max = Math.min(previous.length, url.length);
+        while (shared < max && previous[shared] == url[shared]) {
+          shared++;
+        }
+        writeVarInt(shared);
+        writeVarInt(url.length - shared);
+        write(url, shared, url.length - shared);
+      }
+      previous = url;
+      size++;
+    }
+
+    private void writeVarInt(int value) {
+      while ((value & ~0x7f) != 0) {
+        ensure(1);
+        data[length++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      ensure(1);
+      data[length++] = (byte) value;
+    }
+
+    private void write(byte[] bytes, int offset, int count) {
+      ensure(count);
+      System.arraycopy(bytes, offset, data, length, count);
+      length += count;
+    }
+
+    private void ensure(int count) {
+      if (length + count > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+      }
+    }
+
+    private UrlSet build() {
+      return size == 0 ? EMPTY
+        : new UrlSet(Arrays.copyOf(data, length), Arrays.copyOf(blocks, (size + BLOCK_SIZE - 1) / BLOCK_SIZE), size);
+    }
+  }
+
+  private static UrlSet merge(List<UrlSet> sets) {
+    final PriorityQueue<Object[]> heads = new PriorityQueue<>((a, b) -> UNSIGNED.compare((byte[]) a[0], (byte[]) b[0]));
+    for (UrlSet set : sets) {
+      final Cursor cursor = set.new Cursor(0);
+      if (cursor.hasNext()) {
+        heads.add(new Object[]{cursor.next(), cursor});
+      }
+    }
+    final Encoder encoder = new Encoder();
+    while (!heads.isEmpty()) {
+      final Object[] head = heads.poll();
+      encoder.add((byte[]) head[0]);
+      final Cursor cursor = (Cursor) head[1];
+      if (cursor.hasNext()) {
+        head[0] = cursor.next();
+        heads.add(head);
+      }
+    }
+    return encoder.build();
+  }
+
+  /**
+   * Collects URLs in sorted runs of limited size, so that only one run is
+   * held as separate byte arrays at a time, and merges the runs on build.
+   */
+  public static final class Builder {
+
+    private static final int RUN_SIZE = 4096;
+
+    private final List<byte[]> pending = new ArrayList<>();
+    private final List<UrlSet> runs = new ArrayList<>();
+
+    private Builder() {
+    }
+
+    public Builder add(String url) {
+      pending.add(url.getBytes(StandardCharsets.UTF_8));
+      if (pending.size() == RUN_SIZE) {
+        flush();
+      }
+      return this;
+    }
+
+    public Builder addAll(Collection<String> urls) {
+      for (String url : urls) {
+        add(url);
+      }
+      return this;
+    }
+
+    public UrlSet build() {
+      flush();
+      if (runs.isEmpty()) {
+        return EMPTY;
+      }
+      return runs.size() == 1 ? runs.get(0) : merge(runs);
+    }
+
+    private void flush() {
+      if (pending.isEmpty()) {
+        return;
+      }
+      pending.sort(UNSIGNED);
+      final Encoder encoder = new Encoder();
+      for (byte[] url : pending) {
+        encoder.add(url);
+      }
+      pending.clear();
+      runs.add(encoder.build());
+    }
+  }
+}
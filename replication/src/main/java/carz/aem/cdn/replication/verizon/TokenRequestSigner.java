@@ -0,0 +1,22 @@
+package carz.aem.cdn.replication.verizon;
+
+import carz.aem.cdn.replication.transport.RequestSigner;
+import carz.aem.cdn.replication.transport.TransportRequest;
+import org.apache.http.HttpHeaders;
+
+/**
+ * Adds the Verizon REST API token of the replication agent to a request.
+ */
+public class TokenRequestSigner implements RequestSigner {
+
+  private final String token;
+
+  public TokenRequestSigner(String token) {
+    this.token = token;
+  }
+
+  @Override
+  public TransportRequest sign(TransportRequest request) {
+    return request.toBuilder().header(HttpHeaders.AUTHORIZATION, "TOK: " + token).build();
+  }
+}
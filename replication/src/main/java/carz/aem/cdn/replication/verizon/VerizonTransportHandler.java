@@ -1,38 +1,62 @@
 package carz.aem.cdn.replication.verizon;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import carz.aem.cdn.replication.bulk.PurgeTransport;
+import carz.aem.cdn.replication.delivery.JournalledDelivery;
+import carz.aem.cdn.replication.delivery.PartitionedDelivery;
+import carz.aem.cdn.replication.dispatch.PurgeDispatcher;
+import carz.aem.cdn.replication.dispatch.PurgeLane;
+import carz.aem.cdn.replication.fingerprint.FingerprintStore;
+import carz.aem.cdn.replication.hotspot.HotspotType;
+import carz.aem.cdn.replication.hotspot.PurgeHotspots;
+import carz.aem.cdn.replication.journal.JournalledPurge;
+import carz.aem.cdn.replication.manifest.UrlManifestStore;
+import carz.aem.cdn.replication.journal.PurgeJournal;
+import carz.aem.cdn.replication.payload.PurgePayload;
+import carz.aem.cdn.replication.retry.PurgeRetryEngine;
+import carz.aem.cdn.replication.retry.PurgeRetryResult;
+import carz.aem.cdn.replication.tracking.PurgeStatusCheck;
+import carz.aem.cdn.replication.tracking.PurgeTracker;
+import carz.aem.cdn.replication.transport.DetachedTransaction;
+import carz.aem.cdn.replication.transport.GzipRequestEncoder;
+import carz.aem.cdn.replication.transport.PurgeRecorder;
+import carz.aem.cdn.replication.transport.RequestSigner;
+import carz.aem.cdn.replication.transport.TransportEngine;
+import carz.aem.cdn.replication.transport.TransportRequest;
+import carz.aem.cdn.replication.transport.TransportResponse;
+import carz.aem.cdn.replication.url.UrlSet;
 import com.day.cq.replication.*;
 
-import org.apache.commons.codec.CharEncoding;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.Header;
-import org.apache.http.client.methods.HttpPut;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.LoggerFactory;
 
-@Component(service = TransportHandler.class,
+@Component(service = {TransportHandler.class, PurgeTransport.class},
   immediate = true,
   property = {"service.ranking:Integer=1001"})
-public class VerizonTransportHandler implements TransportHandler {
+public class VerizonTransportHandler implements TransportHandler, PurgeTransport {
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(VerizonTransportHandler.class);
 
@@ -43,6 +67,53 @@ public class VerizonTransportHandler implements TransportHandler {
   private final static String JSON_PROPERTY_MEDIA_PATH = "MediaPath";
   private final static String JSON_PROPERTY_MEDIA_TYPE = "MediaType";
   private final static String MEDIA_TYPE_VALUE = "14";
+  private final static String PROPERTY_GZIP_THRESHOLD = "gzipThreshold";
+  /** Replication agent property with the minutes after a 415 until requests to the endpoint are compressed again. */
+  private final static String PROPERTY_GZIP_RETRY_INTERVAL = "gzipRetryInterval";
+  private final static int GZIP_RETRY_INTERVAL_DEFAULT = 60;
+  /** Replication agent property with the maximum request body size in bytes. 0 sends all URLs in one request. */
+  private final static String PROPERTY_MAX_BODY_SIZE = "maxBodySize";
+  /** Bytes of the request body around the URLs */
+  public final static int BODY_ENVELOPE_SIZE = 40;
+  private final static String PURGE_STATUS_URL = "/edge/purge/";
+  private final static String JSON_PROPERTY_ID = "Id";
+  private final static String JSON_PROPERTY_COMPLETE_DATE = "CompleteDate";
+
+  @Reference
+  private TransportEngine transportEngine;
+
+  @Reference
+  private PurgeRetryEngine purgeRetryEngine;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeJournal purgeJournal;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeDispatcher purgeDispatcher;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeTracker purgeTracker;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile FingerprintStore fingerprintStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile UrlManifestStore urlManifestStore;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PurgeHotspots purgeHotspots;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+    policy = ReferencePolicy.DYNAMIC)
+  private volatile PartitionedDelivery partitionedDelivery;
+
+  private final GzipRequestEncoder.Registry gzipEncoders = new GzipRequestEncoder.Registry();
 
   /**
    * {@inheritDoc}
@@ -68,7 +139,8 @@ public class VerizonTransportHandler implements TransportHandler {
       final String requestURL = agentConfig.getTransportURI() + BULK_LOAD_URL;
       return doAction(ctx, tx, requestURL);
     } else if (replicationType == ReplicationActionType.ACTIVATE ||
-      replicationType == ReplicationActionType.DEACTIVATE) {
+      replicationType == ReplicationActionType.DEACTIVATE ||
+      replicationType == ReplicationActionType.DELETE) {
       final String requestURL = agentConfig.getTransportURI() + BULK_PURGE_URL;
       return doAction(ctx, tx, requestURL);
     } else {
@@ -77,18 +149,15 @@ public class VerizonTransportHandler implements TransportHandler {
   }
 
   /**
-   * Send request to Verizon via a PUT request.
-   * <p>
-   * Verizon will respond with a 200 HTTP status code if the request was
-   * successfully submitted. The response will have information about the
-   * queue length, but we're simply interested in the fact that the request
-   * was authenticated.
+   * Read the purge payload and send it, or record its URLs in the purge
+   * journal and queue it in its delivery lane if the agent delivers
+   * partitioned.
    *
    * @param ctx        Transport Context
    * @param tx         Replication Transaction
    * @param requestUrl Request URL
-   * @return ReplicationResult OK if 200 response from Verizon
-   * @throws ReplicationException
+   * @return ReplicationResult OK if Verizon accepted the purge or it was queued
+   * @throws ReplicationException if there is no path to purge or the purge could not be queued
    */
   private ReplicationResult doAction(TransportContext ctx, ReplicationTransaction tx, String requestUrl)
     throws ReplicationException {
@@ -100,129 +169,265 @@ public class VerizonTransportHandler implements TransportHandler {
       return ReplicationResult.OK;
     }
 
-    final HttpPut request = new HttpPut(requestUrl);
-
-    log.info("Create new HttpClient for %s", ctx.getName());
-    log.info("Sending %s request to %s", request.getMethod(), request.getURI());
-
-    createPutBody(request, ctx, tx);
+    final PurgePayload payload = readPayload(tx);
+    if (payload.getUrls().isEmpty()) {
+      throw new ReplicationException("No path to purge");
+    }
 
-    final HttpResponse response = sendRequest(request, ctx, tx);
+    final PartitionedDelivery delivery = partitionedDelivery;
+    if (delivery != null && tx.getAction().getType() != ReplicationActionType.TEST
+      && PropertiesUtil.toBoolean(ctx.getConfig().getProperties().get(PartitionedDelivery.PROPERTY_PARTITIONED_DELIVERY),
+      false)) {
+      final JournalledPurge journalledPurge = JournalledPurge.begin(purgeJournal, ctx.getConfig().getAgentId(),
+        JournalledPurge.key(tx.getAction()), payload.getUrls(), log);
+      final DetachedTransaction detached = new DetachedTransaction(ctx.getConfig(), tx.getAction(),
+        "partitioned delivery of " + tx.getAction().getPath());
+      delivery.submit(ctx.getConfig().getAgentId(), tx.getAction().getPath(), payload.getLane(),
+        new JournalledDelivery(journalledPurge, detached.getLog(),
+          () -> purge(detached, detached, requestUrl, payload, journalledPurge)));
+      log.info("Queued purge of %s for partitioned delivery", tx.getAction().getPath());
+      return ReplicationResult.OK;
+    }
+    return purge(ctx, tx, requestUrl, payload);
+  }
 
-    if (response != null) {
-      final int statusCode = response.getStatusLine().getStatusCode();
-      if (statusCode == HttpStatus.SC_OK) {
-        log.info("Replication (%s) of %s successful.", tx.getAction().getType(), tx.getAction().getPath());
-        return ReplicationResult.OK;
-      }
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ReplicationResult purge(TransportContext ctx, ReplicationTransaction tx, PurgePayload payload)
+    throws ReplicationException {
+    if (payload.getUrls().isEmpty()) {
+      throw new ReplicationException("No path to purge");
     }
-    log.info("Replication (%s) of %s not successful.", tx.getAction().getType(), tx.getAction().getPath());
-    return new ReplicationResult(false, 0, response.getStatusLine().getReasonPhrase());
+    return purge(ctx, tx, ctx.getConfig().getTransportURI() + BULK_PURGE_URL, payload);
   }
 
   /**
-   * Build preemptive basic authentication headers and send request.
+   * Record the URLs of the payload in the purge journal, leaving out those
+   * Verizon accepted in an earlier attempt of the transaction, and send them.
+   */
+  private ReplicationResult purge(final TransportContext ctx, final ReplicationTransaction tx,
+                                  final String requestUrl, final PurgePayload payload) {
+    final JournalledPurge journalledPurge = JournalledPurge.begin(purgeJournal, ctx.getConfig().getAgentId(),
+      JournalledPurge.key(tx.getAction()), payload.getUrls(), tx.getLog());
+    final ReplicationResult result = purge(ctx, tx, requestUrl, payload, journalledPurge);
+    journalledPurge.complete(result, tx.getLog());
+    return result;
+  }
+
+  /**
+   * Send request to Verizon via a PUT request.
+   * <p>
+   * Verizon will respond with a 200 HTTP status code if the request was
+   * successfully submitted. The response will have information about the
+   * queue length, but we're simply interested in the fact that the request
+   * was authenticated.
    *
-   * @param request The request to send to Verizon
-   * @param ctx     The TransportContext containing the username and password
-   * @return HttpResponse The HTTP response from Verizon
-   * @throws ReplicationException if a request could not be sent
+   * @param ctx             Transport Context
+   * @param tx              Replication Transaction
+   * @param requestUrl      Request URL
+   * @param payload         The purge payload from the content builder
+   * @param journalledPurge The URLs of the payload as recorded in the purge journal
+   * @return ReplicationResult OK if Verizon accepted all requests
    */
-  private <T extends HttpRequestBase> HttpResponse sendRequest(final T request,
-                                                               final TransportContext ctx, final ReplicationTransaction tx)
-    throws ReplicationException {
+  private ReplicationResult purge(final TransportContext ctx, final ReplicationTransaction tx,
+                                  final String requestUrl, final PurgePayload payload,
+                                  final JournalledPurge journalledPurge) {
 
     final ReplicationLog log = tx.getLog();
     final ValueMap agentConfig = ctx.getConfig().getProperties();
-
     final String token = PropertiesUtil.toString(agentConfig.get(PROPERTY_TOKEN), "");
-    request.setHeader(HttpHeaders.AUTHORIZATION, "TOK: " + token);
-    request.setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType());
+    final RequestSigner signer = new TokenRequestSigner(token);
+    final GzipRequestEncoder gzipEncoder = gzipEncoders.get(ctx.getConfig().getAgentId(),
+      PropertiesUtil.toInteger(agentConfig.get(PROPERTY_GZIP_THRESHOLD), 0),
+      TimeUnit.MINUTES.toMillis(PropertiesUtil.toInteger(agentConfig.get(PROPERTY_GZIP_RETRY_INTERVAL),
+        GZIP_RETRY_INTERVAL_DEFAULT)));
+    final int maxBodySize = PropertiesUtil.toInteger(agentConfig.get(PROPERTY_MAX_BODY_SIZE), 0);
+    final UrlSet urls = journalledPurge.getUrls();
+    final List<UrlSet> batches = urls.isEmpty() ? Collections.<UrlSet>emptyList()
+      : urls.partition(maxBodySize > 0 ? Math.max(1, maxBodySize - BODY_ENVELOPE_SIZE) : 0);
 
-    HttpClient client = HttpClientBuilder.create().build();
-    HttpResponse response;
+    final PurgeRetryResult<UrlSet> result = purgeRetryEngine.send(batches,
+      new PurgeRetryEngine.BatchSender<UrlSet>() {
+        @Override
+        public TransportResponse send(UrlSet batch) throws IOException {
+          final byte[] body = createPutBody(batch);
+          log.info("Sending PUT request to %s", requestUrl);
+          log.info("Message body: %s URLs, %s bytes", batch.size(), body.length);
+          return sendRequest(TransportRequest.builder("PUT", URI.create(requestUrl))
+            .header(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType())
+            .body(body)
+            .build(), tx, signer, gzipEncoder, payload.getLane());
+        }
 
-    try {
-      response = client.execute(request);
-      if (response != null) {
-        final int statusCode = response.getStatusLine().getStatusCode();
-        log.info("sent. Response: %s %s", statusCode, response.getStatusLine().getReasonPhrase());
-        log.info("------------------------------------------------");
-        log.info(" >> %s", request.getRequestLine());
-        for (Header header : request.getAllHeaders()) {
-          if (!HttpHeaders.AUTHORIZATION.equalsIgnoreCase(header.getName())) {
-            log.info(" >> %s : %s", header.getName(), header.getValue());
-          }
+        @Override
+        public List<UrlSet> split(UrlSet batch) {
+          return batch.split();
         }
-        log.info(" -- ");
-        log.info(" << %s", response.getStatusLine());
-        for (Header header : response.getAllHeaders()) {
-          log.info(" << %s : %s", header.getName(), header.getValue());
+
+        @Override
+        public void accepted(UrlSet batch, TransportResponse response) {
+          if (tx.getAction().getType() != ReplicationActionType.TEST) {
+            trackPurge(tx.getAction().getType(), response, ctx.getConfig().getTransportURI(), token, batch,
+              log);
+          }
+          PurgeRecorder.recordHotspot(purgeHotspots, tx, HotspotType.URL, batch);
+          journalledPurge.accepted(batch, log);
         }
-        log.info(" << ");
-        String text = new BufferedReader(
-          new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))
-          .lines()
-          .collect(Collectors.joining("\n"));
-        log.info(" << %s", text);
-        log.info(" << ");
-        log.info(" << ");
-        log.info("Message sent.");
-        log.info("------------------------------------------------");
-      }
-    } catch (IOException e) {
-      throw new ReplicationException("Could not send replication request.", e);
+      }, log);
+
+    if (result.isSuccess()) {
+      PurgeRecorder.recordFingerprint(fingerprintStore, ctx, tx, payload);
+      PurgeRecorder.recordManifests(urlManifestStore, ctx, tx, payload);
+      PurgeRecorder.recordPathHotspots(purgeHotspots, tx);
+      log.info("Replication (%s) of %s successful.", tx.getAction().getType(), tx.getAction().getPath());
+    } else {
+      log.info("Replication (%s) of %s not successful.", tx.getAction().getType(), tx.getAction().getPath());
     }
+    return result.toReplicationResult(log);
+  }
+
+  /**
+   * Add the token authentication header and send the request through the
+   * transport engine once the purge dispatcher admits it.
+   *
+   * @param request The request to send to Verizon
+   * @param tx      The ReplicationTransaction to log to
+   * @param signer  The signer adding the agent's REST API token
+   * @param gzipEncoder The gzip encoder of the agent
+   * @param lane    The priority lane to dispatch the request in
+   * @return TransportResponse The HTTP response from Verizon
+   * @throws IOException if the request could not be sent
+   */
+  private TransportResponse sendRequest(final TransportRequest request, final ReplicationTransaction tx,
+                                        final RequestSigner signer, final GzipRequestEncoder gzipEncoder,
+                                        final PurgeLane lane)
+    throws IOException {
+
+    final ReplicationLog log = tx.getLog();
+    final PurgeDispatcher dispatcher = purgeDispatcher;
+
+    final PurgeDispatcher.Send<TransportResponse> send = () -> gzipEncoder.send(transportEngine, signer,
+      request, (originalBytes, compressedBytes) -> log.info(
+        "Compressed request body from %s to %s bytes", originalBytes, compressedBytes));
 
+    final TransportResponse response = dispatcher != null ? dispatcher.dispatch(lane, send) : send.call();
+
+    final int statusCode = response.getStatusCode();
+    log.info("sent. Response: %s %s", statusCode, response.getReasonPhrase());
+    log.info("------------------------------------------------");
+    log.info(" >> %s %s", request.getMethod(), request.getUri());
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      if (!HttpHeaders.AUTHORIZATION.equalsIgnoreCase(header.getKey())) {
+        log.info(" >> %s : %s", header.getKey(), header.getValue());
+      }
+    }
+    log.info(" -- ");
+    log.info(" << %s %s", statusCode, response.getReasonPhrase());
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+      log.info(" << %s : %s", header.getKey(), header.getValue());
+    }
+    log.info(" << ");
+    log.info(" << %s", response.getBody());
+    log.info(" << ");
+    log.info(" << ");
+    log.info("Message sent.");
+    log.info("------------------------------------------------");
     return response;
   }
 
   /**
-   * Build the Verizon purge request body based on the replication agent
-   * settings and append it to the PUT request.
+   * Hand an accepted purge to the purge tracker. If the response contains
+   * the id of the purge request, the tracker asks Verizon for its completion
+   * date; otherwise the purge counts as complete after the tracker's default
+   * estimate.
    *
-   * @param request The HTTP PUT request to append the request body
-   * @param ctx     TransportContext
-   * @param tx      ReplicationTransaction
-   * @throws ReplicationException if errors building the request body
+   * @param actionType   The type of the purged replication action
+   * @param response     The 200 response from Verizon
+   * @param transportUri The transport URI of the agent
+   * @param token        The REST API token of the agent
+   * @param urls         The purged URLs
+   * @param log          The ReplicationLog to log to
    */
-  private void createPutBody(final HttpPut request, final TransportContext ctx,
-                             final ReplicationTransaction tx) throws ReplicationException {
-
-    ReplicationLog log = tx.getLog();
-    JSONObject json = new JSONObject();
-    JSONArray purgeObjects = null;
-
-    /*
-     * Get the content created with the custom content builder class
-     *
-     * The list of activated resources (e.g.: ["/content/geometrixx/en/blog"])
-     * is available in tx.getAction().getPaths(). For this example, we want the
-     * content created in our custom content builder which is available in
-     * tx.getContent().getInputStream().
-     */
+  private void trackPurge(final ReplicationActionType actionType, final TransportResponse response,
+                          final String transportUri, final String token, final UrlSet urls,
+                          final ReplicationLog log) {
+    final PurgeTracker tracker = purgeTracker;
+    if (tracker == null) {
+      return;
+    }
+
+    String purgeId = null;
     try {
-      final String content = IOUtils.toString(tx.getContent().getInputStream(), StandardCharsets.UTF_8);
-      if (StringUtils.isNotBlank(content)) {
-        purgeObjects = new JSONArray(content);
-      }
+      purgeId = new JSONObject(response.getBody()).optString(JSON_PROPERTY_ID, null);
+    } catch (JSONException e) {
+      log.debug("Purge response has no purge id: %s", e.getMessage());
+    }
+
+    PurgeStatusCheck statusCheck = null;
+    if (purgeId != null) {
+      final TransportRequest statusRequest = TransportRequest.builder("GET",
+        URI.create(transportUri + PURGE_STATUS_URL + purgeId))
+        .header(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType())
+        .build();
+      final RequestSigner signer = new TokenRequestSigner(token);
+      statusCheck = () -> {
+        final TransportResponse status = transportEngine.execute(signer.sign(statusRequest));
+        if (status.getStatusCode() != HttpStatus.SC_OK) {
+          return false;
+        }
+        try {
+          return StringUtils.isNotBlank(new JSONObject(status.getBody()).optString(JSON_PROPERTY_COMPLETE_DATE, null));
+        } catch (JSONException e) {
+          throw new IOException("Invalid purge status response", e);
+        }
+      };
+    }
+    tracker.track(SERIALIZATION_TYPE, actionType, purgeId, null, urls, -1, statusCheck);
+  }
+
+  /**
+   * Read the purge payload created by the content builder.
+   *
+   * The list of activated resources (e.g.: ["/content/geometrixx/en/blog"])
+   * is available in tx.getAction().getPaths(). We want the content created
+   * in our custom content builder which is available in
+   * tx.getContent().getInputStream().
+   *
+   * @param tx ReplicationTransaction
+   * @return the payload, empty if the content is blank
+   * @throws ReplicationException if the content could not be read
+   */
+  private PurgePayload readPayload(final ReplicationTransaction tx) throws ReplicationException {
+    try (Reader reader = new InputStreamReader(tx.getContent().getInputStream(), StandardCharsets.UTF_8)) {
+      final PurgePayload payload = PurgePayload.parse(reader);
+      return payload != null ? payload : new PurgePayload(Collections.<String>emptyList(), PurgeLane.NORMAL);
     } catch (IOException | JSONException e) {
       throw new ReplicationException("Could not retrieve content from content builder", e);
     }
+  }
 
-    if (purgeObjects != null && purgeObjects.length() > 0) {
-      try {
-        json.put(JSON_PROPERTY_MEDIA_PATH, purgeObjects)
-          .put(JSON_PROPERTY_MEDIA_TYPE, MEDIA_TYPE_VALUE);
-      } catch (JSONException e) {
-        throw new ReplicationException("Could not build purge request content", e);
-      }
-      log.info("Message body: %s", json.toString());
-      final StringEntity entity = new StringEntity(json.toString(), CharEncoding.UTF_8);
-      request.setEntity(entity);
-
-    } else {
-      throw new ReplicationException("No path to purge");
+  /**
+   * Build the Verizon purge request body of a batch of URLs.
+   *
+   * @param purgeObjects The URLs of the request
+   * @return the request body
+   * @throws IOException if errors building the request body
+   */
+  private byte[] createPutBody(final UrlSet purgeObjects) throws IOException {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(purgeObjects.encodedSize() + 64);
+    try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+      writer.write('{');
+      writer.write(JSONObject.quote(JSON_PROPERTY_MEDIA_PATH));
+      writer.write(':');
+      purgeObjects.writeJson(writer);
+      writer.write(',');
+      writer.write(JSONObject.quote(JSON_PROPERTY_MEDIA_TYPE));
+      writer.write(':');
+      writer.write(JSONObject.quote(MEDIA_TYPE_VALUE));
+      writer.write('}');
     }
+    return body.toByteArray();
   }
 }
@@ -0,0 +1,23 @@
+package carz.aem.cdn.replication.warming;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+import java.util.Collection;
+
+/**
+ * Requests purged URLs again, so that the edge is filled by one request per
+ * URL instead of all edge traffic falling through to the dispatcher and
+ * publish tier at once.
+ */
+@ProviderType
+public interface CacheWarmer {
+
+  /**
+   * Queue URLs for warming. Wildcard URLs and URLs warmed recently are
+   * skipped.
+   *
+   * @param urls purged URLs
+   * @return number of URLs queued
+   */
+  public int warm(Collection<String> urls);
+}
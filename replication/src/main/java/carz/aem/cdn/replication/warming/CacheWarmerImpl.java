@@ -0,0 +1,227 @@
+package carz.aem.cdn.replication.warming;
+
+import carz.aem.cdn.replication.tracking.PurgeCompletion;
+import carz.aem.cdn.replication.tracking.PurgeCompletionListener;
+import carz.aem.cdn.replication.transport.TransportEngine;
+import carz.aem.cdn.replication.transport.TransportRequest;
+import com.day.cq.replication.ReplicationActionType;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache warmer sending GET requests for purged URLs through the transport
+ * engine once the {@link carz.aem.cdn.replication.tracking.PurgeTracker}
+ * reports the purge complete at the edge.
+ *
+ * One warmer thread takes the URLs off a bounded queue, spaced by the rate
+ * cap plus a random jitter, and sends at most the configured number of
+ * requests at a time. A URL warmed within the de-duplication window is not
+ * warmed again. With a warming endpoint configured, requests go to the
+ * endpoint with the path of the URL and the host of the URL in the Host
+ * header.
+ */
+@Component(service = {CacheWarmer.class, PurgeCompletionListener.class},
+  configurationPolicy = ConfigurationPolicy.REQUIRE,
+  immediate = true)
+@Designate(ocd = CacheWarmerImpl.Config.class)
+public class CacheWarmerImpl implements CacheWarmer, PurgeCompletionListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheWarmerImpl.class);
+
+  private static final String WILDCARD = "*";
+
+  @ObjectClassDefinition(name = "CDN cache warmer config")
+  public @interface Config {
+
+    @AttributeDefinition(name = "Warming endpoint",
+      description = "Scheme and host to send warming requests to, e.g. https://origin-warm.example.com. "
+        + "Empty to request the purged URLs themselves.")
+    String warming_endpoint() default "";
+
+    @AttributeDefinition(name = "Maximum concurrent requests")
+    int max_concurrency() default 4;
+
+    @AttributeDefinition(name = "Rate", description = "Maximum warming requests per second.")
+    double rate() default 10;
+
+    @AttributeDefinition(name = "Jitter", description = "Maximum random delay in milliseconds added before a request.")
+    long jitter() default 100;
+
+    @AttributeDefinition(name = "De-duplication window",
+      description = "Seconds in which a URL is warmed only once.")
+    long dedup_window() default 60;
+
+    @AttributeDefinition(name = "Queue size", description = "Maximum number of URLs waiting to be warmed.")
+    int queue_size() default 10000;
+
+  }
+
+  @Reference
+  private TransportEngine transportEngine;
+
+  private URI endpoint;
+  private Semaphore permits;
+  private long intervalNanos;
+  private long jitterMillis;
+  private long dedupWindowMillis;
+  private int dedupCapacity;
+  private BlockingQueue<String> queue;
+  private Map<String, Long> recentlyWarmed;
+  private Thread warmer;
+  private volatile boolean running;
+
+  @Activate
+  protected void activate(final CacheWarmerImpl.Config config) {
+    endpoint = StringUtils.isNotBlank(config.warming_endpoint()) ? URI.create(config.warming_endpoint().trim()) : null;
+    permits = new Semaphore(Math.max(1, config.max_concurrency()));
+    intervalNanos = config.rate() > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / config.rate()) : 0;
+    jitterMillis = Math.max(0, config.jitter());
+    dedupWindowMillis = TimeUnit.SECONDS.toMillis(Math.max(0, config.dedup_window()));
+    dedupCapacity = Math.max(1, config.queue_size());
+    queue = new LinkedBlockingQueue<>(Math.max(1, config.queue_size()));
+    recentlyWarmed = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > dedupCapacity;
+      }
+    };
+
+    running = true;
+    warmer = new Thread(this::run, "cdn-cache-warmer");
+    warmer.setDaemon(true);
+    warmer.start();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    running = false;
+    warmer.interrupt();
+    try {
+      warmer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void purged(PurgeCompletion completion) {
+    if (completion.isTimedOut()) {
+      LOG.debug("Not warming {} purge {}, completion not confirmed", completion.getCdn(), completion.getPurgeId());
+      return;
+    }
+    if (completion.getActionType() != ReplicationActionType.ACTIVATE) {
+      LOG.debug("Not warming {} purge {} of a {}", completion.getCdn(), completion.getPurgeId(),
+        completion.getActionType());
+      return;
+    }
+    warm(completion.getUrls());
+  }
+
+  @Override
+  public int warm(Collection<String> urls) {
+    int queued = 0;
+    final long now = System.currentTimeMillis();
+    for (String url : urls) {
+      if (StringUtils.isBlank(url) || url.contains(WILDCARD)) {
+        continue;
+      }
+      synchronized (recentlyWarmed) {
+        final Long warmed = recentlyWarmed.get(url);
+        if (warmed != null && now - warmed < dedupWindowMillis) {
+          continue;
+        }
+        recentlyWarmed.remove(url);
+        recentlyWarmed.put(url, now);
+      }
+      if (!queue.offer(url)) {
+        synchronized (recentlyWarmed) {
+          recentlyWarmed.remove(url);
+        }
+        LOG.warn("Cache warming queue full, dropping {}", url);
+        continue;
+      }
+      queued++;
+    }
+    return queued;
+  }
+
+  private void run() {
+    long next = System.nanoTime();
+    while (running) {
+      try {
+        final String url = queue.take();
+        final long delay = next - System.nanoTime()
+          + (jitterMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(jitterMillis + 1)) : 0);
+        if (delay > 0) {
+          TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        next = Math.max(next, System.nanoTime() - intervalNanos) + intervalNanos;
+        permits.acquire();
+        send(url);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void send(final String url) {
+    final TransportRequest request;
+    try {
+      request = createRequest(url);
+    } catch (IllegalArgumentException e) {
+      permits.release();
+      LOG.debug("Not warming invalid URL {}", url);
+      return;
+    }
+    try {
+      transportEngine.send(request).whenComplete((response, error) -> {
+        permits.release();
+        if (error != null) {
+          LOG.debug("Could not warm {}", url, error);
+        } else {
+          LOG.debug("Warmed {}: {}", url, response.getStatusCode());
+        }
+      });
+    } catch (RuntimeException e) {
+      permits.release();
+      LOG.warn("Could not send warming request for {}", url, e);
+    }
+  }
+
+  private TransportRequest createRequest(final String url) {
+    final URI uri = URI.create(url);
+    if (endpoint == null) {
+      if (uri.getScheme() == null || uri.getHost() == null) {
+        throw new IllegalArgumentException("Not an absolute URL: " + url);
+      }
+      return TransportRequest.builder("GET", uri).build();
+    }
+    final TransportRequest.Builder request = TransportRequest.builder("GET", endpoint.resolve(
+      StringUtils.defaultIfEmpty(uri.getRawPath(), "/") + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "")));
+    if (uri.getHost() != null) {
+      request.header(HttpHeaders.HOST, uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+    }
+    return request.build();
+  }
+}
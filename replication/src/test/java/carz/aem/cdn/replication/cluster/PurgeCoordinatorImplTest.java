@@ -0,0 +1,120 @@
+package carz.aem.cdn.replication.cluster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several coordinators in one JVM, each standing for one publish instance.
+ */
+public class PurgeCoordinatorImplTest {
+
+  private static final String[] MEMBERS = {"publish-1", "publish-2", "publish-3"};
+  private static final int KEYS = 1000;
+
+  private final Map<String, PurgeCoordinatorImpl> instances = new LinkedHashMap<>();
+
+  @Before
+  public void setUp() {
+    for (String member : MEMBERS) {
+      final PurgeCoordinatorImpl coordinator = new PurgeCoordinatorImpl();
+      coordinator.configure(member, MEMBERS, 128);
+      instances.put(member, coordinator);
+    }
+  }
+
+  @Test
+  public void everyKeyHasOneOwner() {
+    topology(MEMBERS);
+    final Map<String, Integer> owned = new LinkedHashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      final List<String> owners = ownersOf(key(i));
+      assertEquals("owners of " + key(i), 1, owners.size());
+      owned.merge(owners.get(0), 1, Integer::sum);
+    }
+    assertEquals(MEMBERS.length, owned.size());
+    for (int count : owned.values()) {
+      assertTrue("keys spread over the members: " + owned, count > KEYS / MEMBERS.length / 2);
+    }
+  }
+
+  @Test
+  public void keysOfLeavingMemberMoveToTheOthers() {
+    topology(MEMBERS);
+    final Map<String, String> before = new LinkedHashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      before.put(key(i), ownersOf(key(i)).get(0));
+    }
+
+    instances.remove("publish-2");
+    topology("publish-1", "publish-3");
+    for (Map.Entry<String, String> entry : before.entrySet()) {
+      final List<String> owners = ownersOf(entry.getKey());
+      assertEquals("owners of " + entry.getKey(), 1, owners.size());
+      if (!entry.getValue().equals("publish-2")) {
+        assertEquals("keys of the remaining members stay", entry.getValue(), owners.get(0));
+      }
+    }
+  }
+
+  @Test
+  public void everyInstanceSendsWhileTopologyIsChanging() {
+    topology(MEMBERS);
+    for (PurgeCoordinatorImpl coordinator : instances.values()) {
+      coordinator.updateLiveInstances(null);
+    }
+    assertEquals(MEMBERS.length, ownersOf(key(0)).size());
+  }
+
+  @Test
+  public void instancesOutsideTheTopologySendEverything() {
+    // separate publishers without topology connectors only see themselves
+    for (Map.Entry<String, PurgeCoordinatorImpl> instance : instances.entrySet()) {
+      instance.getValue().updateLiveInstances(Collections.singleton(instance.getKey()));
+    }
+    assertEquals(MEMBERS.length, ownersOf(key(0)).size());
+  }
+
+  @Test
+  public void allInstancesOfTheTopologyWithoutMembers() {
+    final PurgeCoordinatorImpl first = new PurgeCoordinatorImpl();
+    final PurgeCoordinatorImpl second = new PurgeCoordinatorImpl();
+    first.configure("publish-1", new String[0], 128);
+    second.configure("publish-2", new String[]{" ", null}, 128);
+    first.updateLiveInstances(Arrays.asList("publish-1", "publish-2"));
+    second.updateLiveInstances(Arrays.asList("publish-1", "publish-2"));
+    for (int i = 0; i < KEYS; i++) {
+      assertFalse("one owner of " + key(i), first.isOwner(key(i)) == second.isOwner(key(i)));
+    }
+  }
+
+  private void topology(String... live) {
+    for (PurgeCoordinatorImpl coordinator : instances.values()) {
+      coordinator.updateLiveInstances(Arrays.asList(live));
+    }
+  }
+
+  private List<String> ownersOf(String key) {
+    final List<String> owners = new ArrayList<>();
+    for (Map.Entry<String, PurgeCoordinatorImpl> instance : instances.entrySet()) {
+      if (instance.getValue().isOwner(key)) {
+        owners.add(instance.getKey());
+      }
+    }
+    return owners;
+  }
+
+  private static String key(int i) {
+    return "/content/site/page-" + i;
+  }
+}
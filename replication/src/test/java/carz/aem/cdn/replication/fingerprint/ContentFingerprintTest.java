@@ -0,0 +1,146 @@
+package carz.aem.cdn.replication.fingerprint;
+
+import carz.aem.cdn.replication.pipeline.PurgeContentPipelineImpl;
+import com.day.cq.wcm.api.NameConstants;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Fingerprints the properties of fake pages before and after changes.
+ */
+public class ContentFingerprintTest {
+
+  private static final Collection<String> IGNORED = ignoredByDefault();
+
+  @Test
+  public void replicationStatusDoesNotChangeTheFingerprint() {
+    final Map<String, Object> properties = page();
+    final long fingerprint = ContentFingerprint.of(resource(properties, true), IGNORED);
+
+    properties.put(NameConstants.PN_PAGE_LAST_REPLICATED, calendar(1600000000000L));
+    properties.put(NameConstants.PN_PAGE_LAST_REPLICATED_BY, "admin");
+    properties.put(NameConstants.PN_PAGE_LAST_REPLICATION_ACTION, "Activate");
+    assertEquals(fingerprint, ContentFingerprint.of(resource(properties, true), IGNORED));
+
+    properties.put(NameConstants.PN_PAGE_LAST_REPLICATED, calendar(1700000000000L));
+    properties.put(NameConstants.PN_PAGE_LAST_REPLICATION_ACTION, "Deactivate");
+    assertEquals(fingerprint, ContentFingerprint.of(resource(properties, true), IGNORED));
+
+    assertNotEquals("only the ignored properties are left out", fingerprint,
+      ContentFingerprint.of(resource(properties, true), Collections.<String>emptySet()));
+  }
+
+  @Test
+  public void changedContentChangesTheFingerprint() {
+    final Map<String, Object> properties = page();
+    final long fingerprint = ContentFingerprint.of(resource(properties, true), IGNORED);
+
+    properties.put(NameConstants.PN_TITLE, "Other title");
+    assertNotEquals(fingerprint, ContentFingerprint.of(resource(properties, true), IGNORED));
+
+    final Map<String, Object> modified = page();
+    modified.put(NameConstants.PN_PAGE_LAST_MOD, calendar(1500000001000L));
+    assertNotEquals(fingerprint, ContentFingerprint.of(resource(modified, true), IGNORED));
+
+    final Map<String, Object> added = page();
+    added.put("hideInNav", true);
+    assertNotEquals(fingerprint, ContentFingerprint.of(resource(added, true), IGNORED));
+
+    final Map<String, Object> tags = page();
+    tags.put("cq:tags", new String[]{"site:news", "site:sports"});
+    final long tagged = ContentFingerprint.of(resource(tags, true), IGNORED);
+    tags.put("cq:tags", new String[]{"site:news"});
+    assertNotEquals(tagged, ContentFingerprint.of(resource(tags, true), IGNORED));
+  }
+
+  @Test
+  public void fingerprintsTheResourceItselfWithoutContent() {
+    final Map<String, Object> properties = page();
+    assertEquals(ContentFingerprint.of(resource(properties, true), IGNORED),
+      ContentFingerprint.of(resource(properties, false), IGNORED));
+  }
+
+  @Test
+  public void binaryValuesOnlyContributeTheirName() {
+    final Map<String, Object> properties = page();
+    properties.put(JcrConstants.JCR_DATA, new ByteArrayInputStream(new byte[]{1, 2, 3}));
+    final long fingerprint = ContentFingerprint.of(resource(properties, false), IGNORED);
+    properties.put(JcrConstants.JCR_DATA, new ByteArrayInputStream(new byte[]{4, 5, 6}));
+    assertEquals(fingerprint, ContentFingerprint.of(resource(properties, false), IGNORED));
+  }
+
+  @Test
+  public void missingResourceHasNoFingerprint() {
+    assertEquals(ContentFingerprint.NONE, ContentFingerprint.of(null, IGNORED));
+    assertNotEquals(ContentFingerprint.NONE,
+      ContentFingerprint.of(resource(new HashMap<>(), false), IGNORED));
+  }
+
+  @Test
+  public void keysDifferPerAgentAndPath() {
+    final long key = ContentFingerprint.key("akamai", "/content/site/en");
+    assertEquals(key, ContentFingerprint.key("akamai", "/content/site/en"));
+    assertNotEquals(key, ContentFingerprint.key("verizon", "/content/site/en"));
+    assertNotEquals(key, ContentFingerprint.key("akamai", "/content/site/de"));
+    assertNotEquals(ContentFingerprint.key("akamai/", "content"), ContentFingerprint.key("akamai", "/content"));
+  }
+
+  private static Map<String, Object> page() {
+    final Map<String, Object> properties = new HashMap<>();
+    properties.put(JcrConstants.JCR_PRIMARYTYPE, "cq:PageContent");
+    properties.put(NameConstants.PN_TITLE, "News");
+    properties.put(NameConstants.PN_PAGE_LAST_MOD, calendar(1500000000000L));
+    properties.put("sling:resourceType", "site/components/page");
+    return properties;
+  }
+
+  private static Calendar calendar(long millis) {
+    final Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(millis);
+    return calendar;
+  }
+
+  /**
+   * @return a resource with the properties on its jcr:content child, or on
+   * itself without content
+   */
+  private static Resource resource(Map<String, Object> properties, boolean withContent) {
+    final Resource content = properties(properties, null);
+    return withContent ? properties(Collections.<String, Object>emptyMap(), content) : content;
+  }
+
+  private static Resource properties(Map<String, Object> properties, Resource content) {
+    return (Resource) Proxy.newProxyInstance(Resource.class.getClassLoader(), new Class<?>[]{Resource.class},
+      (proxy, method, args) -> {
+        if ("getValueMap".equals(method.getName())) {
+          return new ValueMapDecorator(new HashMap<>(properties));
+        } else if ("getChild".equals(method.getName())) {
+          return JcrConstants.JCR_CONTENT.equals(args[0]) ? content : null;
+        }
+        return null;
+      });
+  }
+
+  private static Collection<String> ignoredByDefault() {
+    try {
+      return Arrays.asList((String[]) PurgeContentPipelineImpl.Config.class
+        .getMethod("fingerprint_ignored_properties").getDefaultValue());
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
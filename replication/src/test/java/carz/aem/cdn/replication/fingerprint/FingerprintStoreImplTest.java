@@ -0,0 +1,196 @@
+package carz.aem.cdn.replication.fingerprint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills, rotates and restarts a store of two generations of 16 fingerprints
+ * against a temporary directory.
+ */
+public class FingerprintStoreImplTest {
+
+  private static final String AGENT = "akamai";
+  private static final int GENERATION = 16;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Map<String, Object> config = new HashMap<>();
+  private Path directory;
+  private FingerprintStoreImpl store;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.newFolder("fingerprints").toPath();
+    config.put("store_directory", directory.toString());
+    config.put("max_entries", GENERATION * 2);
+    config.put("flush_interval", 3600L);
+    store = start();
+  }
+
+  @After
+  public void tearDown() {
+    store.deactivate();
+  }
+
+  @Test
+  public void answersOnlyForTheRecordedFingerprint() {
+    assertFalse(store.isUnchanged(AGENT, path(0), 42L));
+    store.record(AGENT, path(0), 42L);
+    assertTrue(store.isUnchanged(AGENT, path(0), 42L));
+    assertFalse(store.isUnchanged(AGENT, path(0), 43L));
+    assertFalse("fingerprints are per agent", store.isUnchanged("verizon", path(0), 42L));
+
+    store.record(AGENT, path(0), 43L);
+    assertTrue(store.isUnchanged(AGENT, path(0), 43L));
+    assertFalse(store.isUnchanged(AGENT, path(0), 42L));
+  }
+
+  @Test
+  public void contentWithoutFingerprintIsNeverUnchanged() {
+    store.record(AGENT, path(0), ContentFingerprint.NONE);
+    assertFalse(store.isUnchanged(AGENT, path(0), ContentFingerprint.NONE));
+  }
+
+  @Test
+  public void keepsThePreviousGenerationAndEvictsTheOneBefore() {
+    recordAll(0, GENERATION);
+    store.record(AGENT, path(GENERATION), fingerprint(GENERATION));
+    assertAll("previous generation", 0, GENERATION + 1, true);
+
+    recordAll(GENERATION + 1, GENERATION * 2);
+    store.record(AGENT, path(GENERATION * 2), fingerprint(GENERATION * 2));
+    assertAll("evicted generation", 0, GENERATION, false);
+    assertAll("previous and current generation", GENERATION, GENERATION * 2 + 1, true);
+  }
+
+  @Test
+  public void updatingAKnownPathDoesNotStartANewGeneration() {
+    recordAll(0, GENERATION);
+    for (int i = 0; i < GENERATION * 4; i++) {
+      store.record(AGENT, path(i % GENERATION), fingerprint(i % GENERATION));
+    }
+    recordAll(GENERATION, GENERATION * 2);
+    assertAll("previous and current generation", 0, GENERATION * 2, true);
+  }
+
+  @Test
+  public void removedPathIsNotAnsweredByThePreviousGeneration() {
+    recordAll(0, GENERATION + 1);
+    assertTrue(store.isUnchanged(AGENT, path(0), fingerprint(0)));
+
+    store.remove(AGENT, path(0));
+    assertFalse(store.isUnchanged(AGENT, path(0), fingerprint(0)));
+    assertTrue(store.isUnchanged(AGENT, path(1), fingerprint(1)));
+
+    store.record(AGENT, path(0), fingerprint(0));
+    assertTrue("recorded again after its removal", store.isUnchanged(AGENT, path(0), fingerprint(0)));
+  }
+
+  @Test
+  public void removingAnUnknownPathTakesNoSlot() {
+    recordAll(0, GENERATION);
+    for (int i = 0; i < GENERATION; i++) {
+      store.remove(AGENT, "/content/unknown/page-" + i);
+    }
+    recordAll(GENERATION, GENERATION * 2);
+    assertAll("previous and current generation", 0, GENERATION * 2, true);
+  }
+
+  @Test
+  public void restoresBothGenerationsAndRemovalsAfterARestart() throws IOException {
+    recordAll(0, GENERATION + 4);
+    store.remove(AGENT, path(1));
+    store.remove(AGENT, path(GENERATION + 1));
+    store.deactivate();
+    assertTrue(Files.isRegularFile(directory.resolve("fingerprints.bin")));
+
+    store = start();
+    assertTrue(store.isUnchanged(AGENT, path(0), fingerprint(0)));
+    assertFalse(store.isUnchanged(AGENT, path(1), fingerprint(1)));
+    assertAll("previous generation", 2, GENERATION, true);
+    assertTrue(store.isUnchanged(AGENT, path(GENERATION), fingerprint(GENERATION)));
+    assertFalse(store.isUnchanged(AGENT, path(GENERATION + 1), fingerprint(GENERATION + 1)));
+    assertAll("current generation", GENERATION + 2, GENERATION + 4, true);
+
+    // the loaded generations still rotate in the order they were written
+    recordAll(GENERATION + 4, GENERATION * 2 + 1);
+    assertAll("evicted generation", 2, GENERATION, false);
+    assertAll("previous and current generation", GENERATION + 2, GENERATION * 2 + 1, true);
+  }
+
+  @Test
+  public void startsEmptyWithAFileOfAnUnknownFormat() throws IOException {
+    store.record(AGENT, path(0), fingerprint(0));
+    store.deactivate();
+    Files.write(directory.resolve("fingerprints.bin"), new byte[]{1, 2, 3, 4, 0, 0, 0, 1});
+
+    store = start();
+    assertFalse(store.isUnchanged(AGENT, path(0), fingerprint(0)));
+  }
+
+  @Test
+  public void startsEmptyWithATruncatedFile() throws IOException {
+    recordAll(0, GENERATION + 4);
+    store.deactivate();
+    final Path file = directory.resolve("fingerprints.bin");
+    final byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+
+    store = start();
+    assertAll("nothing of a damaged file", 0, GENERATION + 4, false);
+  }
+
+  private FingerprintStoreImpl start() throws IOException {
+    final FingerprintStoreImpl started = new FingerprintStoreImpl();
+    started.activate(null, config(FingerprintStoreImpl.Config.class, config));
+    return started;
+  }
+
+  private void recordAll(int from, int to) {
+    for (int i = from; i < to; i++) {
+      store.record(AGENT, path(i), fingerprint(i));
+    }
+  }
+
+  private void assertAll(String message, int from, int to, boolean unchanged) {
+    for (int i = from; i < to; i++) {
+      if (unchanged) {
+        assertTrue(message + ": " + path(i), store.isUnchanged(AGENT, path(i), fingerprint(i)));
+      } else {
+        assertFalse(message + ": " + path(i), store.isUnchanged(AGENT, path(i), fingerprint(i)));
+      }
+    }
+  }
+
+  private static String path(int i) {
+    return "/content/site/en/page-" + i;
+  }
+
+  private static long fingerprint(int i) {
+    return 1000L + i;
+  }
+
+  /**
+   * @return the config with the given values and the defaults of all others
+   */
+  private static <T> T config(Class<T> type, Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+      (proxy, method, args) -> values.containsKey(method.getName())
+        ? values.get(method.getName()) : method.getDefaultValue()));
+  }
+}
@@ -0,0 +1,412 @@
+package carz.aem.cdn.replication.journal;
+
+import carz.aem.cdn.replication.retry.PurgeRetryResult;
+import carz.aem.cdn.replication.url.UrlSet;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes, acknowledges and restarts the purge journal against a temporary
+ * directory, and damages its segment files the way a crash would.
+ */
+public class PurgeJournalImplTest {
+
+  private static final String AGENT = "akamai";
+  private static final ReplicationLog LOG = (ReplicationLog) Proxy.newProxyInstance(
+    ReplicationLog.class.getClassLoader(), new Class<?>[]{ReplicationLog.class}, (proxy, method, args) -> null);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Map<String, Object> config = new HashMap<>();
+  private Path directory;
+  private PurgeJournalImpl journal;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.newFolder("journal").toPath();
+    config.put("journal_directory", directory.toString());
+  }
+
+  @After
+  public void tearDown() {
+    if (journal != null) {
+      journal.deactivate();
+    }
+  }
+
+  @Test
+  public void recoversPurgesNotDoneAfterRestart() throws Exception {
+    start();
+    final long accepted = journal.begin(AGENT, null, urls("accepted", 2)).getId();
+    final long failed = journal.begin(AGENT, null, urls("failed", 2)).getId();
+    final long unacknowledged = journal.begin(AGENT, null, urls("unacknowledged", 2)).getId();
+    final long other = journal.begin("verizon", null, urls("other", 1)).getId();
+    journal.acknowledge(accepted, true);
+    journal.acknowledge(failed, false);
+
+    restart();
+    assertEquals(Arrays.asList(failed, unacknowledged), ids(journal.recover(AGENT)));
+    assertEquals(urls("failed", 2), journal.recover(AGENT).get(0).getUrls());
+    assertEquals(Collections.singletonList(other), ids(journal.recover("verizon")));
+    assertTrue("ids continue after the recovered ones",
+      journal.begin(AGENT, null, urls("next", 1)).getId() > other);
+  }
+
+  @Test
+  public void acknowledgedRecoveredPurgeIsNotRecoveredAgain() throws Exception {
+    start();
+    final long first = journal.begin(AGENT, null, urls("first", 1)).getId();
+    final long second = journal.begin(AGENT, null, urls("second", 1)).getId();
+
+    restart();
+    journal.acknowledge(first, true);
+    journal.acknowledge(second, false);
+    assertEquals(Collections.singletonList(second), ids(journal.recover(AGENT)));
+
+    restart();
+    assertEquals(Collections.singletonList(second), ids(journal.recover(AGENT)));
+  }
+
+  @Test
+  public void stopsReplayAtATornRecord() throws Exception {
+    start();
+    final long first = journal.begin(AGENT, null, urls("first", 3)).getId();
+    journal.begin(AGENT, null, urls("torn", 3));
+    journal.deactivate();
+
+    final Path segment = segments().get(0);
+    final List<Integer> frames = frames(segment);
+    assertEquals(2, frames.size());
+    // flip the last byte of the second record's checksum, as if the write was torn
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer length = ByteBuffer.allocate(4);
+      channel.read(length, frames.get(1));
+      final long crcEnd = frames.get(1) + 4 + length.getInt(0) + 4;
+      final ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, crcEnd - 1);
+      last.put(0, (byte) (last.get(0) ^ 0xff));
+      last.rewind();
+      channel.write(last, crcEnd - 1);
+    }
+
+    start();
+    assertEquals(Collections.singletonList(first), ids(journal.recover(AGENT)));
+  }
+
+  @Test
+  public void stopsReplayAtAPartialFrame() throws Exception {
+    start();
+    final long first = journal.begin(AGENT, null, urls("first", 3)).getId();
+    journal.deactivate();
+
+    final Path segment = segments().get(0);
+    final List<Integer> frames = frames(segment);
+    final int end = frames.get(0) + 4 + frameLength(segment, frames.get(0)) + 4;
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      final ByteBuffer partial = ByteBuffer.allocate(12);
+      partial.putInt(200).putInt(0x01020304).putInt(0x05060708).flip();
+      channel.write(partial, end);
+    }
+
+    start();
+    assertEquals(Collections.singletonList(first), ids(journal.recover(AGENT)));
+  }
+
+  @Test
+  public void movesUnreadableSegmentsAsideAndContinuesAfterThem() throws Exception {
+    start();
+    final long first = journal.begin(AGENT, null, urls("first", 1)).getId();
+    journal.deactivate();
+
+    final long sequence = JournalSegment.sequenceOf(segments().get(0));
+    // left behind by a crash between creating a segment and writing its header
+    final Path empty = directory.resolve(String.format("journal-%020d.log", sequence + 1));
+    final Path torn = directory.resolve(String.format("journal-%020d.log", sequence + 2));
+    Files.createFile(empty);
+    Files.write(torn, new byte[]{0x43, 0x4a});
+
+    start();
+    assertEquals(Collections.singletonList(first), ids(journal.recover(AGENT)));
+    assertTrue(Files.exists(directory.resolve(empty.getFileName() + ".unreadable")));
+    assertTrue(Files.exists(directory.resolve(torn.getFileName() + ".unreadable")));
+    assertFalse(Files.exists(empty));
+    assertEquals(sequence + 3, JournalSegment.sequenceOf(segments().get(0)));
+
+    final long second = journal.begin(AGENT, null, urls("second", 1)).getId();
+    restart();
+    assertEquals(Arrays.asList(first, second), ids(journal.recover(AGENT)));
+  }
+
+  @Test
+  public void dropsPurgesOlderThanTheMaximumAge() throws Exception {
+    final long now = System.currentTimeMillis();
+    final JournalSegment segment = JournalSegment.create(directory, 7, 64 * 1024);
+    assertTrue(segment.append(JournalRecord.purge(1, now - TimeUnit.HOURS.toMillis(25), AGENT, urls("old", 1))));
+    assertTrue(segment.append(JournalRecord.purge(2, now - TimeUnit.HOURS.toMillis(1), AGENT, urls("recent", 1))));
+    assertTrue(segment.append(JournalRecord.purge(3, now, AGENT, urls("done", 1))));
+    assertTrue(segment.append(JournalRecord.ack(3, now, true)));
+    segment.force();
+    segment.close();
+
+    config.put("max_age", 24L);
+    start();
+    assertEquals(Collections.singletonList(2L), ids(journal.recover(AGENT)));
+    assertEquals(urls("recent", 1), journal.recover(AGENT).get(0).getUrls());
+    assertTrue("ids continue after the recovered ones", journal.begin(AGENT, null, urls("next", 1)).getId() > 2);
+  }
+
+  @Test
+  public void compactsSegmentsKeptAliveByOldPurges() throws Exception {
+    config.put("segment_size", 64);
+    config.put("max_sealed_segments", 1);
+    start();
+    final long old = journal.begin(AGENT, null, urls("old", 5)).getId();
+    for (int i = 0; i < 60; i++) {
+      journal.acknowledge(journal.begin(AGENT, null, urls("batch-" + i, 100)).getId(), true);
+    }
+    assertTrue("segments on disk: " + segments(), segments().size() <= 3);
+
+    restart();
+    assertEquals(Collections.singletonList(old), ids(journal.recover(AGENT)));
+    assertEquals(urls("old", 5), journal.recover(AGENT).get(0).getUrls());
+  }
+
+  @Test
+  public void groupCommitsConcurrentWrites() throws Exception {
+    config.put("group_commit_delay", 5L);
+    start();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    final List<Future<Long>> ids = new ArrayList<>();
+    try {
+      for (int i = 0; i < 400; i++) {
+        final int n = i;
+        ids.add(executor.submit((Callable<Long>) () -> journal.begin(AGENT, null, urls("page-" + n, 1))
+          .getId()));
+      }
+      final Set<Long> unique = new HashSet<>();
+      for (Future<Long> id : ids) {
+        unique.add(id.get(10, TimeUnit.SECONDS));
+      }
+      assertEquals(400, unique.size());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    restart();
+    assertEquals(400, journal.recover(AGENT).size());
+  }
+
+  @Test
+  public void writeAfterStopFails() throws Exception {
+    start();
+    journal.deactivate();
+    try {
+      journal.begin(AGENT, null, urls("late", 1)).getId();
+      fail("write after stop");
+    } catch (JournalException e) {
+      // expected
+    } finally {
+      journal = null;
+    }
+  }
+
+  @Test
+  public void keepsOnlyPurgesThatMaySucceedLater() throws Exception {
+    start();
+    final JournalledPurge rejected = purge("rejected");
+    rejected.complete(new ReplicationResult(false, 0, "400 Bad Request"), LOG);
+    final JournalledPurge retryable = purge("retryable");
+    retryable.complete(new ReplicationResult(false, PurgeRetryResult.CODE_RETRYABLE, "503"), LOG);
+    final JournalledPurge abandoned = purge("abandoned");
+    abandoned.fail(LOG);
+    final JournalledPurge accepted = purge("accepted");
+    accepted.complete(ReplicationResult.OK, LOG);
+    accepted.fail(LOG);
+
+    restart();
+    final List<PurgeJournalEntry> recovered = journal.recover(AGENT);
+    assertEquals(2, recovered.size());
+    assertEquals(urls("retryable", 2), recovered.get(0).getUrls());
+    assertEquals(urls("abandoned", 2), recovered.get(1).getUrls());
+  }
+
+  @Test
+  public void retrySendsOnlyTheUrlsNotAcceptedYet() throws Exception {
+    start();
+    final String key = "ACTIVATE 1 /content/site/en";
+    final List<String> all = new ArrayList<>(UrlSet.of(urls("page", 40)));
+    final JournalledPurge first = JournalledPurge.begin(journal, AGENT, key, UrlSet.of(all), LOG);
+    first.accepted(UrlSet.of(all.subList(0, 15)), LOG);
+    assertEquals(all.subList(15, 40), new ArrayList<>(first.getUrls()));
+    first.complete(new ReplicationResult(false, PurgeRetryResult.CODE_RETRYABLE, "503"), LOG);
+
+    final JournalledPurge second = JournalledPurge.begin(journal, AGENT, key, UrlSet.of(all), LOG);
+    assertEquals(all.subList(15, 40), new ArrayList<>(second.getUrls()));
+    second.accepted(UrlSet.of(all.subList(15, 25)), LOG);
+    second.complete(new ReplicationResult(false, PurgeRetryResult.CODE_RETRYABLE, "503"), LOG);
+
+    final JournalledPurge other = JournalledPurge.begin(journal, AGENT, "ACTIVATE 2 /content/site/en",
+      UrlSet.of(all), LOG);
+    assertEquals(all, new ArrayList<>(other.getUrls()));
+    other.complete(ReplicationResult.OK, LOG);
+
+    restart();
+    final List<PurgeJournalEntry> recovered = journal.recover(AGENT);
+    assertEquals("continued attempts share their entry", 1, recovered.size());
+    assertEquals(all.subList(25, 40), recovered.get(0).getUrls());
+  }
+
+  @Test
+  public void continuesOpenEntriesOfTheSameKey() throws Exception {
+    start();
+    final List<String> all = urls("page", 6);
+    final PurgeJournalEntry first = journal.begin(AGENT, "key", all.subList(0, 4));
+    journal.accept(first.getId(), all.subList(0, 2));
+    journal.acknowledge(first.getId(), false);
+
+    final PurgeJournalEntry continued = journal.begin(AGENT, "key", all.subList(0, 4));
+    assertEquals(first.getId(), continued.getId());
+    assertEquals(all.subList(2, 4), continued.getUrls());
+    assertEquals(all.subList(0, 4), journal.begin("verizon", "key", all.subList(0, 4)).getUrls());
+
+    // more URLs than the open entry holds start a new entry, still without the accepted ones
+    final PurgeJournalEntry grown = journal.begin(AGENT, "key", all);
+    assertTrue(grown.getId() > first.getId());
+    assertEquals(all.subList(2, 6), grown.getUrls());
+    journal.acknowledge(grown.getId(), true);
+    assertEquals(all, journal.begin(AGENT, "key", all).getUrls());
+  }
+
+  @Test
+  public void entryWithAllUrlsAcceptedIsDone() throws Exception {
+    start();
+    final List<String> all = urls("page", 3);
+    final long id = journal.begin(AGENT, null, all).getId();
+    journal.accept(id, all.subList(0, 1));
+    journal.accept(id, all.subList(1, 3));
+
+    restart();
+    assertTrue(journal.recover(AGENT).isEmpty());
+  }
+
+  @Test
+  public void doesNotMergeRecoveredPurgesIntoLivePurges() throws Exception {
+    start();
+    journal.begin(AGENT, null, urls("recovered", 2));
+
+    restart();
+    final UrlSet live = UrlSet.of(urls("live", 2));
+    final JournalledPurge purge = JournalledPurge.begin(journal, AGENT, null, live, LOG);
+    assertEquals(urls("live", 2), new ArrayList<>(purge.getUrls()));
+    purge.complete(new ReplicationResult(false, 0, "403 Forbidden"), LOG);
+    assertEquals(1, journal.recover(AGENT).size());
+  }
+
+  private JournalledPurge purge(String name) {
+    return JournalledPurge.begin(journal, AGENT, null, UrlSet.of(urls(name, 2)), LOG);
+  }
+
+  private void start() throws IOException {
+    journal = new PurgeJournalImpl();
+    journal.activate(null, config(PurgeJournalImpl.Config.class, config));
+  }
+
+  private void restart() throws IOException {
+    journal.deactivate();
+    start();
+  }
+
+  private List<Path> segments() throws IOException {
+    final List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        if (JournalSegment.isSegment(file)) {
+          segments.add(file);
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * @return the offsets of the frames written to the segment
+   */
+  private static List<Integer> frames(Path segment) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+    buffer.position(8);
+    final List<Integer> frames = new ArrayList<>();
+    while (buffer.remaining() >= 8) {
+      final int offset = buffer.position();
+      final int length = buffer.getInt();
+      if (length <= 0) {
+        break;
+      }
+      frames.add(offset);
+      buffer.position(buffer.position() + length + 4);
+    }
+    return frames;
+  }
+
+  private static int frameLength(Path segment, int offset) throws IOException {
+    return ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(offset);
+  }
+
+  private static List<String> urls(String name, int count) {
+    final List<String> urls = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      urls.add("https://www.example.com/content/" + name + "/page-" + i + ".html");
+    }
+    return urls;
+  }
+
+  private static List<Long> ids(List<PurgeJournalEntry> entries) {
+    final List<Long> ids = new ArrayList<>();
+    for (PurgeJournalEntry entry : entries) {
+      ids.add(entry.getId());
+    }
+    return ids;
+  }
+
+  /**
+   * @return the config with the given values and the defaults of all others
+   */
+  private static <T> T config(Class<T> type, Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+      (proxy, method, args) -> values.containsKey(method.getName())
+        ? values.get(method.getName()) : method.getDefaultValue()));
+  }
+}
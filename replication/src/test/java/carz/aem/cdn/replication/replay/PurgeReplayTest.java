@@ -0,0 +1,87 @@
+package carz.aem.cdn.replication.replay;
+
+import carz.aem.cdn.replication.service.CDNFlushRulesConfig;
+import carz.aem.cdn.replication.service.CDNFlushRulesConfigImpl;
+import carz.aem.cdn.replication.service.CDNFlushRulesImpl;
+import carz.aem.cdn.replication.url.PurgeUrlBuilder;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays activations through a flush rule with many targets and reads the
+ * totals back from the report.
+ */
+public class PurgeReplayTest {
+
+  private static final String DOMAIN = "https://www.example.com";
+  private static final int TARGETS = 1000;
+
+  @Test
+  public void splitsPurgesAtTheMaximumBodySize() throws Exception {
+    final String report = replay("akamai", 50000, "/content/site/en/teaser");
+    assertEquals(1, total(report, "Events"));
+    // 1001 URLs of about 60 bytes do not fit into one request of 50000 bytes
+    assertEquals(2, total(report, "Purge calls"));
+    assertEquals(TARGETS + 1, total(report, "URLs"));
+    assertTrue(total(report, "Payload bytes") > 50000);
+
+    assertEquals(1, total(replay("akamai", 0, "/content/site/en/teaser"), "Purge calls"));
+    final String small = replay("akamai", 5000, "/content/site/en/teaser");
+    assertEquals(14, total(small, "Purge calls"));
+    final Matcher maxBytes = Pattern.compile("Payload bytes: .* max (\\d+) per call").matcher(small);
+    assertTrue(maxBytes.find());
+    assertTrue(Long.parseLong(maxBytes.group(1)) <= 5000);
+  }
+
+  @Test
+  public void sendsVerizonPurgesInOneCallByDefault() throws Exception {
+    assertEquals(1, total(replay("verizon", 0, "/content/site/en/teaser"), "Purge calls"));
+  }
+
+  @Test
+  public void countsWildcardTargetsSeparatelyForAkamai() throws Exception {
+    final String akamai = replay("akamai", 50000, "/content/site/en/nav");
+    assertEquals(1, total(akamai, "Wildcard targets"));
+    assertEquals("only the page", 1, total(akamai, "URLs"));
+
+    final String verizon = replay("verizon", 0, "/content/site/en/nav");
+    assertEquals("Verizon purges wildcard URLs as they are", 0, total(verizon, "Wildcard targets"));
+    assertEquals(2, total(verizon, "URLs"));
+  }
+
+  private static String replay(String cdn, int maxBodySize, String path) throws Exception {
+    final StringBuilder targets = new StringBuilder();
+    for (int i = 0; i < TARGETS; i++) {
+      targets.append(i > 0 ? "&" : "").append(String.format("/content/site/en/products/product-%04d.html", i));
+    }
+    final Map<Pattern, String[]> rules = CDNFlushRulesConfigImpl.parseFlushRules(new String[]{
+      "/content/site/en/teaser=" + targets,
+      "/content/site/en/nav=/content/site/en/menu*"});
+    final CDNFlushRulesImpl flushRules = new CDNFlushRulesImpl(
+      Collections.<CDNFlushRulesConfig>singletonList(() -> rules));
+
+    final PurgeWorkload workload = new PurgeWorkload(60000);
+    new PurgeReplay(cdn, new PurgeUrlBuilder(DOMAIN, ".html", false, internal -> internal), flushRules,
+      Pattern.compile("/content/[^.]*"), false, maxBodySize, workload)
+      .replay(new ActivationEvent(1500000000000L, "ACTIVATE", path));
+
+    final StringWriter report = new StringWriter();
+    workload.writeReport(new PrintWriter(report), 10);
+    return report.toString();
+  }
+
+  private static long total(String report, String name) {
+    final Matcher matcher = Pattern.compile("(?m)^" + Pattern.quote(name) + ": +(\\d+)").matcher(report);
+    assertTrue(name + " in " + report, matcher.find());
+    return Long.parseLong(matcher.group(1));
+  }
+}
@@ -0,0 +1,274 @@
+package carz.aem.cdn.replication.retry;
+
+import carz.aem.cdn.replication.transport.TransportResponse;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends batches of numbers through a fake sender that answers with scripted
+ * statuses.
+ */
+public class PurgeRetryEngineImplTest {
+
+  private static final ReplicationLog LOG = (ReplicationLog) Proxy.newProxyInstance(
+    ReplicationLog.class.getClassLoader(), new Class<?>[]{ReplicationLog.class}, (proxy, method, args) -> null);
+
+  private final Map<String, Object> config = new HashMap<>();
+  private final FakeSender sender = new FakeSender();
+  private PurgeRetryEngineImpl engine;
+
+  @Before
+  public void setUp() {
+    config.put("initial_delay", 1L);
+    config.put("max_delay", 2L);
+    engine = new PurgeRetryEngineImpl();
+  }
+
+  @Test
+  public void acceptsEvery2xx() {
+    sender.script(200, 201, 204);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2), batch(3));
+    assertTrue(result.isSuccess());
+    assertEquals(0, result.getRetries());
+    assertEquals(Arrays.asList(batch(1), batch(2), batch(3)), sender.accepted);
+    assertTrue(result.toReplicationResult(LOG).isSuccess());
+  }
+
+  @Test
+  public void splitsBatchesTooLargeAndSendsTheHalvesInOrder() {
+    sender.script(413, 201, 413, 201, 201, 201);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1, 2, 3, 4, 5), batch(6));
+    assertTrue(result.isSuccess());
+    assertEquals(Arrays.asList(batch(1, 2, 3, 4, 5), batch(1, 2), batch(3, 4, 5), batch(3), batch(4, 5), batch(6)),
+      sender.sent);
+    assertEquals(Arrays.asList(batch(1, 2), batch(3), batch(4, 5), batch(6)), sender.accepted);
+    assertEquals("splits are no retries", 0, result.getRetries());
+  }
+
+  @Test
+  public void failsForGoodIfABatchTooLargeCannotBeSplit() {
+    sender.script(413, 201);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2));
+    assertEquals(Collections.singletonList(batch(1)), result.getFailed());
+    assertTrue(result.isTerminal());
+    assertEquals(Collections.singletonList(batch(2)), sender.accepted);
+  }
+
+  @Test
+  public void retriesRetryableStatuses() {
+    for (int status : new int[]{408, 425, 429, 500, 502, 503, 504, 599}) {
+      sender.reset();
+      sender.script(status, 201);
+      final PurgeRetryResult<List<Integer>> result = send(batch(1));
+      assertTrue("status " + status, result.isSuccess());
+      assertEquals("status " + status, 1, result.getRetries());
+      assertEquals("status " + status, 2, sender.sent.size());
+    }
+  }
+
+  @Test
+  public void retriesIoErrors() {
+    sender.script(-1, 201);
+    assertTrue(send(batch(1)).isSuccess());
+    assertEquals(2, sender.sent.size());
+  }
+
+  @Test
+  public void doesNotRetryTerminalStatuses() {
+    for (int status : new int[]{400, 401, 403, 404, 409, 501, 505}) {
+      sender.reset();
+      sender.script(status, 201);
+      final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2));
+      assertEquals("status " + status, Collections.singletonList(batch(1)), result.getFailed());
+      assertTrue("status " + status, result.isTerminal());
+      assertFalse("status " + status, result.isBudgetExhausted());
+      assertEquals("status " + status, 0, result.getRetries());
+      assertEquals("the other batches are still sent", Collections.singletonList(batch(2)), sender.accepted);
+
+      final ReplicationResult replicationResult = result.toReplicationResult(LOG);
+      assertFalse(replicationResult.isSuccess());
+      assertEquals(0, replicationResult.getCode());
+    }
+  }
+
+  @Test
+  public void retriesOnlyTheFailedBatch() {
+    sender.script(201, 503, 201, 201);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2), batch(3));
+    assertTrue(result.isSuccess());
+    assertEquals(Arrays.asList(batch(1), batch(2), batch(2), batch(3)), sender.sent);
+  }
+
+  @Test
+  public void givesUpWhenTheRetriesAreUsedUp() {
+    config.put("max_retries", 2);
+    sender.script(503, 503, 503, 201);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2));
+    assertEquals(Collections.singletonList(batch(1)), result.getFailed());
+    assertEquals(2, result.getRetries());
+    assertTrue(result.isBudgetExhausted());
+    assertFalse(result.isTerminal());
+    assertEquals(Collections.singletonList(batch(2)), sender.accepted);
+
+    final ReplicationResult replicationResult = result.toReplicationResult(LOG);
+    assertFalse(replicationResult.isSuccess());
+    assertEquals(PurgeRetryResult.CODE_RETRYABLE, replicationResult.getCode());
+  }
+
+  @Test
+  public void budgetIsSharedByAllBatches() {
+    config.put("max_retries", 2);
+    sender.script(503, 201, 503, 201, 503, 503);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2), batch(3));
+    assertEquals(Collections.singletonList(batch(3)), result.getFailed());
+    assertEquals(2, result.getRetries());
+  }
+
+  @Test
+  public void terminalFailureWinsOverTheBudget() {
+    config.put("max_retries", 0);
+    sender.script(503, 400);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2));
+    assertTrue(result.isBudgetExhausted());
+    assertTrue(result.isTerminal());
+    assertEquals(0, result.toReplicationResult(LOG).getCode());
+  }
+
+  @Test
+  public void waitsForRetryAfter() {
+    sender.script(429, 201);
+    sender.retryAfter = "1";
+    final long start = System.currentTimeMillis();
+    assertTrue(send(batch(1)).isSuccess());
+    assertTrue(System.currentTimeMillis() - start >= 950);
+  }
+
+  @Test
+  public void givesUpWhenRetryAfterExceedsTheRetryTime() {
+    config.put("max_retry_time", 500L);
+    sender.script(503, 201);
+    sender.retryAfter = "120";
+    final long start = System.currentTimeMillis();
+    final PurgeRetryResult<List<Integer>> result = send(batch(1));
+    assertTrue(System.currentTimeMillis() - start < 500);
+    assertTrue(result.isBudgetExhausted());
+    assertEquals(1, sender.sent.size());
+  }
+
+  @Test
+  public void givesUpWhenTheRetryTimeIsUsedUp() {
+    config.put("max_retries", 1000);
+    config.put("max_retry_time", 100L);
+    config.put("initial_delay", 20L);
+    config.put("max_delay", 20L);
+    config.put("jitter", 0.0);
+    final int[] statuses = new int[1000];
+    Arrays.fill(statuses, 503);
+    sender.script(statuses);
+    final PurgeRetryResult<List<Integer>> result = send(batch(1));
+    assertTrue(result.isBudgetExhausted());
+    assertTrue("retries: " + result.getRetries(), result.getRetries() >= 3 && result.getRetries() <= 5);
+  }
+
+  @Test
+  public void returnsAllUnsentBatchesWhenInterrupted() {
+    config.put("initial_delay", 10000L);
+    config.put("max_delay", 10000L);
+    sender.script(503, 201, 201);
+    Thread.currentThread().interrupt();
+    try {
+      final PurgeRetryResult<List<Integer>> result = send(batch(1), batch(2), batch(3));
+      assertEquals(Arrays.asList(batch(1), batch(2), batch(3)), result.getFailed());
+      assertEquals("an interrupted purge may succeed later", PurgeRetryResult.CODE_RETRYABLE,
+        result.toReplicationResult(LOG).getCode());
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @SafeVarargs
+  private final PurgeRetryResult<List<Integer>> send(List<Integer>... batches) {
+    engine.activate(config(PurgeRetryEngineImpl.Config.class, config));
+    return engine.send(Arrays.asList(batches), sender, LOG);
+  }
+
+  private static List<Integer> batch(Integer... numbers) {
+    return Arrays.asList(numbers);
+  }
+
+  /**
+   * Answers with the scripted statuses in order, -1 for an I/O error, and
+   * splits batches in halves.
+   */
+  private static final class FakeSender implements PurgeRetryEngine.BatchSender<List<Integer>> {
+
+    private final Deque<Integer> statuses = new ArrayDeque<>();
+    private final List<List<Integer>> sent = new ArrayList<>();
+    private final List<List<Integer>> accepted = new ArrayList<>();
+    private String retryAfter;
+
+    private void script(int... codes) {
+      for (int code : codes) {
+        statuses.add(code);
+      }
+    }
+
+    private void reset() {
+      statuses.clear();
+      sent.clear();
+      accepted.clear();
+    }
+
+    @Override
+    public TransportResponse send(List<Integer> batch) throws IOException {
+      sent.add(batch);
+      final int status = statuses.isEmpty() ? 201 : statuses.poll();
+      if (status < 0) {
+        throw new IOException("Connection reset");
+      }
+      final Map<String, String> headers = retryAfter != null && status >= 400
+        ? Collections.singletonMap("retry-after", retryAfter) : Collections.<String, String>emptyMap();
+      return new TransportResponse(status, "Status " + status, headers, "");
+    }
+
+    @Override
+    public List<List<Integer>> split(List<Integer> batch) {
+      if (batch.size() < 2) {
+        return Collections.emptyList();
+      }
+      return Arrays.asList(batch.subList(0, batch.size() / 2), batch.subList(batch.size() / 2, batch.size()));
+    }
+
+    @Override
+    public void accepted(List<Integer> batch, TransportResponse response) {
+      accepted.add(batch);
+    }
+  }
+
+  /**
+   * @return the config with the given values and the defaults of all others
+   */
+  private static <T> T config(Class<T> type, Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+      (proxy, method, args) -> values.containsKey(method.getName())
+        ? values.get(method.getName()) : method.getDefaultValue()));
+  }
+}
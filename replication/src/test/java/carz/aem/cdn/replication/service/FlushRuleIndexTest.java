@@ -0,0 +1,193 @@
+package carz.aem.cdn.replication.service;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Matches paths against an index of flush rules and against the plain scan
+ * of all rules it replaces.
+ */
+public class FlushRuleIndexTest {
+
+  private static final Map<Pattern, String[]> RULES = new LinkedHashMap<>();
+
+  static {
+    rule(Pattern.compile("/content/site/en/(.*)"), "/content/site/en/nav", "/content/site/de/$1");
+    rule(Pattern.compile("^/content/site/de/news/.*"), "/content/site/de/news");
+    rule(Pattern.compile("/content/site/fr$"), "/content/site/fr/home");
+    rule(Pattern.compile("/content/sites?/it/(.*)"), "/content/site/it/$1");
+    rule(Pattern.compile("/content/site/e{1,2}n/.*"), "/content/site/een");
+    rule(Pattern.compile("/content/site/en/?"), "/content/site/en/root");
+    rule(Pattern.compile("/content/(site|other)/en/(.*)"), "/content/$1/nav/$2");
+    rule(Pattern.compile("(?i)/CONTENT/SITE/EN/.*"), "/content/site/ci");
+    rule(Pattern.compile("/content/site/EN/.*", Pattern.CASE_INSENSITIVE), "/content/site/flag");
+    rule(Pattern.compile("/content/site\\.en/.*"), "/content/site/dot");
+    rule(Pattern.compile("/content/site/en\\/foo"), "/content/site/slash");
+    rule(Pattern.compile(".*/jcr:content/.*"), "/content/site/any");
+    rule(Pattern.compile("/content/dam/(.*)\\.(png|jpg)"), "/content/dam/$1.thumb.$2");
+    rule(Pattern.compile("/content/site/en"), "/content/site/en/exact");
+    rule(Pattern.compile("/content/site/e[nN]/foo"), "/content/site/class");
+    rule(Pattern.compile("/(.*)"), "/all/$1");
+    rule(Pattern.compile("content/.*"), "/relative");
+  }
+
+  private static final String[] PATHS = {
+    "", "/", "/content", "/content/", "/content/site", "/content/site/en", "/content/site/en/",
+    "/content/site/en/foo", "/content/site/eN/foo", "/content/site/EN/foo", "/content/Site/en/foo",
+    "/CONTENT/SITE/EN/foo", "/content/site/een/foo", "/content/site/n/foo", "/content/sites/it/a",
+    "/content/site/it/a", "/content/other/en/x", "/content/site.en/x", "/content/siteXen/x",
+    "/content/site/fr", "/content/site/fr/", "/content/site/de/news/a", "/content/site/de/newsx",
+    "/content/dam/images/a.png", "/content/dam/images/a.gif", "/content/site/en/jcr:content/par",
+    "//content/site/en/x", "/content//site/en/x", "content/site/en"
+  };
+
+  @Test
+  public void collectsTheSameMatchesInTheSameOrderAsAScanOfAllRules() {
+    final FlushRuleIndex index = FlushRuleIndex.compile(RULES);
+    for (String path : PATHS) {
+      assertEquals(path, scan(RULES, path), collect(index, path));
+      assertEquals(path, !scan(RULES, path).isEmpty(), index.matches(path));
+    }
+  }
+
+  @Test
+  public void collectsTheSameMatchesForRandomPaths() {
+    final FlushRuleIndex index = FlushRuleIndex.compile(RULES);
+    final String[] segments = {"content", "CONTENT", "site", "sites", "Site", "en", "EN", "een", "de", "news",
+      "it", "fr", "other", "dam", "a.png", "jcr:content", "site.en", "foo", ""};
+    final Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      final StringBuilder path = new StringBuilder();
+      for (int depth = random.nextInt(6); depth >= 0; depth--) {
+        path.append('/').append(segments[random.nextInt(segments.length)]);
+      }
+      assertEquals(path.toString(), scan(RULES, path.toString()), collect(index, path.toString()));
+    }
+  }
+
+  @Test
+  public void findsTheLiteralPrefixOfPatterns() {
+    assertEquals("/content/site/", prefix("/content/site/(.*)/page"));
+    assertEquals("/content/site/en/", prefix("^/content/site/en/.*"));
+    assertEquals("/content/site/en", prefix("/content/site/en"));
+    assertEquals("/content/site/en/", prefix("/content/site/en/"));
+    assertEquals("/", prefix("/(.*)"));
+
+    assertEquals("anchored at the end", "/content/site/", prefix("/content/site/en$"));
+    assertEquals("optional character", "/content/", prefix("/content/sites?/.*"));
+    assertEquals("optional slash", "/content/", prefix("/content/site/?"));
+    assertEquals("repeated character", "/content/site/", prefix("/content/site/e{1,2}n/.*"));
+    assertEquals("repeated character", "/content/site/", prefix("/content/site/en+/.*"));
+    assertEquals("escaped dot", "/content/", prefix("/content/site\\.en/.*"));
+    assertEquals("escaped slash", "/content/site/", prefix("/content/site/en\\/foo"));
+    assertEquals("character class", "/content/site/", prefix("/content/site/e[nN]/.*"));
+
+    assertEquals("alternation", "", prefix("/content/(site|other)/.*"));
+    assertEquals("alternation of whole patterns", "", prefix("/content/site/en|/content/site/de"));
+    assertEquals("inline flag", "", prefix("(?i)/content/site/.*"));
+    assertEquals("relative", "", prefix("content/site/.*"));
+    assertEquals("leading wildcard", "", prefix(".*/jcr:content/.*"));
+    assertEquals("flag", "", FlushRuleIndex.literalPrefix(Pattern.compile("/content/site/.*",
+      Pattern.CASE_INSENSITIVE)));
+  }
+
+  @Test
+  public void readsBackTheWrittenRules() throws IOException {
+    final FlushRuleIndex read = FlushRuleIndex.read(ByteBuffer.wrap(write(FlushRuleIndex.compile(RULES))));
+    assertEquals(RULES.size(), read.size());
+    for (String path : PATHS) {
+      assertEquals(path, scan(RULES, path), collect(read, path));
+      assertEquals(path, !scan(RULES, path).isEmpty(), read.matches(path));
+    }
+
+    final ByteBuffer buffer = ByteBuffer.wrap(write(FlushRuleIndex.empty()));
+    assertEquals(0, FlushRuleIndex.read(buffer).size());
+    assertEquals("the empty index takes 4 bytes", 4, buffer.position());
+  }
+
+  @Test
+  public void readStopsAtTheEndOfTheIndex() throws IOException {
+    final byte[] bytes = write(FlushRuleIndex.compile(RULES));
+    final ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 8);
+    buffer.put(bytes).putLong(42L).flip();
+    assertEquals(RULES.size(), FlushRuleIndex.read(buffer).size());
+    assertEquals(42L, buffer.getLong());
+  }
+
+  @Test
+  public void rejectsTruncatedAndInvalidIndexes() {
+    final byte[] bytes = write(FlushRuleIndex.compile(RULES));
+    for (int length : new int[]{0, 3, 4, 10, bytes.length / 2, bytes.length - 1}) {
+      assertInvalid("truncated to " + length, Arrays.copyOf(bytes, length));
+    }
+    assertInvalid("negative number of rules", ByteBuffer.allocate(4).putInt(-1).array());
+    assertInvalid("negative string length", ByteBuffer.allocate(8).putInt(1).putInt(-5).array());
+    assertInvalid("string longer than the index", ByteBuffer.allocate(8).putInt(1).putInt(1000).array());
+  }
+
+  private static void rule(Pattern pattern, String... targets) {
+    RULES.put(pattern, targets);
+  }
+
+  private static String prefix(String regex) {
+    return FlushRuleIndex.literalPrefix(Pattern.compile(regex));
+  }
+
+  /**
+   * @return the patterns and target paths of all rules matching the path,
+   * matched one by one in their order
+   */
+  private static List<String> scan(Map<Pattern, String[]> rules, String path) {
+    final List<String> matches = new ArrayList<>();
+    for (Map.Entry<Pattern, String[]> rule : rules.entrySet()) {
+      final Matcher m = rule.getKey().matcher(path);
+      if (m.matches()) {
+        for (String target : rule.getValue()) {
+          matches.add(rule.getKey().pattern() + " ~> " + m.replaceAll(target));
+        }
+      }
+    }
+    return matches;
+  }
+
+  private static List<String> collect(FlushRuleIndex index, String path) {
+    final List<String> matches = new ArrayList<>();
+    index.collect(path, (pattern, target) -> matches.add(pattern.pattern() + " ~> " + target));
+    return matches;
+  }
+
+  private static byte[] write(FlushRuleIndex index) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      index.write(out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void assertInvalid(String message, byte[] bytes) {
+    try {
+      FlushRuleIndex.read(ByteBuffer.wrap(bytes));
+      fail(message);
+    } catch (IOException e) {
+      assertTrue(message, e.getMessage().contains("flush rule"));
+    }
+  }
+}
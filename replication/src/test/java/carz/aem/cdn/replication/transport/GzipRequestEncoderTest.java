@@ -0,0 +1,120 @@
+package carz.aem.cdn.replication.transport;
+
+import org.apache.http.HttpHeaders;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class GzipRequestEncoderTest {
+
+  private static final byte[] BODY = repeat("{\"objects\":[\"https://www.example.com/page.html\"]}", 40);
+
+  private final List<TransportRequest> sent = new ArrayList<>();
+  private int unsupportedResponses;
+
+  private final TransportEngine engine = request -> {
+    sent.add(request);
+    final boolean compressed = request.getHeader(HttpHeaders.CONTENT_ENCODING) != null;
+    final int status = compressed && unsupportedResponses-- > 0 ? 415 : 201;
+    return CompletableFuture.completedFuture(
+      new TransportResponse(status, "", Collections.<String, String>emptyMap(), ""));
+  };
+  private final RequestSigner signer = request -> request;
+
+  @Test
+  public void compressesBodiesAboveTheThreshold() throws IOException {
+    final GzipRequestEncoder encoder = new GzipRequestEncoder(100, 60000);
+    final TransportRequest encoded = encoder.encode(request("https://api.example.com/purge", BODY));
+    assertEquals("gzip", encoded.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertArrayEquals(BODY, gunzip(encoded.getBody()));
+
+    final TransportRequest small = request("https://api.example.com/purge", new byte[99]);
+    assertSame(small, encoder.encode(small));
+    final TransportRequest disabled = request("https://api.example.com/purge", BODY);
+    assertSame(disabled, new GzipRequestEncoder(0, 60000).encode(disabled));
+  }
+
+  @Test
+  public void resendsPlainBodyAfter415AndRemembersTheEndpoint() throws IOException {
+    final GzipRequestEncoder encoder = new GzipRequestEncoder(100, 60000);
+    unsupportedResponses = 1;
+    assertEquals(201, encoder.send(engine, signer, request("https://api.example.com/purge", BODY), null)
+      .getStatusCode());
+    assertEquals(2, sent.size());
+    assertEquals("gzip", sent.get(0).getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertNull(sent.get(1).getHeader(HttpHeaders.CONTENT_ENCODING));
+
+    encoder.send(engine, signer, request("https://api.example.com/other", BODY), null);
+    assertEquals(3, sent.size());
+    assertNull("same endpoint stays uncompressed", sent.get(2).getHeader(HttpHeaders.CONTENT_ENCODING));
+
+    encoder.send(engine, signer, request("https://other.example.com/purge", BODY), null);
+    assertEquals("other endpoints are still compressed", "gzip", sent.get(3).getHeader(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  @Test
+  public void compressesAgainAfterTheRetryInterval() throws Exception {
+    final GzipRequestEncoder encoder = new GzipRequestEncoder(100, 50);
+    unsupportedResponses = 1;
+    encoder.send(engine, signer, request("https://api.example.com/purge", BODY), null);
+    Thread.sleep(100);
+    encoder.send(engine, signer, request("https://api.example.com/purge", BODY), null);
+    assertEquals(3, sent.size());
+    assertEquals("gzip", sent.get(2).getHeader(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  @Test
+  public void keepsThe415StatePerEncoder() throws IOException {
+    final GzipRequestEncoder.Registry registry = new GzipRequestEncoder.Registry();
+    final GzipRequestEncoder first = registry.get("akamai-1", 100, 60000);
+    assertSame(first, registry.get("akamai-1", 100, 60000));
+    unsupportedResponses = 1;
+    first.send(engine, signer, request("https://api.example.com/purge", BODY), null);
+
+    registry.get("akamai-2", 100, 60000).send(engine, signer, request("https://api.example.com/purge", BODY), null);
+    assertEquals("gzip", sent.get(2).getHeader(HttpHeaders.CONTENT_ENCODING));
+
+    final GzipRequestEncoder changed = registry.get("akamai-1", 200, 60000);
+    changed.send(engine, signer, request("https://api.example.com/purge", BODY), null);
+    assertEquals("changed settings start over", "gzip", sent.get(3).getHeader(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  private static TransportRequest request(String uri, byte[] body) {
+    return TransportRequest.builder("POST", URI.create(uri)).body(body).build();
+  }
+
+  private static byte[] repeat(String value, int times) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      builder.append(value);
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] gunzip(byte[] body) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        out.write(buffer, 0, length);
+      }
+      return out.toByteArray();
+    }
+  }
+}
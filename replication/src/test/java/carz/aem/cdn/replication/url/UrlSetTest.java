@@ -0,0 +1,323 @@
+package carz.aem.cdn.replication.url;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the front coded sets with sorted string sets, around the block
+ * size of 16 URLs.
+ */
+public class UrlSetTest {
+
+  private static final int[] SIZES = {0, 1, 15, 16, 17, 32, 33, 100};
+
+  @Test
+  public void iteratesSortedAndDeduplicated() {
+    for (int size : SIZES) {
+      final List<String> urls = urls(size);
+      final List<String> shuffled = new ArrayList<>(urls);
+      shuffled.addAll(urls.subList(0, size / 2));
+      Collections.shuffle(shuffled, new Random(size));
+
+      final UrlSet set = UrlSet.of(shuffled);
+      assertEquals("size " + size, size, set.size());
+      assertEquals("size " + size, urls, new ArrayList<>(set));
+    }
+  }
+
+  @Test
+  public void findsEveryUrlAndNothingElse() {
+    for (int size : SIZES) {
+      final List<String> urls = urls(size);
+      final UrlSet set = UrlSet.of(urls);
+      for (String url : urls) {
+        assertTrue(size + " contains " + url, set.contains(url));
+        // between this URL and the next one
+        assertFalse(size + " contains " + url + "-", set.contains(url + "-"));
+        assertFalse(size + " contains " + url.substring(0, url.length() - 1),
+          set.contains(url.substring(0, url.length() - 1)));
+      }
+      assertFalse(set.contains("https://a.example.com/"));
+      assertFalse(set.contains("https://z.example.com/"));
+      assertFalse(set.contains(""));
+      assertFalse(set.contains(null));
+      assertFalse(set.contains(42));
+    }
+  }
+
+  @Test
+  public void frontCodesUrlsWithinBlocks() {
+    final String prefix = "https://www.example.com/content/site/en/section/";
+    final UrlSet set = UrlSet.of(Arrays.asList(prefix + "a", prefix + "b", prefix + "c"));
+    final int full = (prefix + "a").length();
+    // count, then the head with its length, then per URL the shared length, its length and one byte
+    assertEquals(1 + 1 + full + 2 * 3, set.toBytes().length);
+    assertArrayEquals(new byte[]{3, (byte) full}, Arrays.copyOf(set.toBytes(), 2));
+
+    final List<String> urls = new ArrayList<>();
+    for (int i = 0; i < 17; i++) {
+      urls.add(prefix + (char) ('a' + i));
+    }
+    // the 17th URL starts a new block and is stored in full
+    assertEquals(1 + 1 + full + 15 * 3 + 1 + full, UrlSet.of(urls).toBytes().length);
+  }
+
+  @Test
+  public void encodesCountsAndLengthsAsVarInts() {
+    final StringBuilder path = new StringBuilder("https://www.example.com/");
+    while (path.length() < 300) {
+      path.append("segment/");
+    }
+    final UrlSet one = UrlSet.of(Collections.singletonList(path.toString()));
+    final int length = path.length();
+    assertArrayEquals(new byte[]{1, (byte) ((length & 0x7f) | 0x80), (byte) (length >>> 7)},
+      Arrays.copyOf(one.toBytes(), 3));
+
+    final UrlSet many = UrlSet.of(urls(200));
+    assertArrayEquals(new byte[]{(byte) (200 & 0x7f | 0x80), 1}, Arrays.copyOf(many.toBytes(), 2));
+    assertEquals(many.encodedSize() + 2, many.toBytes().length);
+  }
+
+  @Test
+  public void roundTripsThroughBytes() {
+    for (int size : SIZES) {
+      final UrlSet set = UrlSet.of(urls(size));
+      final UrlSet read = UrlSet.fromBytes(set.toBytes());
+      assertEquals("size " + size, new ArrayList<>(set), new ArrayList<>(read));
+      assertArrayEquals(set.toBytes(), read.toBytes());
+      for (String url : set) {
+        assertTrue(read.contains(url));
+      }
+    }
+    assertSame(UrlSet.empty(), UrlSet.fromBytes(UrlSet.empty().toBytes()));
+  }
+
+  @Test
+  public void keepsMultiByteUrlsApartWhenSharingPartOfACharacter() {
+    // é (c3 a9) and ê (c3 aa) share their first byte, € (e2 82 ac) sorts after both
+    final List<String> urls = Arrays.asList(
+      "https://www.example.com/café", "https://www.example.com/café/menü",
+      "https://www.example.com/cafê", "https://www.example.com/caf€",
+      "https://www.example.com/日本", "https://www.example.com/日本語",
+      "https://www.example.com/caf", "https://www.example.com/😀");
+    final UrlSet set = UrlSet.of(urls);
+    assertEquals(sortedByBytes(urls), new ArrayList<>(set));
+    for (String url : urls) {
+      assertTrue(url, set.contains(url));
+    }
+    assertFalse(set.contains("https://www.example.com/cafë"));
+    assertEquals(new ArrayList<>(set), new ArrayList<>(UrlSet.fromBytes(set.toBytes())));
+  }
+
+  @Test
+  public void partitionsByJsonSize() throws IOException {
+    final UrlSet set = UrlSet.of(urls(100));
+    final int wholeJson = json(set).length();
+    for (int max : new int[]{40, 200, 1000, wholeJson - 1, wholeJson}) {
+      final List<UrlSet> parts = set.partition(max);
+      final List<String> joined = new ArrayList<>();
+      for (int i = 0; i < parts.size(); i++) {
+        final UrlSet part = parts.get(i);
+        joined.addAll(part);
+        if (part.size() > 1) {
+          assertTrue(max + ": " + json(part).length(), json(part).length() <= max);
+        }
+        if (i + 1 < parts.size()) {
+          // the next URL would not have fitted
+          final String next = parts.get(i + 1).iterator().next();
+          final List<String> grown = new ArrayList<>(part);
+          grown.add(next);
+          assertTrue(max + " part " + i + " is full", json(UrlSet.of(grown)).length() > max);
+        }
+      }
+      assertEquals(new ArrayList<>(set), joined);
+    }
+    assertEquals(1, set.partition(wholeJson).size());
+    assertEquals(2, set.partition(wholeJson - 1).size());
+    assertSame(set, set.partition(0).get(0));
+  }
+
+  @Test
+  public void partitionCountsEscapedAndMultiByteCharacters() throws IOException {
+    final UrlSet set = UrlSet.of(Arrays.asList(
+      "https://www.example.com/a\"b", "https://www.example.com/c\\d", "https://www.example.com/éé",
+      "https://www.example.com/</script>", "https://www.example.com/plain"));
+    for (int max = 30; max < 200; max++) {
+      for (UrlSet part : set.partition(max)) {
+        if (part.size() > 1) {
+          assertTrue(max + ": " + json(part), json(part).getBytes(StandardCharsets.UTF_8).length <= max);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void keepsAnOversizedUrlInItsOwnPart() {
+    final UrlSet set = UrlSet.of(Arrays.asList("https://www.example.com/a", "https://www.example.com/b"));
+    final List<UrlSet> parts = set.partition(10);
+    assertEquals(2, parts.size());
+    assertEquals(Collections.singletonList("https://www.example.com/a"), new ArrayList<>(parts.get(0)));
+    assertEquals(Collections.singletonList("https://www.example.com/b"), new ArrayList<>(parts.get(1)));
+  }
+
+  @Test
+  public void splitsIntoHalves() {
+    for (int size : SIZES) {
+      final UrlSet set = UrlSet.of(urls(size));
+      final List<UrlSet> halves = set.split();
+      if (size < 2) {
+        assertEquals(Collections.singletonList(set), halves);
+        continue;
+      }
+      assertEquals(size / 2, halves.get(0).size());
+      assertEquals(size - size / 2, halves.get(1).size());
+      final List<String> joined = new ArrayList<>(halves.get(0));
+      joined.addAll(halves.get(1));
+      assertEquals(new ArrayList<>(set), joined);
+      for (String url : halves.get(1)) {
+        assertTrue(halves.get(1).contains(url));
+        assertFalse(halves.get(0).contains(url));
+      }
+    }
+  }
+
+  @Test
+  public void unionDeduplicates() {
+    final List<String> all = urls(50);
+    final UrlSet first = UrlSet.of(all.subList(0, 33));
+    final UrlSet second = UrlSet.of(all.subList(17, 50));
+    final UrlSet union = first.union(second);
+    assertEquals(all, new ArrayList<>(union));
+    assertEquals(all, new ArrayList<>(second.union(first)));
+    assertSame(first, first.union(UrlSet.empty()));
+    assertSame(second, UrlSet.empty().union(second));
+    assertEquals(new ArrayList<>(first), new ArrayList<>(first.union(first)));
+  }
+
+  @Test
+  public void differenceLeavesOutTheOtherUrls() {
+    final List<String> all = urls(50);
+    final UrlSet set = UrlSet.of(all);
+    final List<String> rest = new ArrayList<>(all.subList(0, 10));
+    rest.addAll(all.subList(40, 50));
+    assertEquals(rest, new ArrayList<>(set.difference(UrlSet.of(all.subList(10, 40)))));
+    assertTrue(set.difference(set).isEmpty());
+    assertSame(set, set.difference(UrlSet.empty()));
+    assertSame(set, set.difference(UrlSet.of(Collections.singletonList("https://www.example.com/other"))));
+  }
+
+  @Test
+  public void mergesRepeatedUrlsAcrossBuilderRuns() {
+    final List<String> urls = urls(5000);
+    final UrlSet.Builder builder = UrlSet.builder();
+    for (int i = urls.size() - 1; i >= 0; i--) {
+      builder.add(urls.get(i));
+    }
+    // repeats land in the second and third run of 4096 URLs
+    builder.addAll(urls.subList(0, 4000));
+    final UrlSet set = builder.build();
+    assertEquals(urls, new ArrayList<>(set));
+    assertTrue(set.contains(urls.get(4999)));
+  }
+
+  @Test
+  public void writesJson() throws IOException {
+    final UrlSet set = UrlSet.of(Arrays.asList("https://www.example.com/b", "https://www.example.com/a\""));
+    assertEquals("[\"https://www.example.com/a\\\"\",\"https://www.example.com/b\"]", json(set));
+    assertEquals("[]", json(UrlSet.empty()));
+  }
+
+  @Test
+  public void rejectsCorruptBytes() {
+    final byte[] valid = UrlSet.of(urls(40)).toBytes();
+    assertInvalid(new byte[0]);
+    assertInvalid(new byte[]{(byte) 0x80});
+    assertInvalid(new byte[]{0, 1});
+    assertInvalid(Arrays.copyOf(valid, valid.length - 1));
+    assertInvalid(Arrays.copyOf(valid, valid.length + 1));
+    assertInvalid(Arrays.copyOf(valid, valid.length / 2));
+    // a count far beyond the bytes
+    assertInvalid(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 1, 'a'});
+    // a negative count
+    assertInvalid(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f, 1, 'a'});
+
+    // the second URL claims to share more bytes than the first one has
+    final byte[] shared = UrlSet.of(Arrays.asList("ab", "ac")).toBytes();
+    assertArrayEquals(new byte[]{2, 2, 'a', 'b', 1, 1, 'c'}, shared);
+    shared[4] = 3;
+    assertInvalid(shared);
+
+    final Random random = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      final byte[] corrupt = valid.clone();
+      corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+      try {
+        // any set read without an exception can be iterated
+        for (String url : UrlSet.fromBytes(corrupt)) {
+          assertTrue(url != null);
+        }
+      } catch (IllegalArgumentException e) {
+        // expected for most corruptions
+      }
+    }
+  }
+
+  private static void assertInvalid(byte[] bytes) {
+    try {
+      UrlSet.fromBytes(bytes);
+      fail("read " + Arrays.toString(bytes));
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static List<String> urls(int count) {
+    final TreeSet<String> urls = new TreeSet<>();
+    for (int i = 0; i < count; i++) {
+      urls.add(String.format("https://www.example.com/content/site/en/page-%04d.html", i * 7));
+    }
+    return new ArrayList<>(urls);
+  }
+
+  private static List<String> sortedByBytes(List<String> urls) {
+    final List<String> sorted = new ArrayList<>(urls);
+    sorted.sort((a, b) -> {
+      final byte[] x = a.getBytes(StandardCharsets.UTF_8);
+      final byte[] y = b.getBytes(StandardCharsets.UTF_8);
+      for (int i = 0; i < Math.min(x.length, y.length); i++) {
+        if (x[i] != y[i]) {
+          return (x[i] & 0xff) - (y[i] & 0xff);
+        }
+      }
+      return x.length - y.length;
+    });
+    return sorted;
+  }
+
+  private static String json(UrlSet set) {
+    final StringWriter writer = new StringWriter();
+    try {
+      set.writeJson(writer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return writer.toString();
+  }
+}
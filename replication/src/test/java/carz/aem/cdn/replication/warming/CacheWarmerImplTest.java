@@ -0,0 +1,203 @@
+package carz.aem.cdn.replication.warming;
+
+import carz.aem.cdn.replication.tracking.PurgeCompletion;
+import carz.aem.cdn.replication.transport.HttpClientTransportEngine;
+import com.day.cq.replication.ReplicationActionType;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Warms URLs against a local HTTP stub through the HTTP client transport
+ * engine.
+ */
+public class CacheWarmerImplTest {
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private final List<Long> requestTimes = new CopyOnWriteArrayList<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private volatile long responseDelayMillis;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private TestTransportEngine transportEngine;
+  private CacheWarmerImpl warmer;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.createContext("/", exchange -> {
+      final int current = inFlight.incrementAndGet();
+      maxInFlight.accumulateAndGet(current, Math::max);
+      requestTimes.add(System.nanoTime());
+      requests.add(exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI());
+      try {
+        Thread.sleep(responseDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      inFlight.decrementAndGet();
+      exchange.getResponseHeaders().add("Connection", "close");
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    server.start();
+    transportEngine = new TestTransportEngine();
+  }
+
+  @After
+  public void tearDown() {
+    if (warmer != null) {
+      warmer.deactivate();
+    }
+    transportEngine.stop();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void warmsThroughTheEndpointWithTheHostOfTheUrl() throws Exception {
+    startWarmer(4, 0);
+    assertEquals(2, warmer.warm(Arrays.asList("http://www.example.com/a.html", "http://www.example.com/b.html?x=1")));
+    awaitRequests(2);
+    assertTrue(requests.toString(), requests.contains("www.example.com/a.html"));
+    assertTrue(requests.toString(), requests.contains("www.example.com/b.html?x=1"));
+  }
+
+  @Test
+  public void warmsUrlOnceWithinTheWindow() throws Exception {
+    startWarmer(4, 0);
+    assertEquals(1, warmer.warm(Arrays.asList("http://www.example.com/a.html", "http://www.example.com/a.html")));
+    assertEquals(0, warmer.warm(Collections.singletonList("http://www.example.com/a.html")));
+    assertEquals(1, warmer.warm(Collections.singletonList("http://www.example.com/b.html")));
+    awaitRequests(2);
+    Thread.sleep(200);
+    assertEquals(requests.toString(), 2, requests.size());
+  }
+
+  @Test
+  public void skipsWildcardUrls() throws Exception {
+    startWarmer(4, 0);
+    assertEquals(1, warmer.warm(Arrays.asList("http://www.example.com/men*", "http://www.example.com/a.html")));
+    awaitRequests(1);
+    Thread.sleep(200);
+    assertEquals(Collections.singletonList("www.example.com/a.html"), requests);
+  }
+
+  @Test
+  public void warmsOnlyCompletedActivations() throws Exception {
+    startWarmer(4, 0);
+    final long now = System.currentTimeMillis();
+    warmer.purged(new PurgeCompletion("akamai", ReplicationActionType.DEACTIVATE, "1", null,
+      Collections.singletonList("http://www.example.com/deactivated.html"), now, now, false));
+    warmer.purged(new PurgeCompletion("akamai", ReplicationActionType.DELETE, "2", null,
+      Collections.singletonList("http://www.example.com/deleted.html"), now, now, false));
+    warmer.purged(new PurgeCompletion("akamai", ReplicationActionType.ACTIVATE, "3", null,
+      Collections.singletonList("http://www.example.com/timed-out.html"), now, now, true));
+    warmer.purged(new PurgeCompletion("akamai", ReplicationActionType.ACTIVATE, "4", null,
+      Collections.singletonList("http://www.example.com/activated.html"), now, now, false));
+    awaitRequests(1);
+    Thread.sleep(200);
+    assertEquals(Collections.singletonList("www.example.com/activated.html"), requests);
+  }
+
+  @Test
+  public void capsTheRate() throws Exception {
+    startWarmer(4, 20);
+    assertEquals(6, warmer.warm(urls(6)));
+    awaitRequests(6);
+    final long elapsed = TimeUnit.NANOSECONDS.toMillis(requestTimes.get(5) - requestTimes.get(0));
+    assertTrue("6 requests at 20 per second took " + elapsed + " ms", elapsed >= 200);
+  }
+
+  @Test
+  public void boundsConcurrentRequests() throws Exception {
+    responseDelayMillis = 200;
+    startWarmer(2, 0);
+    assertEquals(8, warmer.warm(urls(8)));
+    awaitRequests(8);
+    assertEquals(2, maxInFlight.get());
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private void startWarmer(int maxConcurrency, double rate) throws Exception {
+    final Map<String, Object> config = new HashMap<>();
+    config.put("warming_endpoint", "http://localhost:" + server.getAddress().getPort());
+    config.put("max_concurrency", maxConcurrency);
+    config.put("rate", rate);
+    config.put("jitter", 0L);
+    warmer = new CacheWarmerImpl();
+    inject(warmer, "transportEngine", transportEngine);
+    warmer.activate(config(CacheWarmerImpl.Config.class, config));
+  }
+
+  private void awaitRequests(int count) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (requests.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(requests.toString(), count, requests.size());
+  }
+
+  private static List<String> urls(int count) {
+    final String[] urls = new String[count];
+    for (int i = 0; i < count; i++) {
+      urls[i] = "http://www.example.com/page-" + i + ".html";
+    }
+    return Arrays.asList(urls);
+  }
+
+  private static void inject(Object target, String name, Object value) throws ReflectiveOperationException {
+    final Field field = target.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+  /**
+   * @return the config with the given values and the defaults of all others
+   */
+  private static <T> T config(Class<T> type, Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+      (proxy, method, args) -> values.containsKey(method.getName())
+        ? values.get(method.getName()) : method.getDefaultValue()));
+  }
+
+  private static final class TestTransportEngine extends HttpClientTransportEngine {
+
+    private TestTransportEngine() {
+      activate(config(HttpClientTransportEngine.Config.class, Collections.emptyMap()));
+    }
+
+    private void stop() {
+      deactivate();
+    }
+  }
+}